@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ChunkSink;
+import opendropbox.storage.Chunker;
+
+/**
+ * Encrypts chunks on the client before they go to any server, so that
+ * untrusted machines can hold them.  Each chunk gets its own AES-256 key
+ * and is sealed with AES-GCM, which also lets the client tell if a
+ * server changed it.  A sealed chunk is
+ *
+ *   nonce (12 bytes) | ciphertext | tag (16 bytes)
+ *
+ * and is stored under its own hash like any other chunk.  The keys come
+ * back as ChunkKeys, which the client must keep to itself.
+ *
+ * Keys are either random or convergent.  A convergent key is derived
+ * from the chunk's contents and a secret, so clients sharing the secret
+ * produce the same sealed chunk from the same data and servers still
+ * deduplicate it; anyone with the secret can tell whether a server
+ * holds a chunk they can guess, which random keys prevent.
+ *
+ * putStream() cuts a stream into chunks on the calling thread and
+ * seals them on a ForkJoinPool, keeping a bounded window of chunks in
+ * flight and handing them to the sink in order, so a backup of any size
+ * is encrypted on every core in constant memory.  Each pool thread
+ * keeps its own Cipher and Mac.
+ *
+ * @author Walter
+ */
+public class ChunkEncryptor {
+
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    // the bytes a sealed chunk has over the plain one
+    public static final int OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte KEY_LABEL = 1;
+    private static final byte NONCE_LABEL = 2;
+
+    private static final ThreadLocal<Worker> _workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            try {
+                return new Worker();
+            } catch (GeneralSecurityException e) {
+                // every JVM is required to provide AES/GCM and HmacSHA256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final SecretKeySpec _convergenceSecret;
+    private final SecureRandom _random;
+    private final ForkJoinPool _pool;
+    private final boolean _ownsPool;
+    private final int _window;
+
+    private ChunkEncryptor(byte[] convergenceSecret, ForkJoinPool pool, boolean ownsPool) {
+        _convergenceSecret = convergenceSecret == null ? null : new SecretKeySpec(convergenceSecret, MAC_ALGORITHM);
+        _random = new SecureRandom();
+        _pool = pool;
+        _ownsPool = ownsPool;
+        // enough chunks to keep every thread busy while the oldest is stored
+        _window = pool.getParallelism() * 4;
+    }
+
+    /**
+     * @return - an encryptor that gives every chunk a random key
+     */
+    public static ChunkEncryptor withRandomKeys() {
+        return new ChunkEncryptor(null, new ForkJoinPool(), true);
+    }
+
+    /**
+     * @param secret - shared by the clients whose data should deduplicate
+     * against each other; not empty
+     * @return - an encryptor that derives each chunk's key from its
+     * contents and the secret
+     */
+    public static ChunkEncryptor withConvergentKeys(byte[] secret) {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("empty convergence secret");
+        }
+        return new ChunkEncryptor(secret.clone(), new ForkJoinPool(), true);
+    }
+
+    /**
+     * @param secret - as for withConvergentKeys(), or null for random keys
+     * @param pool - the threads to seal chunks on
+     * @return - an encryptor sharing the pool
+     */
+    public static ChunkEncryptor create(byte[] secret, ForkJoinPool pool) {
+        if (secret != null && secret.length == 0) {
+            throw new IllegalArgumentException("empty convergence secret");
+        }
+        return new ChunkEncryptor(secret == null ? null : secret.clone(), pool, false);
+    }
+
+    public boolean isConvergent() {
+        return _convergenceSecret != null;
+    }
+
+    /**
+     * Seals one chunk on the calling thread and stores it.
+     *
+     * @param data - the array holding the chunk
+     * @param offset - where the chunk starts
+     * @param length - the chunk's length
+     * @param sink - where the sealed chunk goes
+     * @return - its key
+     */
+    public ChunkKey put(byte[] data, int offset, int length, ChunkSink sink) throws IOException {
+        return store(seal(data, offset, length), sink);
+    }
+
+    /**
+     * Splits a stream into chunks, seals them in parallel and stores
+     * them in order.
+     *
+     * @param in - the data; read to its end but not closed
+     * @param chunker - decides where the chunks are cut
+     * @param sink - where the sealed chunks go
+     * @return - the key of each chunk in order
+     */
+    public List<ChunkKey> putStream(InputStream in, Chunker chunker, final ChunkSink sink) throws IOException {
+        if (chunker.getMaxChunkLength() + OVERHEAD > BlockStore.MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("chunks of up to " + chunker.getMaxChunkLength() + " bytes");
+        }
+        final List<ChunkKey> keys = new ArrayList<ChunkKey>();
+        final ArrayDeque<ForkJoinTask<Sealed>> sealing = new ArrayDeque<ForkJoinTask<Sealed>>();
+        try {
+            BlockStore.split(in, chunker, new ChunkSink() {
+                public ChunkHash put(byte[] data, int offset, int length) throws IOException {
+                    // split() reuses its buffer
+                    final byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+                    if (sealing.size() >= _window) {
+                        keys.add(store(get(sealing.poll()), sink));
+                    }
+                    sealing.add(_pool.submit(new Callable<Sealed>() {
+                        public Sealed call() throws IOException {
+                            return seal(chunk, 0, chunk.length);
+                        }
+                    }));
+                    // the stored hash is only known once the chunk is sealed,
+                    // and is returned in its key
+                    return null;
+                }
+            });
+            while (!sealing.isEmpty()) {
+                keys.add(store(get(sealing.poll()), sink));
+            }
+        } finally {
+            for (ForkJoinTask<Sealed> task : sealing) {
+                task.cancel(false);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Opens a sealed chunk.
+     *
+     * @param key - the chunk's key
+     * @param sealed - the chunk as stored
+     * @return - the plain chunk
+     * @throws IOException if the chunk is not the one the key is for, or
+     * has been changed
+     */
+    public static byte[] decrypt(ChunkKey key, byte[] sealed) throws IOException {
+        if (sealed.length != key.getLength() + OVERHEAD) {
+            throw new IOException("Chunk " + key + " has " + sealed.length + " bytes, expected "
+                    + (key.getLength() + OVERHEAD));
+        }
+        try {
+            return _workers.get().open(key.key(), sealed);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk " + key + " failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decrypt chunk " + key, e);
+        }
+    }
+
+    /**
+     * Stops the pool, if this encryptor created it.
+     */
+    public void close() {
+        if (_ownsPool) {
+            _pool.shutdown();
+        }
+    }
+
+    private Sealed seal(byte[] data, int offset, int length) throws IOException {
+        Worker worker = _workers.get();
+        byte[] key = new byte[ChunkKey.KEY_LENGTH];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        try {
+            if (_convergenceSecret != null) {
+                byte[] hash = ChunkHash.of(data, offset, length).toBytes();
+                worker.derive(_convergenceSecret, KEY_LABEL, hash, key);
+                worker.derive(_convergenceSecret, NONCE_LABEL, hash, nonce);
+            } else {
+                _random.nextBytes(key);
+                _random.nextBytes(nonce);
+            }
+            return new Sealed(key, worker.seal(key, nonce, data, offset, length), length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot encrypt chunk", e);
+        }
+    }
+
+    private static ChunkKey store(Sealed sealed, ChunkSink sink) throws IOException {
+        ChunkHash hash = sink.put(sealed.data, 0, sealed.data.length);
+        return new ChunkKey(hash, sealed.key, sealed.length);
+    }
+
+    private static Sealed get(ForkJoinTask<Sealed> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot encrypt chunk", e.getCause());
+        }
+    }
+
+    private static class Sealed {
+
+        final byte[] key;
+        final byte[] data;
+        final int length;
+
+        Sealed(byte[] key, byte[] data, int length) {
+            this.key = key;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The Cipher and Mac of one thread, reused for every chunk it
+     * handles.
+     */
+    private static class Worker {
+
+        final Cipher cipher;
+        final Mac mac;
+        byte[] lastKey;
+        byte[] lastNonce;
+
+        Worker() throws GeneralSecurityException {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            mac = Mac.getInstance(MAC_ALGORITHM);
+        }
+
+        void derive(SecretKeySpec secret, byte label, byte[] hash, byte[] out) throws GeneralSecurityException {
+            mac.init(secret);
+            mac.update(label);
+            mac.update(hash);
+            System.arraycopy(mac.doFinal(), 0, out, 0, out.length);
+        }
+
+        byte[] seal(byte[] key, byte[] nonce, byte[] data, int offset, int length) throws GeneralSecurityException {
+            if (Arrays.equals(key, lastKey) && Arrays.equals(nonce, lastNonce)) {
+                // a convergent chunk seen twice in a row.  the same key and
+                // nonce give the same output, which is the point, but GCM
+                // refuses to be initialised with them twice running
+                byte[] other = nonce.clone();
+                other[0] ^= 1;
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, other));
+            }
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            lastKey = key;
+            lastNonce = nonce;
+
+            byte[] sealed = new byte[NONCE_LENGTH + length + TAG_LENGTH];
+            System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+            cipher.doFinal(data, offset, length, sealed, NONCE_LENGTH);
+            return sealed;
+        }
+
+        byte[] open(byte[] key, byte[] sealed) throws GeneralSecurityException {
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, NONCE_LENGTH));
+            return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+        }
+    }
+}
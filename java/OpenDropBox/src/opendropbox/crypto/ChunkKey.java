@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import opendropbox.storage.ChunkHash;
+
+/**
+ * What a client keeps to get one encrypted chunk back: the hash the
+ * encrypted chunk is stored under, the key it was encrypted with and
+ * the length of the plain chunk.  Servers only ever see the first.
+ *
+ * Encoded as:
+ *
+ *   stored hash (32 bytes) | key (32 bytes) | length (4 bytes)
+ *
+ * @author Walter
+ */
+public final class ChunkKey {
+
+    public static final int KEY_LENGTH = 32;
+    public static final int LENGTH = ChunkHash.LENGTH + KEY_LENGTH + 4;
+
+    private final ChunkHash _storedHash;
+    private final byte[] _key;
+    private final int _length;
+
+    /**
+     * @param storedHash - the hash of the encrypted chunk
+     * @param key - the AES-256 key it was encrypted with
+     * @param length - the length of the plain chunk
+     */
+    public ChunkKey(ChunkHash storedHash, byte[] key, int length) {
+        if (key.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("key of " + key.length + " bytes");
+        }
+        _storedHash = storedHash;
+        _key = key.clone();
+        _length = length;
+    }
+
+    public static ChunkKey read(ByteBuffer in) {
+        ChunkHash storedHash = ChunkHash.read(in);
+        byte[] key = new byte[KEY_LENGTH];
+        in.get(key);
+        return new ChunkKey(storedHash, key, in.getInt());
+    }
+
+    public void write(ByteBuffer out) {
+        _storedHash.write(out);
+        out.put(_key);
+        out.putInt(_length);
+    }
+
+    public ChunkHash getStoredHash() {
+        return _storedHash;
+    }
+
+    public byte[] getKey() {
+        return _key.clone();
+    }
+
+    /**
+     * @return - the length of the plain chunk
+     */
+    public int getLength() {
+        return _length;
+    }
+
+    byte[] key() {
+        return _key;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkKey)) {
+            return false;
+        }
+        ChunkKey other = (ChunkKey) o;
+        return _storedHash.equals(other._storedHash) && _length == other._length && Arrays.equals(_key, other._key);
+    }
+
+    public int hashCode() {
+        return _storedHash.hashCode();
+    }
+
+    public String toString() {
+        // never the key
+        return _storedHash.toString();
+    }
+}
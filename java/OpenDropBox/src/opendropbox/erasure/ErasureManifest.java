@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import opendropbox.storage.ChunkHash;
+
+/**
+ * Where the shards of an erasure coded file went.  The file is cut into
+ * stripes of k data shards of getShardLength() bytes each, the last one
+ * padded with zeros, and each stripe gets m parity shards.  Every shard
+ * is stored as an ordinary chunk, and the manifest records its hash and
+ * the instance name of the chunk server holding it.
+ *
+ * @author Walter
+ */
+public class ErasureManifest {
+
+    private final int _dataShards;
+    private final int _parityShards;
+    private final int _shardLength;
+    private final long _fileLength;
+    private final List<ChunkHash> _shards;
+    private final List<String> _holders;
+
+    /**
+     * @param dataShards - k
+     * @param parityShards - m
+     * @param shardLength - the length of every shard, in bytes
+     * @param fileLength - the length of the file before padding
+     * @param shards - the hash of each shard, stripe by stripe, k + m
+     * to a stripe, the data first
+     * @param holders - the instance name of the holder of each shard, in
+     * the same order
+     */
+    public ErasureManifest(int dataShards, int parityShards, int shardLength, long fileLength,
+            List<ChunkHash> shards, List<String> holders) {
+        int total = dataShards + parityShards;
+        if (shards.size() != holders.size() || shards.size() % total != 0
+                || shards.size() / total != getStripeCount(fileLength, dataShards, shardLength)) {
+            throw new IllegalArgumentException(shards.size() + " shards and " + holders.size()
+                    + " holders for " + fileLength + " bytes");
+        }
+        _dataShards = dataShards;
+        _parityShards = parityShards;
+        _shardLength = shardLength;
+        _fileLength = fileLength;
+        _shards = Collections.unmodifiableList(new ArrayList<ChunkHash>(shards));
+        _holders = Collections.unmodifiableList(new ArrayList<String>(holders));
+    }
+
+    /**
+     * @return - the number of stripes a file of that length is cut into
+     */
+    public static int getStripeCount(long fileLength, int dataShards, int shardLength) {
+        long stripeLength = (long) dataShards * shardLength;
+        return (int) ((fileLength + stripeLength - 1) / stripeLength);
+    }
+
+    public int getDataShards() {
+        return _dataShards;
+    }
+
+    public int getParityShards() {
+        return _parityShards;
+    }
+
+    public int getTotalShards() {
+        return _dataShards + _parityShards;
+    }
+
+    public int getShardLength() {
+        return _shardLength;
+    }
+
+    public long getFileLength() {
+        return _fileLength;
+    }
+
+    public int getStripeCount() {
+        return _shards.size() / getTotalShards();
+    }
+
+    /**
+     * @return - the number of bytes of the file in a stripe's data
+     */
+    public long getStripeLength() {
+        return (long) _dataShards * _shardLength;
+    }
+
+    /**
+     * @param stripe - the stripe's index
+     * @param shard - the shard's index within it, the data first
+     * @return - its hash
+     */
+    public ChunkHash getShard(int stripe, int shard) {
+        return _shards.get(stripe * getTotalShards() + shard);
+    }
+
+    /**
+     * @param stripe - the stripe's index
+     * @param shard - the shard's index within it, the data first
+     * @return - the instance name of the server holding it
+     */
+    public String getHolder(int stripe, int shard) {
+        return _holders.get(stripe * getTotalShards() + shard);
+    }
+
+    /**
+     * @return - the bytes stored for each byte of the file
+     */
+    public double getStorageOverhead() {
+        return (double) getTotalShards() / _dataShards;
+    }
+}
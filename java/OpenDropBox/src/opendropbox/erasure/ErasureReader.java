@@ -0,0 +1,303 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.storage.ChunkHash;
+import opendropbox.transfer.ChunkClient;
+
+/**
+ * Reads erasure coded files back.  Register it with a ServiceMonitor
+ * browsing CHUNK_SERVICE_NAME so it knows which holders are live.
+ *
+ * Stripes are read BATCH_STRIPES at a time, with one pipelined request
+ * per holder for the whole batch, all holders at once.  Each stripe asks
+ * for its data shards, so a healthy read costs no decoding.  For a
+ * shard whose holder has departed, or that fails to arrive or to match
+ * its hash, a parity shard is fetched in its place, and the stripe's
+ * data is rebuilt from whichever k shards came back.  A stripe with
+ * more than m shards out of reach cannot be read.
+ *
+ * @author Walter
+ */
+public class ErasureReader implements ServiceMonitorCallback {
+
+    public static final int BATCH_STRIPES = 8;
+
+    private final ConcurrentHashMap<String, ServiceDescription> _holders;
+    private final ExecutorService _executor;
+    private volatile long _reconstructedStripes;
+
+    public ErasureReader() {
+        _holders = new ConcurrentHashMap<String, ServiceDescription>();
+        _executor = Executors.newCachedThreadPool(ErasureWriter.newThreadFactory("ErasureReader"));
+    }
+
+    public void serviceJoined(ServiceDescription description) {
+        _holders.put(description.getInstanceName(), description);
+    }
+
+    public void serviceUpdated(ServiceDescription description) {
+        _holders.put(description.getInstanceName(), description);
+    }
+
+    public void serviceDeparted(ServiceDescription description) {
+        _holders.remove(description.getInstanceName());
+    }
+
+    /**
+     * @param instanceName - a chunk server
+     * @return - true if it is live as far as the ServiceMonitor knows
+     */
+    public boolean isLive(String instanceName) {
+        return _holders.containsKey(instanceName);
+    }
+
+    /**
+     * @return - how many stripes have had to be rebuilt from parity
+     */
+    public long getReconstructedStripes() {
+        return _reconstructedStripes;
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @param manifest - where its shards are
+     * @param out - where to write it; not closed
+     */
+    public void read(ErasureManifest manifest, OutputStream out) throws IOException {
+        ReedSolomon codec = new ReedSolomon(manifest.getDataShards(), manifest.getParityShards());
+        Map<String, ChunkClient> clients = new ConcurrentHashMap<String, ChunkClient>();
+        Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            for (int first = 0; first < manifest.getStripeCount(); first += BATCH_STRIPES) {
+                int count = Math.min(BATCH_STRIPES, manifest.getStripeCount() - first);
+                byte[][][] shards = fetch(manifest, first, count, clients, failed);
+                List<byte[]> stripes = decode(manifest, codec, shards);
+                for (int s = 0; s < count; s++) {
+                    long offset = (first + s) * manifest.getStripeLength();
+                    out.write(stripes.get(s), 0,
+                            (int) Math.min(manifest.getStripeLength(), manifest.getFileLength() - offset));
+                }
+            }
+        } finally {
+            for (ChunkClient client : clients.values()) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the reading threads.
+     */
+    public void close() {
+        _executor.shutdown();
+    }
+
+    /**
+     * Fetches at least k shards of each stripe of a batch, asking for
+     * parity only as data shards turn out to be missing.
+     *
+     * @return - the shards by stripe, null where missing
+     */
+    private byte[][][] fetch(final ErasureManifest manifest, int first, int count,
+            final Map<String, ChunkClient> clients, final Set<String> failed) throws IOException {
+        int total = manifest.getTotalShards();
+        final byte[][][] shards = new byte[count][total][];
+        boolean[][] tried = new boolean[count][total];
+        while (true) {
+            // holder -> the stripe and shard index of each request
+            Map<String, List<int[]>> requests = new HashMap<String, List<int[]>>();
+            for (int s = 0; s < count; s++) {
+                int needed = manifest.getDataShards();
+                for (byte[] shard : shards[s]) {
+                    needed -= shard == null ? 0 : 1;
+                }
+                for (int i = 0; i < total && needed > 0; i++) {
+                    String holder = manifest.getHolder(first + s, i);
+                    if (!tried[s][i] && isLive(holder) && !failed.contains(holder)) {
+                        tried[s][i] = true;
+                        List<int[]> list = requests.get(holder);
+                        if (list == null) {
+                            list = new ArrayList<int[]>();
+                            requests.put(holder, list);
+                        }
+                        list.add(new int[] { first + s, i });
+                        needed--;
+                    }
+                }
+                if (needed > 0) {
+                    throw new IOException("Stripe " + (first + s) + " has fewer than "
+                            + manifest.getDataShards() + " shards within reach");
+                }
+            }
+            if (requests.isEmpty()) {
+                return shards;
+            }
+
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(requests.size());
+            for (Map.Entry<String, List<int[]>> entry : requests.entrySet()) {
+                final String holder = entry.getKey();
+                final List<int[]> list = entry.getValue();
+                final int firstStripe = first;
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        fetch(manifest, holder, list, firstStripe, shards, clients, failed);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Object> future : _executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Fetch failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Fetches shards from one holder, leaving out any that fail.
+     */
+    private void fetch(ErasureManifest manifest, String holder, List<int[]> requests, int first,
+            byte[][][] shards, Map<String, ChunkClient> clients, Set<String> failed) {
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>(requests.size());
+        for (int[] request : requests) {
+            hashes.add(manifest.getShard(request[0], request[1]));
+        }
+        try {
+            ChunkClient client = clients.get(holder);
+            if (client == null) {
+                ServiceDescription description = _holders.get(holder);
+                if (description == null) {
+                    // departed since the requests were made
+                    return;
+                }
+                client = new ChunkClient(PeerSelector.getServiceAddress(description));
+                clients.put(holder, client);
+            }
+            List<byte[]> data = client.get(hashes);
+            for (int r = 0; r < requests.size(); r++) {
+                byte[] shard = data.get(r);
+                if (shard != null && shard.length == manifest.getShardLength()
+                        && ChunkHash.of(shard, 0, shard.length).equals(hashes.get(r))) {
+                    shards[requests.get(r)[0] - first][requests.get(r)[1]] = shard;
+                }
+            }
+        } catch (IOException e) {
+            // read around it for the rest of the file
+            failed.add(holder);
+            ChunkClient client = clients.remove(holder);
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException ioe) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns each stripe's shards back into its data, rebuilding stripes
+     * with missing data shards on the reader's threads.
+     *
+     * @return - the data of each stripe
+     */
+    private List<byte[]> decode(final ErasureManifest manifest, final ReedSolomon codec, byte[][][] shards)
+            throws IOException {
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(shards.length);
+        for (final byte[][] stripe : shards) {
+            if (hasData(stripe, codec)) {
+                futures.add(null);
+            } else {
+                _reconstructedStripes++;
+                futures.add(_executor.submit(new Callable<byte[]>() {
+                    public byte[] call() {
+                        return reconstruct(manifest, codec, stripe);
+                    }
+                }));
+            }
+        }
+
+        List<byte[]> stripes = new ArrayList<byte[]>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            if (futures.get(s) == null) {
+                byte[] data = new byte[(int) manifest.getStripeLength()];
+                for (int i = 0; i < codec.getDataShards(); i++) {
+                    System.arraycopy(shards[s][i], 0, data, i * manifest.getShardLength(), manifest.getShardLength());
+                }
+                stripes.add(data);
+                continue;
+            }
+            try {
+                stripes.add(futures.get(s).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Decoding failed", e.getCause());
+            }
+        }
+        return stripes;
+    }
+
+    private static byte[] reconstruct(ErasureManifest manifest, ReedSolomon codec, byte[][] stripe) {
+        int words = manifest.getShardLength() / 8;
+        long[][] shards = new long[stripe.length][];
+        boolean[] present = new boolean[stripe.length];
+        for (int i = 0; i < stripe.length; i++) {
+            if (stripe[i] != null) {
+                shards[i] = new long[words];
+                ByteBuffer.wrap(stripe[i]).asLongBuffer().get(shards[i]);
+                present[i] = true;
+            }
+        }
+        codec.reconstruct(shards, present);
+
+        ByteBuffer data = ByteBuffer.allocate((int) manifest.getStripeLength());
+        for (int i = 0; i < codec.getDataShards(); i++) {
+            data.asLongBuffer().put(shards[i]);
+            data.position(data.position() + manifest.getShardLength());
+        }
+        return data.array();
+    }
+
+    private static boolean hasData(byte[][] stripe, ReedSolomon codec) {
+        for (int i = 0; i < codec.getDataShards(); i++) {
+            if (stripe[i] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import opendropbox.placement.HashRing;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.transfer.ChainWriter;
+
+/**
+ * Writes a file as erasure coded stripes.  Stripes are encoded on a pool
+ * of threads, several at a time, while the ones before them are sent.
+ * The k + m shards of a stripe go to the distinct nodes the HashRing
+ * names for the stripe's first shard, so that losing any m nodes loses
+ * at most m shards of each stripe.  With fewer than k + m nodes some
+ * hold two shards of a stripe, and the file tolerates fewer losses.
+ *
+ * Each shard is an ordinary chunk sent with a ChainWriter of one
+ * server.  write() fails if any server fails to store a shard.
+ *
+ * @author Walter
+ */
+public class ErasureWriter {
+
+    // archival defaults: 1.4 times the data, and any two nodes may fail
+    public static final int DEFAULT_DATA_SHARDS = 5;
+    public static final int DEFAULT_PARITY_SHARDS = 2;
+    public static final int DEFAULT_SHARD_LENGTH = 1024 * 1024;
+
+    private final ReedSolomon _codec;
+    private final int _shardLength;
+    private final HashRing _ring;
+    private final ExecutorService _executor;
+    private final int _threads;
+
+    public ErasureWriter(HashRing ring) {
+        this(new ReedSolomon(DEFAULT_DATA_SHARDS, DEFAULT_PARITY_SHARDS), DEFAULT_SHARD_LENGTH, ring);
+    }
+
+    /**
+     * @param codec - the code to use
+     * @param shardLength - the length of each shard, a multiple of eight
+     * up to MAX_CHUNK_LENGTH
+     * @param ring - decides which nodes hold each stripe
+     */
+    public ErasureWriter(ReedSolomon codec, int shardLength, HashRing ring) {
+        if (shardLength <= 0 || shardLength % 8 != 0 || shardLength > BlockStore.MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("shard length " + shardLength);
+        }
+        _codec = codec;
+        _shardLength = shardLength;
+        _ring = ring;
+        _threads = Runtime.getRuntime().availableProcessors();
+        _executor = Executors.newFixedThreadPool(_threads, newThreadFactory("ErasureWriter"));
+    }
+
+    /**
+     * @param name - the name of the threads
+     * @return - a factory of daemon threads
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Encodes a stream and stores its shards.
+     *
+     * @param in - the data; read to its end but not closed
+     * @return - where the shards went
+     */
+    public ErasureManifest write(InputStream in) throws IOException {
+        List<ChunkHash> shards = new ArrayList<ChunkHash>();
+        List<String> holders = new ArrayList<String>();
+        Map<String, ChainWriter> writers = new HashMap<String, ChainWriter>();
+        // stripes being encoded, oldest first; a few per thread keeps
+        // every thread busy while the oldest is sent
+        ArrayDeque<Future<long[][]>> encoding = new ArrayDeque<Future<long[][]>>();
+        long length = 0;
+
+        try {
+            boolean eof = false;
+            while (!eof || !encoding.isEmpty()) {
+                while (!eof && encoding.size() < _threads * 2) {
+                    final byte[] stripe = new byte[_codec.getDataShards() * _shardLength];
+                    int read = readFully(in, stripe);
+                    eof = read < stripe.length;
+                    if (read == 0) {
+                        break;
+                    }
+                    length += read;
+                    encoding.add(_executor.submit(new Callable<long[][]>() {
+                        public long[][] call() {
+                            return encode(stripe);
+                        }
+                    }));
+                }
+                Future<long[][]> next = encoding.poll();
+                if (next != null) {
+                    store(get(next), writers, shards, holders);
+                }
+            }
+
+            for (Map.Entry<String, ChainWriter> entry : writers.entrySet()) {
+                ChainWriter writer = entry.getValue();
+                writer.flush();
+                if (!writer.getUnderReplicated().isEmpty()) {
+                    throw new IOException(entry.getKey() + " failed to store "
+                            + writer.getUnderReplicated().size() + " shards");
+                }
+            }
+        } finally {
+            for (Future<long[][]> future : encoding) {
+                future.cancel(false);
+            }
+            for (ChainWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+        return new ErasureManifest(_codec.getDataShards(), _codec.getParityShards(), _shardLength, length,
+                shards, holders);
+    }
+
+    /**
+     * Stops the encoding threads.
+     */
+    public void close() {
+        _executor.shutdown();
+    }
+
+    private long[][] encode(byte[] stripe) {
+        int words = _shardLength / 8;
+        long[][] shards = new long[_codec.getTotalShards()][words];
+        ByteBuffer data = ByteBuffer.wrap(stripe);
+        for (int i = 0; i < _codec.getDataShards(); i++) {
+            data.asLongBuffer().get(shards[i]);
+            data.position(data.position() + _shardLength);
+        }
+        _codec.encode(shards);
+        return shards;
+    }
+
+    private void store(long[][] stripe, Map<String, ChainWriter> writers, List<ChunkHash> shards,
+            List<String> holders) throws IOException {
+        byte[] shard = new byte[_shardLength];
+        ByteBuffer.wrap(shard).asLongBuffer().put(stripe[0]);
+        List<ServiceDescription> owners = _ring.getOwners(ChunkHash.of(shard, 0, shard.length), stripe.length);
+        if (owners.isEmpty()) {
+            throw new IOException("No chunk servers to write to");
+        }
+
+        for (int i = 0; i < stripe.length; i++) {
+            if (i > 0) {
+                ByteBuffer.wrap(shard).asLongBuffer().put(stripe[i]);
+            }
+            ServiceDescription owner = owners.get(i % owners.size());
+            String name = owner.getInstanceName();
+            ChainWriter writer = writers.get(name);
+            if (writer == null) {
+                List<InetSocketAddress> chain = new ArrayList<InetSocketAddress>(1);
+                chain.add(PeerSelector.getServiceAddress(owner));
+                writer = new ChainWriter(chain);
+                writers.put(name, writer);
+            }
+            shards.add(writer.put(shard, 0, shard.length));
+            holders.add(name);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            int n = in.read(buf, read, buf.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Encoding failed", e.getCause());
+        }
+    }
+}
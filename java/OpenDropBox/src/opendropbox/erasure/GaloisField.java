@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+/**
+ * Arithmetic in GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1,
+ * the field Reed-Solomon codes are usually built on.  Addition is XOR.
+ *
+ * Single products come from log and exp tables.  Bulk work on shards is
+ * done eight bytes at a time on longs.  Multiplying by a constant c is
+ * linear in the bits of the other operand, so c times x is the XOR of
+ * c * 2^i over the bits i set in x.  Masking bit i out of every byte of
+ * a word leaves a 0 or 1 in each byte, and one integer multiply by
+ * c * 2^i, which is less than 256, puts that product into every byte
+ * where the bit was set without carrying into the next.  A word then
+ * costs eight shifts, masks, multiplies and XORs per coefficient, with
+ * the eight products of each coefficient read from a table.
+ *
+ * @author Walter
+ */
+public final class GaloisField {
+
+    public static final int SIZE = 256;
+    public static final int POLYNOMIAL = 0x11D;
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    // EXP is doubled so that EXP[LOG[a] + LOG[b]] needs no modulo
+    private static final int[] EXP = new int[2 * SIZE];
+    private static final int[] LOG = new int[SIZE];
+    // BIT_PRODUCTS[c][i] is c * 2^i
+    private static final long[][] BIT_PRODUCTS = new long[SIZE][8];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= SIZE) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (SIZE - 1)];
+        }
+        for (int c = 0; c < SIZE; c++) {
+            for (int i = 0; i < 8; i++) {
+                BIT_PRODUCTS[c][i] = multiply(c, 1 << i);
+            }
+        }
+    }
+
+    private GaloisField() {
+    }
+
+    public static int add(int a, int b) {
+        return a ^ b;
+    }
+
+    public static int multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    /**
+     * @throws ArithmeticException if b is zero
+     */
+    public static int divide(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("divide by zero");
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + SIZE - 1 - LOG[b]];
+    }
+
+    /**
+     * @throws ArithmeticException if a is zero
+     */
+    public static int inverse(int a) {
+        return divide(1, a);
+    }
+
+    /**
+     * Multiplies each of the eight bytes of a word by the same element.
+     *
+     * @param coefficient - the element to multiply by
+     * @param x - eight field elements
+     * @return - the eight products
+     */
+    public static long multiply(int coefficient, long x) {
+        long[] t = BIT_PRODUCTS[coefficient];
+        return ((x & LOW_BITS) * t[0]) ^ (((x >>> 1) & LOW_BITS) * t[1])
+                ^ (((x >>> 2) & LOW_BITS) * t[2]) ^ (((x >>> 3) & LOW_BITS) * t[3])
+                ^ (((x >>> 4) & LOW_BITS) * t[4]) ^ (((x >>> 5) & LOW_BITS) * t[5])
+                ^ (((x >>> 6) & LOW_BITS) * t[6]) ^ (((x >>> 7) & LOW_BITS) * t[7]);
+    }
+
+    /**
+     * Adds a multiple of one shard to each of several others:
+     * dst[j][w] += coefficients[j] * src[w] for every word w in the range.
+     *
+     * @param coefficients - one element per output
+     * @param src - the input shard
+     * @param dst - the output shards
+     * @param from - the first word
+     * @param to - the word after the last
+     */
+    public static void multiplyAdd(int[] coefficients, long[] src, long[][] dst, int from, int to) {
+        for (int j = 0; j < coefficients.length; j++) {
+            long[] out = dst[j];
+            int c = coefficients[j];
+            if (c == 0) {
+                continue;
+            }
+            if (c == 1) {
+                for (int w = from; w < to; w++) {
+                    out[w] ^= src[w];
+                }
+                continue;
+            }
+            // in locals, so the loop reads nothing but the shards
+            long[] t = BIT_PRODUCTS[c];
+            long t0 = t[0], t1 = t[1], t2 = t[2], t3 = t[3], t4 = t[4], t5 = t[5], t6 = t[6], t7 = t[7];
+            for (int w = from; w < to; w++) {
+                long x = src[w];
+                out[w] ^= ((x & LOW_BITS) * t0) ^ (((x >>> 1) & LOW_BITS) * t1)
+                        ^ (((x >>> 2) & LOW_BITS) * t2) ^ (((x >>> 3) & LOW_BITS) * t3)
+                        ^ (((x >>> 4) & LOW_BITS) * t4) ^ (((x >>> 5) & LOW_BITS) * t5)
+                        ^ (((x >>> 6) & LOW_BITS) * t6) ^ (((x >>> 7) & LOW_BITS) * t7);
+            }
+        }
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination.
+     *
+     * @param matrix - the matrix, which is left unchanged
+     * @return - its inverse
+     * @throws IllegalArgumentException if it is singular
+     */
+    public static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] work = new int[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(matrix[i], 0, work[i], 0, n);
+            work[i][n + i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("singular matrix");
+            }
+            int[] row = work[pivot];
+            work[pivot] = work[col];
+            work[col] = row;
+
+            int scale = inverse(row[col]);
+            for (int k = 0; k < 2 * n; k++) {
+                row[k] = multiply(row[k], scale);
+            }
+            for (int i = 0; i < n; i++) {
+                int factor = work[i][col];
+                if (i != col && factor != 0) {
+                    for (int k = 0; k < 2 * n; k++) {
+                        work[i][k] ^= multiply(factor, row[k]);
+                    }
+                }
+            }
+        }
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(work[i], n, inverse[i], 0, n);
+        }
+        return inverse;
+    }
+}
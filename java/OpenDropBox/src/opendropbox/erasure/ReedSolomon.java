@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A systematic Reed-Solomon code with k data and m parity shards.  Any k
+ * of the k + m shards give back the data, so a stripe survives the loss
+ * of any m of them while taking (k + m) / k times the space of the data,
+ * against m + 1 times for the same tolerance with plain replicas.
+ *
+ * The parity rows are a Cauchy matrix, which makes every k x k
+ * submatrix of the whole encoding matrix invertible.  Shards are arrays
+ * of longs, all the same length, and the arithmetic works on them a word
+ * at a time with GaloisField.multiplyAdd().
+ *
+ * Instances are immutable and may be shared between threads, so
+ * separate stripes, or separate ranges of one stripe's words, can be
+ * encoded at once.
+ *
+ * @author Walter
+ */
+public class ReedSolomon {
+
+    private final int _dataShards;
+    private final int _parityShards;
+    // _matrix[i][j] is the coefficient of data shard j in parity shard i
+    private final int[][] _matrix;
+
+    /**
+     * @param dataShards - k, at least 1
+     * @param parityShards - m, at least 0
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > GaloisField.SIZE) {
+            throw new IllegalArgumentException(dataShards + " data and " + parityShards + " parity shards");
+        }
+        _dataShards = dataShards;
+        _parityShards = parityShards;
+        _matrix = new int[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                _matrix[i][j] = GaloisField.inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return _dataShards;
+    }
+
+    public int getParityShards() {
+        return _parityShards;
+    }
+
+    public int getTotalShards() {
+        return _dataShards + _parityShards;
+    }
+
+    /**
+     * Computes the parity shards.
+     *
+     * @param shards - k + m shards of the same length, the data first;
+     * the parity shards are overwritten
+     */
+    public void encode(long[][] shards) {
+        encode(shards, 0, checkShards(shards));
+    }
+
+    /**
+     * Computes the parity of a range of words.
+     *
+     * @param shards - k + m shards, the data first
+     * @param from - the first word
+     * @param to - the word after the last
+     */
+    public void encode(long[][] shards, int from, int to) {
+        long[][] parity = new long[_parityShards][];
+        for (int i = 0; i < _parityShards; i++) {
+            parity[i] = shards[_dataShards + i];
+            for (int w = from; w < to; w++) {
+                parity[i][w] = 0;
+            }
+        }
+        int[] coefficients = new int[_parityShards];
+        for (int j = 0; j < _dataShards; j++) {
+            for (int i = 0; i < _parityShards; i++) {
+                coefficients[i] = _matrix[i][j];
+            }
+            GaloisField.multiplyAdd(coefficients, shards[j], parity, from, to);
+        }
+    }
+
+    /**
+     * Rebuilds the missing shards of a stripe from any k of the others.
+     *
+     * @param shards - k + m shards, the data first; a missing one may be
+     * null or hold anything, and is replaced
+     * @param present - which shards are present
+     * @throws IllegalArgumentException if fewer than k shards are present
+     */
+    public void reconstruct(long[][] shards, boolean[] present) {
+        int total = getTotalShards();
+        int[] sources = new int[_dataShards];
+        int count = 0;
+        int length = -1;
+        for (int i = 0; i < total && count < _dataShards; i++) {
+            if (present[i]) {
+                sources[count++] = i;
+                length = shards[i].length;
+            }
+        }
+        if (count < _dataShards) {
+            throw new IllegalArgumentException("only " + count + " of " + _dataShards + " shards present");
+        }
+
+        // the rows of the encoding matrix for the shards we have, inverted,
+        // turn those shards back into the data
+        int[][] rows = new int[_dataShards][];
+        for (int r = 0; r < _dataShards; r++) {
+            rows[r] = getRow(sources[r]);
+        }
+        int[][] decode = GaloisField.invert(rows);
+
+        List<Integer> missingData = new ArrayList<Integer>();
+        for (int j = 0; j < _dataShards; j++) {
+            if (!present[j]) {
+                missingData.add(j);
+            }
+        }
+        if (!missingData.isEmpty()) {
+            long[][] outputs = new long[missingData.size()][];
+            for (int o = 0; o < outputs.length; o++) {
+                outputs[o] = new long[length];
+                shards[missingData.get(o)] = outputs[o];
+            }
+            int[] coefficients = new int[outputs.length];
+            for (int r = 0; r < _dataShards; r++) {
+                for (int o = 0; o < outputs.length; o++) {
+                    coefficients[o] = decode[missingData.get(o)][r];
+                }
+                GaloisField.multiplyAdd(coefficients, shards[sources[r]], outputs, 0, length);
+            }
+        }
+
+        // then any missing parity is simply encoded again
+        for (int i = _dataShards; i < total; i++) {
+            if (!present[i]) {
+                long[][] outputs = { new long[length] };
+                shards[i] = outputs[0];
+                int[] coefficient = new int[1];
+                for (int j = 0; j < _dataShards; j++) {
+                    coefficient[0] = _matrix[i - _dataShards][j];
+                    GaloisField.multiplyAdd(coefficient, shards[j], outputs, 0, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return - the row of the encoding matrix that produces a shard
+     */
+    private int[] getRow(int shard) {
+        if (shard >= _dataShards) {
+            return _matrix[shard - _dataShards];
+        }
+        int[] row = new int[_dataShards];
+        row[shard] = 1;
+        return row;
+    }
+
+    private int checkShards(long[][] shards) {
+        if (shards.length != getTotalShards()) {
+            throw new IllegalArgumentException(shards.length + " shards, expected " + getTotalShards());
+        }
+        int length = shards[0].length;
+        for (long[] shard : shards) {
+            if (shard.length != length) {
+                throw new IllegalArgumentException("shards of different lengths");
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.placement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.PositionRanges;
+
+/**
+ * A consistent hash ring that decides which nodes hold each chunk.
+ * Register it with a ServiceMonitor browsing CHUNK_SERVICE_NAME and it
+ * follows the chunk servers as they come and go.
+ *
+ * Each node owns a number of virtual nodes, points on the ring derived
+ * from its instance name, in proportion to the free space it advertises.
+ * A chunk's position is the first word of its hash, and its owners are
+ * the distinct nodes met walking clockwise from there, preferring nodes
+ * in zones not yet used.  A join or departure only moves the chunks
+ * between the changed node's points and their predecessors, about 1/n
+ * of the data.
+ *
+ * Free space changes all the time, so a node's weight is only changed
+ * when it would move by more than REWEIGHT_THRESHOLD, and then only the
+ * points past the old count are added or removed.
+ *
+ * Lookups read an immutable snapshot of the ring and take no lock;
+ * changes build a new snapshot under the ring's lock.
+ *
+ * @author Walter
+ */
+public class HashRing implements ServiceMonitorCallback {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final int MIN_VIRTUAL_NODES = 16;
+    public static final int MAX_VIRTUAL_NODES = 1024;
+    public static final long BYTES_PER_VIRTUAL_NODE = 1L << 30;
+    public static final double REWEIGHT_THRESHOLD = 0.25;
+
+    private final Map<String, Node> _nodes;
+    private volatile Snapshot _snapshot;
+
+    public HashRing() {
+        _nodes = new HashMap<String, Node>();
+        _snapshot = new Snapshot(new long[0], new Node[0], 0);
+    }
+
+    /**
+     * Adds a node, or updates one already on the ring.
+     *
+     * @param description - the node's description
+     */
+    public void serviceJoined(ServiceDescription description) {
+        int wanted = getVirtualNodeCount(description.getAttributes());
+        synchronized (this) {
+            String name = description.getInstanceName();
+            Node node = _nodes.get(name);
+            if (node == null) {
+                node = new Node(description, wanted);
+                _nodes.put(name, node);
+                publish(merge(_snapshot, node, 0, wanted), _nodes.size());
+                return;
+            }
+
+            int current = node.virtualNodes;
+            Node updated = new Node(description, current);
+            if (Math.abs(wanted - current) > current * REWEIGHT_THRESHOLD) {
+                updated = new Node(description, wanted);
+            }
+            _nodes.put(name, updated);
+
+            // the points of the old node stay where they are and only
+            // the ones past the old count come or go
+            Snapshot snapshot = replace(_snapshot, node, updated);
+            if (updated.virtualNodes > current) {
+                snapshot = merge(snapshot, updated, current, updated.virtualNodes);
+            } else if (updated.virtualNodes < current) {
+                snapshot = remove(snapshot, updated, updated.virtualNodes, current);
+            }
+            publish(snapshot, _nodes.size());
+        }
+    }
+
+    /**
+     * Moves a node to its new description; its weight is changed as by
+     * serviceJoined().
+     *
+     * @param description - the node's new description
+     */
+    public void serviceUpdated(ServiceDescription description) {
+        serviceJoined(description);
+    }
+
+    /**
+     * Takes a node off the ring.
+     *
+     * @param description - the node's description
+     */
+    public synchronized void serviceDeparted(ServiceDescription description) {
+        Node node = _nodes.remove(description.getInstanceName());
+        if (node != null) {
+            publish(remove(_snapshot, node, 0, node.virtualNodes), _nodes.size());
+        }
+    }
+
+    /**
+     * @param chunk - a chunk
+     * @param replicas - how many owners are wanted
+     * @return - up to that many distinct nodes, the primary first
+     */
+    public List<ServiceDescription> getOwners(ChunkHash chunk, int replicas) {
+        return getOwners(chunk.getWord(0), replicas);
+    }
+
+    /**
+     * @param position - a point on the ring
+     * @param replicas - how many owners are wanted
+     * @return - up to that many distinct nodes, the primary first
+     */
+    public List<ServiceDescription> getOwners(long position, int replicas) {
+        return getOwners(_snapshot, position, replicas);
+    }
+
+    private static List<ServiceDescription> getOwners(Snapshot snapshot, long position, int replicas) {
+        int wanted = Math.min(replicas, snapshot.nodeCount);
+        List<ServiceDescription> owners = new ArrayList<ServiceDescription>(wanted);
+        if (wanted <= 0) {
+            return owners;
+        }
+
+        Node[] chosen = new Node[wanted];
+        int count = 0;
+        // nodes passed over because their zone was taken, in ring order
+        List<Node> skipped = null;
+        int points = snapshot.tokens.length;
+        int start = snapshot.find(position);
+        for (int i = 0; i < points && count < wanted; i++) {
+            Node node = snapshot.owners[(start + i) % points];
+            if (contains(chosen, count, node) || (skipped != null && skipped.contains(node))) {
+                continue;
+            }
+            if (node.zone != null && containsZone(chosen, count, node.zone)) {
+                if (skipped == null) {
+                    skipped = new ArrayList<Node>();
+                }
+                skipped.add(node);
+                continue;
+            }
+            chosen[count++] = node;
+        }
+
+        // not enough zones; fill up with the nodes passed over
+        for (int i = 0; skipped != null && i < skipped.size() && count < wanted; i++) {
+            chosen[count++] = skipped.get(i);
+        }
+        for (int i = 0; i < count; i++) {
+            owners.add(chosen[i].description);
+        }
+        return owners;
+    }
+
+    /**
+     * @param chunk - a chunk
+     * @return - the node that owns it, or null if the ring is empty
+     */
+    public ServiceDescription getPrimary(ChunkHash chunk) {
+        Snapshot snapshot = _snapshot;
+        if (snapshot.tokens.length == 0) {
+            return null;
+        }
+        return snapshot.owners[snapshot.find(chunk.getWord(0))].description;
+    }
+
+    /**
+     * Finds where two nodes are both owners, which are the ranges their
+     * stores should agree on.
+     *
+     * @param first - a node's instance name
+     * @param second - another node's instance name
+     * @param replicas - how many owners each chunk has
+     * @return - the positions whose owners include both
+     */
+    public PositionRanges getSharedRanges(String first, String second, int replicas) {
+        Snapshot snapshot = _snapshot;
+        PositionRanges ranges = new PositionRanges();
+        long[] tokens = snapshot.tokens;
+        for (int i = 0; i < tokens.length; i++) {
+            // every position after the previous point up to this one has
+            // the same owners as this point
+            if (i > 0 && tokens[i - 1] == tokens[i]) {
+                continue;
+            }
+            List<ServiceDescription> owners = getOwners(snapshot, tokens[i], replicas);
+            if (!isOwner(owners, first) || !isOwner(owners, second)) {
+                continue;
+            }
+            if (i > 0) {
+                ranges.add(tokens[i - 1] + 1, tokens[i]);
+                continue;
+            }
+            // the first point also owns the wrap from the last one round
+            ranges.add(Long.MIN_VALUE, tokens[0]);
+            if (tokens[tokens.length - 1] != Long.MAX_VALUE) {
+                ranges.add(tokens[tokens.length - 1] + 1, Long.MAX_VALUE);
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean isOwner(List<ServiceDescription> owners, String instanceName) {
+        for (ServiceDescription owner : owners) {
+            if (owner.getInstanceName().equals(instanceName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - the number of nodes on the ring
+     */
+    public int size() {
+        return _snapshot.nodeCount;
+    }
+
+    /**
+     * @return - the positions of the virtual nodes, in order; every
+     * position after one of them, up to the next, has the owners of the
+     * next
+     */
+    public long[] getTokens() {
+        return _snapshot.tokens.clone();
+    }
+
+    /**
+     * @return - the number of virtual nodes on the ring
+     */
+    public int getVirtualNodeCount() {
+        return _snapshot.tokens.length;
+    }
+
+    /**
+     * @param instanceName - a node
+     * @return - its number of virtual nodes, or 0 if it is not on the ring
+     */
+    public synchronized int getVirtualNodeCount(String instanceName) {
+        Node node = _nodes.get(instanceName);
+        return node == null ? 0 : node.virtualNodes;
+    }
+
+    /**
+     * @return - the nodes on the ring
+     */
+    public synchronized List<ServiceDescription> getNodes() {
+        List<ServiceDescription> nodes = new ArrayList<ServiceDescription>(_nodes.size());
+        for (Node node : _nodes.values()) {
+            nodes.add(node.description);
+        }
+        return nodes;
+    }
+
+    /**
+     * @param attributes - a node's advertised attributes
+     * @return - how many virtual nodes it should have
+     */
+    protected int getVirtualNodeCount(ServiceAttributes attributes) {
+        long free = attributes.getLong(ServiceAttributes.FREE_BYTES, -1);
+        if (free < 0) {
+            return DEFAULT_VIRTUAL_NODES;
+        }
+        return (int) Math.max(MIN_VIRTUAL_NODES, Math.min(MAX_VIRTUAL_NODES, free / BYTES_PER_VIRTUAL_NODE));
+    }
+
+    private void publish(Snapshot snapshot, int nodeCount) {
+        _snapshot = new Snapshot(snapshot.tokens, snapshot.owners, nodeCount);
+    }
+
+    private static boolean contains(Node[] nodes, int count, Node node) {
+        for (int i = 0; i < count; i++) {
+            if (nodes[i] == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsZone(Node[] nodes, int count, String zone) {
+        for (int i = 0; i < count; i++) {
+            if (zone.equals(nodes[i].zone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - the position of a node's index'th point
+     */
+    static long getToken(long nameHash, int index) {
+        // splitmix64, so that neighbouring indexes land far apart
+        long z = nameHash + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Adds the points from..to of a node.
+     */
+    private static Snapshot merge(Snapshot snapshot, Node node, int from, int to) {
+        int added = to - from;
+        long[] tokens = new long[added];
+        for (int i = 0; i < added; i++) {
+            tokens[i] = getToken(node.nameHash, from + i);
+        }
+        Arrays.sort(tokens);
+
+        long[] oldTokens = snapshot.tokens;
+        Node[] oldOwners = snapshot.owners;
+        long[] mergedTokens = new long[oldTokens.length + added];
+        Node[] mergedOwners = new Node[oldTokens.length + added];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < mergedTokens.length; k++) {
+            if (j == added || (i < oldTokens.length && oldTokens[i] <= tokens[j])) {
+                mergedTokens[k] = oldTokens[i];
+                mergedOwners[k] = oldOwners[i++];
+            } else {
+                mergedTokens[k] = tokens[j++];
+                mergedOwners[k] = node;
+            }
+        }
+        return new Snapshot(mergedTokens, mergedOwners, snapshot.nodeCount);
+    }
+
+    /**
+     * Removes the points from..to of a node.
+     */
+    private static Snapshot remove(Snapshot snapshot, Node node, int from, int to) {
+        Set<Long> removed = new HashSet<Long>();
+        for (int i = from; i < to; i++) {
+            removed.add(getToken(node.nameHash, i));
+        }
+        long[] tokens = new long[snapshot.tokens.length];
+        Node[] owners = new Node[snapshot.tokens.length];
+        int count = 0;
+        for (int i = 0; i < snapshot.tokens.length; i++) {
+            Node owner = snapshot.owners[i];
+            if (owner == node && removed.contains(snapshot.tokens[i])) {
+                continue;
+            }
+            tokens[count] = snapshot.tokens[i];
+            owners[count++] = owner;
+        }
+        return new Snapshot(Arrays.copyOf(tokens, count), Arrays.copyOf(owners, count), snapshot.nodeCount);
+    }
+
+    /**
+     * Points the old node's points at its new description.
+     */
+    private static Snapshot replace(Snapshot snapshot, Node old, Node updated) {
+        Node[] owners = snapshot.owners.clone();
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] == old) {
+                owners[i] = updated;
+            }
+        }
+        return new Snapshot(snapshot.tokens, owners, snapshot.nodeCount);
+    }
+
+    private static class Node {
+
+        final String name;
+        final ServiceDescription description;
+        final long nameHash;
+        final String zone;
+        final int virtualNodes;
+
+        Node(ServiceDescription description, int virtualNodes) {
+            this.name = description.getInstanceName();
+            this.description = description;
+            this.nameHash = DiscoveryCodec.hashInstanceName(name);
+            this.zone = description.getAttributes().getString(ServiceAttributes.ZONE);
+            this.virtualNodes = virtualNodes;
+        }
+    }
+
+    private static class Snapshot {
+
+        final long[] tokens;
+        final Node[] owners;
+        final int nodeCount;
+
+        Snapshot(long[] tokens, Node[] owners, int nodeCount) {
+            this.tokens = tokens;
+            this.owners = owners;
+            this.nodeCount = nodeCount;
+        }
+
+        /**
+         * @return - the index of the first point at or after the position,
+         * wrapping round to 0
+         */
+        int find(long position) {
+            int index = Arrays.binarySearch(tokens, position);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == tokens.length ? 0 : index;
+        }
+    }
+}
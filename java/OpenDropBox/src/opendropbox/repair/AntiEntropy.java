@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.repair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import opendropbox.placement.HashRing;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.PositionRanges;
+
+/**
+ * Keeps a node's store in step with the other owners of its ranges of
+ * the ring.  Register it with a ServiceMonitor browsing
+ * CHUNK_SERVICE_NAME, alongside the HashRing it is given.
+ *
+ * A peer that joins, including one that comes back after a brief
+ * departure and missed the writes made meanwhile, is repaired with
+ * SETTLE_DELAY after it joins, so a node that flaps is repaired once
+ * it has stayed up.  Besides that, every interval one peer in turn is
+ * repaired in the background, which catches anything else that was
+ * lost.  Each repair is a RepairSession over the ranges both nodes own,
+ * and costs in proportion to how far the two stores differ.
+ *
+ * Repairs run one at a time on a thread of their own.
+ *
+ * @author Walter
+ */
+public class AntiEntropy implements ServiceMonitorCallback {
+
+    public static final long DEFAULT_INTERVAL = 60000;
+    public static final long SETTLE_DELAY = 10000;
+
+    private final BlockStore _store;
+    private final HashRing _ring;
+    private final String _instanceName;
+    private final int _replicas;
+    private final Map<String, ServiceDescription> _peers;
+    private final Map<String, ScheduledFuture<?>> _pending;
+    private final ScheduledExecutorService _executor;
+    private ScheduledFuture<?> _sweeper;
+    private int _nextPeer;
+    private long _sessions;
+    private long _chunksCopied;
+    private long _bytesCopied;
+
+    /**
+     * @param store - this node's store
+     * @param ring - the ring placing chunks, following the same servers
+     * @param instanceName - the name this node's chunk server advertises
+     * @param replicas - how many owners each chunk has
+     */
+    public AntiEntropy(BlockStore store, HashRing ring, String instanceName, int replicas) {
+        _store = store;
+        _ring = ring;
+        _instanceName = instanceName;
+        _replicas = replicas;
+        _peers = new HashMap<String, ServiceDescription>();
+        _pending = new HashMap<String, ScheduledFuture<?>>();
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AntiEntropy");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts repairing a peer in turn every interval.
+     *
+     * @param interval - in milliseconds
+     */
+    public synchronized void start(long interval) {
+        if (_sweeper == null) {
+            _sweeper = _executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    repairNext();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void start() {
+        start(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Stops repairing; one under way is finished first.
+     */
+    public void stop() {
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void serviceJoined(ServiceDescription description) {
+        String name = description.getInstanceName();
+        if (name.equals(_instanceName)) {
+            return;
+        }
+        synchronized (this) {
+            _peers.put(name, description);
+            schedule(name, SETTLE_DELAY);
+        }
+    }
+
+    /**
+     * A new address or attributes is not a rejoin; the peer is repaired
+     * at its new address when its turn comes.
+     */
+    public synchronized void serviceUpdated(ServiceDescription description) {
+        String name = description.getInstanceName();
+        if (!name.equals(_instanceName)) {
+            _peers.put(name, description);
+        }
+    }
+
+    public synchronized void serviceDeparted(ServiceDescription description) {
+        String name = description.getInstanceName();
+        _peers.remove(name);
+        ScheduledFuture<?> pending = _pending.remove(name);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * Repairs this node's store and a peer's now, on the calling thread.
+     *
+     * @param peer - the peer's instance name
+     * @return - what the repair did, or null if the peer is unknown
+     */
+    public RepairSession repair(String peer) throws IOException {
+        ServiceDescription description;
+        synchronized (this) {
+            description = _peers.get(peer);
+        }
+        if (description == null) {
+            return null;
+        }
+        PositionRanges ranges = _ring.getSharedRanges(_instanceName, peer, _replicas);
+        RepairSession session = new RepairSession(_store, PeerSelector.getServiceAddress(description), ranges);
+        session.run();
+        synchronized (this) {
+            _sessions++;
+            _chunksCopied += session.getChunksFetched() + session.getChunksPushed();
+            _bytesCopied += session.getBytesCopied();
+        }
+        return session;
+    }
+
+    /**
+     * @return - how many repairs have finished
+     */
+    public synchronized long getSessions() {
+        return _sessions;
+    }
+
+    /**
+     * @return - how many chunks repairs have copied either way
+     */
+    public synchronized long getChunksCopied() {
+        return _chunksCopied;
+    }
+
+    /**
+     * @return - the bytes of chunk data repairs have copied either way
+     */
+    public synchronized long getBytesCopied() {
+        return _bytesCopied;
+    }
+
+    private synchronized void schedule(final String peer, long delay) {
+        ScheduledFuture<?> pending = _pending.get(peer);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        _pending.put(peer, _executor.schedule(new Runnable() {
+            public void run() {
+                synchronized (AntiEntropy.this) {
+                    _pending.remove(peer);
+                }
+                repairQuietly(peer);
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    private void repairNext() {
+        String peer;
+        synchronized (this) {
+            if (_peers.isEmpty()) {
+                return;
+            }
+            List<String> names = new ArrayList<String>(_peers.keySet());
+            Collections.sort(names);
+            peer = names.get(_nextPeer++ % names.size());
+        }
+        repairQuietly(peer);
+    }
+
+    private void repairQuietly(String peer) {
+        try {
+            repair(peer);
+        } catch (IOException e) {
+            // the peer went away, or will be tried again in its turn
+        } catch (Exception e) {
+            System.err.println("Unexpected exception: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.repair;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.MerkleTree;
+import opendropbox.storage.MerkleTree.Digest;
+import opendropbox.storage.PositionRanges;
+import opendropbox.transfer.ChainWriter;
+import opendropbox.transfer.ChunkClient;
+import opendropbox.transfer.ChunkProtocol;
+
+/**
+ * One anti-entropy exchange between this node's store and a peer's,
+ * over the ranges of the ring both should hold.  Afterwards each has
+ * every chunk of those ranges the other had.
+ *
+ * The two MerkleTrees are compared from the root down, DESCENT_STEP
+ * levels per round trip: only the nodes whose digests differ are
+ * expanded, and their children that lie outside the ranges are left
+ * out.  The chunks of the leaves that still differ are listed by both
+ * sides, and only the chunks missing from one side are copied, fetched
+ * from the peer with pipelined gets or sent to it as puts.  Stores that
+ * agree cost one digest; otherwise the traffic grows with the number of
+ * differing leaves, never with the size of the stores.
+ *
+ * Copies may be held to a rate with a Throttle.
+ *
+ * @author Walter
+ */
+public class RepairSession {
+
+    // levels descended per round trip; a differing node is replaced by
+    // 2^DESCENT_STEP children
+    public static final int DESCENT_STEP = 4;
+
+    private final BlockStore _store;
+    private final InetSocketAddress _peer;
+    private final PositionRanges _ranges;
+    private final int _depth;
+    private Throttle _throttle;
+    private long _nodesCompared;
+    private long _leavesListed;
+    private long _chunksFetched;
+    private long _chunksPushed;
+    private long _bytesCopied;
+
+    /**
+     * @param store - this node's store
+     * @param peer - the peer's chunk server
+     * @param ranges - the positions both should hold
+     */
+    public RepairSession(BlockStore store, InetSocketAddress peer, PositionRanges ranges) {
+        if (store.getTreeDepth() != ChunkProtocol.TREE_DEPTH) {
+            throw new IllegalArgumentException("tree of depth " + store.getTreeDepth());
+        }
+        _store = store;
+        _peer = peer;
+        _ranges = ranges;
+        _depth = ChunkProtocol.TREE_DEPTH;
+    }
+
+    /**
+     * @param throttle - what chunk data copied either way is held to, or
+     * null for no limit
+     */
+    public void setThrottle(Throttle throttle) {
+        _throttle = throttle;
+    }
+
+    /**
+     * Runs the exchange.
+     */
+    public void run() throws IOException {
+        if (_ranges.isEmpty()) {
+            return;
+        }
+        List<ChunkHash> pushes = new ArrayList<ChunkHash>();
+        ChunkClient client = new ChunkClient(_peer);
+        try {
+            client.setRanges(_ranges);
+            int[] leaves = findDifferingLeaves(client);
+            if (leaves.length == 0) {
+                return;
+            }
+
+            List<List<ChunkHash>> lists = client.list(leaves);
+            _leavesListed += leaves.length;
+            List<ChunkHash> fetches = new ArrayList<ChunkHash>();
+            for (int i = 0; i < leaves.length; i++) {
+                Set<ChunkHash> theirs = new HashSet<ChunkHash>(lists.get(i));
+                for (ChunkHash hash : _store.getChunks(MerkleTree.getFirst(_depth, leaves[i]),
+                        MerkleTree.getLast(_depth, leaves[i]), _ranges)) {
+                    if (!theirs.remove(hash)) {
+                        pushes.add(hash);
+                    }
+                }
+                fetches.addAll(theirs);
+            }
+            fetch(client, fetches);
+        } finally {
+            client.close();
+        }
+        push(pushes);
+    }
+
+    /**
+     * @return - the leaves of the peer's tree whose digests differ from
+     * this store's
+     */
+    private int[] findDifferingLeaves(ChunkClient client) throws IOException {
+        int level = 0;
+        int[] nodes = { 0 };
+        while (nodes.length > 0) {
+            List<Digest> theirs = client.getDigests(level, nodes);
+            Digest[] ours = _store.getDigests(level, nodes, _ranges);
+            _nodesCompared += nodes.length;
+
+            int[] differing = new int[nodes.length];
+            int count = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                if (!ours[i].equals(theirs.get(i))) {
+                    differing[count++] = nodes[i];
+                }
+            }
+            if (level == _depth) {
+                int[] leaves = new int[count];
+                System.arraycopy(differing, 0, leaves, 0, count);
+                return leaves;
+            }
+
+            int next = Math.min(_depth, level + DESCENT_STEP);
+            int fanout = 1 << (next - level);
+            int[] children = new int[count * fanout];
+            int childCount = 0;
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < fanout; c++) {
+                    int child = differing[i] * fanout + c;
+                    if (_ranges.classify(MerkleTree.getFirst(next, child),
+                            MerkleTree.getLast(next, child)) != PositionRanges.DISJOINT) {
+                        children[childCount++] = child;
+                    }
+                }
+            }
+            nodes = new int[childCount];
+            System.arraycopy(children, 0, nodes, 0, childCount);
+            level = next;
+        }
+        return nodes;
+    }
+
+    private void fetch(ChunkClient client, List<ChunkHash> hashes) throws IOException {
+        int window = ChunkProtocol.MAX_PIPELINED_REQUESTS;
+        for (int start = 0; start < hashes.size(); start += window) {
+            List<ChunkHash> batch = hashes.subList(start, Math.min(hashes.size(), start + window));
+            List<byte[]> chunks = client.get(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] data = chunks.get(i);
+                if (data == null) {
+                    continue;
+                }
+                throttle(data.length);
+                try {
+                    _store.putVerified(batch.get(i), ByteBuffer.wrap(data));
+                } catch (IOException e) {
+                    // corrupt at the peer; better left out than copied
+                    continue;
+                }
+                _chunksFetched++;
+                _bytesCopied += data.length;
+            }
+        }
+    }
+
+    private void push(List<ChunkHash> hashes) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        ChainWriter writer = new ChainWriter(Collections.singletonList(_peer));
+        try {
+            for (ChunkHash hash : hashes) {
+                byte[] data = _store.get(hash);
+                if (data != null) {
+                    throttle(data.length);
+                    writer.put(data, 0, data.length);
+                    _chunksPushed++;
+                    _bytesCopied += data.length;
+                }
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void throttle(int bytes) throws IOException {
+        if (_throttle == null) {
+            return;
+        }
+        try {
+            _throttle.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    public InetSocketAddress getPeer() {
+        return _peer;
+    }
+
+    /**
+     * @return - how many tree nodes were compared
+     */
+    public long getNodesCompared() {
+        return _nodesCompared;
+    }
+
+    /**
+     * @return - how many leaves had their chunks listed
+     */
+    public long getLeavesListed() {
+        return _leavesListed;
+    }
+
+    /**
+     * @return - how many chunks were copied here from the peer
+     */
+    public long getChunksFetched() {
+        return _chunksFetched;
+    }
+
+    /**
+     * @return - how many chunks were copied to the peer
+     */
+    public long getChunksPushed() {
+        return _chunksPushed;
+    }
+
+    /**
+     * @return - the bytes of chunk data copied either way
+     */
+    public long getBytesCopied() {
+        return _bytesCopied;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("repair with ").append(_peer).append(": ");
+        buf.append(_nodesCompared).append(" nodes compared, ");
+        buf.append(_leavesListed).append(" leaves listed, ");
+        buf.append(_chunksFetched).append(" chunks fetched, ");
+        buf.append(_chunksPushed).append(" pushed, ");
+        buf.append(_bytesCopied).append(" bytes");
+        return buf.toString();
+    }
+}
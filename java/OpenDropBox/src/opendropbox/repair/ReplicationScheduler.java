@@ -0,0 +1,387 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.repair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import opendropbox.placement.HashRing;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.PositionRanges;
+
+/**
+ * Restores the replicas lost when a chunk server leaves for good.
+ * Register it with a ServiceMonitor browsing CHUNK_SERVICE_NAME on
+ * every chunk server; each instance looks after the chunks in its own
+ * store.
+ *
+ * A departed server is given a grace period to come back, so a laptop
+ * that drops off the network for a while costs nothing; the writes it
+ * missed are left to AntiEntropy.  Until then it keeps its place in
+ * the scheduler's own copy of the ring.  When the grace period runs out
+ * it is taken off, and each arc of the ring it owned along with this
+ * node gets a new owner, which needs a copy of the arc.
+ *
+ * The work is queued one arc at a time, those with the fewest owners
+ * still live first, so chunks down to their last replica go before
+ * those that merely lost one.  Of the live owners that hold an arc, one
+ * is picked by a hash of the arc and its new owner, so each copy is
+ * made by one source, and the sources of a departed server's arcs, like
+ * their new owners, are spread round the ring.  Each copy is a
+ * RepairSession restricted to its arc, which sends only the chunks the
+ * new owner lacks.
+ *
+ * Copies run one at a time on a thread of their own, held by a Throttle
+ * to this node's share of the cluster's bandwidth for re-replication:
+ * the cluster-wide limit divided among the live servers.
+ *
+ * @author Walter
+ */
+public class ReplicationScheduler implements ServiceMonitorCallback {
+
+    public static final long DEFAULT_GRACE_PERIOD = 5 * 60 * 1000;
+    public static final long DEFAULT_CLUSTER_BANDWIDTH = 32L << 20;
+    public static final long RETRY_DELAY = 30000;
+
+    private final BlockStore _store;
+    private final String _instanceName;
+    private final int _replicas;
+    private final long _clusterBandwidth;
+    private final long _gracePeriod;
+    // the servers as they were when the chunks were written: the live
+    // ones and the departed ones still within their grace period
+    private final HashRing _placement;
+    private final Map<String, ServiceDescription> _placed;
+    private final Map<String, ServiceDescription> _live;
+    private final Map<String, ScheduledFuture<?>> _departing;
+    private final PriorityQueue<Task> _queue;
+    private final Throttle _throttle;
+    private final ScheduledExecutorService _timer;
+    private Thread _thread;
+    private volatile boolean _shouldRun;
+    private long _sequence;
+    private long _tasksDone;
+    private long _bytesCopied;
+
+    /**
+     * @param store - this node's store
+     * @param instanceName - the name this node's chunk server advertises
+     * @param replicas - how many owners each chunk has
+     */
+    public ReplicationScheduler(BlockStore store, String instanceName, int replicas) {
+        this(store, instanceName, replicas, DEFAULT_CLUSTER_BANDWIDTH, DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * @param store - this node's store
+     * @param instanceName - the name this node's chunk server advertises
+     * @param replicas - how many owners each chunk has
+     * @param clusterBandwidth - the bytes per second all servers together
+     * may spend on re-replication
+     * @param gracePeriod - how long a departed server has to come back,
+     * in milliseconds
+     */
+    public ReplicationScheduler(BlockStore store, String instanceName, int replicas, long clusterBandwidth,
+            long gracePeriod) {
+        _store = store;
+        _instanceName = instanceName;
+        _replicas = replicas;
+        _clusterBandwidth = clusterBandwidth;
+        _gracePeriod = gracePeriod;
+        _placement = new HashRing();
+        _placed = new HashMap<String, ServiceDescription>();
+        _live = new HashMap<String, ServiceDescription>();
+        _departing = new HashMap<String, ScheduledFuture<?>>();
+        _queue = new PriorityQueue<Task>();
+        _throttle = new Throttle(clusterBandwidth);
+        _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReplicationScheduler timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts the thread that makes the copies.
+     */
+    public synchronized void start() {
+        if (_thread != null) {
+            return;
+        }
+        _shouldRun = true;
+        _thread = new Thread(new Runnable() {
+            public void run() {
+                runTasks();
+            }
+        }, "ReplicationScheduler");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Stops copying once the copy under way is done.  Work still queued
+     * is dropped.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+            _thread = null;
+            _shouldRun = false;
+            notifyAll();
+        }
+        _timer.shutdownNow();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized void serviceJoined(ServiceDescription description) {
+        String name = description.getInstanceName();
+        ScheduledFuture<?> departing = _departing.remove(name);
+        if (departing != null) {
+            // back within its grace period
+            departing.cancel(false);
+        }
+        _live.put(name, description);
+        _placed.put(name, description);
+        _placement.serviceJoined(description);
+        updateRate();
+    }
+
+    /**
+     * Follows a live server to its new address or weight.
+     */
+    public synchronized void serviceUpdated(ServiceDescription description) {
+        String name = description.getInstanceName();
+        if (_live.containsKey(name)) {
+            _live.put(name, description);
+            _placed.put(name, description);
+            _placement.serviceUpdated(description);
+        }
+    }
+
+    public synchronized void serviceDeparted(ServiceDescription description) {
+        final String name = description.getInstanceName();
+        if (_live.remove(name) == null) {
+            return;
+        }
+        updateRate();
+        if (name.equals(_instanceName)) {
+            return;
+        }
+        _departing.put(name, _timer.schedule(new Runnable() {
+            public void run() {
+                declareLost(name);
+            }
+        }, _gracePeriod, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return - how many arcs are waiting to be copied
+     */
+    public synchronized int getQueueLength() {
+        return _queue.size();
+    }
+
+    /**
+     * @return - how many arcs have been copied
+     */
+    public synchronized long getTasksDone() {
+        return _tasksDone;
+    }
+
+    /**
+     * @return - the bytes of chunk data copied
+     */
+    public synchronized long getBytesCopied() {
+        return _bytesCopied;
+    }
+
+    /**
+     * @return - the rate this node copies at, in bytes per second
+     */
+    public long getRate() {
+        return _throttle.getRate();
+    }
+
+    private void updateRate() {
+        _throttle.setRate(Math.max(1, _clusterBandwidth / Math.max(1, _live.size())));
+    }
+
+    /**
+     * Takes a server that has not come back off the ring, and queues a
+     * copy of each arc it shared with this node to the arc's new owner,
+     * if this node is the one to send it.
+     *
+     * @param name - the server's instance name
+     */
+    synchronized void declareLost(String name) {
+        _departing.remove(name);
+        ServiceDescription lost = _placed.get(name);
+        if (_live.containsKey(name) || lost == null) {
+            return;
+        }
+
+        // the arcs both owned, and their owners while the server was there
+        long[] tokens = _placement.getTokens();
+        List<Integer> arcs = new ArrayList<Integer>();
+        List<List<ServiceDescription>> oldOwners = new ArrayList<List<ServiceDescription>>();
+        for (int i = 0; i < tokens.length; i++) {
+            List<ServiceDescription> owners = _placement.getOwners(tokens[i], _replicas);
+            if (isOwner(owners, name) && isOwner(owners, _instanceName)) {
+                arcs.add(i);
+                oldOwners.add(owners);
+            }
+        }
+        _placed.remove(name);
+        _placement.serviceDeparted(lost);
+
+        for (int a = 0; a < arcs.size(); a++) {
+            int i = arcs.get(a);
+            List<String> sources = new ArrayList<String>();
+            for (ServiceDescription owner : oldOwners.get(a)) {
+                if (_live.containsKey(owner.getInstanceName()) || owner.getInstanceName().equals(_instanceName)) {
+                    sources.add(owner.getInstanceName());
+                }
+            }
+            Collections.sort(sources);
+            for (ServiceDescription owner : _placement.getOwners(tokens[i], _replicas)) {
+                if (isOwner(oldOwners.get(a), owner.getInstanceName())) {
+                    continue;
+                }
+                // the same source is picked by every live owner
+                long pick = DiscoveryCodec.hashInstanceName(owner.getInstanceName()) ^ tokens[i];
+                if (!sources.get((int) ((pick & Long.MAX_VALUE) % sources.size())).equals(_instanceName)) {
+                    continue;
+                }
+                PositionRanges ranges = new PositionRanges();
+                if (i > 0) {
+                    if (tokens[i - 1] != tokens[i]) {
+                        ranges.add(tokens[i - 1] + 1, tokens[i]);
+                    }
+                } else {
+                    ranges.add(Long.MIN_VALUE, tokens[0]);
+                    if (tokens[tokens.length - 1] != Long.MAX_VALUE) {
+                        ranges.add(tokens[tokens.length - 1] + 1, Long.MAX_VALUE);
+                    }
+                }
+                if (!ranges.isEmpty()) {
+                    _queue.add(new Task(owner.getInstanceName(), ranges, sources.size(), _sequence++));
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private void runTasks() {
+        while (true) {
+            Task task;
+            ServiceDescription target;
+            synchronized (this) {
+                while (_shouldRun && _queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!_shouldRun) {
+                    return;
+                }
+                task = _queue.poll();
+                target = _live.get(task.target);
+            }
+            if (target == null) {
+                // gone as well; its own departure takes care of the arc
+                continue;
+            }
+            RepairSession session = new RepairSession(_store, PeerSelector.getServiceAddress(target), task.ranges);
+            session.setThrottle(_throttle);
+            try {
+                session.run();
+                synchronized (this) {
+                    _tasksDone++;
+                    _bytesCopied += session.getBytesCopied();
+                }
+            } catch (IOException e) {
+                retry(task);
+            } catch (Exception e) {
+                System.err.println("Unexpected exception: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void retry(final Task task) {
+        try {
+            _timer.schedule(new Runnable() {
+                public void run() {
+                    synchronized (ReplicationScheduler.this) {
+                        _queue.add(task);
+                        ReplicationScheduler.this.notifyAll();
+                    }
+                }
+            }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // stopped
+        }
+    }
+
+    private static boolean isOwner(List<ServiceDescription> owners, String instanceName) {
+        for (ServiceDescription owner : owners) {
+            if (owner.getInstanceName().equals(instanceName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The copy of one arc to its new owner.  Arcs with fewer live
+     * owners come first, then arcs in the order they were queued.
+     */
+    private static class Task implements Comparable<Task> {
+
+        final String target;
+        final PositionRanges ranges;
+        final int survivors;
+        final long sequence;
+
+        Task(String target, PositionRanges ranges, int survivors, long sequence) {
+            this.target = target;
+            this.ranges = ranges;
+            this.survivors = survivors;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Task other) {
+            if (survivors != other.survivors) {
+                return survivors < other.survivors ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.repair;
+
+/**
+ * A token bucket that holds callers to a rate in bytes per second.  A
+ * burst of up to one second's worth is let through at once; after that
+ * acquire() sleeps until the bytes have been earned.  The rate may be
+ * changed at any time.
+ *
+ * @author Walter
+ */
+public class Throttle {
+
+    private long _bytesPerSecond;
+    private double _available;
+    private long _lastRefill;
+
+    /**
+     * @param bytesPerSecond - the rate, at least 1
+     */
+    public Throttle(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+        _lastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return _bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond - the new rate, at least 1
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("rate " + bytesPerSecond);
+        }
+        refill();
+        _bytesPerSecond = bytesPerSecond;
+        _available = Math.min(_available, bytesPerSecond);
+    }
+
+    /**
+     * Waits until the bytes may be sent.
+     *
+     * @param bytes - how many are about to be sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            refill();
+            // taken now, and paid back by the wait, so that callers
+            // queue up in the order they asked
+            _available -= bytes;
+            wait = _available >= 0 ? 0 : (long) (-_available * 1000000000.0 / _bytesPerSecond);
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (_bytesPerSecond > 0) {
+            _available = Math.min(_bytesPerSecond, _available + (now - _lastRefill) * _bytesPerSecond / 1e9);
+        }
+        _lastRefill = now;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Parses textual IPv4 and IPv6 address literals into raw bytes without
+ * ever consulting the resolver.  InetAddress.getByName only skips the
+ * lookup when it recognises a literal, and anything it does not
+ * recognise turns into a blocking DNS query; on the discovery receive
+ * path a malformed address must simply be rejected instead.
+ *
+ * @author Walter
+ */
+public class AddressLiterals {
+
+    private AddressLiterals() {
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 literal into an InetAddress.
+     *
+     * @param literal - dotted quad or RFC 4291 text form; an IPv6 zone
+     * suffix ("%eth0") is accepted and ignored
+     * @return - the address, or null if the text is not a literal
+     */
+    public static InetAddress parse(CharSequence literal) {
+        byte[] bytes = toBytes(literal);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // only thrown for an illegal length, which toBytes never returns
+            return null;
+        }
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 literal into its raw bytes.
+     *
+     * @param literal - the text to parse
+     * @return - 4 or 16 bytes, or null if the text is not a literal
+     */
+    public static byte[] toBytes(CharSequence literal) {
+        if (literal == null || literal.length() == 0) {
+            return null;
+        }
+        int end = literal.length();
+        for (int i = 0; i < end; i++) {
+            if (literal.charAt(i) == ':') {
+                return parseIPv6(literal, end);
+            }
+        }
+        byte[] bytes = new byte[4];
+        return parseIPv4(literal, 0, end, bytes, 0) ? bytes : null;
+    }
+
+    /**
+     * Parses a dotted quad between start and end into four bytes of
+     * the destination array.
+     */
+    private static boolean parseIPv4(CharSequence s, int start, int end, byte[] dest, int destOffset) {
+        int octet = 0;
+        int digits = 0;
+        int count = 0;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? s.charAt(i) : '.';
+            if (c == '.') {
+                if (digits == 0 || count == 4) {
+                    return false;
+                }
+                dest[destOffset + count++] = (byte) octet;
+                octet = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                // reject leading zeros, which some parsers read as octal
+                if (digits > 0 && octet == 0) {
+                    return false;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return count == 4;
+    }
+
+    private static byte[] parseIPv6(CharSequence s, int end) {
+
+        // drop the zone id, if any
+        for (int i = 0; i < end; i++) {
+            if (s.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+
+        byte[] bytes = new byte[16];
+        int index = 0;          // next byte to fill
+        int compressAt = -1;    // byte index where "::" was seen
+        int i = 0;
+
+        if (end >= 2 && s.charAt(0) == ':') {
+            if (s.charAt(1) != ':') {
+                return null;
+            }
+            compressAt = 0;
+            i = 2;
+        }
+
+        while (i < end) {
+            if (index == 16) {
+                return null;
+            }
+
+            // find the end of this group
+            int groupEnd = i;
+            boolean dotted = false;
+            while (groupEnd < end && s.charAt(groupEnd) != ':') {
+                if (s.charAt(groupEnd) == '.') {
+                    dotted = true;
+                }
+                groupEnd++;
+            }
+
+            if (dotted) {
+                // an embedded IPv4 address must be the last group
+                if (groupEnd != end || index > 12 || !parseIPv4(s, i, end, bytes, index)) {
+                    return null;
+                }
+                index += 4;
+                i = end;
+                break;
+            }
+
+            int length = groupEnd - i;
+            if (length == 0 || length > 4) {
+                return null;
+            }
+            int value = 0;
+            for (int j = i; j < groupEnd; j++) {
+                int digit = Character.digit(s.charAt(j), 16);
+                if (digit < 0) {
+                    return null;
+                }
+                value = (value << 4) | digit;
+            }
+            bytes[index++] = (byte) (value >> 8);
+            bytes[index++] = (byte) value;
+
+            i = groupEnd;
+            if (i < end) {
+                // skip the ':' and check for "::"
+                i++;
+                if (i < end && s.charAt(i) == ':') {
+                    if (compressAt >= 0) {
+                        return null;
+                    }
+                    compressAt = index;
+                    i++;
+                } else if (i == end) {
+                    // a single trailing ':' is not allowed
+                    return null;
+                }
+            }
+        }
+
+        if (compressAt >= 0) {
+            if (index == 16) {
+                return null;
+            }
+            // shift the groups after "::" to the end and zero the gap
+            int tail = index - compressAt;
+            System.arraycopy(bytes, compressAt, bytes, 16 - tail, tail);
+            for (int j = compressAt; j < 16 - tail; j++) {
+                bytes[j] = 0;
+            }
+        } else if (index != 16) {
+            return null;
+        }
+        return bytes;
+    }
+}
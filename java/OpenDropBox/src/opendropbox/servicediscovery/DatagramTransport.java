@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves discovery datagrams for a DiscoveryEngine.  MulticastTransport
+ * uses real multicast sockets; a simulated network can stand in for it
+ * in tests and experiments.
+ *
+ * A transport has two endpoints: the group endpoint, which receives
+ * everything sent to the group, and a private endpoint whose address is
+ * the source of packets sent from it, so that unicast answers to them
+ * reach this transport alone.  Both deliver to the same receiver.
+ *
+ * @author Walter
+ */
+public interface DatagramTransport {
+
+    /**
+     * Starts delivering received datagrams.  The buffer handed to the
+     * receiver is only valid until packetReceived returns.
+     *
+     * @param receiver - where received datagrams go
+     * @throws IOException if the endpoints cannot be opened
+     */
+    public abstract void open(DiscoveryPacketHandler receiver) throws IOException;
+
+    /**
+     * Queues a datagram.  Never blocks.
+     *
+     * @param data - the payload, from its position to its limit
+     * @param target - where to send it
+     * @param fromPrivatePort - true to send from the private endpoint
+     */
+    public abstract void send(ByteBuffer data, SocketAddress target, boolean fromPrivatePort);
+
+    /**
+     * @return - the address of the group
+     */
+    public abstract InetSocketAddress getGroupAddress();
+
+    /**
+     * Tells the datagrams this transport sent from its private endpoint,
+     * which loop back to it, from everyone else's.
+     *
+     * @param source - the sender of a received datagram
+     * @return - true if it is this transport's private endpoint
+     */
+    public abstract boolean isPrivateEndpoint(SocketAddress source);
+
+    /**
+     * @return - the port of the private endpoint, once open
+     */
+    public abstract int getPrivatePort();
+
+    /**
+     * Waits until every queued datagram has been sent.
+     *
+     * @param timeout - the longest time to wait, in milliseconds
+     */
+    public abstract void flush(long timeout);
+
+    /**
+     * Stops delivering and releases the endpoints.
+     */
+    public abstract void close();
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+/**
+ * The time source used by everything attached to a DiscoveryEngine, so
+ * that a simulation can run discovery on a virtual clock.
+ *
+ * @author Walter
+ */
+public interface DiscoveryClock {
+
+    /**
+     * The wall clock.
+     */
+    public static final DiscoveryClock SYSTEM = new DiscoveryClock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return - the current time in milliseconds
+     */
+    public abstract long currentTimeMillis();
+}
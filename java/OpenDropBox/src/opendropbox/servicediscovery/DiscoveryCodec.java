@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder for the binary discovery wire format.  Every message starts
+ * with a fixed header:
+ *
+ *   magic (2) | version (1) | type (1) | flags (1) | service hash (4) |
+ *   service name length (1) | service name (UTF-8)
+ *
+ * Replies, announcements and goodbyes follow the header with a record
+ * count (1) and that many records of:
+ *
+ *   instance name length (1) | instance name (UTF-8) |
+ *   address length (1, 4 or 16) | address | port (2) | ttl (2) |
+ *   attributes length (1) | attributes
+ *
+ * The ttl is the lease in seconds; a goodbye carries a ttl of 0.  The
+ * attributes are encoded as described in ServiceAttributes.  One reply
+ * may carry the records of several instances of the service.  Version 1
+ * records have no ttl and are read with DEFAULT_SERVICE_TTL; version 1
+ * and 2 records have no attributes.
+ *
+ * A query may follow its header with a known-answer count (1) and that
+ * many known answers of:
+ *
+ *   instance name hash (8, 64 bit FNV-1a) | remaining ttl (2)
+ *
+ * A responder whose instance is listed with at least half of its lease
+ * remaining stays silent.  Queries without the list are still valid.
+ * A query with FLAG_UNICAST_REPLY set asks to be answered at its source
+ * address rather than on the group.
+ *
+ * All integers are big-endian.  Encoding writes straight into a caller
+ * supplied ByteBuffer; decoding is done by DiscoveryMessage.
+ *
+ * @author Walter
+ */
+public class DiscoveryCodec {
+
+    public static final short MAGIC = 0x4F44;
+    public static final byte VERSION = 3;
+    public static final byte TYPE_QUERY = 1;
+    public static final byte TYPE_REPLY = 2;
+    public static final byte TYPE_ANNOUNCE = 3;
+    public static final byte TYPE_GOODBYE = 4;
+    public static final int MAX_TTL = 0xFFFF;
+    public static final int HEADER_LENGTH = 10;
+    public static final int MAX_NAME_LENGTH = 255;
+    public static final int MAX_RECORDS = 255;
+    public static final int KNOWN_ANSWER_LENGTH = 10;
+    public static final int FLAG_UNICAST_REPLY = 0x01;
+
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final long FNV64_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV64_PRIME = 0x100000001B3L;
+
+    private DiscoveryCodec() {
+    }
+
+    /**
+     * Computes the 32 bit FNV-1a hash of a range of bytes.  Used as the
+     * service name hash in the message header so that receivers can
+     * reject packets for other services with a single int compare.
+     *
+     * @param bytes - the bytes to hash
+     * @param offset - where to start
+     * @param length - how many bytes to hash
+     * @return - the hash
+     */
+    public static int hash(byte[] bytes, int offset, int length) {
+        int h = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Computes the 64 bit FNV-1a hash of an instance name's UTF-8 bytes,
+     * as used in known-answer lists.  64 bits keep the chance of two
+     * instances sharing a hash, and one silencing the other, negligible.
+     *
+     * @param instanceName - the instance name
+     * @return - the hash
+     */
+    public static long hashInstanceName(String instanceName) {
+        byte[] bytes = instanceName.getBytes(StandardCharsets.UTF_8);
+        long h = FNV64_OFFSET_BASIS;
+        for (int i = 0; i < bytes.length; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= FNV64_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Writes a message header.
+     *
+     * @param out - the buffer to write into
+     * @param type - one of the TYPE_ constants
+     * @param flags - message flags
+     * @param serviceName - the service the message is about
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    public static void encodeHeader(ByteBuffer out, byte type, int flags, EncodedServiceName serviceName) {
+        byte[] name = serviceName.getUtf8();
+        checkNameLength(name);
+        out.putShort(MAGIC);
+        out.put(VERSION);
+        out.put(type);
+        out.put((byte) flags);
+        out.putInt(serviceName.getHash());
+        out.put((byte) name.length);
+        out.put(name);
+    }
+
+    /**
+     * Writes a complete query for the given service.
+     *
+     * @param out - the buffer to write into
+     * @param serviceName - the service being browsed for
+     */
+    public static void encodeQuery(ByteBuffer out, EncodedServiceName serviceName) {
+        encodeQuery(out, serviceName, 0);
+    }
+
+    /**
+     * Writes a complete query for the given service.
+     *
+     * @param out - the buffer to write into
+     * @param serviceName - the service being browsed for
+     * @param flags - query flags such as FLAG_UNICAST_REPLY
+     */
+    public static void encodeQuery(ByteBuffer out, EncodedServiceName serviceName, int flags) {
+        encodeHeader(out, TYPE_QUERY, flags, serviceName);
+    }
+
+    /**
+     * Writes one known answer.  The caller is responsible for the
+     * known-answer count that precedes them.
+     *
+     * @param out - the buffer to write into
+     * @param instanceHash - from hashInstanceName
+     * @param ttl - the remaining lease in seconds
+     */
+    public static void encodeKnownAnswer(ByteBuffer out, long instanceHash, int ttl) {
+        out.putLong(instanceHash);
+        out.putShort((short) Math.min(Math.max(ttl, 0), MAX_TTL));
+    }
+
+    /**
+     * Writes a complete reply, announcement or goodbye carrying a single
+     * description.
+     *
+     * @param out - the buffer to write into
+     * @param type - TYPE_REPLY, TYPE_ANNOUNCE or TYPE_GOODBYE
+     * @param serviceName - the service being answered for
+     * @param description - the description to advertise
+     * @param ttl - the lease in seconds
+     */
+    public static void encodeReply(ByteBuffer out, byte type, EncodedServiceName serviceName,
+            ServiceDescription description, int ttl) {
+        encodeHeader(out, type, 0, serviceName);
+        out.put((byte) 1);
+        encodeRecord(out, description, ttl);
+    }
+
+    /**
+     * Writes one reply record.  The caller is responsible for the
+     * record count that precedes the records.
+     *
+     * @param out - the buffer to write into
+     * @param description - the description to encode
+     * @param ttl - the lease in seconds
+     */
+    public static void encodeRecord(ByteBuffer out, ServiceDescription description, int ttl) {
+        byte[] name = description.getInstanceName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = description.getAddress().getAddress();
+        checkNameLength(name);
+        out.put((byte) name.length);
+        out.put(name);
+        out.put((byte) address.length);
+        out.put(address);
+        out.putShort((short) description.getPort());
+        out.putShort((short) Math.min(Math.max(ttl, 0), MAX_TTL));
+        description.getAttributes().write(out);
+    }
+
+    /**
+     * Returns the number of bytes encodeRecord will write.
+     *
+     * @param description - the description to encode
+     * @return - the encoded length
+     */
+    public static int getRecordLength(ServiceDescription description) {
+        return 6 + description.getInstanceName().getBytes(StandardCharsets.UTF_8).length
+                + description.getAddress().getAddress().length
+                + description.getAttributes().getEncodedLength();
+    }
+
+    private static void checkNameLength(byte[] name) {
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes");
+        }
+    }
+}
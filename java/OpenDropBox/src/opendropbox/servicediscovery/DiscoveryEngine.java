@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+import opendropbox.servicediscovery.metrics.MetricsEndpoint;
+import opendropbox.servicediscovery.server.ReplyBatcher;
+
+/**
+ * The hub shared by every ServiceBrowser and ServiceResponder attached
+ * to it.  The engine receives datagrams from one DatagramTransport and
+ * dispatches each to all registered DiscoveryPacketHandlers, queues
+ * outgoing packets on the same transport, and supplies the scheduler
+ * and clock that everything attached to it uses for timed work, and
+ * the ReplyBatcher its responders share.
+ *
+ * getInstance() returns the engine on the real multicast group that is
+ * shared by everything in this JVM.  Other engines, for instance on a
+ * simulated network, are created with the three argument constructor
+ * and passed to the browsers and responders that should use them.
+ *
+ * Every packet in and out is counted in the shared DiscoveryMetrics,
+ * which the shared engine registers with JMX.
+ *
+ * @author Walter
+ */
+public class DiscoveryEngine implements DiscoveryPacketHandler {
+
+    private static DiscoveryEngine _sharedInstance;
+    protected final DatagramTransport _transport;
+    protected final DiscoveryClock _clock;
+    protected final CopyOnWriteArrayList<DiscoveryPacketHandler> _handlers;
+    protected final ReplyBatcher _replyBatcher;
+    protected ScheduledExecutorService _scheduler;
+    protected boolean _ownsScheduler;
+    protected boolean _started;
+    private final DiscoveryMessage _header = new DiscoveryMessage();
+    private final LongAdder _packetsReceived;
+    private final LongAdder _bytesReceived;
+    private final LongAdder _packetsSent;
+    private final LongAdder _bytesSent;
+    private final LongAdder _parseFailures;
+    private final LongAdder _errors;
+
+    /**
+     * Returns the engine shared by all browsers and responders in this JVM.
+     *
+     * @return - the shared DiscoveryEngine
+     */
+    public static synchronized DiscoveryEngine getInstance() {
+        if (_sharedInstance == null) {
+            try {
+                _sharedInstance = new DiscoveryEngine(
+                        InetAddress.getByName(ServiceConstants.MULTICAST_ADDRESS_GROUP),
+                        ServiceConstants.MULTICAST_PORT);
+            } catch (UnknownHostException uhe) {
+                System.err.println("Unexpected exception: " + uhe);
+                uhe.printStackTrace();
+                System.exit(1);
+            }
+            DiscoveryMetrics.getInstance().registerMBean();
+            startMetricsEndpoint();
+        }
+        return _sharedInstance;
+    }
+
+    /**
+     * Serves the metrics over http if METRICS_PORT_PROPERTY is set, on the
+     * loopback address or the one METRICS_ADDRESS_PROPERTY names.
+     */
+    private static void startMetricsEndpoint() {
+        Integer port = Integer.getInteger(ServiceConstants.METRICS_PORT_PROPERTY);
+        if (port == null) {
+            return;
+        }
+        try {
+            String name = System.getProperty(ServiceConstants.METRICS_ADDRESS_PROPERTY);
+            InetAddress address = name == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(name);
+            new MetricsEndpoint(DiscoveryMetrics.getInstance(), new InetSocketAddress(address, port)).start();
+        } catch (IOException ioe) {
+            System.err.println("Unexpected exception: " + ioe);
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a new DiscoveryEngine on the given multicast group.  The
+     * sockets are not opened until the first handler is registered.
+     *
+     * @param multicastAddressGroup - the group to join
+     * @param multicastPort - the port to bind and send to
+     */
+    public DiscoveryEngine(InetAddress multicastAddressGroup, int multicastPort) {
+        this(new MulticastTransport(multicastAddressGroup, multicastPort), null, DiscoveryClock.SYSTEM);
+    }
+
+    /**
+     * Creates a new DiscoveryEngine on the given transport.
+     *
+     * @param transport - moves the datagrams
+     * @param scheduler - runs timed work, or null for a scheduler thread
+     * owned by this engine
+     * @param clock - the time source
+     */
+    public DiscoveryEngine(DatagramTransport transport, ScheduledExecutorService scheduler, DiscoveryClock clock) {
+        _transport = transport;
+        _scheduler = scheduler;
+        _clock = clock;
+        _handlers = new CopyOnWriteArrayList<DiscoveryPacketHandler>();
+        _replyBatcher = new ReplyBatcher(this);
+
+        DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        _packetsReceived = metrics.getCounter(DiscoveryMetrics.PACKETS_RECEIVED);
+        _bytesReceived = metrics.getCounter(DiscoveryMetrics.BYTES_RECEIVED);
+        _packetsSent = metrics.getCounter(DiscoveryMetrics.PACKETS_SENT);
+        _bytesSent = metrics.getCounter(DiscoveryMetrics.BYTES_SENT);
+        _parseFailures = metrics.getCounter(DiscoveryMetrics.PARSE_FAILURES);
+        _errors = metrics.getCounter(DiscoveryMetrics.ERRORS);
+    }
+
+    /**
+     * Registers a handler to receive every datagram seen on the group.
+     * Opens the transport if it is not already open.
+     *
+     * @param handler - the handler to add
+     */
+    public synchronized void addPacketHandler(DiscoveryPacketHandler handler) {
+        _handlers.addIfAbsent(handler);
+        start();
+    }
+
+    /**
+     * Removes a previously registered handler.  The engine keeps its
+     * transport open so that handlers can come and go cheaply.
+     *
+     * @param handler - the handler to remove
+     */
+    public synchronized void removePacketHandler(DiscoveryPacketHandler handler) {
+        _handlers.remove(handler);
+    }
+
+    /**
+     * Called by the transport for every received datagram; hands it to
+     * each registered handler in turn.  Packets that are not discovery
+     * messages at all are counted as parse failures and dropped here.
+     *
+     * @param data - the received payload
+     * @param source - the sender of the payload
+     */
+    public void packetReceived(ByteBuffer data, SocketAddress source) {
+        int position = data.position();
+        int limit = data.limit();
+        _packetsReceived.increment();
+        _bytesReceived.add(limit - position);
+        if (!_header.read(data)) {
+            _parseFailures.increment();
+            return;
+        }
+        for (DiscoveryPacketHandler handler : _handlers) {
+            data.limit(limit).position(position);
+            try {
+                handler.packetReceived(data, source);
+            } catch (RuntimeException e) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queues a packet to be sent to the multicast group.
+     *
+     * @param data - the payload, from its position to its limit
+     */
+    public void send(ByteBuffer data) {
+        send(data, getGroupAddress());
+    }
+
+    /**
+     * Queues a packet to be sent to the given address.  This method never
+     * blocks.
+     *
+     * @param data - the payload, from its position to its limit
+     * @param target - where to send it
+     */
+    public void send(ByteBuffer data, SocketAddress target) {
+        if (data != null) {
+            countSent(data);
+            _transport.send(data, target, false);
+        }
+    }
+
+    /**
+     * Queues a packet to be sent to the multicast group from the private
+     * port, so that unicast answers to it reach only this engine.
+     *
+     * @param data - the payload, from its position to its limit
+     */
+    public void sendFromPrivatePort(ByteBuffer data) {
+        if (data != null) {
+            countSent(data);
+            _transport.send(data, getGroupAddress(), true);
+        }
+    }
+
+    /**
+     * @param source - the sender of a received packet
+     * @return - true if this engine sent it from its private port
+     */
+    public boolean isPrivatePort(SocketAddress source) {
+        return _transport.isPrivateEndpoint(source);
+    }
+
+    private void countSent(ByteBuffer data) {
+        _packetsSent.increment();
+        _bytesSent.add(data.remaining());
+    }
+
+    /**
+     * Waits until every queued packet has been handed to the network.
+     * Used when shutting down so that goodbye messages still go out.
+     *
+     * @param timeout - the longest time to wait, in milliseconds
+     */
+    public void flush(long timeout) {
+        _transport.flush(timeout);
+    }
+
+    /**
+     * Returns the scheduler shared by everything using this engine.  Its
+     * single daemon thread must only be given short, non-blocking tasks.
+     *
+     * @return - the shared scheduler
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (_scheduler == null) {
+            _ownsScheduler = true;
+            _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiscoveryTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _scheduler;
+    }
+
+    /**
+     * @return - the clock everything using this engine reads the time from
+     */
+    public DiscoveryClock getClock() {
+        return _clock;
+    }
+
+    /**
+     * @return - the current time according to this engine's clock
+     */
+    public long currentTimeMillis() {
+        return _clock.currentTimeMillis();
+    }
+
+    /**
+     * Returns the socket address of the multicast group.
+     *
+     * @return - the group address and port
+     */
+    public InetSocketAddress getGroupAddress() {
+        return _transport.getGroupAddress();
+    }
+
+    /**
+     * Returns the batcher that packs the replies of every responder
+     * using this engine.
+     *
+     * @return - this engine's batcher
+     */
+    public ReplyBatcher getReplyBatcher() {
+        return _replyBatcher;
+    }
+
+    /**
+     * @return - the transport this engine sends and receives on
+     */
+    public DatagramTransport getTransport() {
+        return _transport;
+    }
+
+    /**
+     * Opens the transport.  If it cannot be opened the failure is
+     * reported and the engine stays closed; handlers then simply hear
+     * nothing, and the next registration tries again.
+     */
+    protected synchronized void start() {
+        if (_started) {
+            return;
+        }
+
+        try {
+            _transport.open(this);
+            _started = true;
+        } catch (IOException ioe) {
+            _errors.increment();
+            System.err.println("Unexpected exception: " + ioe);
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the transport, and stops the scheduler if this engine
+     * created it.
+     */
+    public synchronized void shutdown() {
+        if (_started) {
+            _transport.close();
+            _started = false;
+        }
+        if (_scheduler != null && _ownsScheduler) {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+        }
+    }
+}
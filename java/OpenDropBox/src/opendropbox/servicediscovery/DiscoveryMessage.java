@@ -0,0 +1,436 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+
+/**
+ * A reusable, allocation free view over a received discovery packet.
+ * One instance is kept per browser or responder and pointed at each
+ * packet in turn with read().  Both the binary format written by
+ * DiscoveryCodec and the legacy "SERVICE QUERY" / "SERVICE REPLY" text
+ * format are understood, so older nodes keep working during migration.
+ *
+ * The view is only valid while the underlying buffer holds the packet,
+ * which for packets delivered by the DiscoveryEngine means until
+ * DiscoveryPacketHandler.packetReceived returns.
+ *
+ * @author Walter
+ */
+public class DiscoveryMessage {
+
+    private static final LongAdder _recordFailures =
+            DiscoveryMetrics.getInstance().getCounter(DiscoveryMetrics.PARSE_FAILURES);
+
+    private static final byte[] LEGACY_QUERY = "SERVICE QUERY ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEGACY_REPLY = "SERVICE REPLY ".getBytes(StandardCharsets.US_ASCII);
+
+    private ByteBuffer _buffer;
+    private int _limit;
+    private boolean _legacy;
+    private byte _version;
+    private byte _type;
+    private int _flags;
+    private int _serviceHash;
+    private int _serviceOffset;
+    private int _serviceLength;
+    private int _recordCount;
+    private int _recordIndex;
+    private int _cursor;
+    private int _knownAnswerCount;
+    private int _knownAnswerOffset;
+
+    // the record the cursor is currently on
+    private int _nameOffset;
+    private int _nameLength;
+    private int _addressOffset;
+    private int _addressLength;
+    private int _port;
+    private int _ttl;
+    private int _attributesOffset;
+    private int _attributesLength;
+    private final byte[] _address4 = new byte[4];
+    private final byte[] _address16 = new byte[16];
+    private final byte[] _scratch = new byte[DiscoveryCodec.MAX_NAME_LENGTH];
+
+    /**
+     * Points this view at the packet between the buffer's position and
+     * limit and parses its header.  The buffer's position is not changed.
+     *
+     * @param in - the received packet
+     * @return - true if the packet is a well formed discovery message
+     */
+    public boolean read(ByteBuffer in) {
+        _buffer = in;
+        _limit = in.limit();
+        _recordCount = 0;
+        _recordIndex = 0;
+        _knownAnswerCount = 0;
+
+        int start = in.position();
+        if (_limit - start >= DiscoveryCodec.HEADER_LENGTH
+                && in.getShort(start) == DiscoveryCodec.MAGIC) {
+            return readBinaryHeader(start);
+        }
+        return readLegacyHeader(start);
+    }
+
+    private boolean readBinaryHeader(int start) {
+        _legacy = false;
+        _version = _buffer.get(start + 2);
+        _type = _buffer.get(start + 3);
+        _flags = _buffer.get(start + 4) & 0xFF;
+        _serviceHash = _buffer.getInt(start + 5);
+        _serviceLength = _buffer.get(start + 9) & 0xFF;
+        _serviceOffset = start + DiscoveryCodec.HEADER_LENGTH;
+        _cursor = _serviceOffset + _serviceLength;
+
+        if (_version < 1 || _version > DiscoveryCodec.VERSION || _cursor > _limit) {
+            return false;
+        }
+
+        if (_type == DiscoveryCodec.TYPE_REPLY || _type == DiscoveryCodec.TYPE_ANNOUNCE
+                || _type == DiscoveryCodec.TYPE_GOODBYE) {
+            if (_cursor >= _limit) {
+                return false;
+            }
+            _recordCount = _buffer.get(_cursor++) & 0xFF;
+        } else if (_type == DiscoveryCodec.TYPE_QUERY && _cursor < _limit) {
+            // ignore a truncated list rather than the whole query
+            int count = _buffer.get(_cursor) & 0xFF;
+            _knownAnswerOffset = _cursor + 1;
+            _knownAnswerCount = Math.min(count,
+                    (_limit - _knownAnswerOffset) / DiscoveryCodec.KNOWN_ANSWER_LENGTH);
+        }
+        return true;
+    }
+
+    private boolean readLegacyHeader(int start) {
+        _legacy = true;
+        _version = 0;
+        _flags = 0;
+        _serviceHash = 0;
+
+        // the text format is terminated by the end of the packet or a null
+        for (int i = start; i < _limit; i++) {
+            if (_buffer.get(i) == 0) {
+                _limit = i;
+                break;
+            }
+        }
+
+        if (startsWith(start, LEGACY_QUERY)) {
+            _type = DiscoveryCodec.TYPE_QUERY;
+        } else if (startsWith(start, LEGACY_REPLY)) {
+            _type = DiscoveryCodec.TYPE_REPLY;
+        } else {
+            return false;
+        }
+
+        _serviceOffset = start + LEGACY_QUERY.length;
+        _serviceLength = tokenEnd(_serviceOffset) - _serviceOffset;
+        _cursor = _serviceOffset + _serviceLength;
+
+        if (_type == DiscoveryCodec.TYPE_REPLY) {
+            _recordCount = 1;
+        }
+        return _serviceLength > 0;
+    }
+
+    /**
+     * @return - true if the packet used the legacy text format
+     */
+    public boolean isLegacy() {
+        return _legacy;
+    }
+
+    /**
+     * @return - the format version; 0 for legacy text packets
+     */
+    public int getVersion() {
+        return _version;
+    }
+
+    /**
+     * @return - one of the DiscoveryCodec.TYPE_ constants
+     */
+    public byte getType() {
+        return _type;
+    }
+
+    /**
+     * @return - the flags byte from the header
+     */
+    public int getFlags() {
+        return _flags;
+    }
+
+    /**
+     * @return - the service name hash from the header; 0 for legacy packets
+     */
+    public int getServiceHash() {
+        return _serviceHash;
+    }
+
+    /**
+     * Determines whether this message is about the given service,
+     * comparing the header hash first and the name bytes second.
+     *
+     * @param serviceName - the service to compare against
+     * @return - true if it matches
+     */
+    public boolean isForService(EncodedServiceName serviceName) {
+        if (_legacy) {
+            return regionEquals(_serviceOffset, _serviceLength, serviceName.getUrlEncoded());
+        }
+        return _serviceHash == serviceName.getHash()
+                && regionEquals(_serviceOffset, _serviceLength, serviceName.getUtf8());
+    }
+
+    /**
+     * @return - the number of known answers carried by a query
+     */
+    public int getKnownAnswerCount() {
+        return _knownAnswerCount;
+    }
+
+    /**
+     * @param index - which known answer
+     * @return - its instance name hash
+     */
+    public long getKnownAnswerHash(int index) {
+        return _buffer.getLong(_knownAnswerOffset + index * DiscoveryCodec.KNOWN_ANSWER_LENGTH);
+    }
+
+    /**
+     * @param index - which known answer
+     * @return - its remaining lease in seconds
+     */
+    public int getKnownAnswerTtl(int index) {
+        return _buffer.getShort(_knownAnswerOffset + index * DiscoveryCodec.KNOWN_ANSWER_LENGTH + 8) & 0xFFFF;
+    }
+
+    /**
+     * Determines whether a query already lists the given instance with
+     * at least the given lease remaining.
+     *
+     * @param instanceHash - from DiscoveryCodec.hashInstanceName
+     * @param minTtl - the lease, in seconds, the querier must still hold
+     * @return - true if the instance need not answer
+     */
+    public boolean hasKnownAnswer(long instanceHash, int minTtl) {
+        for (int i = 0; i < _knownAnswerCount; i++) {
+            if (getKnownAnswerHash(i) == instanceHash) {
+                return getKnownAnswerTtl(i) >= minTtl;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - the number of records in a reply, announcement or goodbye
+     */
+    public int getRecordCount() {
+        return _recordCount;
+    }
+
+    /**
+     * Advances to the next record of a reply.
+     *
+     * @return - true if a well formed record is now current
+     */
+    public boolean nextRecord() {
+        if (_recordIndex >= _recordCount) {
+            return false;
+        }
+        _recordIndex++;
+        return _legacy ? nextLegacyRecord() : nextBinaryRecord();
+    }
+
+    private boolean nextBinaryRecord() {
+        if (_cursor >= _limit) {
+            return fail();
+        }
+        _nameLength = _buffer.get(_cursor++) & 0xFF;
+        _nameOffset = _cursor;
+        _cursor += _nameLength;
+        if (_nameLength == 0 || _cursor >= _limit) {
+            return fail();
+        }
+
+        _addressLength = _buffer.get(_cursor++) & 0xFF;
+        if (_addressLength != 4 && _addressLength != 16) {
+            return fail();
+        }
+        _addressOffset = _cursor;
+        _cursor += _addressLength;
+        if (_cursor + 2 > _limit) {
+            return fail();
+        }
+        byte[] address = getAddressBytes();
+        for (int i = 0; i < _addressLength; i++) {
+            address[i] = _buffer.get(_addressOffset + i);
+        }
+
+        _port = _buffer.getShort(_cursor) & 0xFFFF;
+        _cursor += 2;
+
+        _ttl = ServiceConstants.DEFAULT_SERVICE_TTL;
+        if (_version >= 2) {
+            if (_cursor + 2 > _limit) {
+                return fail();
+            }
+            _ttl = _buffer.getShort(_cursor) & 0xFFFF;
+            _cursor += 2;
+        }
+
+        _attributesLength = 0;
+        if (_version >= 3) {
+            if (_cursor >= _limit) {
+                return fail();
+            }
+            _attributesLength = _buffer.get(_cursor++) & 0xFF;
+            _attributesOffset = _cursor;
+            _cursor += _attributesLength;
+            if (_cursor > _limit) {
+                return fail();
+            }
+        }
+        return true;
+    }
+
+    private boolean nextLegacyRecord() {
+        _nameOffset = skipWhitespace(_cursor);
+        _nameLength = tokenEnd(_nameOffset) - _nameOffset;
+        _addressOffset = skipWhitespace(_nameOffset + _nameLength);
+        _addressLength = tokenEnd(_addressOffset) - _addressOffset;
+        int portOffset = skipWhitespace(_addressOffset + _addressLength);
+        int portEnd = tokenEnd(portOffset);
+        _cursor = skipWhitespace(portEnd);
+
+        // exactly three tokens are expected after the service name
+        if (_nameLength == 0 || _addressLength == 0 || portEnd == portOffset || _cursor != _limit) {
+            return fail();
+        }
+        if (_nameLength > _scratch.length || _addressLength > _scratch.length) {
+            return fail();
+        }
+
+        _ttl = ServiceConstants.DEFAULT_SERVICE_TTL;
+        _attributesLength = 0;
+        _port = 0;
+        for (int i = portOffset; i < portEnd; i++) {
+            int digit = _buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || _port > 0xFFFF) {
+                return fail();
+            }
+            _port = _port * 10 + digit;
+        }
+        return _port <= 0xFFFF || fail();
+    }
+
+    private boolean fail() {
+        // malformed headers are counted by the engine, records here
+        _recordFailures.increment();
+        _recordIndex = _recordCount;
+        return false;
+    }
+
+    /**
+     * @return - the port of the current record
+     */
+    public int getPort() {
+        return _port;
+    }
+
+    /**
+     * @return - the lease of the current record in seconds
+     */
+    public int getTtl() {
+        return _ttl;
+    }
+
+    /**
+     * @return - the length of the current record's encoded attributes
+     */
+    public int getAttributesLength() {
+        return _attributesLength;
+    }
+
+    /**
+     * Returns the raw address of the current binary record.  The array
+     * is owned by this view and overwritten by the next record.
+     *
+     * @return - a 4 or 16 byte address
+     */
+    public byte[] getAddressBytes() {
+        return _addressLength == 4 ? _address4 : _address16;
+    }
+
+    /**
+     * Returns the interned ServiceDescription for the current record.
+     * For binary records that have been seen before, attributes and
+     * all, this allocates nothing.
+     *
+     * @return - the description, or null if the record is not valid
+     */
+    public ServiceDescription toServiceDescription() {
+        if (_legacy) {
+            return ServiceDescription.parse(
+                    regionToString(_nameOffset, _nameLength),
+                    regionToString(_addressOffset, _addressLength),
+                    Integer.toString(_port));
+        }
+
+        return ServiceDescriptionCache.getInstance().intern(
+                _buffer, _nameOffset, _nameLength, getAddressBytes(), _port,
+                _attributesOffset, _attributesLength);
+    }
+
+    private boolean startsWith(int offset, byte[] prefix) {
+        return offset + prefix.length <= _limit && regionEquals(offset, prefix.length, prefix);
+    }
+
+    private boolean regionEquals(int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (_buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String regionToString(int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            _scratch[i] = _buffer.get(offset + i);
+        }
+        return new String(_scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int tokenEnd(int offset) {
+        while (offset < _limit && !isWhitespace(_buffer.get(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private int skipWhitespace(int offset) {
+        while (offset < _limit && isWhitespace(_buffer.get(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+}
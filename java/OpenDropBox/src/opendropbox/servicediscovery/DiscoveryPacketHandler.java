@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Walter
+ */
+public interface DiscoveryPacketHandler {
+
+    /**
+     * This method will be called by the DiscoveryEngine for every datagram
+     * received on the multicast group.  It is called on the engine's event
+     * loop thread, so implementations must return quickly and must never
+     * block.
+     *
+     * The buffer is owned by the engine and is reused for the next packet.
+     * Its position and limit cover exactly the received payload; do not
+     * keep a reference to it after this method returns.
+     *
+     * @param data - the received payload
+     * @param source - the address the datagram was sent from
+     */
+    public abstract void packetReceived(ByteBuffer data, SocketAddress source);
+}
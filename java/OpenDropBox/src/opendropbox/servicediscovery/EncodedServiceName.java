@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A service name together with the byte forms it takes on the wire.
+ * Computed once when a browser or responder is configured so that
+ * matching an incoming packet is a hash compare followed by a byte
+ * compare, with no String conversion.
+ *
+ * @author Walter
+ */
+public final class EncodedServiceName {
+
+    private final String _name;
+    private final byte[] _utf8;
+    private final byte[] _urlEncoded;
+    private final int _hash;
+
+    public EncodedServiceName(String name) {
+        _name = name;
+        _utf8 = name.getBytes(StandardCharsets.UTF_8);
+        _hash = DiscoveryCodec.hash(_utf8, 0, _utf8.length);
+        byte[] urlEncoded;
+        try {
+            urlEncoded = URLEncoder.encode(name, "UTF-8").getBytes(StandardCharsets.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            urlEncoded = _utf8;
+        }
+        _urlEncoded = urlEncoded;
+    }
+
+    /**
+     * @return - the service name as given
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return - the UTF-8 bytes used by the binary format
+     */
+    public byte[] getUtf8() {
+        return _utf8;
+    }
+
+    /**
+     * @return - the URL-encoded bytes used by the legacy text format
+     */
+    public byte[] getUrlEncoded() {
+        return _urlEncoded;
+    }
+
+    /**
+     * @return - the FNV-1a hash of the UTF-8 bytes
+     */
+    public int getHash() {
+        return _hash;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof EncodedServiceName)) {
+            return false;
+        }
+        return Arrays.equals(_utf8, ((EncodedServiceName) o)._utf8);
+    }
+
+    public int hashCode() {
+        return _hash;
+    }
+
+    public String toString() {
+        return _name;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+
+/**
+ * The real network.  One non-blocking DatagramChannel is joined to the
+ * discovery multicast group and a second, bound to an ephemeral port,
+ * is the private endpoint.  A single event loop thread blocks in
+ * select() until a datagram arrives or a packet is queued for sending,
+ * so it only wakes up when there is actually something to do.
+ *
+ * @author Walter
+ */
+public class MulticastTransport implements DatagramTransport, Runnable {
+
+    protected InetAddress _multicastAddressGroup;
+    protected int _multicastPort;
+    protected InetSocketAddress _groupSocketAddress;
+    protected Selector _selector;
+    protected DatagramChannel _channel;
+    protected DatagramChannel _privateChannel;
+    protected MembershipKey _membershipKey;
+    protected SelectionKey _selectionKey;
+    protected SelectionKey _privateSelectionKey;
+    protected ByteBuffer _receiveBuffer;
+    protected final Queue<OutboundPacket> _sendQueue;
+    protected DiscoveryPacketHandler _receiver;
+    protected volatile boolean _shouldRun;
+    protected Thread _thread;
+    protected volatile int _privatePort;
+    protected volatile Set<InetAddress> _localAddresses;
+    private final LongAdder _errors = DiscoveryMetrics.getInstance().getCounter(DiscoveryMetrics.ERRORS);
+
+    /**
+     * @param multicastAddressGroup - the group to join
+     * @param multicastPort - the port to bind and send to
+     */
+    public MulticastTransport(InetAddress multicastAddressGroup, int multicastPort) {
+        _multicastAddressGroup = multicastAddressGroup;
+        _multicastPort = multicastPort;
+        _groupSocketAddress = new InetSocketAddress(multicastAddressGroup, multicastPort);
+        _receiveBuffer = ByteBuffer.allocateDirect(ServiceConstants.DATAGRAM_LENGTH);
+        _sendQueue = new ConcurrentLinkedQueue<OutboundPacket>();
+    }
+
+    /**
+     * Opens both channels, joins the group and starts the event loop
+     * thread.  If any step fails, whatever was already opened is closed
+     * again before the exception is thrown.
+     */
+    public synchronized void open(DiscoveryPacketHandler receiver) throws IOException {
+        if (_thread != null) {
+            return;
+        }
+
+        NetworkInterface networkInterface = getMulticastInterface();
+
+        boolean opened = false;
+        try {
+            openChannels(networkInterface);
+            opened = true;
+        } finally {
+            if (!opened) {
+                closeChannels();
+            }
+        }
+
+        _receiver = receiver;
+        _shouldRun = true;
+        _thread = new Thread(this, "DiscoveryEngine");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void openChannels(NetworkInterface networkInterface) throws IOException {
+        _channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        _channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        _channel.bind(new InetSocketAddress(_multicastPort));
+        _channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        _channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        _membershipKey = _channel.join(_multicastAddressGroup, networkInterface);
+        _channel.configureBlocking(false);
+
+        _privateChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        _privateChannel.bind(new InetSocketAddress(0));
+        _privateChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        _privateChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        _privateChannel.configureBlocking(false);
+        _privatePort = ((InetSocketAddress) _privateChannel.getLocalAddress()).getPort();
+        _localAddresses = getLocalAddresses();
+
+        _selector = Selector.open();
+        _selectionKey = _channel.register(_selector, SelectionKey.OP_READ);
+        _privateSelectionKey = _privateChannel.register(_selector, SelectionKey.OP_READ);
+    }
+
+    public void send(ByteBuffer data, SocketAddress target, boolean fromPrivatePort) {
+        _sendQueue.add(new OutboundPacket(data, target, fromPrivatePort));
+        Selector selector = _selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public InetSocketAddress getGroupAddress() {
+        return _groupSocketAddress;
+    }
+
+    /**
+     * Our own datagrams come back from the private port and one of the
+     * addresses of this host.
+     */
+    public boolean isPrivateEndpoint(SocketAddress source) {
+        Set<InetAddress> localAddresses = _localAddresses;
+        if (localAddresses == null || !(source instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetSocketAddress address = (InetSocketAddress) source;
+        return address.getPort() == _privatePort && localAddresses.contains(address.getAddress());
+    }
+
+    public int getPrivatePort() {
+        return _privatePort;
+    }
+
+    public void flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!_sendQueue.isEmpty() && _thread != null && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the event loop, leaves the group and closes the channels.
+     */
+    public synchronized void close() {
+        if (_thread == null) {
+            return;
+        }
+        _shouldRun = false;
+        _selector.wakeup();
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _thread = null;
+    }
+
+    /**
+     * The event loop.  Blocks in select() until a datagram arrives or a
+     * packet is queued for sending; there is no polling timeout.
+     */
+    public void run() {
+
+        while (_shouldRun) {
+            try {
+                _selector.select();
+
+                if (_selectionKey.isValid() && _selectionKey.isReadable()) {
+                    receivePackets(_channel);
+                }
+                if (_privateSelectionKey.isValid() && _privateSelectionKey.isReadable()) {
+                    receivePackets(_privateChannel);
+                }
+                _selector.selectedKeys().clear();
+
+                sendQueuedPackets();
+
+            } catch (IOException ioe) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+                /* resume operation */
+            } catch (RuntimeException e) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + e);
+                e.printStackTrace();
+                /* resume operation */
+            }
+        }
+
+        closeChannels();
+    }
+
+    /**
+     * Drains every datagram currently waiting on a channel and hands
+     * each one to the receiver.
+     *
+     * @param channel - the group channel or the private channel
+     */
+    protected void receivePackets(DatagramChannel channel) throws IOException {
+        SocketAddress source;
+        while ((source = channel.receive(prepareReceiveBuffer())) != null) {
+            _receiveBuffer.flip();
+            try {
+                _receiver.packetReceived(_receiveBuffer, source);
+            } catch (RuntimeException e) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private ByteBuffer prepareReceiveBuffer() {
+        _receiveBuffer.clear();
+        return _receiveBuffer;
+    }
+
+    /**
+     * Writes queued packets until the queue is empty or a socket buffer
+     * is full.  In the latter case the loop waits for OP_WRITE.  A packet
+     * that cannot be sent at all is counted as an error and dropped, so
+     * that it does not hold up the ones behind it.
+     */
+    protected void sendQueuedPackets() {
+        OutboundPacket packet;
+        while ((packet = _sendQueue.peek()) != null) {
+            DatagramChannel channel = packet.fromPrivatePort ? _privateChannel : _channel;
+            try {
+                if (channel.send(packet.data, packet.target) == 0) {
+                    SelectionKey key = packet.fromPrivatePort ? _privateSelectionKey : _selectionKey;
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException ioe) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + ioe);
+            } catch (RuntimeException e) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + e);
+            }
+            _sendQueue.poll();
+        }
+        _selectionKey.interestOps(SelectionKey.OP_READ);
+        _privateSelectionKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes whatever is open; after a failed open() some of it may not be.
+     */
+    private void closeChannels() {
+        if (_membershipKey != null) {
+            _membershipKey.drop();
+        }
+        closeQuietly(_selector);
+        closeQuietly(_channel);
+        closeQuietly(_privateChannel);
+        _membershipKey = null;
+        _selectionKey = null;
+        _privateSelectionKey = null;
+        _selector = null;
+        _channel = null;
+        _privateChannel = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ioe) {
+            System.err.println("Unexpected exception: " + ioe);
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * @return - the addresses of every interface of this host
+     */
+    protected static Set<InetAddress> getLocalAddresses() throws SocketException {
+        Set<InetAddress> addresses = new HashSet<InetAddress>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            addresses.addAll(Collections.list(interfaces.nextElement().getInetAddresses()));
+        }
+        return addresses;
+    }
+
+    /**
+     * Picks the interface used to join the group: the first interface
+     * that is up and supports multicast, preferring non-loopback ones.
+     *
+     * @return - the interface to use
+     */
+    protected static NetworkInterface getMulticastInterface() throws SocketException {
+        NetworkInterface fallback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface ni = interfaces.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast()) {
+                continue;
+            }
+            if (!ni.isLoopback()) {
+                return ni;
+            }
+            if (fallback == null) {
+                fallback = ni;
+            }
+        }
+        if (fallback == null) {
+            throw new SocketException("No multicast capable network interface found");
+        }
+        return fallback;
+    }
+
+    private static class OutboundPacket {
+
+        final ByteBuffer data;
+        final SocketAddress target;
+        final boolean fromPrivatePort;
+
+        OutboundPacket(ByteBuffer data, SocketAddress target, boolean fromPrivatePort) {
+            this.data = data;
+            this.target = target;
+            this.fromPrivatePort = fromPrivatePort;
+        }
+    }
+}
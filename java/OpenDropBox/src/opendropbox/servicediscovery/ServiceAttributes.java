@@ -0,0 +1,319 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A small, immutable set of key/value attributes carried with each
+ * ServiceDescription, such as the free space and load of a node, so
+ * that clients can place data without asking every node first.
+ *
+ * Attributes are held in the form they take on the wire, sorted by
+ * key, so comparing two sets is one array compare and a receiver can
+ * check a record's attributes against the ones it already has without
+ * decoding them.  Each attribute is:
+ *
+ *   key length (1) | key (UTF-8) | type (1) | value length (1) | value
+ *
+ * Numbers are stored in as few big-endian bytes as hold them.  The
+ * whole set may take at most MAX_LENGTH bytes.  with() and without()
+ * return a new set.
+ *
+ * @author Walter
+ */
+public final class ServiceAttributes {
+
+    // well known keys
+    public static final String FREE_BYTES = "free";
+    public static final String LOAD = "load";
+    public static final String PROTOCOL_VERSION = "proto";
+    public static final String ZONE = "zone";
+
+    public static final int MAX_LENGTH = 255;
+    public static final byte TYPE_LONG = 0;
+    public static final byte TYPE_STRING = 1;
+
+    public static final ServiceAttributes EMPTY = new ServiceAttributes(new byte[0]);
+
+    private final byte[] _bytes;
+    private final int _hash;
+
+    private ServiceAttributes(byte[] bytes) {
+        _bytes = bytes;
+        _hash = Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Decodes attributes as written by write(), without their length.
+     *
+     * @param bytes - the array holding them
+     * @param offset - where they start
+     * @param length - how many bytes they take
+     * @return - the attributes, or null if they are malformed
+     */
+    public static ServiceAttributes fromBytes(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        if (length > MAX_LENGTH || decode(bytes, offset, length) == null) {
+            return null;
+        }
+        return new ServiceAttributes(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    /**
+     * @param key - the attribute to set
+     * @param value - its new value
+     * @return - a copy of these attributes with the value set
+     * @throws IllegalArgumentException if the attributes would no longer fit
+     */
+    public ServiceAttributes with(String key, long value) {
+        int length = 1;
+        while (length < 8 && (value >> (length * 8 - 1)) != 0 && (value >> (length * 8 - 1)) != -1) {
+            length++;
+        }
+        byte[] encoded = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            encoded[i] = (byte) value;
+            value >>= 8;
+        }
+        return with(key, TYPE_LONG, encoded);
+    }
+
+    /**
+     * @param key - the attribute to set
+     * @param value - its new value
+     * @return - a copy of these attributes with the value set
+     * @throws IllegalArgumentException if the attributes would no longer fit
+     */
+    public ServiceAttributes with(String key, String value) {
+        return with(key, TYPE_STRING, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param key - the attribute to remove
+     * @return - a copy of these attributes without it
+     */
+    public ServiceAttributes without(String key) {
+        TreeMap<String, Value> values = decode(_bytes, 0, _bytes.length);
+        if (values.remove(key) == null) {
+            return this;
+        }
+        return encode(values);
+    }
+
+    private ServiceAttributes with(String key, byte type, byte[] value) {
+        if (key.getBytes(StandardCharsets.UTF_8).length > 0xFF || value.length > 0xFF) {
+            throw new IllegalArgumentException("Attribute " + key + " is too long");
+        }
+        TreeMap<String, Value> values = decode(_bytes, 0, _bytes.length);
+        values.put(key, new Value(type, value));
+        return encode(values);
+    }
+
+    /**
+     * @param key - the attribute to look up
+     * @return - true if it is set
+     */
+    public boolean contains(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @param key - the attribute to look up
+     * @param defaultValue - returned if it is not set or is not a number
+     * @return - its value
+     */
+    public long getLong(String key, long defaultValue) {
+        int offset = find(key);
+        if (offset < 0 || _bytes[offset] != TYPE_LONG) {
+            return defaultValue;
+        }
+        int length = _bytes[offset + 1] & 0xFF;
+        long value = length == 0 ? 0 : _bytes[offset + 2];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (_bytes[offset + 2 + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @param key - the attribute to look up
+     * @return - its value, or null if it is not set or is not a string
+     */
+    public String getString(String key) {
+        int offset = find(key);
+        if (offset < 0 || _bytes[offset] != TYPE_STRING) {
+            return null;
+        }
+        return new String(_bytes, offset + 2, _bytes[offset + 1] & 0xFF, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return - the keys that are set, in order
+     */
+    public List<String> getKeys() {
+        return new ArrayList<String>(decode(_bytes, 0, _bytes.length).keySet());
+    }
+
+    /**
+     * @return - true if no attribute is set
+     */
+    public boolean isEmpty() {
+        return _bytes.length == 0;
+    }
+
+    /**
+     * @return - the number of bytes write() will write
+     */
+    public int getEncodedLength() {
+        return 1 + _bytes.length;
+    }
+
+    /**
+     * Writes the attributes preceded by their length (1).
+     *
+     * @param out - the buffer to write into
+     */
+    public void write(ByteBuffer out) {
+        out.put((byte) _bytes.length);
+        out.put(_bytes);
+    }
+
+    /**
+     * Compares these attributes with ones still sitting in a buffer.
+     *
+     * @param buffer - the buffer holding the encoded attributes
+     * @param offset - absolute index of the first byte
+     * @param length - their length
+     * @return - true if they are the same
+     */
+    public boolean matches(ByteBuffer buffer, int offset, int length) {
+        if (length != _bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != _bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return - the offset of the key's type byte, or -1
+     */
+    private int find(String key) {
+        byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (offset < _bytes.length) {
+            int keyLength = _bytes[offset] & 0xFF;
+            int valueOffset = offset + 1 + keyLength;
+            if (keyLength == wanted.length && regionEquals(offset + 1, wanted)) {
+                return valueOffset;
+            }
+            offset = valueOffset + 2 + (_bytes[valueOffset + 1] & 0xFF);
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int offset, byte[] wanted) {
+        for (int i = 0; i < wanted.length; i++) {
+            if (_bytes[offset + i] != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return - the attributes by key, or null if they are malformed
+     */
+    private static TreeMap<String, Value> decode(byte[] bytes, int offset, int length) {
+        TreeMap<String, Value> values = new TreeMap<String, Value>();
+        int end = offset + length;
+        while (offset < end) {
+            int keyLength = bytes[offset++] & 0xFF;
+            if (keyLength == 0 || offset + keyLength + 2 > end) {
+                return null;
+            }
+            String key = new String(bytes, offset, keyLength, StandardCharsets.UTF_8);
+            offset += keyLength;
+            byte type = bytes[offset++];
+            int valueLength = bytes[offset++] & 0xFF;
+            if ((type != TYPE_LONG && type != TYPE_STRING) || offset + valueLength > end
+                    || (type == TYPE_LONG && valueLength > 8)) {
+                return null;
+            }
+            values.put(key, new Value(type, Arrays.copyOfRange(bytes, offset, offset + valueLength)));
+            offset += valueLength;
+        }
+        return values;
+    }
+
+    private static ServiceAttributes encode(TreeMap<String, Value> values) {
+        ByteBuffer out = ByteBuffer.allocate(MAX_LENGTH + 0x200);
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            Value value = entry.getValue();
+            out.put((byte) key.length);
+            out.put(key);
+            out.put(value.type);
+            out.put((byte) value.bytes.length);
+            out.put(value.bytes);
+            if (out.position() > MAX_LENGTH) {
+                throw new IllegalArgumentException("Attributes longer than " + MAX_LENGTH + " bytes");
+            }
+        }
+        return out.position() == 0 ? EMPTY : new ServiceAttributes(Arrays.copyOf(out.array(), out.position()));
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof ServiceAttributes)) {
+            return false;
+        }
+        ServiceAttributes other = (ServiceAttributes) o;
+        return _hash == other._hash && Arrays.equals(_bytes, other._bytes);
+    }
+
+    public int hashCode() {
+        return _hash;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer("{");
+        for (String key : getKeys()) {
+            if (buf.length() > 1) {
+                buf.append(", ");
+            }
+            buf.append(key).append('=');
+            String s = getString(key);
+            buf.append(s != null ? s : Long.toString(getLong(key, 0)));
+        }
+        return buf.append('}').toString();
+    }
+
+    private static class Value {
+
+        final byte type;
+        final byte[] bytes;
+
+        Value(byte type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+}
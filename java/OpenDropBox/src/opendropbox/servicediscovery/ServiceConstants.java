@@ -17,13 +17,56 @@ public class ServiceConstants {
         // specify constants for server and clients to communicate with
 	public static final String MULTICAST_ADDRESS_GROUP = "230.0.0.1";
 	public static final int MULTICAST_PORT = 4321;
-	public static final int DATAGRAM_LENGTH = 1024;
+	// an ethernet frame less the IP and UDP headers; replies are
+	// batched up to this size
+	public static final int DATAGRAM_LENGTH = 1472;
 
-	// set these for best performance on local network
-	public static final int RESPONDER_SOCKET_TIMEOUT = 250;
-	public static final int BROWSER_SOCKET_TIMEOUT = 250;
-	public static final int BROWSER_QUERY_INTERVAL = 500;
+	// also send the old text query so that responders which predate the
+	// binary format still answer while a network is being upgraded;
+	// responders that know the binary format leave the text copy alone,
+	// so it costs one small extra packet per query.  replies are
+	// understood in both formats
+	public static final boolean SEND_LEGACY_QUERIES = true;
+
+	// set these for best performance on local network; browsers query
+	// at once, then back off from the initial interval up to the maximum
+	public static final int BROWSER_INITIAL_QUERY_INTERVAL = 100;
+	public static final int BROWSER_MAX_QUERY_INTERVAL = 20000;
+	public static final double BROWSER_QUERY_JITTER = 0.2;
+
+	// ask responders to answer a browser's first query of a lookup alone
+	// instead of the group; later queries are answered to the group
+	public static final boolean BROWSER_UNICAST_REPLIES = true;
+
+	// responders wait a random time in this range before answering a
+	// query so that queries arriving together get a single reply, and
+	// never multicast the same reply twice within the minimum interval
+	public static final int RESPONDER_MIN_REPLY_DELAY = 20;
+	public static final int RESPONDER_MAX_REPLY_DELAY = 120;
+	public static final int RESPONDER_MIN_REPLY_INTERVAL = 1000;
+
+        // gossip nodes advertise their gossip address under this name
+        public static final String GOSSIP_SERVICE_NAME = "ODB gossip v0.1";
+
+        // chunk servers advertise their data port under this name
+        public static final String CHUNK_SERVICE_NAME = "ODB chunks v0.1";
+
+        // lease, in seconds, that responders advertise; they announce
+        // themselves again after half of it has passed
+        public static final int DEFAULT_SERVICE_TTL = 15;
 
         // specify constants for service monitor
         public static final int DEFAULT_POLLING_INTERVAL = 60000;
+
+        // if this system property holds a port, the shared engine serves
+        // its metrics as plain text over http on it
+        public static final String METRICS_PORT_PROPERTY = "opendropbox.metrics.port";
+
+        // the metrics are only served on the loopback address unless this
+        // system property names another address to bind, such as 0.0.0.0
+        public static final String METRICS_ADDRESS_PROPERTY = "opendropbox.metrics.address";
+
+        // servers advertise the value of this system property as their
+        // ServiceAttributes.ZONE, for placing replicas in different racks
+        public static final String ZONE_PROPERTY = "opendropbox.zone";
 }
@@ -9,9 +9,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
 
 /**
+ * Describes one instance of a service: its name, where it can be
+ * reached, and the ServiceAttributes it advertises.  Descriptions are
+ * equal when their instance names are.
  *
  * @author Walter
  */
@@ -20,15 +22,49 @@ public class ServiceDescription {
     private String _serviceInstanceName;
     private int _port;
     private InetAddress _address;
+    private ServiceAttributes _attributes = ServiceAttributes.EMPTY;
+    private volatile boolean _immutable;
 
     public ServiceDescription() {
     }
 
+    public ServiceDescription(String instanceName, InetAddress address, int port) {
+        _serviceInstanceName = instanceName;
+        _address = address;
+        _port = port;
+    }
+
+    public ServiceDescription(String instanceName, InetAddress address, int port, ServiceAttributes attributes) {
+        this(instanceName, address, port);
+        _attributes = attributes;
+    }
+
+    /**
+     * Descriptions handed out by the ServiceDescriptionCache are shared
+     * between every listener that sees them and must not change.
+     *
+     * @return - true if the setters of this description are disabled
+     */
+    public boolean isImmutable() {
+        return _immutable;
+    }
+
+    void makeImmutable() {
+        _immutable = true;
+    }
+
+    private void checkMutable() {
+        if (_immutable) {
+            throw new UnsupportedOperationException("ServiceDescription is shared and cannot be changed");
+        }
+    }
+
     public InetAddress getAddress() {
         return _address;
     }
 
     public void setAddress(InetAddress serviceAddress) {
+        checkMutable();
         _address = serviceAddress;
     }
 
@@ -41,6 +77,7 @@ public class ServiceDescription {
     }
 
     public void setInstanceName(String serviceDescription) {
+        checkMutable();
         _serviceInstanceName = serviceDescription;
     }
 
@@ -57,9 +94,25 @@ public class ServiceDescription {
     }
 
     public void setPort(int servicePort) {
+        checkMutable();
         _port = servicePort;
     }
 
+    /**
+     * @return - the attributes advertised with this instance; never null
+     */
+    public ServiceAttributes getAttributes() {
+        return _attributes;
+    }
+
+    /**
+     * @param attributes - the attributes to advertise, or null for none
+     */
+    public void setAttributes(ServiceAttributes attributes) {
+        checkMutable();
+        _attributes = attributes == null ? ServiceAttributes.EMPTY : attributes;
+    }
+
     protected String getPortAsString() {
         return Integer.toString(this.getPort());
     }
@@ -100,41 +153,52 @@ public class ServiceDescription {
         return getInstanceName().compareTo(sd.getInstanceName());
     }
 
+    /**
+     * Parses the text form written by toString().  The address must be
+     * an IPv4 or IPv6 literal; host names are rejected rather than
+     * resolved so that parsing never blocks on DNS.  The returned
+     * description is interned in the shared ServiceDescriptionCache and
+     * is immutable.
+     *
+     * @param encodedInstanceName - the URL-encoded instance name
+     * @param addressAsString - the address literal
+     * @param portAsString - the port
+     * @return - the description, or null if any field is malformed
+     */
     public static ServiceDescription parse(String encodedInstanceName,
             String addressAsString, String portAsString) {
 
-        ServiceDescription descriptor = new ServiceDescription();
+        String name;
         try {
-            String name = URLDecoder.decode(encodedInstanceName, "UTF-8");
+            name = URLDecoder.decode(encodedInstanceName, "UTF-8");
             if (name == null || name.length() == 0) {
                 /* warning: check API docs for exact behavior of 'decode' */
                 return null;
             }
-            descriptor.setInstanceName(name);
         } catch (UnsupportedEncodingException e) {
             System.err.println("Unexpected exception: " + e);
             e.printStackTrace();
             return null;
+        } catch (IllegalArgumentException e) {
+            // malformed escape sequence
+            return null;
         }
 
-        try {
-            InetAddress addr = InetAddress.getByName(addressAsString);
-            descriptor.setAddress(addr);
-        } catch (UnknownHostException e) {
-            System.err.println("Unexpected exception: " + e);
-            e.printStackTrace();
+        byte[] address = AddressLiterals.toBytes(addressAsString);
+        if (address == null) {
             return null;
         }
 
+        int port;
         try {
-            int p = Integer.parseInt(portAsString);
-            descriptor.setPort(p);
+            port = Integer.parseInt(portAsString);
         } catch (NumberFormatException e) {
-            System.err.println("Unexpected exception: " + e);
-            e.printStackTrace();
+            return null;
+        }
+        if (port < 0 || port > 0xFFFF) {
             return null;
         }
 
-        return descriptor;
+        return ServiceDescriptionCache.getInstance().intern(name, address, port);
     }
 }
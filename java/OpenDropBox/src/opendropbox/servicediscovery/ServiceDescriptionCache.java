@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns immutable ServiceDescriptions keyed by (instance name, address,
+ * port, attributes).  Every node answers every query, so the same few hundred
+ * descriptions arrive over and over; looking the record up here by its
+ * raw bytes returns the existing instance without building a String or
+ * an InetAddress.
+ *
+ * The cache is a fixed size, direct mapped table.  A colliding entry
+ * simply replaces the old one, which keeps lookups lock free and the
+ * memory bounded no matter how many distinct services are seen.
+ * Attributes are left out of the slot hash, so when an instance's
+ * attributes change its new description takes the old one's slot.
+ *
+ * @author Walter
+ */
+public class ServiceDescriptionCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final ServiceDescriptionCache _sharedInstance = new ServiceDescriptionCache(DEFAULT_CAPACITY);
+    private final AtomicReferenceArray<Entry> _entries;
+    private final int _mask;
+
+    /**
+     * Returns the cache shared by every browser in this JVM.
+     *
+     * @return - the shared cache
+     */
+    public static ServiceDescriptionCache getInstance() {
+        return _sharedInstance;
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity - number of slots, rounded up to a power of two
+     */
+    public ServiceDescriptionCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        _entries = new AtomicReferenceArray<Entry>(size);
+        _mask = size - 1;
+    }
+
+    /**
+     * Returns the interned description for a record whose instance name
+     * is still sitting in a receive buffer.
+     *
+     * @param buffer - the buffer holding the UTF-8 instance name
+     * @param nameOffset - absolute index of the name in the buffer
+     * @param nameLength - length of the name in bytes
+     * @param address - the raw 4 or 16 byte address
+     * @param port - the port
+     * @return - the interned description
+     */
+    public ServiceDescription intern(ByteBuffer buffer, int nameOffset, int nameLength, byte[] address, int port) {
+        return intern(buffer, nameOffset, nameLength, address, port, 0, 0);
+    }
+
+    /**
+     * Returns the interned description for a record whose instance name
+     * and attributes are still sitting in a receive buffer.
+     *
+     * @param buffer - the buffer holding the record
+     * @param nameOffset - absolute index of the name in the buffer
+     * @param nameLength - length of the name in bytes
+     * @param address - the raw 4 or 16 byte address
+     * @param port - the port
+     * @param attributesOffset - absolute index of the encoded attributes
+     * @param attributesLength - their length in bytes
+     * @return - the interned description, or null if the attributes
+     * are malformed
+     */
+    public ServiceDescription intern(ByteBuffer buffer, int nameOffset, int nameLength, byte[] address, int port,
+            int attributesOffset, int attributesLength) {
+        int h = 0;
+        for (int i = 0; i < nameLength; i++) {
+            h = 31 * h + buffer.get(nameOffset + i);
+        }
+        h = mix(h, address, port);
+
+        int slot = h & _mask;
+        Entry entry = _entries.get(slot);
+        if (entry != null && entry.matches(h, buffer, nameOffset, nameLength, address, port)
+                && entry.description.getAttributes().matches(buffer, attributesOffset, attributesLength)) {
+            return entry.description;
+        }
+
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+            name[i] = buffer.get(nameOffset + i);
+        }
+        byte[] encoded = new byte[attributesLength];
+        for (int i = 0; i < attributesLength; i++) {
+            encoded[i] = buffer.get(attributesOffset + i);
+        }
+        ServiceAttributes attributes = ServiceAttributes.fromBytes(encoded, 0, attributesLength);
+        if (attributes == null) {
+            return null;
+        }
+        return store(slot, h, name, address.clone(), port, attributes);
+    }
+
+    /**
+     * Returns the interned description for the given values.
+     *
+     * @param instanceName - the instance name
+     * @param address - the raw 4 or 16 byte address
+     * @param port - the port
+     * @return - the interned description
+     */
+    public ServiceDescription intern(String instanceName, byte[] address, int port) {
+        byte[] name = instanceName.getBytes(StandardCharsets.UTF_8);
+        int h = 0;
+        for (int i = 0; i < name.length; i++) {
+            h = 31 * h + name[i];
+        }
+        h = mix(h, address, port);
+
+        int slot = h & _mask;
+        Entry entry = _entries.get(slot);
+        if (entry != null && entry.hash == h && entry.port == port
+                && Arrays.equals(entry.name, name) && Arrays.equals(entry.address, address)
+                && entry.description.getAttributes().isEmpty()) {
+            return entry.description;
+        }
+        return store(slot, h, name, address.clone(), port, ServiceAttributes.EMPTY);
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        for (int i = 0; i < _entries.length(); i++) {
+            _entries.set(i, null);
+        }
+    }
+
+    private ServiceDescription store(int slot, int hash, byte[] name, byte[] address, int port,
+            ServiceAttributes attributes) {
+        InetAddress inetAddress;
+        try {
+            inetAddress = InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // only thrown for an illegal address length
+            return null;
+        }
+        ServiceDescription description = new ServiceDescription(
+                new String(name, StandardCharsets.UTF_8), inetAddress, port, attributes);
+        description.makeImmutable();
+        _entries.set(slot, new Entry(hash, name, address, port, description));
+        return description;
+    }
+
+    private static int mix(int h, byte[] address, int port) {
+        for (int i = 0; i < address.length; i++) {
+            h = 31 * h + address[i];
+        }
+        h = 31 * h + port;
+        // spread the high bits into the low bits used for the slot
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+
+        final int hash;
+        final byte[] name;
+        final byte[] address;
+        final int port;
+        final ServiceDescription description;
+
+        Entry(int hash, byte[] name, byte[] address, int port, ServiceDescription description) {
+            this.hash = hash;
+            this.name = name;
+            this.address = address;
+            this.port = port;
+            this.description = description;
+        }
+
+        boolean matches(int h, ByteBuffer buffer, int nameOffset, int nameLength, byte[] addr, int p) {
+            if (hash != h || port != p || name.length != nameLength || !Arrays.equals(address, addr)) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                if (name[i] != buffer.get(nameOffset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+
+/**
+ * A transport with a private endpoint only: one unicast DatagramChannel
+ * bound to a fixed or ephemeral port, for protocols such as gossip that
+ * talk to peers directly.  It belongs to no group, so getGroupAddress()
+ * returns null and every datagram is sent from the one endpoint.
+ *
+ * A receiving thread blocks on the channel until it is closed.  Sends
+ * are written straight to the channel; a datagram socket only blocks
+ * for as long as it takes to copy the packet out.
+ *
+ * @author Walter
+ */
+public class UnicastTransport implements DatagramTransport {
+
+    protected final InetAddress _address;
+    protected final int _port;
+    protected DatagramChannel _channel;
+    protected volatile int _privatePort;
+    protected volatile Set<InetAddress> _localAddresses;
+    protected DiscoveryPacketHandler _receiver;
+    protected Thread _thread;
+    private final LongAdder _errors = DiscoveryMetrics.getInstance().getCounter(DiscoveryMetrics.ERRORS);
+
+    /**
+     * @param address - the address peers reach this endpoint on; only its
+     * family is used, the channel binds every interface
+     * @param port - the port to bind, or 0 for any free port
+     */
+    public UnicastTransport(InetAddress address, int port) {
+        _address = address;
+        _port = port;
+    }
+
+    /**
+     * Binds the channel and starts the receiving thread.
+     */
+    public synchronized void open(DiscoveryPacketHandler receiver) throws IOException {
+        if (_thread != null) {
+            return;
+        }
+        DatagramChannel channel = DatagramChannel.open(_address instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        try {
+            channel.bind(new InetSocketAddress(_port));
+            _privatePort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            _localAddresses = MulticastTransport.getLocalAddresses();
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        _channel = channel;
+        _receiver = receiver;
+        _thread = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "UnicastTransport");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void send(ByteBuffer data, SocketAddress target, boolean fromPrivatePort) {
+        DatagramChannel channel;
+        synchronized (this) {
+            channel = _channel;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.send(data, target);
+        } catch (ClosedChannelException e) {
+            // closing
+        } catch (IOException ioe) {
+            _errors.increment();
+            System.err.println("Unexpected exception: " + ioe);
+        } catch (RuntimeException e) {
+            _errors.increment();
+            System.err.println("Unexpected exception: " + e);
+        }
+    }
+
+    /**
+     * @return - null; this transport belongs to no group
+     */
+    public InetSocketAddress getGroupAddress() {
+        return null;
+    }
+
+    public boolean isPrivateEndpoint(SocketAddress source) {
+        Set<InetAddress> localAddresses = _localAddresses;
+        if (localAddresses == null || !(source instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetSocketAddress address = (InetSocketAddress) source;
+        return address.getPort() == _privatePort && localAddresses.contains(address.getAddress());
+    }
+
+    public int getPrivatePort() {
+        return _privatePort;
+    }
+
+    /**
+     * Datagrams are written as they are sent.
+     */
+    public void flush(long timeout) {
+    }
+
+    /**
+     * Closes the channel, which ends the receiving thread.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (_thread == null) {
+                return;
+            }
+            thread = _thread;
+            _thread = null;
+            try {
+                _channel.close();
+            } catch (IOException ioe) {
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+            }
+            _channel = null;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receive() {
+        DatagramChannel channel;
+        DiscoveryPacketHandler receiver;
+        synchronized (this) {
+            channel = _channel;
+            receiver = _receiver;
+        }
+        ByteBuffer in = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        while (true) {
+            SocketAddress source;
+            try {
+                in.clear();
+                source = channel.receive(in);
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException ioe) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+                continue;
+            }
+            in.flip();
+            try {
+                receiver.packetReceived(in, source);
+            } catch (RuntimeException e) {
+                _errors.increment();
+                System.err.println("Unexpected exception: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.util.Random;
+import opendropbox.servicediscovery.ServiceConstants;
+
+/**
+ * The default QueryScheduler.  The first query goes out at once, the
+ * second after the initial interval, and every later one after twice
+ * the interval before it until the maximum is reached.  With the
+ * default constants that is 0, 100 ms, 200 ms, 400 ms, ... then one
+ * query every 20 seconds.
+ *
+ * Each delay is spread randomly by up to the jitter fraction either
+ * way so that browsers started together do not query in lock step.
+ *
+ * @author Walter
+ */
+public class BackoffQueryScheduler implements QueryScheduler {
+
+    private final long _initialInterval;
+    private final long _maxInterval;
+    private final double _jitter;
+    private final Random _random;
+
+    public BackoffQueryScheduler() {
+        this(ServiceConstants.BROWSER_INITIAL_QUERY_INTERVAL,
+                ServiceConstants.BROWSER_MAX_QUERY_INTERVAL,
+                ServiceConstants.BROWSER_QUERY_JITTER);
+    }
+
+    /**
+     * @param initialInterval - the delay before the second query, in milliseconds
+     * @param maxInterval - the longest delay between queries, in milliseconds
+     * @param jitter - the fraction, between 0 and 1, by which a delay may vary
+     */
+    public BackoffQueryScheduler(long initialInterval, long maxInterval, double jitter) {
+        _initialInterval = Math.max(1, initialInterval);
+        _maxInterval = Math.max(_initialInterval, maxInterval);
+        _jitter = Math.max(0.0, Math.min(jitter, 1.0));
+        _random = new Random();
+    }
+
+    public long getQueryDelay(int round) {
+        if (round <= 0) {
+            return 0;
+        }
+
+        long interval = _initialInterval;
+        for (int i = 1; i < round && interval < _maxInterval; i++) {
+            interval = interval > _maxInterval / 2 ? _maxInterval : interval * 2;
+        }
+
+        double spread;
+        synchronized (_random) {
+            spread = (_random.nextDouble() * 2.0 - 1.0) * _jitter;
+        }
+        return Math.max(0, Math.round(interval * (1.0 + spread)));
+    }
+}
@@ -5,28 +5,42 @@
 
 package opendropbox.servicediscovery.client;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
-import java.util.Vector;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import opendropbox.servicediscovery.ServiceConstants;
 import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ContentDefinedChunker;
+import opendropbox.transfer.ChainWriter;
+import opendropbox.transfer.ChunkClient;
 
 /**
+ * Lists the chunk servers on the local network, nearest first, and
+ * fetches the given chunks from the nearest one, or writes a file to a
+ * chain of REPLICAS of them.
+ *
+ * Usage: DemoClient [chunk hashes...]
+ *        DemoClient -put file
  *
  * @author Walter
  */
 public class DemoClient {
 
+    public static final int REPLICAS = 3;
+
     public static void main(String[] args) {
-        new DemoClient();
+        new DemoClient(args);
     }
     ServiceBrowser browser;
 
-    public DemoClient() {
+    public DemoClient(String[] hashes) {
 
-        ServiceListManager manager = new ServiceListManager(ServiceConstants.SERVICE_NAME);
+        ServiceListManager manager = new ServiceListManager(ServiceConstants.CHUNK_SERVICE_NAME);
 
         manager.refresh(2000);
 
@@ -35,30 +49,48 @@ public class DemoClient {
         System.out.println("begin");
         manager.refresh(2000, listener);
         System.out.println("end");
-        
-        Vector<ServiceDescription> descriptors = manager.getServiceList();
+
+        PeerSelector selector = manager.getPeerSelector();
+        List<ServiceDescription> descriptors = manager.getRankedServiceList();
 
         if (descriptors.size() > 0) {
-            System.out.println("\n---DEMO SERVERS---");
+            System.out.println("\n---CHUNK SERVERS, NEAREST FIRST---");
             for (ServiceDescription descriptor : descriptors) {
-                System.out.println(descriptor.toString());
+                double rtt = selector.getRtt(PeerSelector.getServiceAddress(descriptor));
+                System.out.println(descriptor.toString() + (rtt < 0 ? " (not measured)" : " (" + rtt + " ms)"));
             }
 
-            System.out.println("\n---FIRST SERVER'S TIME IS---");
-            ServiceDescription descriptor = descriptors.get(0);
+            if (hashes.length == 2 && hashes[0].equals("-put")) {
+                put(new File(hashes[1]), descriptors);
+                System.exit(0);
+            }
+
+            System.out.println("\n---FETCHING FROM THE NEAREST---");
+            InetSocketAddress address = PeerSelector.getServiceAddress(descriptors.get(0));
             try {
-                Socket socket = new Socket(descriptor.getAddress(), descriptor.getPort());
-                InputStreamReader reader = new InputStreamReader(socket.getInputStream());
-                BufferedReader bufferedReader = new BufferedReader(reader);
-                String line = bufferedReader.readLine();
-                System.out.println(line);
-                socket.close();
+                List<ChunkHash> chunks = new ArrayList<ChunkHash>();
+                for (String hash : hashes) {
+                    chunks.add(ChunkHash.fromHex(hash));
+                }
+                ChunkClient client = new ChunkClient(address);
+                long started = System.currentTimeMillis();
+                List<byte[]> data = client.get(chunks);
+                long elapsed = System.currentTimeMillis() - started;
+                client.close();
+
+                long bytes = 0;
+                for (int i = 0; i < chunks.size(); i++) {
+                    byte[] chunk = data.get(i);
+                    System.out.println(chunks.get(i) + ": " + (chunk == null ? "not found" : chunk.length + " bytes"));
+                    bytes += chunk == null ? 0 : chunk.length;
+                }
+                selector.recordTransfer(address, bytes, elapsed);
             } catch (IOException ie) {
                 System.err.println("Exception: " + ie);
                 System.exit(1);
             }
         } else {
-            System.out.println("\n---NO DEMO SERVERS FOUND---");
+            System.out.println("\n---NO CHUNK SERVERS FOUND---");
         }
 
         System.out.println("\nThat's all folks.");
@@ -70,4 +102,28 @@ public class DemoClient {
         System.exit(0);
     }
 
+    private void put(File file, List<ServiceDescription> descriptors) {
+        System.out.println("\n---WRITING " + file + "---");
+        try {
+            List<InetSocketAddress> chain = ChainWriter.getChain(descriptors, REPLICAS);
+            System.out.println("chain: " + chain);
+            ChainWriter writer = new ChainWriter(chain);
+            InputStream in = new FileInputStream(file);
+            List<ChunkHash> chunks;
+            try {
+                chunks = writer.putStream(in, new ContentDefinedChunker());
+            } finally {
+                in.close();
+                writer.close();
+            }
+            for (ChunkHash chunk : chunks) {
+                System.out.println(chunk);
+            }
+            System.out.println(chunks.size() + " chunks, " + writer.getReplicas() + " replicas each, "
+                    + writer.getUnderReplicated().size() + " under-replicated");
+        } catch (IOException ie) {
+            System.err.println("Exception: " + ie);
+            System.exit(1);
+        }
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.nio.ByteBuffer;
+import opendropbox.servicediscovery.DiscoveryMessage;
+
+/**
+ * Supplies a ServiceBrowser with the answers it already holds, so that
+ * its queries can tell responders not to repeat them.
+ *
+ * @author Walter
+ */
+public interface KnownAnswerSource {
+
+    /**
+     * Writes known answers with DiscoveryCodec.encodeKnownAnswer for every
+     * instance that still holds more than half of its lease.
+     *
+     * @param out - the buffer to write into
+     * @param max - the most answers to write
+     * @param now - the current time
+     * @return - the number of answers written
+     */
+    public abstract int writeKnownAnswers(ByteBuffer out, int max, long now);
+
+    /**
+     * Determines whether every answer listed in another browser's query
+     * is also held here, in which case the replies that query draws
+     * tell us everything our own query would.
+     *
+     * @param query - the query, already read
+     * @param now - the current time
+     * @return - true if all of its known answers are held here
+     */
+    public abstract boolean holdsAllKnownAnswers(DiscoveryMessage query, long now);
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryClock;
+
+/**
+ * A hashed timer wheel for service leases.  Each key is kept in the
+ * slot of the tick its deadline falls in, so scheduling and expiring
+ * are O(1) no matter how many leases are outstanding, and a tick only
+ * looks at the keys in one slot.
+ *
+ * Renewing a lease does not touch the wheel.  When a key's slot comes
+ * round, the ExpiryHandler is asked for the key's current deadline and
+ * the key is either expired or moved to the slot of its new deadline.
+ *
+ * @author Walter
+ */
+public class LeaseTimerWheel {
+
+    public static final long DEFAULT_TICK = 250;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Decides what happens to a key whose deadline has come round.
+     */
+    public interface ExpiryHandler {
+
+        /**
+         * @param key - the key whose deadline has passed
+         * @param now - the current time
+         * @return - a later deadline to keep the key, or 0 to expire it
+         */
+        public long leaseDeadlinePassed(String key, long now);
+    }
+
+    private final ScheduledExecutorService _scheduler;
+    private final DiscoveryClock _clock;
+    private final ExpiryHandler _handler;
+    private final long _tick;
+    private final List<Timeout>[] _wheel;
+    private final int _mask;
+    private final Map<String, Timeout> _timeouts;
+    private long _currentTick;
+    private long _startTime;
+    private ScheduledFuture<?> _ticker;
+
+    public LeaseTimerWheel(ScheduledExecutorService scheduler, ExpiryHandler handler) {
+        this(scheduler, DiscoveryClock.SYSTEM, handler);
+    }
+
+    public LeaseTimerWheel(ScheduledExecutorService scheduler, DiscoveryClock clock, ExpiryHandler handler) {
+        this(scheduler, clock, handler, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param scheduler - drives the wheel; only ticks while leases are held
+     * @param clock - the time deadlines are measured against
+     * @param handler - decides whether a key whose deadline passed expires
+     * @param tick - resolution in milliseconds
+     * @param wheelSize - number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LeaseTimerWheel(ScheduledExecutorService scheduler, DiscoveryClock clock, ExpiryHandler handler,
+            long tick, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        _scheduler = scheduler;
+        _clock = clock;
+        _handler = handler;
+        _tick = tick;
+        _wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new ArrayList<Timeout>();
+        }
+        _mask = size - 1;
+        _timeouts = new HashMap<String, Timeout>();
+    }
+
+    /**
+     * Makes sure the key is looked at no later than the deadline.  If the
+     * key is already scheduled for an earlier time nothing changes.
+     *
+     * @param key - the lease key
+     * @param deadline - when the lease runs out
+     */
+    public synchronized void schedule(String key, long deadline) {
+        Timeout existing = _timeouts.get(key);
+        if (existing != null) {
+            if (existing.deadline <= deadline) {
+                return;
+            }
+            _wheel[existing.slot].remove(existing);
+        }
+
+        if (_ticker == null) {
+            _startTime = _clock.currentTimeMillis();
+            _currentTick = 0;
+            _ticker = _scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    tick();
+                }
+            }, _tick, _tick, TimeUnit.MILLISECONDS);
+        }
+
+        long ticks = Math.max(_currentTick + 1, (deadline - _startTime + _tick - 1) / _tick);
+        Timeout timeout = new Timeout(key, deadline, (int) (ticks & _mask), (ticks - _currentTick - 1) / _wheel.length);
+        _wheel[timeout.slot].add(timeout);
+        _timeouts.put(key, timeout);
+    }
+
+    /**
+     * Forgets a key without asking the handler.
+     *
+     * @param key - the lease key
+     */
+    public synchronized void cancel(String key) {
+        Timeout timeout = _timeouts.remove(key);
+        if (timeout != null) {
+            _wheel[timeout.slot].remove(timeout);
+        }
+    }
+
+    /**
+     * @return - the number of keys held
+     */
+    public synchronized int size() {
+        return _timeouts.size();
+    }
+
+    /**
+     * Advances the wheel one slot and settles the keys that are due.
+     * The handler is called without holding the wheel's lock.
+     */
+    protected void tick() {
+        List<Timeout> due = new ArrayList<Timeout>();
+        long now = _clock.currentTimeMillis();
+
+        synchronized (this) {
+            _currentTick++;
+            Iterator<Timeout> it = _wheel[(int) (_currentTick & _mask)].iterator();
+            while (it.hasNext()) {
+                Timeout timeout = it.next();
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    it.remove();
+                    _timeouts.remove(timeout.key);
+                    due.add(timeout);
+                }
+            }
+        }
+
+        for (Timeout timeout : due) {
+            long deadline = _handler.leaseDeadlinePassed(timeout.key, now);
+            if (deadline > 0) {
+                schedule(timeout.key, deadline);
+            }
+        }
+
+        synchronized (this) {
+            if (_timeouts.isEmpty() && _ticker != null) {
+                _ticker.cancel(false);
+                _ticker = null;
+            }
+        }
+    }
+
+    private static class Timeout {
+
+        final String key;
+        final long deadline;
+        final int slot;
+        long rounds;
+
+        Timeout(String key, long deadline, int slot, long rounds) {
+            this.key = key;
+            this.deadline = deadline;
+            this.slot = slot;
+            this.rounds = rounds;
+        }
+    }
+}
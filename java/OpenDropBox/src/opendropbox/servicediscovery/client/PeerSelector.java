@@ -0,0 +1,275 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * Ranks the instances of a service by how quickly they can be expected
+ * to deliver data, so that reads go to the nearest replica.
+ *
+ * Two kinds of measurement are kept per service address, each as an
+ * exponentially weighted moving average.  A ServiceBrowser records the
+ * time from each query to each reply; since known answers keep
+ * responders quiet, a ServiceListManager leaves out of its known answers
+ * any instance that needsProbe() so that it replies now and again.
+ * Responders hold their replies for a random delay, which is the same
+ * for every peer and averages out, so these figures rank peers
+ * correctly but overstate the real round trip.  Transfers record the
+ * round trip of a request on an open connection and the throughput
+ * they saw, and once a peer has been measured that way those figures
+ * take precedence.
+ *
+ * Peers are ranked by the expected time to fetch getTransferSize()
+ * bytes.  Peers never measured come after every measured one, in the
+ * order given.
+ *
+ * @author Walter
+ */
+public class PeerSelector {
+
+    // the weight of each new sample, as for TCP's smoothed round trip
+    public static final double SMOOTHING = 0.125;
+    public static final int DEFAULT_TRANSFER_SIZE = 64 * 1024;
+    // replies later than this were most likely drawn by some other query
+    public static final long MAX_REPLY_RTT = ServiceConstants.RESPONDER_MAX_REPLY_DELAY + 1000;
+    // how often each instance is asked for a reply to time
+    public static final long PROBE_INTERVAL = 60000;
+
+    private final ConcurrentHashMap<InetSocketAddress, PeerStats> _stats;
+    private volatile int _transferSize = DEFAULT_TRANSFER_SIZE;
+
+    public PeerSelector() {
+        _stats = new ConcurrentHashMap<InetSocketAddress, PeerStats>();
+    }
+
+    /**
+     * @param description - a service instance
+     * @return - the address its service is reached at
+     */
+    public static InetSocketAddress getServiceAddress(ServiceDescription description) {
+        return new InetSocketAddress(description.getAddress(), description.getPort());
+    }
+
+    /**
+     * @return - the amount of data a typical read fetches, in bytes
+     */
+    public int getTransferSize() {
+        return _transferSize;
+    }
+
+    /**
+     * Sets the amount of data a typical read fetches.  Small reads favour
+     * the peers with the shortest round trip, large ones the peers with
+     * the most throughput.
+     *
+     * @param transferSize - in bytes
+     */
+    public void setTransferSize(int transferSize) {
+        _transferSize = Math.max(0, transferSize);
+    }
+
+    /**
+     * Records a reply to one of our queries.  Only the first reply from
+     * an instance to each query counts, and the caller should only pass
+     * replies that cannot have been drawn by an earlier query.
+     *
+     * @param description - the instance that replied
+     * @param querySent - when the query was sent
+     * @param now - when the reply arrived
+     */
+    public void recordReply(ServiceDescription description, long querySent, long now) {
+        long rtt = now - querySent;
+        if (querySent <= 0 || rtt < 0 || rtt > MAX_REPLY_RTT) {
+            return;
+        }
+        getStats(getServiceAddress(description)).recordReply(querySent, rtt);
+    }
+
+    /**
+     * @param description - a known instance
+     * @param now - the current time
+     * @return - true if no reply from it has been timed in the last
+     * PROBE_INTERVAL
+     */
+    public boolean needsProbe(ServiceDescription description, long now) {
+        PeerStats stats = _stats.get(getServiceAddress(description));
+        return stats == null || stats.needsProbe(now);
+    }
+
+    /**
+     * Records the round trip of a request on an open connection.
+     *
+     * @param address - the service address of the peer
+     * @param rtt - in milliseconds
+     */
+    public void recordRtt(InetSocketAddress address, long rtt) {
+        getStats(address).recordRtt(Math.max(0, rtt));
+    }
+
+    /**
+     * Records data received from a peer.
+     *
+     * @param address - the service address of the peer
+     * @param bytes - the amount received
+     * @param millis - how long it took
+     */
+    public void recordTransfer(InetSocketAddress address, long bytes, long millis) {
+        if (bytes > 0) {
+            getStats(address).recordThroughput((double) bytes / Math.max(1, millis));
+        }
+    }
+
+    /**
+     * Forgets a peer, for example when it has departed.
+     *
+     * @param address - the service address of the peer
+     */
+    public void remove(InetSocketAddress address) {
+        _stats.remove(address);
+    }
+
+    /**
+     * @param address - the service address of a peer
+     * @return - its smoothed round trip in milliseconds, or -1 if unknown
+     */
+    public double getRtt(InetSocketAddress address) {
+        PeerStats stats = _stats.get(address);
+        return stats == null ? -1 : stats.getRtt();
+    }
+
+    /**
+     * @param address - the service address of a peer
+     * @return - its smoothed throughput in bytes per millisecond, or -1
+     * if unknown
+     */
+    public double getThroughput(InetSocketAddress address) {
+        PeerStats stats = _stats.get(address);
+        return stats == null ? -1 : stats.getThroughput();
+    }
+
+    /**
+     * @param address - the service address of a peer
+     * @return - the expected time to fetch getTransferSize() bytes from
+     * it in milliseconds, or Double.MAX_VALUE if it has not been measured
+     */
+    public double getExpectedTime(InetSocketAddress address) {
+        PeerStats stats = _stats.get(address);
+        return stats == null ? Double.MAX_VALUE : stats.getExpectedTime(_transferSize);
+    }
+
+    /**
+     * Sorts instances from the nearest to the furthest.
+     *
+     * @param descriptions - the instances to choose from
+     * @return - a new list, nearest first
+     */
+    public List<ServiceDescription> rank(Collection<ServiceDescription> descriptions) {
+        final List<ServiceDescription> ranked = new ArrayList<ServiceDescription>(descriptions);
+        final double[] times = new double[ranked.size()];
+        List<Integer> order = new ArrayList<Integer>(ranked.size());
+        for (int i = 0; i < times.length; i++) {
+            times[i] = getExpectedTime(getServiceAddress(ranked.get(i)));
+            order.add(i);
+        }
+
+        // sort indexes, since the figures can change while we sort
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(times[a], times[b]);
+            }
+        });
+        List<ServiceDescription> result = new ArrayList<ServiceDescription>(times.length);
+        for (int i : order) {
+            result.add(ranked.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @param descriptions - the instances to choose from
+     * @return - the nearest, or null if there are none
+     */
+    public ServiceDescription select(Collection<ServiceDescription> descriptions) {
+        ServiceDescription best = null;
+        double bestTime = 0;
+        for (ServiceDescription description : descriptions) {
+            double time = getExpectedTime(getServiceAddress(description));
+            if (best == null || time < bestTime) {
+                best = description;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    private PeerStats getStats(InetSocketAddress address) {
+        PeerStats stats = _stats.get(address);
+        if (stats == null) {
+            PeerStats created = new PeerStats();
+            stats = _stats.putIfAbsent(address, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private static class PeerStats {
+
+        private double _replyRtt = -1;
+        private double _connectionRtt = -1;
+        private double _throughput = -1;
+        private long _lastQuery;
+
+        synchronized void recordReply(long querySent, long rtt) {
+            if (querySent != _lastQuery) {
+                _lastQuery = querySent;
+                _replyRtt = smooth(_replyRtt, rtt);
+            }
+        }
+
+        synchronized boolean needsProbe(long now) {
+            return _lastQuery == 0 || now - _lastQuery > PROBE_INTERVAL;
+        }
+
+        synchronized void recordRtt(long rtt) {
+            _connectionRtt = smooth(_connectionRtt, rtt);
+        }
+
+        synchronized void recordThroughput(double bytesPerMilli) {
+            _throughput = smooth(_throughput, bytesPerMilli);
+        }
+
+        synchronized double getRtt() {
+            return _connectionRtt >= 0 ? _connectionRtt : _replyRtt;
+        }
+
+        synchronized double getThroughput() {
+            return _throughput;
+        }
+
+        synchronized double getExpectedTime(int transferSize) {
+            double rtt = getRtt();
+            if (rtt < 0) {
+                return Double.MAX_VALUE;
+            }
+            return _throughput > 0 ? rtt + transferSize / _throughput : rtt;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+/**
+ * Decides when a ServiceBrowser sends its queries.  The browser asks
+ * for the delay before each query in turn, counting from the start of
+ * the lookup, so implementations can front-load queries while the list
+ * is still filling and back off once it has settled.
+ *
+ * @author Walter
+ */
+public interface QueryScheduler {
+
+    /**
+     * @param round - how many queries this lookup has already sent or
+     * skipped; 0 for the first one
+     * @return - the delay in milliseconds before the next query, or a
+     * negative value to end the lookup
+     */
+    public abstract long getQueryDelay(int round);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * The changes a ServiceRegistry went through between two calls to
+ * ServiceRegistry.drainDelta().  Changes to the same instance are
+ * coalesced, so an instance that joined and departed again in between
+ * does not appear at all.
+ *
+ * @author Walter
+ */
+public class RegistryDelta {
+
+    private final List<ServiceDescription> _joined = new ArrayList<ServiceDescription>();
+    private final List<ServiceDescription> _departed = new ArrayList<ServiceDescription>();
+    private final List<ServiceDescription> _updated = new ArrayList<ServiceDescription>();
+
+    void addJoined(ServiceDescription description) {
+        _joined.add(description);
+    }
+
+    void addDeparted(ServiceDescription description) {
+        _departed.add(description);
+    }
+
+    void addUpdated(ServiceDescription description) {
+        _updated.add(description);
+    }
+
+    /**
+     * @return - instances that were not known before
+     */
+    public List<ServiceDescription> getJoined() {
+        return Collections.unmodifiableList(_joined);
+    }
+
+    /**
+     * @return - instances that are no longer known, as last seen
+     */
+    public List<ServiceDescription> getDeparted() {
+        return Collections.unmodifiableList(_departed);
+    }
+
+    /**
+     * @return - known instances whose address, port or attributes changed,
+     * as now seen
+     */
+    public List<ServiceDescription> getUpdated() {
+        return Collections.unmodifiableList(_updated);
+    }
+
+    /**
+     * @return - true if nothing changed
+     */
+    public boolean isEmpty() {
+        return _joined.isEmpty() && _departed.isEmpty() && _updated.isEmpty();
+    }
+
+    public String toString() {
+        return "joined=" + _joined + " departed=" + _departed + " updated=" + _updated;
+    }
+}
@@ -4,64 +4,68 @@
  */
 package opendropbox.servicediscovery.client;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
+import java.net.SocketAddress;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
-import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.DiscoveryMessage;
+import opendropbox.servicediscovery.DiscoveryPacketHandler;
+import opendropbox.servicediscovery.EncodedServiceName;
 import opendropbox.servicediscovery.ServiceConstants;
 import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+import opendropbox.servicediscovery.metrics.LatencyHistogram;
 
 /**
  *
  * @author Walter
  */
-public class ServiceBrowser implements Runnable {
+public class ServiceBrowser implements DiscoveryPacketHandler {
 
-    protected static InetAddress _multicastAddressGroup;
-    protected static int _multicastPort;
     protected String _serviceName;
-    protected boolean _shouldRun = true;
-    protected MulticastSocket _socket;
-    protected DatagramPacket _queuedPacket;
-    protected DatagramPacket _receivedPacket;
+    protected EncodedServiceName _encodedServiceName;
+    protected byte[] _queryPacket;
+    protected byte[] _unicastQueryPacket;
+    protected DiscoveryEngine _engine;
+    protected ByteBuffer _receivedData;
+    protected final DiscoveryMessage _message = new DiscoveryMessage();
     protected Vector<ServiceBrowserListener> _listeners;
-    protected Thread _thread;
-    protected Timer _timer;
-
-    static {
-        try {
-            _multicastAddressGroup = InetAddress.getByName(ServiceConstants.MULTICAST_ADDRESS_GROUP);
-            _multicastPort = ServiceConstants.MULTICAST_PORT;
-        } catch (UnknownHostException uhe) {
-            System.err.println("Unexpected exception: " + uhe);
-            uhe.printStackTrace();
-            System.exit(1);
-        }
-    }
+    protected boolean _listening;
+    protected QueryScheduler _queryScheduler;
+    protected ScheduledFuture<?> _lookup;
+    protected int _queryRound;
+    protected int _lookupGeneration;
+    protected boolean _unicastReplies = ServiceConstants.BROWSER_UNICAST_REPLIES;
+    protected KnownAnswerSource _knownAnswerSource;
+    protected PeerSelector _peerSelector;
+    protected volatile long _lastForeignQuery;
+    protected volatile long _lastQueryRound;
+    protected volatile long _lastQuerySent;
+    protected volatile long _previousQuerySent;
+    protected volatile boolean _awaitingFirstReply;
+    private final LongAdder _queriesSent;
+    private final LongAdder _queriesSuppressed;
+    private final LatencyHistogram _firstReplyLatency;
 
     public ServiceBrowser() {
+        this(DiscoveryEngine.getInstance());
+    }
 
-        try {
-            _socket = new MulticastSocket(_multicastPort);
-            _socket.joinGroup(_multicastAddressGroup);
-            _socket.setSoTimeout(ServiceConstants.BROWSER_SOCKET_TIMEOUT);
-
-        } catch (IOException ioe) {
-            System.err.println("Unexpected exception: " + ioe);
-            ioe.printStackTrace();
-            System.exit(1);
-        }
-
-
+    public ServiceBrowser(DiscoveryEngine engine) {
+        _engine = engine;
         _listeners = new Vector<ServiceBrowserListener>();
+        _queryScheduler = new BackoffQueryScheduler();
+
+        DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        _queriesSent = metrics.getCounter(DiscoveryMetrics.QUERIES_SENT);
+        _queriesSuppressed = metrics.getCounter(DiscoveryMetrics.QUERIES_SUPPRESSED);
+        _firstReplyLatency = metrics.getHistogram(DiscoveryMetrics.FIRST_REPLY_LATENCY);
     }
 
     public ServiceBrowser(ServiceBrowserListener listener, String serviceName) {
@@ -70,119 +74,194 @@ public class ServiceBrowser implements Runnable {
         this.setServiceName(serviceName);
     }
 
-    public void run() {
-
-
-        while (_shouldRun) {
-
-
-            /* listen (briefly) for a reply packet */
-            try {
-                byte[] buf = new byte[ServiceConstants.DATAGRAM_LENGTH];
-                _receivedPacket = new DatagramPacket(buf, buf.length);
-                _socket.receive(_receivedPacket); // note timeout in effect
-
-
-                if (isReplyPacket()) {
-
-                    ServiceDescription descriptor;
-
-                    /* notes on behavior of descriptors.indexOf(...)
-                     * ServiceDescriptor objects check for 'equals()'
-                     * based only on the instanceName field. An update
-                     * to a descriptor implies we should replace an
-                     * entry if we already have one. (Instead of bothing
-                     * with the details to determine new vs. update, just
-                     * quickly replace any current descriptor.)
-                     */
-
-                    descriptor = getReplyDescriptor();
-                    if (descriptor != null) {
-                        notifyReply(descriptor);
-                        _receivedPacket = null;
+    /**
+     * Called by the DiscoveryEngine for every datagram seen on the group.
+     *
+     * @param data - the received payload
+     * @param source - the sender of the payload
+     */
+    public void packetReceived(ByteBuffer data, SocketAddress source) {
+
+        _receivedData = data;
+
+        if (isReplyPacket()) {
+
+            ServiceDescription descriptor;
+
+            /* notes on behavior of descriptors.indexOf(...)
+             * ServiceDescriptor objects check for 'equals()'
+             * based only on the instanceName field. An update
+             * to a descriptor implies we should replace an
+             * entry if we already have one. (Instead of bothing
+             * with the details to determine new vs. update, just
+             * quickly replace any current descriptor.)
+             */
+
+            boolean goodbye = _message.getType() == DiscoveryCodec.TYPE_GOODBYE;
+            boolean reply = _message.getType() == DiscoveryCodec.TYPE_REPLY;
+            long now = _engine.currentTimeMillis();
+            if (_awaitingFirstReply && reply) {
+                _awaitingFirstReply = false;
+                _firstReplyLatency.record(now - _lastQuerySent);
+            }
+            // a reply can only be timed against our last query if no
+            // earlier query, ours or another browser's, could have drawn it
+            PeerSelector selector = _peerSelector;
+            boolean timed = reply && selector != null && _lastForeignQuery < _lastQuerySent
+                    && _lastQuerySent - _previousQuerySent > PeerSelector.MAX_REPLY_RTT;
+            while ((descriptor = getReplyDescriptor()) != null) {
+                if (goodbye || _message.getTtl() == 0) {
+                    notifyGoodbye(descriptor);
+                } else {
+                    if (timed) {
+                        selector.recordReply(descriptor, _lastQuerySent, now);
                     }
-
+                    notifyReply(descriptor, _message.getTtl());
                 }
-
-            } catch (SocketTimeoutException ste) {
-                /* ignored; this exception is by design to
-                 * break the blocking from socket.receive */
-            } catch (IOException ioe) {
-                System.err.println("Unexpected exception: " + ioe);
-                ioe.printStackTrace();
-                /* resume operation */
             }
-
-            sendQueuedPacket();
-
+        } else if (isForeignQueryPacket(source)) {
+
+            // another browser asked the same question, so ours can wait a
+            // round unless its known answers keep quiet something we do not
+            // hold ourselves; even a reply it asked for alone is multicast
+            // while the responder's last multicast reply is a quarter ttl old
+            long now = _engine.currentTimeMillis();
+            if (_knownAnswerSource == null || _knownAnswerSource.holdsAllKnownAnswers(_message, now)) {
+                _lastForeignQuery = now;
+            }
         }
-    }
 
-    protected void sendQueuedPacket() {
-        if (_queuedPacket == null) {
-            return;
-        }
-        try {
-            _socket.send(_queuedPacket);
-            _queuedPacket = null;
-        } catch (IOException ioe) {
-            System.err.println("Unexpected exception: " + ioe);
-            ioe.printStackTrace();
-            /* resume operation */
-        }
+        _receivedData = null;
     }
 
+    /**
+     * Parses the header of the received packet and checks that it is
+     * a reply, announcement or goodbye for the service we are browsing.
+     *
+     * @return - true if it is, false otherwise
+     */
     protected boolean isReplyPacket() {
-        if (_receivedPacket == null) {
+        if (_receivedData == null || _encodedServiceName == null) {
             return false;
         }
 
-        String dataStr = new String(_receivedPacket.getData());
-        int pos = dataStr.indexOf((char) 0);
-        if (pos > -1) {
-            dataStr = dataStr.substring(0, pos);
+        if (!_message.read(_receivedData)) {
+            return false;
         }
+        byte type = _message.getType();
+        return (type == DiscoveryCodec.TYPE_REPLY || type == DiscoveryCodec.TYPE_ANNOUNCE
+                || type == DiscoveryCodec.TYPE_GOODBYE)
+                && _message.isForService(_encodedServiceName);
+    }
 
-        /* REQUIRED TOKEN TO START */
-        if (dataStr.startsWith("SERVICE REPLY " + getEncodedServiceName())) {
-            return true;
+    /**
+     * Checks whether the received packet is a query for our service that
+     * some other browser sent.  Our own queries loop back to us and are
+     * recognised by coming from this engine's private port; another
+     * browser's may have the very same bytes.
+     *
+     * @param source - the sender of the packet
+     * @return - true if it is, false otherwise
+     */
+    protected boolean isForeignQueryPacket(SocketAddress source) {
+        if (_receivedData == null || _encodedServiceName == null) {
+            return false;
         }
 
-        return false;
+        if (!_message.read(_receivedData)
+                || _message.getType() != DiscoveryCodec.TYPE_QUERY
+                || _message.isLegacy()
+                || !_message.isForService(_encodedServiceName)) {
+            return false;
+        }
+        return !_engine.isPrivatePort(source);
     }
 
+    /**
+     * Returns the next description carried by the reply most recently
+     * accepted by isReplyPacket().
+     *
+     * @return - the description, or null once every record has been read
+     */
     protected ServiceDescription getReplyDescriptor() {
-        String dataStr = new String(_receivedPacket.getData());
-        int pos = dataStr.indexOf((char) 0);
-        if (pos > -1) {
-            dataStr = dataStr.substring(0, pos);
+        while (_message.nextRecord()) {
+            ServiceDescription descriptor = _message.toServiceDescription();
+            if (descriptor != null) {
+                return descriptor;
+            }
         }
+        return null;
+    }
 
-        // try to get this substring -- if it fails, return null
-        try {
-            StringTokenizer tokens = new StringTokenizer(dataStr.substring(15 + getEncodedServiceName().length()));
-
-            if (tokens.countTokens() == 3) {
-                return ServiceDescription.parse(tokens.nextToken(),
-                        tokens.nextToken(), tokens.nextToken());
-            } else {
-                return null;
+    /**
+     * Returns the query packet for this browser's service.  The header is
+     * encoded once per service name; if a KnownAnswerSource is set, the
+     * answers it already holds are appended so that their responders stay
+     * silent.  When legacy queries are enabled the text query is sent
+     * alongside it.
+     *
+     * @param unicast - true to ask for replies at our private port
+     * @return - the packet to send
+     */
+    protected ByteBuffer getQueryPacket(boolean unicast) {
+        byte[] header = unicast ? _unicastQueryPacket : _queryPacket;
+        byte[] query = header;
+
+        if (_knownAnswerSource != null) {
+            ByteBuffer buf = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+            buf.put(header);
+            int countPosition = buf.position();
+            buf.put((byte) 0);
+            int max = Math.min(DiscoveryCodec.MAX_RECORDS, buf.remaining() / DiscoveryCodec.KNOWN_ANSWER_LENGTH);
+            int count = _knownAnswerSource.writeKnownAnswers(buf, max, _engine.currentTimeMillis());
+            if (count > 0) {
+                buf.put(countPosition, (byte) count);
+                query = new byte[buf.position()];
+                buf.flip();
+                buf.get(query);
             }
-        } catch (IndexOutOfBoundsException e) {
-            return null;
         }
+
+        return ByteBuffer.wrap(query);
+    }
+
+    /**
+     * Sets where known answers for outgoing queries come from.
+     *
+     * @param source - the source, or null to send bare queries
+     */
+    public void setKnownAnswerSource(KnownAnswerSource source) {
+        _knownAnswerSource = source;
+    }
+
+    /**
+     * Sets where the time from each query to each reply is recorded.
+     *
+     * @param selector - the selector, or null to record nothing
+     */
+    public void setPeerSelector(PeerSelector selector) {
+        _peerSelector = selector;
     }
 
-    protected DatagramPacket getQueryPacket() {
+    /**
+     * @return - the selector replies are timed into, or null
+     */
+    public PeerSelector getPeerSelector() {
+        return _peerSelector;
+    }
+
+    /**
+     * @return - the legacy text query for this browser's service
+     */
+    protected ByteBuffer getLegacyQueryPacket() {
         StringBuffer buf = new StringBuffer();
         buf.append("SERVICE QUERY " + getEncodedServiceName());
 
-        byte[] bytes = buf.toString().getBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
-        packet.setAddress(_multicastAddressGroup);
-        packet.setPort(_multicastPort);
+        return ByteBuffer.wrap(buf.toString().getBytes());
+    }
 
-        return packet;
+    public DiscoveryEngine getEngine() {
+        return _engine;
     }
 
     public String getServiceName() {
@@ -199,6 +278,43 @@ public class ServiceBrowser implements Runnable {
 
     public void setServiceName(String serviceName) {
         this._serviceName = serviceName;
+        this._encodedServiceName = new EncodedServiceName(serviceName);
+        encodeQueryPacket();
+    }
+
+    /**
+     * Chooses whether responders answer the first query of each lookup
+     * to this browser alone or to the whole group.  A unicast reply
+     * spares every other node on the segment from receiving it; later
+     * queries are always answered to the group, so that other browsers
+     * can hold back their own.  A responder that has not multicast for a
+     * while answers even the first query to the group.
+     *
+     * @param unicastReplies - true to ask for replies at our private port
+     */
+    public void setUnicastReplies(boolean unicastReplies) {
+        this._unicastReplies = unicastReplies;
+    }
+
+    /**
+     * @return - true if the first query of a lookup asks for unicast replies
+     */
+    public boolean isUnicastReplies() {
+        return _unicastReplies;
+    }
+
+    private void encodeQueryPacket() {
+        _queryPacket = encodeQueryPacket(0);
+        _unicastQueryPacket = encodeQueryPacket(DiscoveryCodec.FLAG_UNICAST_REPLY);
+    }
+
+    private byte[] encodeQueryPacket(int flags) {
+        ByteBuffer query = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeQuery(query, _encodedServiceName, flags);
+        byte[] packet = new byte[query.position()];
+        query.flip();
+        query.get(packet);
+        return packet;
     }
 
     public void addServiceBrowserListener(ServiceBrowserListener l) {
@@ -211,57 +327,157 @@ public class ServiceBrowser implements Runnable {
         _listeners.remove(l);
     }
 
-    public void startLookup() {
-        if (_timer == null) {
-            _timer = new Timer("QueryTimer");
-            _timer.scheduleAtFixedRate(new QueryTimerTask(), 0L, ServiceConstants.BROWSER_QUERY_INTERVAL);
+    /**
+     * Sets the policy deciding when queries are sent.  Takes effect the
+     * next time a lookup is started.
+     *
+     * @param scheduler - the new query scheduler
+     */
+    public void setQueryScheduler(QueryScheduler scheduler) {
+        _queryScheduler = scheduler;
+    }
+
+    /**
+     * Returns the policy deciding when queries are sent.
+     *
+     * @return - the query scheduler
+     */
+    public QueryScheduler getQueryScheduler() {
+        return _queryScheduler;
+    }
+
+    /**
+     * Starts sending queries on the engine's shared scheduler at the times
+     * the QueryScheduler asks for, until it ends the lookup or stopLookup()
+     * is called.
+     */
+    public synchronized void startLookup() {
+        if (_lookup == null) {
+            _queryRound = 0;
+            _lookupGeneration++;
+            scheduleQuery();
         }
     }
 
+    /**
+     * Sends one query straight away without starting a lookup.
+     */
     public void startSingleLookup() {
-        if (_timer == null) {
-            _timer = new Timer("QueryTimer");
-            _timer.schedule(new QueryTimerTask(), 0L);
-            _timer = null;
+        _engine.getScheduler().execute(new Runnable() {
+            public void run() {
+                sendQuery(0);
+            }
+        });
+    }
+
+    public synchronized void stopLookup() {
+        if (_lookup != null) {
+            _lookup.cancel(false);
+            _lookup = null;
         }
     }
 
-    public void stopLookup() {
-        if (_timer != null) {
-            _timer.cancel();
-            _timer = null;
+    /**
+     * Schedules the next round of the running lookup.  Must be called
+     * while holding this browser's lock.
+     */
+    private void scheduleQuery() {
+        long delay = _queryScheduler.getQueryDelay(_queryRound);
+        if (delay < 0) {
+            _lookup = null;
+            return;
+        }
+        _lookup = _engine.getScheduler().schedule(new QueryTask(_lookupGeneration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a query unless another browser's query has drawn the same
+     * replies since the previous round, sent or skipped.
+     *
+     * @param round - the round of the lookup, 0 for the first query
+     */
+    protected void sendQuery(int round) {
+        long now = _engine.currentTimeMillis();
+        boolean suppressed = _lastForeignQuery > _lastQueryRound;
+        _lastQueryRound = now;
+        if (suppressed) {
+            _queriesSuppressed.increment();
+            return;
+        }
+
+        ByteBuffer query = getQueryPacket(round == 0 && _unicastReplies);
+        _previousQuerySent = _lastQuerySent;
+        _lastQuerySent = now;
+        // a query listing known answers may rightly draw no reply at all,
+        // so only time the ones that every responder must answer
+        _awaitingFirstReply = query.remaining() == _queryPacket.length;
+        _queriesSent.increment();
+        // sent from the private port so that it can be told from other
+        // browsers' queries when it loops back, and so that unicast
+        // replies reach this engine alone.  the text copy comes from the
+        // same port, so responders that saw the binary one can ignore it
+        _engine.sendFromPrivatePort(query);
+        if (ServiceConstants.SEND_LEGACY_QUERIES) {
+            _engine.sendFromPrivatePort(getLegacyQueryPacket());
         }
     }
 
     protected void notifyReply(ServiceDescription descriptor) {
+        notifyReply(descriptor, ServiceConstants.DEFAULT_SERVICE_TTL);
+    }
+
+    protected void notifyReply(ServiceDescription descriptor, int ttl) {
         for (ServiceBrowserListener l : _listeners) {
-            l.serviceEncountered(descriptor);
+            if (l instanceof ServiceLeaseListener) {
+                ((ServiceLeaseListener) l).serviceRenewed(descriptor, ttl);
+            } else {
+                l.serviceEncountered(descriptor);
+            }
+        }
+    }
+
+    protected void notifyGoodbye(ServiceDescription descriptor) {
+        for (ServiceBrowserListener l : _listeners) {
+            if (l instanceof ServiceLeaseListener) {
+                ((ServiceLeaseListener) l).serviceGoodbye(descriptor);
+            }
         }
     }
 
     public void startListener() {
-        if (_thread == null) {
-            _shouldRun = true;
-            _thread = new Thread(this, "ServiceBrowser");
-            _thread.start();
+        if (!_listening) {
+            _listening = true;
+            _engine.addPacketHandler(this);
         }
     }
 
     public void stopListener() {
-        if (_thread != null) {
-            _shouldRun = false;
-            _thread.interrupt();
-            _thread = null;
+        if (_listening) {
+            _listening = false;
+            _engine.removePacketHandler(this);
         }
     }
 
-    private class QueryTimerTask extends TimerTask {
+    private class QueryTask implements Runnable {
+
+        private final int _generation;
+
+        QueryTask(int generation) {
+            _generation = generation;
+        }
 
         public void run() {
-            DatagramPacket packet = getQueryPacket();
-            if (packet != null) {
-                _queuedPacket = packet;
+            int round;
+            synchronized (ServiceBrowser.this) {
+                // a lookup stopped and started again has its own task
+                if (_lookup == null || _generation != _lookupGeneration) {
+                    return;
+                }
+                // a skipped query still counts as a round
+                round = _queryRound++;
+                scheduleQuery();
             }
+            sendQuery(round);
         }
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * A ServiceBrowserListener that also wants to know how long each
+ * description stays valid and when a service says goodbye.  Listeners
+ * that only implement ServiceBrowserListener keep receiving
+ * serviceEncountered for replies and announcements.
+ *
+ * @author Walter
+ */
+public interface ServiceLeaseListener extends ServiceBrowserListener {
+
+    /**
+     * Called for every reply or announcement instead of
+     * serviceEncountered.
+     *
+     * @param description - the encountered ServiceDescription
+     * @param ttl - the lease in seconds; the service should be
+     * considered gone if nothing is heard from it for this long
+     */
+    public abstract void serviceRenewed(ServiceDescription description, int ttl);
+
+    /**
+     * Called when a service announces that it is shutting down.
+     *
+     * @param description - the departing ServiceDescription
+     */
+    public abstract void serviceGoodbye(ServiceDescription description);
+}
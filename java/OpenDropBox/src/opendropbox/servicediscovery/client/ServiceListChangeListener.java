@@ -0,0 +1,24 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+/**
+ *
+ * @author Walter
+ */
+public interface ServiceListChangeListener {
+
+    /**
+     * This method will be called whenever a service joins, changes or
+     * leaves the list kept by a ServiceListManager.  Call
+     * manager.getRegistry().trackChanges() once, then drainDelta() here
+     * to find out what changed.  It is
+     * called on the discovery threads, so it must return quickly.
+     *
+     * @param manager - the manager whose list changed
+     */
+    public abstract void serviceListChanged(ServiceListManager manager);
+}
@@ -5,81 +5,164 @@
 
 package opendropbox.servicediscovery.client;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.DiscoveryMessage;
+import opendropbox.servicediscovery.ServiceConstants;
 import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
 
 /**
+ * Keeps a live list of the services answering for one service name.
+ * Once started, the browser runs continuously and the ServiceRegistry
+ * is updated as each reply arrives.  Lookups go straight to the
+ * registry's hash indexes and need no lock.
+ *
+ * Every description is held for the lease its responder advertised.
+ * A LeaseTimerWheel removes it once the lease runs out without a
+ * renewal, and a goodbye removes it at once; either way registered
+ * ServiceListChangeListeners hear about it immediately.
+ *
+ * Joins, departures, the number of services held and the time each
+ * blocking refresh took are recorded in the shared DiscoveryMetrics.
+ * Replies are timed into a PeerSelector, which getRankedServiceList()
+ * uses to put the nearest services first.
  *
  * @author Walter
  */
-public class ServiceListManager implements ServiceBrowserListener {
+public class ServiceListManager implements ServiceLeaseListener, KnownAnswerSource,
+        LeaseTimerWheel.ExpiryHandler {
 
-    private Vector<ServiceDescription> _serviceListWrite;
-    private Vector<ServiceDescription> _serviceListRead;
+    private final ServiceRegistry _registry;
     private final Object _serviceListLock;
+    private final LeaseTimerWheel _leases;
+    private final PeerSelector _peerSelector;
+    private final CopyOnWriteArrayList<ServiceListChangeListener> _changeListeners;
     private ServiceBrowser _serviceBrowser;
+    private boolean _running;
+    private volatile long _lastChange;
+    private final LongAdder _joined;
+    private final LongAdder _departed;
+    private final LongAdder _registrySize;
 
     public ServiceListManager(String serviceName) {
-        _serviceBrowser = new ServiceBrowser(this, serviceName);
+        this(serviceName, DiscoveryEngine.getInstance());
+    }
+
+    /**
+     * @param serviceName - the service to keep a list of
+     * @param engine - the engine to browse through
+     */
+    public ServiceListManager(String serviceName, DiscoveryEngine engine) {
         _serviceListLock = new Object();
-        _serviceListWrite = new Vector<ServiceDescription>();
-        _serviceListRead = new Vector<ServiceDescription>();
+        _registry = new ServiceRegistry();
+        _changeListeners = new CopyOnWriteArrayList<ServiceListChangeListener>();
+        _serviceBrowser = new ServiceBrowser(engine);
+        _serviceBrowser.addServiceBrowserListener(this);
+        _serviceBrowser.setServiceName(serviceName);
+        _serviceBrowser.setKnownAnswerSource(this);
+        _peerSelector = new PeerSelector();
+        _serviceBrowser.setPeerSelector(_peerSelector);
+        _leases = new LeaseTimerWheel(engine.getScheduler(), engine.getClock(), this);
+
+        DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        _joined = metrics.getCounter(DiscoveryMetrics.SERVICES_JOINED);
+        _departed = metrics.getCounter(DiscoveryMetrics.SERVICES_DEPARTED);
+        _registrySize = metrics.getCounter(DiscoveryMetrics.REGISTRY_SIZE);
     }
 
     /**
-     * Performs a refresh of the service list.  This
-     * method blocks.  If you would prefer a non-blocking
-     * method, please see:
+     * Registers a listener to be told whenever the list changes.
      *
-     * ServiceListManager.refresh(long duration, boolean blocking)
-     * 
-     * @param duration
-     * @return true if the list has changed, false otherwise
+     * @param listener - the listener to add
      */
-    public boolean refresh(long duration) {
+    public void addServiceListChangeListener(ServiceListChangeListener listener) {
+        _changeListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * @param listener - the listener to remove
+     */
+    public void removeServiceListChangeListener(ServiceListChangeListener listener) {
+        _changeListeners.remove(listener);
+    }
 
-        // synchronize on the service list to ensure we only
-        // run one refresh at a time
+    /**
+     * Starts browsing.  The list is maintained from then on until
+     * stop() is called.  Calling start() again has no effect.
+     */
+    public void start() {
         synchronized (_serviceListLock) {
-            
-            // clear the service list
-            _serviceListWrite.clear();
-
-            // start the listener and the lookup
-            _serviceBrowser.startListener();
-            _serviceBrowser.startLookup();
-
-            // sleep for the specified amount of time to allow the lookup
-            // to run
-            try {
-                Thread.sleep(duration);
-            } catch (InterruptedException e) {
+            if (!_running) {
+                _running = true;
+                _serviceBrowser.startListener();
+                _serviceBrowser.startLookup();
             }
+        }
+    }
 
-            // stop in the reverse order
-            _serviceBrowser.stopLookup();
-            _serviceBrowser.stopListener();
+    /**
+     * Stops browsing.  The last list stays readable.
+     */
+    public void stop() {
+        synchronized (_serviceListLock) {
+            if (_running) {
+                _running = false;
+                // stop in the reverse order
+                _serviceBrowser.stopLookup();
+                _serviceBrowser.stopListener();
+            }
+        }
+    }
+
+    /**
+     * Browses for the given duration.  Services whose lease runs out in
+     * the meantime are dropped; ones that stay silent because our query
+     * already listed them as known answers are kept.  This method blocks,
+     * but the list itself stays readable while it runs and is not cleared.
+     * If you would prefer a non-blocking method, please see:
+     *
+     * ServiceListManager.refresh(long duration, ServiceListManagerRefreshListener listener)
+     *
+     * @param duration
+     * @return true if the list has changed, false otherwise
+     */
+    public boolean refresh(long duration) {
 
-            boolean changed = true;
+        long before = _registry.getGeneration();
+        long started = now();
 
-            // check to see if the list has changed
-            if (_serviceListWrite.containsAll(_serviceListRead) && _serviceListWrite.size() == _serviceListRead.size()) {
-                changed = false;
-            }
+        start();
 
-            // create a copy of this service list so that we can return the
-            // list during a refresh
-            _serviceListRead = new Vector<ServiceDescription>(_serviceListWrite);
+        // sleep for the specified amount of time to allow the lookup
+        // to run; replies are applied as they arrive
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-            // finally, return whether or not there has been a change
-            return changed;
+        // record how long the list actually took to settle, next to how
+        // long we waited for it
+        boolean changed = before != _registry.getGeneration();
+        DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        metrics.getHistogram(DiscoveryMetrics.REFRESH_DURATION).record(now() - started);
+        if (changed) {
+            metrics.getHistogram(DiscoveryMetrics.REFRESH_SETTLED).record(_lastChange - started);
         }
+
+        // finally, return whether or not there has been a change
+        return changed;
     }
 
     /**
      * Refreshes the list in a non-blocking manner by returning
      * the list and boolean to the ServiceListManagerResfreshListener.
-     * 
+     *
      * @param duration - the amount of time to spend browsing
      * @param listener - the listener to which return values will be sent back
      */
@@ -95,7 +178,7 @@ public class ServiceListManager implements ServiceBrowserListener {
         Thread refreshThread = new Thread(new Runnable() {
             public void run() {
                 boolean changed = refresh(finalDuration);
-                finalListener.refreshCallback(changed, _serviceListRead);
+                finalListener.refreshCallback(changed, getServiceList());
             }
         });
 
@@ -103,6 +186,54 @@ public class ServiceListManager implements ServiceBrowserListener {
         refreshThread.start();
     }
 
+    /**
+     * Drops every service that has not answered within the given time.
+     *
+     * @param maxAge - in milliseconds
+     * @return true if the list has changed, false otherwise
+     */
+    public boolean expire(long maxAge) {
+        int expired = _registry.expire(now() - maxAge);
+        if (expired > 0) {
+            departed(expired);
+            changed();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits until an instance with the given name has answered, starting
+     * the browser if necessary.  Returns as soon as the first matching
+     * reply arrives rather than after a fixed browse period.
+     *
+     * @param instanceName - the name of the instance
+     * @param timeout - the longest time to wait, in milliseconds
+     * @return the instance's description, or null if it was not seen in time
+     */
+    public ServiceDescription awaitInstance(String instanceName, long timeout) {
+
+        start();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (_serviceListLock) {
+            ServiceDescription description;
+            while ((description = _registry.get(instanceName)) == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    _serviceListLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return description;
+        }
+    }
+
     /**
      * Determines if this ServiceListManager knows of an instance
      * running on the local network.  Useful for determining whether
@@ -110,22 +241,15 @@ public class ServiceListManager implements ServiceBrowserListener {
      * already exists a service with the same instance name).
      *
      * Note: a return value of false does not not guarantee that no
-     * such service exists; it only guarantees that it was not found
-     * during the last refresh.
+     * such service exists; it only guarantees that it has not been
+     * seen yet.  See awaitInstance(String, long).
      *
      * @param instanceName - the name of the instance
      * @return true if it contains a reference, false otherwise.
      */
     public boolean containsInstance(String instanceName) {
 
-        for (ServiceDescription s : _serviceListRead)
-        {
-            if (s.getInstanceName().equals(instanceName))
-                return true;
-        }
-
-        return false;
-
+        return _registry.contains(instanceName);
     }
 
     /**
@@ -139,34 +263,168 @@ public class ServiceListManager implements ServiceBrowserListener {
     }
 
     /**
-     * Get a Vector containing the list of ServiceDescriptions
-     * that were valid as of the last refresh.
+     * Get a Vector containing the current list of ServiceDescriptions.
+     * The Vector is a shared snapshot and must not be modified; it is
+     * replaced, not changed, when the list changes.
      *
      * @return - a Vector<ServiceDescription> containing a reference
      * to the ServiceDescriptions of servers on the local network.
      */
     public Vector<ServiceDescription> getServiceList() {
 
-        // return the copy of the list to avoid returning an empty list
-        // during a refresh
-        return _serviceListRead;
+        return _registry.getServiceList();
     }
 
     /**
-     * Required to be a ServiceBrowserListener.  This method is called
-     * everytime a new service is discovered.  The behavior of this method
-     * is such that duplicate services will be thrown out. However, if
-     * the network is functioning properly, and all servers check to ensure
-     * that they are unique before starting, there should never be duplicates.
-     * 
+     * Get the current list of ServiceDescriptions, nearest first as
+     * ranked by getPeerSelector().
+     *
+     * @return - a new list of the known services
+     */
+    public List<ServiceDescription> getRankedServiceList() {
+
+        return _peerSelector.rank(_registry.getServiceList());
+    }
+
+    /**
+     * Returns the selector that replies to this manager's queries are
+     * timed into.  Transfers from the services should record what they
+     * see here too.
+     *
+     * @return - the peer selector
+     */
+    public PeerSelector getPeerSelector() {
+
+        return _peerSelector;
+    }
+
+    /**
+     * Returns the registry behind this manager, for lookups by address
+     * or service name and for draining join/departure deltas.
+     *
+     * @return - the registry
+     */
+    public ServiceRegistry getRegistry() {
+
+        return _registry;
+    }
+
+    /**
+     * Required to be a ServiceBrowserListener.  Replies that come without
+     * a lease are held for the default lease.
+     *
      * @param description - the ServiceDescription representing the server
      * to be added
      */
     public void serviceEncountered(ServiceDescription description) {
-        int pos = _serviceListWrite.indexOf(description);
-        if (pos > -1) {
-            _serviceListWrite.removeElementAt(pos);
+        serviceRenewed(description, ServiceConstants.DEFAULT_SERVICE_TTL);
+    }
+
+    /**
+     * Called everytime a service replies or announces itself.  A reply
+     * from an instance we already know replaces its description and
+     * extends its lease; listeners are only told when something actually
+     * changed.
+     *
+     * @param description - the ServiceDescription representing the server
+     * @param ttl - the lease in seconds
+     */
+    public void serviceRenewed(ServiceDescription description, int ttl) {
+        long now = now();
+        long lease = ttl * 1000L;
+        // decided under the registry's lock, so that a reply racing an
+        // expiry or a second reply from the same instance counts it once
+        int result = _registry.update(getServiceName(), description, now, lease);
+        _leases.schedule(description.getInstanceName(), now + lease);
+        if (result == ServiceRegistry.ADDED) {
+            _joined.increment();
+            _registrySize.increment();
+        }
+        if (result != ServiceRegistry.UNCHANGED) {
+            changed();
+        }
+    }
+
+    /**
+     * Called when a service says goodbye; it is removed at once.
+     *
+     * @param description - the departing ServiceDescription
+     */
+    public void serviceGoodbye(ServiceDescription description) {
+        _leases.cancel(description.getInstanceName());
+        ServiceDescription removed = _registry.remove(description.getInstanceName());
+        if (removed != null) {
+            _peerSelector.remove(PeerSelector.getServiceAddress(removed));
+            departed(1);
+            changed();
+        }
+    }
+
+    /**
+     * Lists the services we hold in our queries so that they stay silent,
+     * except those the PeerSelector wants to time a reply from.
+     *
+     * @param out - the buffer to write into
+     * @param max - the most answers to write
+     * @param now - the current time
+     * @return - the number of answers written
+     */
+    public int writeKnownAnswers(ByteBuffer out, int max, long now) {
+        return _registry.writeKnownAnswers(out, max, now, _peerSelector);
+    }
+
+    /**
+     * @param query - another browser's query, already read
+     * @param now - the current time
+     * @return - true if we hold every answer it lists
+     */
+    public boolean holdsAllKnownAnswers(DiscoveryMessage query, long now) {
+        for (int i = 0; i < query.getKnownAnswerCount(); i++) {
+            if (!_registry.containsInstanceHash(query.getKnownAnswerHash(i), now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the LeaseTimerWheel when an instance's deadline comes
+     * round.
+     *
+     * @param instanceName - the instance
+     * @param now - the current time
+     * @return - the renewed deadline, or 0 if the instance was removed
+     */
+    public long leaseDeadlinePassed(String instanceName, long now) {
+        ServiceDescription known = _registry.get(instanceName);
+        long deadline = _registry.expireLease(instanceName, now);
+        if (known != null && deadline == 0) {
+            _peerSelector.remove(PeerSelector.getServiceAddress(known));
+            departed(1);
+            changed();
+        }
+        return deadline;
+    }
+
+    private long now() {
+        return _serviceBrowser.getEngine().currentTimeMillis();
+    }
+
+    private void departed(int count) {
+        _departed.add(count);
+        _registrySize.add(-count);
+    }
+
+    /**
+     * Wakes awaitInstance callers and tells the change listeners.
+     */
+    private void changed() {
+        _lastChange = now();
+        synchronized (_serviceListLock) {
+            _serviceListLock.notifyAll();
+        }
+        for (ServiceListChangeListener l : _changeListeners) {
+            l.serviceListChanged(this);
         }
-        _serviceListWrite.add(description);
     }
 }
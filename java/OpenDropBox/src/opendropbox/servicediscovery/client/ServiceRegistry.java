@@ -0,0 +1,444 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * A hash indexed table of the service instances seen on the network.
+ * Instances are keyed by instance name, with secondary indexes by
+ * address and by service name, so every lookup is O(1).  Writers are
+ * serialised on one lock; readers use the concurrent maps directly.
+ *
+ * Once trackChanges() has been called, every change is also remembered
+ * against the state the instance had at the last drainDelta() call, so
+ * the joins, departures and updates since then come out in time
+ * proportional to the number of changes rather than to the size of the
+ * registry.  A registry nobody drains records nothing.
+ *
+ * @author Walter
+ */
+public class ServiceRegistry {
+
+    // what update() did with a reply
+    public static final int UNCHANGED = 0;
+    public static final int UPDATED = 1;
+    public static final int ADDED = 2;
+
+    private final ConcurrentHashMap<String, Entry> _byInstanceName;
+    private final ConcurrentHashMap<InetAddress, Set<String>> _byAddress;
+    private final ConcurrentHashMap<String, Set<String>> _byServiceName;
+    private final ConcurrentHashMap<Long, Entry> _byNameHash;
+    private final Object _writeLock;
+
+    // instance name -> description at the last drain (null if unknown then)
+    private Map<String, ServiceDescription> _pending;
+    private boolean _tracking;
+    private volatile long _generation;
+    private volatile ListSnapshot _list;
+
+    public ServiceRegistry() {
+        _byInstanceName = new ConcurrentHashMap<String, Entry>();
+        _byAddress = new ConcurrentHashMap<InetAddress, Set<String>>();
+        _byServiceName = new ConcurrentHashMap<String, Set<String>>();
+        _byNameHash = new ConcurrentHashMap<Long, Entry>();
+        _writeLock = new Object();
+        _pending = new HashMap<String, ServiceDescription>();
+    }
+
+    /**
+     * Records a reply from an instance with the default lease.
+     *
+     * @param serviceName - the service the instance answered for
+     * @param description - the instance's description
+     * @param now - the time the reply was received
+     * @return - ADDED if the instance is new, UPDATED if its description
+     * changed, or UNCHANGED if only its lease was renewed
+     */
+    public int update(String serviceName, ServiceDescription description, long now) {
+        return update(serviceName, description, now, ServiceConstants.DEFAULT_SERVICE_TTL * 1000L);
+    }
+
+    /**
+     * Records a reply from an instance.
+     *
+     * @param serviceName - the service the instance answered for
+     * @param description - the instance's description
+     * @param now - the time the reply was received
+     * @param lease - how long the description stays valid, in milliseconds
+     * @return - ADDED if the instance is new, UPDATED if its description
+     * changed, or UNCHANGED if only its lease was renewed
+     */
+    public int update(String serviceName, ServiceDescription description, long now, long lease) {
+        String name = description.getInstanceName();
+
+        // renewed under the lock as well, or expireLease() could remove
+        // the entry between the check and the renewal and lose the reply
+        synchronized (_writeLock) {
+            Entry entry = _byInstanceName.get(name);
+
+            // the common case: a repeated, unchanged reply.  descriptions
+            // are interned, so an identity check is usually enough
+            if (entry != null && entry.serviceName.equals(serviceName)
+                    && sameDescription(entry.description, description)) {
+                entry.lastSeen = now;
+                entry.lease = lease;
+                entry.expiresAt = now + lease;
+                return UNCHANGED;
+            }
+
+            ServiceDescription previous = null;
+            if (entry != null) {
+                previous = entry.description;
+                unindex(entry);
+            }
+            entry = new Entry(serviceName, description, now, lease);
+            _byInstanceName.put(name, entry);
+            index(entry);
+            changed(name, previous);
+            return previous == null ? ADDED : UPDATED;
+        }
+    }
+
+    /**
+     * Removes an instance.
+     *
+     * @param instanceName - the instance to remove
+     * @return - the description it had, or null if it was not known
+     */
+    public ServiceDescription remove(String instanceName) {
+        synchronized (_writeLock) {
+            Entry entry = _byInstanceName.remove(instanceName);
+            if (entry == null) {
+                return null;
+            }
+            unindex(entry);
+            changed(instanceName, entry.description);
+            return entry.description;
+        }
+    }
+
+    /**
+     * Removes every instance that has not been seen since the cutoff.
+     *
+     * @param cutoff - the oldest last-seen time to keep
+     * @return - the number of instances removed
+     */
+    public int expire(long cutoff) {
+        int removed = 0;
+        for (Map.Entry<String, Entry> e : _byInstanceName.entrySet()) {
+            if (e.getValue().lastSeen < cutoff) {
+                synchronized (_writeLock) {
+                    Entry entry = _byInstanceName.get(e.getKey());
+                    if (entry != null && entry.lastSeen < cutoff) {
+                        remove(e.getKey());
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes an instance if its lease has run out.
+     *
+     * @param instanceName - the instance to check
+     * @param now - the current time
+     * @return - the time the lease now runs out if it was renewed,
+     * or 0 if the instance was removed or is not known
+     */
+    public long expireLease(String instanceName, long now) {
+        synchronized (_writeLock) {
+            Entry entry = _byInstanceName.get(instanceName);
+            if (entry == null) {
+                return 0;
+            }
+            if (entry.expiresAt > now) {
+                return entry.expiresAt;
+            }
+            remove(instanceName);
+            return 0;
+        }
+    }
+
+    /**
+     * @param instanceName - the instance to look up
+     * @return - its description, or null if it is not known
+     */
+    public ServiceDescription get(String instanceName) {
+        Entry entry = _byInstanceName.get(instanceName);
+        return entry == null ? null : entry.description;
+    }
+
+    /**
+     * Writes a known answer for every instance that still holds more
+     * than half of its lease.
+     *
+     * @param out - the buffer to write into
+     * @param max - the most answers to write
+     * @param now - the current time
+     * @return - the number of answers written
+     */
+    public int writeKnownAnswers(ByteBuffer out, int max, long now) {
+        return writeKnownAnswers(out, max, now, null);
+    }
+
+    /**
+     * As writeKnownAnswers(ByteBuffer, int, long), but leaves out the
+     * instances the selector wants a fresh reply from.
+     *
+     * @param out - the buffer to write into
+     * @param max - the most answers to write
+     * @param now - the current time
+     * @param selector - the selector to ask, or null
+     * @return - the number of answers written
+     */
+    public int writeKnownAnswers(ByteBuffer out, int max, long now, PeerSelector selector) {
+        int written = 0;
+        for (Entry entry : _byInstanceName.values()) {
+            if (written == max) {
+                break;
+            }
+            long remaining = entry.expiresAt - now;
+            if (remaining > entry.lease / 2 && (selector == null || !selector.needsProbe(entry.description, now))) {
+                DiscoveryCodec.encodeKnownAnswer(out, entry.nameHash, (int) (remaining / 1000));
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param instanceHash - from DiscoveryCodec.hashInstanceName
+     * @param now - the current time
+     * @return - true if an instance with that hash is held with a live lease
+     */
+    public boolean containsInstanceHash(long instanceHash, long now) {
+        Entry entry = _byNameHash.get(instanceHash);
+        return entry != null && entry.expiresAt > now;
+    }
+
+    /**
+     * @param instanceName - the instance to look up
+     * @return - true if it is known
+     */
+    public boolean contains(String instanceName) {
+        return _byInstanceName.containsKey(instanceName);
+    }
+
+    /**
+     * @param instanceName - the instance to look up
+     * @return - when it last replied, or -1 if it is not known
+     */
+    public long getLastSeen(String instanceName) {
+        Entry entry = _byInstanceName.get(instanceName);
+        return entry == null ? -1 : entry.lastSeen;
+    }
+
+    /**
+     * @param address - the host address to look up
+     * @return - every instance advertised on that address
+     */
+    public List<ServiceDescription> getByAddress(InetAddress address) {
+        return resolve(_byAddress.get(address));
+    }
+
+    /**
+     * @param serviceName - the service name to look up
+     * @return - every instance that answered for that service
+     */
+    public List<ServiceDescription> getByServiceName(String serviceName) {
+        return resolve(_byServiceName.get(serviceName));
+    }
+
+    /**
+     * @return - the number of known instances
+     */
+    public int size() {
+        return _byInstanceName.size();
+    }
+
+    /**
+     * @return - a counter that increases on every change
+     */
+    public long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * Returns every known instance.  The Vector is built at most once per
+     * change and shared between callers, so it must not be modified.
+     *
+     * @return - the known instances
+     */
+    public Vector<ServiceDescription> getServiceList() {
+        ListSnapshot snapshot = _list;
+        if (snapshot != null && snapshot.generation == _generation) {
+            return snapshot.list;
+        }
+        synchronized (_writeLock) {
+            snapshot = _list;
+            if (snapshot == null || snapshot.generation != _generation) {
+                Vector<ServiceDescription> list = new Vector<ServiceDescription>(_byInstanceName.size());
+                for (Entry entry : _byInstanceName.values()) {
+                    list.add(entry.description);
+                }
+                snapshot = new ListSnapshot(_generation, list);
+                _list = snapshot;
+            }
+            return snapshot.list;
+        }
+    }
+
+    /**
+     * Starts recording changes for drainDelta().  The instances already
+     * held are reported as joined by the first drain.  Calling it again
+     * has no effect.
+     */
+    public void trackChanges() {
+        synchronized (_writeLock) {
+            if (_tracking) {
+                return;
+            }
+            _tracking = true;
+            for (String name : _byInstanceName.keySet()) {
+                _pending.put(name, null);
+            }
+        }
+    }
+
+    /**
+     * Returns what changed since the previous call and starts recording
+     * afresh.  Nothing is returned until trackChanges() has been called.
+     *
+     * @return - the coalesced changes
+     */
+    public RegistryDelta drainDelta() {
+        RegistryDelta delta = new RegistryDelta();
+        synchronized (_writeLock) {
+            for (Map.Entry<String, ServiceDescription> e : _pending.entrySet()) {
+                ServiceDescription before = e.getValue();
+                ServiceDescription after = get(e.getKey());
+                if (before == null && after != null) {
+                    delta.addJoined(after);
+                } else if (before != null && after == null) {
+                    delta.addDeparted(before);
+                } else if (before != null && !sameDescription(before, after)) {
+                    delta.addUpdated(after);
+                }
+            }
+            _pending = new HashMap<String, ServiceDescription>();
+        }
+        return delta;
+    }
+
+    /**
+     * Must be called while holding _writeLock.
+     */
+    private void changed(String instanceName, ServiceDescription previous) {
+        // only the state at the last drain matters, so keep the first one
+        if (_tracking && !_pending.containsKey(instanceName)) {
+            _pending.put(instanceName, previous);
+        }
+        _generation++;
+    }
+
+    private void index(Entry entry) {
+        String name = entry.description.getInstanceName();
+        _byNameHash.put(entry.nameHash, entry);
+        indexSet(_byAddress, entry.description.getAddress()).add(name);
+        indexSet(_byServiceName, entry.serviceName).add(name);
+    }
+
+    private void unindex(Entry entry) {
+        String name = entry.description.getInstanceName();
+        _byNameHash.remove(entry.nameHash, entry);
+        unindexSet(_byAddress, entry.description.getAddress(), name);
+        unindexSet(_byServiceName, entry.serviceName, name);
+    }
+
+    private static <K> Set<String> indexSet(ConcurrentHashMap<K, Set<String>> index, K key) {
+        Set<String> set = index.get(key);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            index.put(key, set);
+        }
+        return set;
+    }
+
+    private static <K> void unindexSet(ConcurrentHashMap<K, Set<String>> index, K key, String name) {
+        Set<String> set = index.get(key);
+        if (set != null) {
+            set.remove(name);
+            if (set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private List<ServiceDescription> resolve(Set<String> names) {
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<ServiceDescription> result = new ArrayList<ServiceDescription>(names.size());
+        for (String name : names) {
+            ServiceDescription description = get(name);
+            if (description != null) {
+                result.add(description);
+            }
+        }
+        return result;
+    }
+
+    private static boolean sameDescription(ServiceDescription a, ServiceDescription b) {
+        return a == b || (a != null && b != null
+                && a.getPort() == b.getPort() && a.getAddress().equals(b.getAddress())
+                && a.getAttributes().equals(b.getAttributes()));
+    }
+
+    private static class ListSnapshot {
+
+        final long generation;
+        final Vector<ServiceDescription> list;
+
+        ListSnapshot(long generation, Vector<ServiceDescription> list) {
+            this.generation = generation;
+            this.list = list;
+        }
+    }
+
+    private static class Entry {
+
+        final String serviceName;
+        final ServiceDescription description;
+        final long nameHash;
+        volatile long lastSeen;
+        volatile long lease;
+        volatile long expiresAt;
+
+        Entry(String serviceName, ServiceDescription description, long lastSeen, long lease) {
+            this.serviceName = serviceName;
+            this.description = description;
+            this.nameHash = DiscoveryCodec.hashInstanceName(description.getInstanceName());
+            this.lastSeen = lastSeen;
+            this.lease = lease;
+            this.expiresAt = lastSeen + lease;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.membership;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder for the gossip wire format.  Every message starts with:
+ *
+ *   magic (2) | version (1) | type (1) | sequence number (4)
+ *
+ * A ping follows it with the name of the member it is meant for
+ * (length (1) | UTF-8, empty when pinging a seed whose name is not yet
+ * known), a ping-req with the member record of the node to probe, and
+ * an ack with nothing.  Every message then ends with the piggybacked
+ * updates, a count (1) and that many member records of:
+ *
+ *   state (1) | incarnation (4) | name length (1) | name (UTF-8) |
+ *   address length (1, 4 or 16) | address | port (2)
+ *
+ * The first update is always the sender's own, so any message
+ * introduces its sender.  All integers are big-endian; decoding is done
+ * by GossipMessage.
+ *
+ * @author Walter
+ */
+public class GossipCodec {
+
+    public static final short MAGIC = 0x4F47;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_PING = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_PING_REQ = 3;
+    public static final int HEADER_LENGTH = 8;
+    public static final int MAX_NAME_LENGTH = 255;
+    public static final int MAX_UPDATES = 255;
+
+    private GossipCodec() {
+    }
+
+    /**
+     * @param out - the buffer to write into
+     * @param type - one of the TYPE_ constants
+     * @param sequence - matches an ack to its ping
+     */
+    public static void encodeHeader(ByteBuffer out, byte type, int sequence) {
+        out.putShort(MAGIC);
+        out.put(VERSION);
+        out.put(type);
+        out.putInt(sequence);
+    }
+
+    /**
+     * Writes the name of the member a ping is meant for.
+     *
+     * @param out - the buffer to write into
+     * @param name - the member's name, or null if unknown
+     */
+    public static void encodeName(ByteBuffer out, String name) {
+        byte[] bytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        checkNameLength(bytes);
+        out.put((byte) bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Writes one member record.
+     *
+     * @param out - the buffer to write into
+     * @param update - the news to write
+     */
+    public static void encodeUpdate(ByteBuffer out, MemberUpdate update) {
+        byte[] name = update.getName().getBytes(StandardCharsets.UTF_8);
+        InetSocketAddress address = update.getAddress();
+        byte[] addressBytes = address.getAddress().getAddress();
+        checkNameLength(name);
+        out.put((byte) update.getState());
+        out.putInt(update.getIncarnation());
+        out.put((byte) name.length);
+        out.put(name);
+        out.put((byte) addressBytes.length);
+        out.put(addressBytes);
+        out.putShort((short) address.getPort());
+    }
+
+    /**
+     * @param update - the news to measure
+     * @return - the number of bytes encodeUpdate will write
+     */
+    public static int getUpdateLength(MemberUpdate update) {
+        return 9 + update.getName().getBytes(StandardCharsets.UTF_8).length
+                + update.getAddress().getAddress().getAddress().length;
+    }
+
+    private static void checkNameLength(byte[] name) {
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes");
+        }
+    }
+}
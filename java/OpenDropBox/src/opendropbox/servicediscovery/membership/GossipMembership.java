@@ -0,0 +1,704 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.membership;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DatagramTransport;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.DiscoveryPacketHandler;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.UnicastTransport;
+import opendropbox.servicediscovery.client.ServiceListChangeListener;
+import opendropbox.servicediscovery.client.ServiceListManager;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.servicediscovery.server.ServiceResponder;
+
+/**
+ * A SWIM style membership protocol over unicast UDP.  Multicast browsing
+ * only reaches one segment and costs every node a reply from every other
+ * node; here each node probes one member per protocol period, so the
+ * load on a node and the time to detect a failure stay the same however
+ * large the cluster grows.
+ *
+ * Each period a node pings the next member of a shuffled round-robin
+ * list.  If no ack comes within the ping timeout it asks a few other
+ * members to ping it on its behalf (ping-req).  If still no ack has come
+ * by the end of the period the member is suspected, and if it does not
+ * refute the suspicion by raising its incarnation within the suspicion
+ * timeout it is declared dead.  News of joins, suspicions and deaths is
+ * piggybacked on the pings and acks themselves, each item being sent a
+ * number of times that grows with the log of the cluster size.
+ *
+ * Nodes advertise their gossip address with a ServiceResponder for
+ * GOSSIP_SERVICE_NAME and are seeded from a ServiceListManager browsing
+ * for it; join(address) adds seeds on other segments.  Members joining,
+ * moving and dying are reported through ServiceMonitorCallback, with the
+ * member's gossip address in the ServiceDescription.
+ *
+ * Gossip datagrams go through a DatagramTransport of their own, normally
+ * a UnicastTransport on the gossip port; the protocol's timers run on the
+ * engine's scheduler and clock.  Given a transport and engine from one
+ * SimulatedNetwork, a cluster runs entirely on the virtual clock.
+ *
+ * @author Walter
+ */
+public class GossipMembership implements ServiceListChangeListener {
+
+    public static final long DEFAULT_PROTOCOL_PERIOD = 1000;
+    public static final long DEFAULT_PING_TIMEOUT = 300;
+    public static final int DEFAULT_INDIRECT_PROBES = 3;
+    public static final int SUSPICION_MULTIPLIER = 4;
+    public static final int RETRANSMIT_MULTIPLIER = 4;
+    public static final long DEAD_RETENTION = 60000;
+
+    private final String _localName;
+    private final InetAddress _localAddress;
+    private final DatagramTransport _transport;
+    private final DiscoveryEngine _engine;
+    private final ScheduledExecutorService _scheduler;
+    private final CopyOnWriteArrayList<ServiceMonitorCallback> _callbacks;
+    private final Random _random;
+
+    // protocol state, guarded by this
+    private final Map<String, Member> _members;
+    private final List<Member> _probeOrder;
+    private final Map<Integer, Probe> _probes;
+    private final Map<String, Dissemination> _disseminations;
+    private InetSocketAddress _localSocketAddress;
+    private int _incarnation;
+    private int _probeIndex;
+    private int _sequence;
+    private Probe _currentProbe;
+    private long _protocolPeriod = DEFAULT_PROTOCOL_PERIOD;
+    private long _pingTimeout = DEFAULT_PING_TIMEOUT;
+    private int _indirectProbes = DEFAULT_INDIRECT_PROBES;
+
+    // callbacks are made in order, outside the protocol lock
+    private final List<Event> _events;
+    private final Object _dispatchLock;
+
+    private ScheduledFuture<?> _ticker;
+    private ServiceResponder _responder;
+    private ServiceListManager _seeds;
+    private boolean _running;
+
+    /**
+     * @param instanceName - this node's name, unique in the cluster
+     * @param address - the address other nodes reach this node on
+     * @param port - the gossip port, or 0 for any free port
+     */
+    public GossipMembership(String instanceName, InetAddress address, int port) {
+        this(instanceName, address, port, DiscoveryEngine.getInstance());
+    }
+
+    /**
+     * @param instanceName - this node's name, unique in the cluster
+     * @param address - the address other nodes reach this node on
+     * @param port - the gossip port, or 0 for any free port
+     * @param engine - the engine to advertise and find seeds through,
+     * whose scheduler runs the protocol
+     */
+    public GossipMembership(String instanceName, InetAddress address, int port, DiscoveryEngine engine) {
+        this(instanceName, address, new UnicastTransport(address, port), engine);
+    }
+
+    /**
+     * @param instanceName - this node's name, unique in the cluster
+     * @param address - the address other nodes reach this node on
+     * @param transport - carries the gossip datagrams; opened on start()
+     * and closed on stop(), the private endpoint being the gossip address
+     * @param engine - the engine to advertise and find seeds through,
+     * whose scheduler and clock run the protocol
+     */
+    public GossipMembership(String instanceName, InetAddress address, DatagramTransport transport,
+            DiscoveryEngine engine) {
+        _localName = instanceName;
+        _localAddress = address;
+        _transport = transport;
+        _engine = engine;
+        _scheduler = engine.getScheduler();
+        _callbacks = new CopyOnWriteArrayList<ServiceMonitorCallback>();
+        _random = new Random();
+        _members = new HashMap<String, Member>();
+        _probeOrder = new ArrayList<Member>();
+        _probes = new HashMap<Integer, Probe>();
+        _disseminations = new HashMap<String, Dissemination>();
+        _events = new ArrayList<Event>();
+        _dispatchLock = new Object();
+    }
+
+    /**
+     * @param callback - told whenever a member joins or dies
+     */
+    public void addCallback(ServiceMonitorCallback callback) {
+        _callbacks.addIfAbsent(callback);
+    }
+
+    public void removeCallback(ServiceMonitorCallback callback) {
+        _callbacks.remove(callback);
+    }
+
+    /**
+     * Sets the protocol timing.  Takes effect the next time the node is
+     * started.
+     *
+     * @param protocolPeriod - how often a member is probed, in milliseconds
+     * @param pingTimeout - how long to wait for a direct ack before asking
+     * others to probe, in milliseconds; less than the period
+     * @param indirectProbes - how many members are asked to probe
+     */
+    public synchronized void setTiming(long protocolPeriod, long pingTimeout, int indirectProbes) {
+        _protocolPeriod = Math.max(1, protocolPeriod);
+        _pingTimeout = Math.max(1, Math.min(pingTimeout, _protocolPeriod - 1));
+        _indirectProbes = Math.max(0, indirectProbes);
+    }
+
+    /**
+     * Opens the gossip transport, starts probing, and advertises and
+     * browses for GOSSIP_SERVICE_NAME to find the other members on this
+     * segment.  A node started again after stop() raises its incarnation
+     * so that its new ALIVE outranks the DEAD it left behind.
+     */
+    public void start() {
+        synchronized (this) {
+            if (_running) {
+                return;
+            }
+            try {
+                _transport.open(new DiscoveryPacketHandler() {
+                    private final GossipMessage _message = new GossipMessage();
+
+                    public void packetReceived(ByteBuffer in, SocketAddress source) {
+                        received(_message, in, (InetSocketAddress) source);
+                    }
+                });
+            } catch (IOException ioe) {
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+                return;
+            }
+            _localSocketAddress = new InetSocketAddress(_localAddress, _transport.getPrivatePort());
+            _running = true;
+
+            // forget what was still being spread or probed when we last stopped
+            _disseminations.clear();
+            _probes.clear();
+            _currentProbe = null;
+            if (_incarnation > 0) {
+                _incarnation++;
+            }
+
+            _ticker = _scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    // an exception escaping would cancel the ticker for good
+                    try {
+                        protocolPeriod();
+                    } catch (RuntimeException e) {
+                        System.err.println("Unexpected exception: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }, _protocolPeriod, _protocolPeriod, TimeUnit.MILLISECONDS);
+
+            _responder = new ServiceResponder(ServiceConstants.GOSSIP_SERVICE_NAME, _engine);
+            _responder.setDescription(new ServiceDescription(_localName, _localAddress, _localSocketAddress.getPort()));
+            _responder.addShutdownHandler();
+            _seeds = new ServiceListManager(ServiceConstants.GOSSIP_SERVICE_NAME, _engine);
+            _seeds.addServiceListChangeListener(this);
+        }
+
+        _responder.startResponder();
+        _seeds.start();
+    }
+
+    /**
+     * Leaves the cluster.  The node declares itself dead to a few members
+     * so that the news spreads without waiting for a suspicion to time
+     * out, then closes its transport.
+     */
+    public void stop() {
+        ServiceResponder responder;
+        ServiceListManager seeds;
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+            _running = false;
+            _ticker.cancel(false);
+            _ticker = null;
+
+            _incarnation++;
+            queueUpdate(new MemberUpdate(_localName, _localSocketAddress, Member.DEAD, _incarnation));
+            for (Member member : pickRandomMembers(_indirectProbes, null)) {
+                sendPing(member.getAddress(), nextSequence(), member.getName());
+            }
+
+            responder = _responder;
+            seeds = _seeds;
+            _responder = null;
+            _seeds = null;
+        }
+
+        // the receiving thread may be waiting for the lock
+        _transport.close();
+        seeds.removeServiceListChangeListener(this);
+        seeds.stop();
+        responder.stopResponder();
+    }
+
+    /**
+     * Contacts a node directly, for instance one on another segment that
+     * multicast browsing cannot reach.  It learns about us from the ping
+     * and we learn about it from its ack.
+     *
+     * @param seed - the node's gossip address
+     */
+    public synchronized void join(InetSocketAddress seed) {
+        if (_running) {
+            sendPing(seed, nextSequence(), null);
+        }
+    }
+
+    /**
+     * @return - this node's gossip address, once started
+     */
+    public synchronized InetSocketAddress getLocalAddress() {
+        return _localSocketAddress;
+    }
+
+    /**
+     * @return - this node's name
+     */
+    public String getLocalName() {
+        return _localName;
+    }
+
+    /**
+     * @return - the members currently alive or suspected, not including
+     * this node
+     */
+    public synchronized List<ServiceDescription> getMembers() {
+        List<ServiceDescription> members = new ArrayList<ServiceDescription>(_probeOrder.size());
+        for (Member member : _probeOrder) {
+            members.add(member.getDescription());
+        }
+        return members;
+    }
+
+    /**
+     * @param name - the member's name
+     * @return - what this node believes about it, or null if nothing
+     */
+    public synchronized Member getMember(String name) {
+        return _members.get(name);
+    }
+
+    /**
+     * Called by the ServiceListManager when the multicast list of gossip
+     * nodes changes.  Nodes not yet known are added as alive; after that
+     * the gossip protocol alone decides whether they are still there.
+     *
+     * @param manager - the manager whose list changed
+     */
+    public void serviceListChanged(ServiceListManager manager) {
+        synchronized (this) {
+            long now = _engine.currentTimeMillis();
+            for (ServiceDescription description : manager.getServiceList()) {
+                if (!_members.containsKey(description.getInstanceName())) {
+                    apply(new MemberUpdate(description.getInstanceName(),
+                            new InetSocketAddress(description.getAddress(), description.getPort()),
+                            Member.ALIVE, 0), now);
+                }
+            }
+        }
+        dispatchEvents();
+    }
+
+    /**
+     * Runs once per protocol period on the shared scheduler.
+     */
+    protected void protocolPeriod() {
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+            long now = _engine.currentTimeMillis();
+
+            // the previous probe got no ack, directly or indirectly
+            if (_currentProbe != null) {
+                _probes.remove(_currentProbe.sequence);
+                Member member = _members.get(_currentProbe.memberName);
+                if (!_currentProbe.acked && member != null && member.getState() == Member.ALIVE) {
+                    apply(new MemberUpdate(member.getName(), member.getAddress(), Member.SUSPECT,
+                            member.getIncarnation()), now);
+                }
+                _currentProbe = null;
+            }
+
+            // forwarded probes only live for one period
+            Iterator<Probe> probes = _probes.values().iterator();
+            while (probes.hasNext()) {
+                if (probes.next().started + _protocolPeriod < now) {
+                    probes.remove();
+                }
+            }
+
+            expireSuspects(now);
+
+            final Member target = nextProbeTarget();
+            if (target != null) {
+                final Probe probe = new Probe(nextSequence(), target.getName(), now);
+                _probes.put(probe.sequence, probe);
+                _currentProbe = probe;
+                sendPing(target.getAddress(), probe.sequence, target.getName());
+
+                _scheduler.schedule(new Runnable() {
+                    public void run() {
+                        probeIndirectly(probe, target);
+                    }
+                }, _pingTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        dispatchEvents();
+    }
+
+    /**
+     * Asks other members to ping a member that has not acked in time.
+     */
+    private synchronized void probeIndirectly(Probe probe, Member target) {
+        if (!_running || probe.acked || _currentProbe != probe) {
+            return;
+        }
+        MemberUpdate request = target.toUpdate();
+        for (Member member : pickRandomMembers(_indirectProbes, target)) {
+            ByteBuffer out = newMessage(GossipCodec.TYPE_PING_REQ, probe.sequence);
+            GossipCodec.encodeUpdate(out, request);
+            send(member.getAddress(), out);
+        }
+    }
+
+    /**
+     * Declares dead every suspect that has not refuted in time, and
+     * forgets members that have been dead long enough for stale news of
+     * them to have died out.  Must be called while holding this lock.
+     */
+    private void expireSuspects(long now) {
+        long suspicionTimeout = SUSPICION_MULTIPLIER * logScale() * _protocolPeriod;
+        List<Member> expired = new ArrayList<Member>();
+        Iterator<Member> it = _members.values().iterator();
+        while (it.hasNext()) {
+            Member member = it.next();
+            if (member.getState() == Member.SUSPECT && member.getStateChanged() + suspicionTimeout < now) {
+                expired.add(member);
+            } else if (member.getState() == Member.DEAD && member.getStateChanged() + DEAD_RETENTION < now) {
+                it.remove();
+            }
+        }
+        for (Member member : expired) {
+            apply(new MemberUpdate(member.getName(), member.getAddress(), Member.DEAD,
+                    member.getIncarnation()), now);
+        }
+    }
+
+    /**
+     * Called by the transport for each datagram, one at a time.
+     */
+    private void received(GossipMessage message, ByteBuffer in, InetSocketAddress source) {
+        if (message.read(in)) {
+            handle(message, source);
+            dispatchEvents();
+        }
+    }
+
+    /**
+     * Applies the news a message carries and answers it.
+     */
+    private synchronized void handle(GossipMessage message, InetSocketAddress source) {
+        if (!_running) {
+            return;
+        }
+        long now = _engine.currentTimeMillis();
+        for (MemberUpdate update : message.getUpdates()) {
+            apply(update, now);
+        }
+
+        switch (message.getType()) {
+            case GossipCodec.TYPE_PING:
+                String target = message.getTargetName();
+                if (target.length() == 0 || target.equals(_localName)) {
+                    send(source, newMessage(GossipCodec.TYPE_ACK, message.getSequence()));
+                }
+                break;
+
+            case GossipCodec.TYPE_PING_REQ:
+                Probe forward = new Probe(nextSequence(), message.getTarget().getName(), now);
+                forward.forwardTo = source;
+                forward.forwardSequence = message.getSequence();
+                _probes.put(forward.sequence, forward);
+                sendPing(message.getTarget().getAddress(), forward.sequence, message.getTarget().getName());
+                break;
+
+            case GossipCodec.TYPE_ACK:
+                Probe probe = _probes.get(message.getSequence());
+                if (probe == null) {
+                    break;
+                }
+                if (probe.forwardTo != null) {
+                    _probes.remove(probe.sequence);
+                    send(probe.forwardTo, newMessage(GossipCodec.TYPE_ACK, probe.forwardSequence));
+                } else {
+                    probe.acked = true;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Applies one piece of news, queueing it to be passed on and queueing
+     * a callback if a member joined or died.  An update only wins over
+     * what we hold if it is fresher: a higher incarnation, or at the same
+     * incarnation a worse state.  Must be called while holding this lock.
+     */
+    private void apply(MemberUpdate update, long now) {
+        if (update.getName().equals(_localName)) {
+            // refute anything but alive about ourselves
+            if (_running && update.getState() != Member.ALIVE && update.getIncarnation() >= _incarnation) {
+                _incarnation = update.getIncarnation() + 1;
+                queueUpdate(localUpdate());
+            }
+            return;
+        }
+
+        Member member = _members.get(update.getName());
+        if (member == null) {
+            if (update.getState() == Member.DEAD) {
+                return;
+            }
+            member = new Member(update.getName(), update.getAddress(), update.getState(),
+                    update.getIncarnation(), now);
+            _members.put(member.getName(), member);
+            addToProbeOrder(member);
+            queueUpdate(update);
+            _events.add(new Event(member.getDescription(), Event.JOINED));
+            return;
+        }
+
+        int state = member.getState();
+        int incarnation = member.getIncarnation();
+        boolean fresher = update.getIncarnation() > incarnation
+                || (update.getIncarnation() == incarnation && update.getState() > state);
+        if (!fresher || (state == Member.DEAD && update.getState() != Member.ALIVE)) {
+            return;
+        }
+        if (state == Member.DEAD && update.getIncarnation() <= incarnation) {
+            return;
+        }
+
+        boolean moved = !update.getAddress().equals(member.getAddress());
+        member.update(update.getAddress(), update.getState(), update.getIncarnation(), now);
+        queueUpdate(update);
+
+        if (state == Member.DEAD) {
+            // rejoined with a new incarnation
+            addToProbeOrder(member);
+            _events.add(new Event(member.getDescription(), Event.JOINED));
+        } else if (update.getState() == Member.DEAD) {
+            _probeOrder.remove(member);
+            _events.add(new Event(member.getDescription(), Event.DEPARTED));
+        } else if (moved) {
+            _events.add(new Event(member.getDescription(), Event.UPDATED));
+        }
+    }
+
+    private MemberUpdate localUpdate() {
+        return new MemberUpdate(_localName, _localSocketAddress, Member.ALIVE, _incarnation);
+    }
+
+    /**
+     * Inserts a member at a random place in the probe order, so a new
+     * member is probed within one pass like any other.
+     */
+    private void addToProbeOrder(Member member) {
+        _probeOrder.add(_random.nextInt(_probeOrder.size() + 1), member);
+    }
+
+    private Member nextProbeTarget() {
+        if (_probeOrder.isEmpty()) {
+            return null;
+        }
+        if (_probeIndex >= _probeOrder.size()) {
+            Collections.shuffle(_probeOrder, _random);
+            _probeIndex = 0;
+        }
+        return _probeOrder.get(_probeIndex++);
+    }
+
+    private List<Member> pickRandomMembers(int count, Member exclude) {
+        List<Member> candidates = new ArrayList<Member>(_probeOrder);
+        candidates.remove(exclude);
+        Collections.shuffle(candidates, _random);
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    private void queueUpdate(MemberUpdate update) {
+        _disseminations.put(update.getName(), new Dissemination(update));
+    }
+
+    /**
+     * @return - ceil(log10(n + 1)) for a cluster of n members, at least 1
+     */
+    private int logScale() {
+        return Math.max(1, (int) Math.ceil(Math.log10(_members.size() + 2)));
+    }
+
+    private int nextSequence() {
+        return ++_sequence;
+    }
+
+    private void sendPing(InetSocketAddress target, int sequence, String targetName) {
+        ByteBuffer out = newMessage(GossipCodec.TYPE_PING, sequence);
+        GossipCodec.encodeName(out, targetName);
+        send(target, out);
+    }
+
+    /**
+     * Starts a message; send() adds the piggybacked updates.
+     */
+    private ByteBuffer newMessage(byte type, int sequence) {
+        ByteBuffer out = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        GossipCodec.encodeHeader(out, type, sequence);
+        return out;
+    }
+
+    /**
+     * Appends our own state and as many queued updates as fit, least
+     * sent first, and sends the message.  Updates are dropped once they
+     * have been sent RETRANSMIT_MULTIPLIER * log(n) times.
+     */
+    private void send(InetSocketAddress target, ByteBuffer out) {
+        int countPosition = out.position();
+        out.put((byte) 0);
+        int count = 0;
+
+        MemberUpdate self = localUpdate();
+        Dissemination own = _disseminations.get(_localName);
+        if (own != null) {
+            // a departure or refutation of ours goes out in place of the plain state
+            self = own.update;
+        }
+        GossipCodec.encodeUpdate(out, self);
+        count++;
+
+        List<Dissemination> queued = new ArrayList<Dissemination>(_disseminations.values());
+        Collections.sort(queued, new Comparator<Dissemination>() {
+            public int compare(Dissemination a, Dissemination b) {
+                return a.transmits - b.transmits;
+            }
+        });
+        int limit = RETRANSMIT_MULTIPLIER * logScale();
+        for (Dissemination d : queued) {
+            if (count == GossipCodec.MAX_UPDATES || out.remaining() < GossipCodec.getUpdateLength(d.update)) {
+                break;
+            }
+            if (d != own) {
+                GossipCodec.encodeUpdate(out, d.update);
+                count++;
+            }
+            if (++d.transmits >= limit) {
+                _disseminations.remove(d.update.getName());
+            }
+        }
+        out.put(countPosition, (byte) count);
+        out.flip();
+
+        _transport.send(out, target, true);
+    }
+
+    /**
+     * Makes the queued callbacks, in order and outside the protocol lock.
+     */
+    private void dispatchEvents() {
+        synchronized (_dispatchLock) {
+            List<Event> events;
+            synchronized (this) {
+                if (_events.isEmpty()) {
+                    return;
+                }
+                events = new ArrayList<Event>(_events);
+                _events.clear();
+            }
+            for (Event event : events) {
+                for (ServiceMonitorCallback callback : _callbacks) {
+                    if (event.kind == Event.JOINED) {
+                        callback.serviceJoined(event.description);
+                    } else if (event.kind == Event.UPDATED) {
+                        callback.serviceUpdated(event.description);
+                    } else {
+                        callback.serviceDeparted(event.description);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Probe {
+
+        final int sequence;
+        final String memberName;
+        final long started;
+        boolean acked;
+        InetSocketAddress forwardTo;
+        int forwardSequence;
+
+        Probe(int sequence, String memberName, long started) {
+            this.sequence = sequence;
+            this.memberName = memberName;
+            this.started = started;
+        }
+    }
+
+    private static class Dissemination {
+
+        final MemberUpdate update;
+        int transmits;
+
+        Dissemination(MemberUpdate update) {
+            this.update = update;
+        }
+    }
+
+    private static class Event {
+
+        static final int JOINED = 0;
+        static final int UPDATED = 1;
+        static final int DEPARTED = 2;
+
+        final ServiceDescription description;
+        final int kind;
+
+        Event(ServiceDescription description, int kind) {
+            this.description = description;
+            this.kind = kind;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.membership;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A decoded gossip message.  Gossip runs at a few messages per node per
+ * protocol period, so unlike DiscoveryMessage this decodes eagerly into
+ * objects.  One instance may be reused for each packet in turn.
+ *
+ * @author Walter
+ */
+public class GossipMessage {
+
+    private byte _type;
+    private int _sequence;
+    private String _targetName;
+    private MemberUpdate _target;
+    private final List<MemberUpdate> _updates = new ArrayList<MemberUpdate>();
+
+    /**
+     * Decodes the message between the buffer's position and limit.
+     *
+     * @param in - the received packet
+     * @return - true if it is a well formed gossip message
+     */
+    public boolean read(ByteBuffer in) {
+        _targetName = null;
+        _target = null;
+        _updates.clear();
+
+        try {
+            if (in.remaining() < GossipCodec.HEADER_LENGTH || in.getShort() != GossipCodec.MAGIC
+                    || in.get() != GossipCodec.VERSION) {
+                return false;
+            }
+            _type = in.get();
+            _sequence = in.getInt();
+
+            if (_type == GossipCodec.TYPE_PING) {
+                _targetName = readName(in);
+            } else if (_type == GossipCodec.TYPE_PING_REQ) {
+                _target = readUpdate(in);
+                if (_target == null) {
+                    return false;
+                }
+            } else if (_type != GossipCodec.TYPE_ACK) {
+                return false;
+            }
+
+            int count = in.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                MemberUpdate update = readUpdate(in);
+                if (update == null) {
+                    return false;
+                }
+                _updates.add(update);
+            }
+            return true;
+
+        } catch (RuntimeException e) {
+            // truncated or malformed
+            return false;
+        }
+    }
+
+    private static String readName(ByteBuffer in) {
+        byte[] bytes = new byte[in.get() & 0xFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MemberUpdate readUpdate(ByteBuffer in) {
+        int state = in.get();
+        int incarnation = in.getInt();
+        String name = readName(in);
+        int addressLength = in.get() & 0xFF;
+        if (name.length() == 0 || state < Member.ALIVE || state > Member.DEAD
+                || (addressLength != 4 && addressLength != 16)) {
+            return null;
+        }
+        byte[] address = new byte[addressLength];
+        in.get(address);
+        int port = in.getShort() & 0xFFFF;
+        try {
+            return new MemberUpdate(name, new InetSocketAddress(InetAddress.getByAddress(address), port),
+                    state, incarnation);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return - one of the GossipCodec.TYPE_ constants
+     */
+    public byte getType() {
+        return _type;
+    }
+
+    public int getSequence() {
+        return _sequence;
+    }
+
+    /**
+     * @return - for a ping, the member it is meant for; empty if any
+     */
+    public String getTargetName() {
+        return _targetName;
+    }
+
+    /**
+     * @return - for a ping-req, the member to probe
+     */
+    public MemberUpdate getTarget() {
+        return _target;
+    }
+
+    /**
+     * @return - the piggybacked updates, the sender's own first
+     */
+    public List<MemberUpdate> getUpdates() {
+        return _updates;
+    }
+}
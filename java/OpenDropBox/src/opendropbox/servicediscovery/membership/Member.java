@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.membership;
+
+import java.net.InetSocketAddress;
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * What a node currently believes about one other member of the
+ * cluster.  Changed only by GossipMembership while holding its lock.
+ *
+ * @author Walter
+ */
+public class Member {
+
+    public static final int ALIVE = 0;
+    public static final int SUSPECT = 1;
+    public static final int DEAD = 2;
+
+    private final String _name;
+    private InetSocketAddress _address;
+    private int _state;
+    private int _incarnation;
+    private long _stateChanged;
+    private ServiceDescription _description;
+
+    Member(String name, InetSocketAddress address, int state, int incarnation, long now) {
+        _name = name;
+        _address = address;
+        _state = state;
+        _incarnation = incarnation;
+        _stateChanged = now;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return - the address the member's gossip socket is bound to
+     */
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * @return - one of ALIVE, SUSPECT or DEAD
+     */
+    public int getState() {
+        return _state;
+    }
+
+    public int getIncarnation() {
+        return _incarnation;
+    }
+
+    /**
+     * @return - when the state last changed
+     */
+    public long getStateChanged() {
+        return _stateChanged;
+    }
+
+    /**
+     * Returns the member as a ServiceDescription carrying its gossip
+     * address, as handed to ServiceMonitorCallbacks.
+     *
+     * @return - the description
+     */
+    public synchronized ServiceDescription getDescription() {
+        if (_description == null) {
+            _description = new ServiceDescription(_name, _address.getAddress(), _address.getPort());
+        }
+        return _description;
+    }
+
+    synchronized void update(InetSocketAddress address, int state, int incarnation, long now) {
+        if (!address.equals(_address)) {
+            _address = address;
+            _description = null;
+        }
+        if (state != _state) {
+            _stateChanged = now;
+        }
+        _state = state;
+        _incarnation = incarnation;
+    }
+
+    MemberUpdate toUpdate() {
+        return new MemberUpdate(_name, _address, _state, _incarnation);
+    }
+
+    static String stateToString(int state) {
+        switch (state) {
+            case ALIVE:
+                return "alive";
+            case SUSPECT:
+                return "suspect";
+            default:
+                return "dead";
+        }
+    }
+
+    public String toString() {
+        return _name + " " + _address + " " + stateToString(_state) + " #" + _incarnation;
+    }
+}
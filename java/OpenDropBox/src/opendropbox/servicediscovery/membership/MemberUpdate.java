@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.membership;
+
+import java.net.InetSocketAddress;
+
+/**
+ * One piece of membership news as it travels between nodes: a member
+ * is alive, suspected or dead as of the given incarnation.  Only the
+ * member itself raises its incarnation, to refute a suspicion, so a
+ * higher incarnation always means fresher news.
+ *
+ * @author Walter
+ */
+public final class MemberUpdate {
+
+    private final String _name;
+    private final InetSocketAddress _address;
+    private final int _state;
+    private final int _incarnation;
+
+    public MemberUpdate(String name, InetSocketAddress address, int state, int incarnation) {
+        _name = name;
+        _address = address;
+        _state = state;
+        _incarnation = incarnation;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * @return - one of Member.ALIVE, Member.SUSPECT or Member.DEAD
+     */
+    public int getState() {
+        return _state;
+    }
+
+    public int getIncarnation() {
+        return _incarnation;
+    }
+
+    public String toString() {
+        return _name + " " + Member.stateToString(_state) + " #" + _incarnation;
+    }
+}
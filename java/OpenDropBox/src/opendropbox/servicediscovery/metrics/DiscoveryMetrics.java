@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for everything discovery does.  The
+ * counters are LongAdders, so threads counting the same event do not
+ * contend; code on a hot path looks its counter up once and keeps it.
+ * Counters that go down as well as up, such as REGISTRY_SIZE, are read
+ * as gauges.
+ *
+ * The metrics can be read over JMX once registerMBean() has been called,
+ * or as plain text from getSnapshot() and the MetricsEndpoint.
+ *
+ * @author Walter
+ */
+public class DiscoveryMetrics implements DiscoveryMetricsMXBean {
+
+    public static final String OBJECT_NAME = "opendropbox:type=DiscoveryMetrics";
+
+    public static final String PACKETS_RECEIVED = "discovery.packets.received";
+    public static final String PACKETS_SENT = "discovery.packets.sent";
+    public static final String BYTES_RECEIVED = "discovery.bytes.received";
+    public static final String BYTES_SENT = "discovery.bytes.sent";
+    public static final String PARSE_FAILURES = "discovery.parse.failures";
+    public static final String ERRORS = "discovery.errors";
+    public static final String QUERIES_SENT = "discovery.queries.sent";
+    public static final String QUERIES_SUPPRESSED = "discovery.queries.suppressed";
+    public static final String REPLIES_SENT = "discovery.replies.sent";
+    public static final String SERVICES_JOINED = "discovery.services.joined";
+    public static final String SERVICES_DEPARTED = "discovery.services.departed";
+    public static final String REGISTRY_SIZE = "discovery.registry.size";
+
+    // counters that are kept up and down as gauges, and survive reset()
+    private static final Set<String> GAUGES = Collections.singleton(REGISTRY_SIZE);
+
+    // milliseconds from a query without known answers to the first reply
+    public static final String FIRST_REPLY_LATENCY = "discovery.query.first_reply_ms";
+    // milliseconds a blocking refresh took, and how far into it the list last changed
+    public static final String REFRESH_DURATION = "discovery.refresh.duration_ms";
+    public static final String REFRESH_SETTLED = "discovery.refresh.settled_ms";
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+    private static final DiscoveryMetrics _sharedInstance = new DiscoveryMetrics();
+    private final ConcurrentHashMap<String, LongAdder> _counters;
+    private final ConcurrentHashMap<String, LatencyHistogram> _histograms;
+    private boolean _registered;
+
+    /**
+     * Returns the metrics shared by everything in this JVM.
+     *
+     * @return - the shared metrics
+     */
+    public static DiscoveryMetrics getInstance() {
+        return _sharedInstance;
+    }
+
+    public DiscoveryMetrics() {
+        _counters = new ConcurrentHashMap<String, LongAdder>();
+        _histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    /**
+     * Returns the named counter, creating it if necessary.
+     *
+     * @param name - the counter's name
+     * @return - the counter
+     */
+    public LongAdder getCounter(String name) {
+        LongAdder counter = _counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = _counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the named histogram, creating it if necessary.
+     *
+     * @param name - the histogram's name
+     * @return - the histogram
+     */
+    public LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = _histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = _histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public Map<String, Long> getCounters() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : _counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+
+    public Map<String, Double> getHistograms() {
+        SortedMap<String, Double> values = new TreeMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            values.put(name + ".count", (double) histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            for (double p : PERCENTILES) {
+                values.put(name + ".p" + (int) p, (double) histogram.getPercentile(p));
+            }
+            values.put(name + ".max", (double) histogram.getMax());
+        }
+        return values;
+    }
+
+    /**
+     * Returns every metric as one "name value" line, counters first and
+     * then the statistics of each histogram, sorted by name.
+     *
+     * @return - the snapshot
+     */
+    public String getSnapshot() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Double> entry : getHistograms().entrySet()) {
+            double value = entry.getValue();
+            out.append(entry.getKey()).append(' ');
+            if (value == Math.rint(value)) {
+                out.append((long) value);
+            } else {
+                out.append(String.format("%.3f", value));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Sets every counter and histogram back to zero, except the gauges:
+     * they hold a current value that the code maintaining them only
+     * moves up and down, so zeroing one would leave it wrong for good.
+     */
+    public void reset() {
+        for (Map.Entry<String, LongAdder> entry : _counters.entrySet()) {
+            if (!GAUGES.contains(entry.getKey())) {
+                entry.getValue().reset();
+            }
+        }
+        for (LatencyHistogram histogram : _histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBeanServer as
+     * OBJECT_NAME.  Calling it again has no effect.
+     */
+    public synchronized void registerMBean() {
+        if (_registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            _registered = true;
+        } catch (JMException e) {
+            System.err.println("Unexpected exception: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the DiscoveryMetrics.
+ *
+ * @author Walter
+ */
+public interface DiscoveryMetricsMXBean {
+
+    /**
+     * @return - every counter by name
+     */
+    public abstract Map<String, Long> getCounters();
+
+    /**
+     * @return - the count, mean, percentiles and maximum of every
+     * histogram, keyed by the histogram's name and the statistic
+     */
+    public abstract Map<String, Double> getHistograms();
+
+    /**
+     * @return - the plain text snapshot, as served by the MetricsEndpoint
+     */
+    public abstract String getSnapshot();
+
+    /**
+     * Sets every counter and histogram back to zero.  Gauges such as
+     * the registry size keep their current value.
+     */
+    public abstract void reset();
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values, such as latencies in
+ * milliseconds.  Like an HDR histogram the buckets are log-linear: each
+ * power of two is split into SUB_BUCKETS equal buckets, so any recorded
+ * value is reported to within 1/SUB_BUCKETS of itself while the whole
+ * range of a long fits in a few hundred counters.  Recording is one
+ * array increment plus two LongAdder updates and never allocates.
+ *
+ * @author Walter
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts;
+    private final LongAdder _count;
+    private final LongAdder _sum;
+    private final AtomicLong _max;
+
+    public LatencyHistogram() {
+        _counts = new AtomicLongArray(BUCKET_COUNT);
+        _count = new LongAdder();
+        _sum = new LongAdder();
+        _max = new AtomicLong();
+    }
+
+    /**
+     * Records one value.  Negative values are recorded as 0.
+     *
+     * @param value - the value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(getBucket(value));
+        _count.increment();
+        _sum.add(value);
+        long max;
+        while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+            // another thread raised the maximum first; try again
+        }
+    }
+
+    /**
+     * @return - the number of values recorded
+     */
+    public long getCount() {
+        return _count.sum();
+    }
+
+    /**
+     * @return - the mean of the recorded values, or 0 if there are none
+     */
+    public double getMean() {
+        long count = _count.sum();
+        return count == 0 ? 0 : (double) _sum.sum() / count;
+    }
+
+    /**
+     * @return - the largest value recorded
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded
+     * values fall, rounded up to the top of its bucket.
+     *
+     * @param percentile - from 0 to 100
+     * @return - the value, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += _counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketTop(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets every recorded value.  Values recorded while this runs may
+     * be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            _counts.set(i, 0);
+        }
+        _count.reset();
+        _sum.reset();
+        _max.set(0);
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long getBucketTop(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long bottom = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+        return bottom + width - 1;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the plain text snapshot of a DiscoveryMetrics to anything that
+ * connects, so the numbers can be read with curl or scraped by a
+ * collector.  The reply is a minimal HTTP/1.0 response whatever was
+ * asked for; nc works just as well.  Connections are answered one at a
+ * time on a single daemon thread, so a client still sending its request
+ * after REQUEST_DEADLINE is cut off rather than left to hold up the rest.
+ *
+ * @author Walter
+ */
+public class MetricsEndpoint implements Runnable {
+
+    public static final int READ_TIMEOUT = 1000;
+    public static final long REQUEST_DEADLINE = 3000;
+
+    private final DiscoveryMetrics _metrics;
+    private final InetSocketAddress _address;
+    private ServerSocket _serverSocket;
+    private Thread _thread;
+
+    /**
+     * @param metrics - the metrics to serve
+     * @param address - where to listen; port 0 picks a free port
+     */
+    public MetricsEndpoint(DiscoveryMetrics metrics, InetSocketAddress address) {
+        _metrics = metrics;
+        _address = address;
+    }
+
+    /**
+     * Starts listening.  Calling it again has no effect.
+     *
+     * @throws IOException if the address cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (_thread != null) {
+            return;
+        }
+        _serverSocket = new ServerSocket();
+        _serverSocket.setReuseAddress(true);
+        _serverSocket.bind(_address);
+        _thread = new Thread(this, "MetricsEndpoint");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Stops listening.
+     */
+    public synchronized void stop() {
+        if (_thread == null) {
+            return;
+        }
+        try {
+            _serverSocket.close();
+        } catch (IOException ioe) {
+            System.err.println("Unexpected exception: " + ioe);
+            ioe.printStackTrace();
+        }
+        _thread = null;
+    }
+
+    /**
+     * @return - the address actually bound, or null if not started
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return _thread == null ? null : (InetSocketAddress) _serverSocket.getLocalSocketAddress();
+    }
+
+    public void run() {
+        ServerSocket serverSocket = _serverSocket;
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (SocketException se) {
+                // closed by stop()
+            } catch (IOException ioe) {
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        long deadline = System.currentTimeMillis() + REQUEST_DEADLINE;
+
+        // read the request up to the blank line that ends its headers,
+        // if it sent one, so that the client sees a clean close
+        InputStream in = socket.getInputStream();
+        int matched = 0;
+        try {
+            int b = 0;
+            while (matched < 4 && b >= 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // trickling its request in; drop it unanswered
+                    return;
+                }
+                socket.setSoTimeout((int) Math.min(READ_TIMEOUT, remaining));
+                b = in.read();
+                matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+        } catch (SocketTimeoutException e) {
+            // a raw connection that sends nothing still gets the snapshot
+        } catch (IOException e) {
+            return;
+        }
+
+        byte[] body = _metrics.getSnapshot().getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -16,6 +16,10 @@ public class DemoServiceMonitorCallback implements ServiceMonitorCallback {
         System.out.println("Service joined: " + serviceDescription);
     }
 
+    public void serviceUpdated(ServiceDescription serviceDescription) {
+        System.out.println("Service updated: " + serviceDescription);
+    }
+
     public void serviceDeparted(ServiceDescription serviceDescription) {
         System.out.println("Service departed: " + serviceDescription);
     }
@@ -4,35 +4,38 @@
  */
 package opendropbox.servicediscovery.monitor;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryEngine;
 import opendropbox.servicediscovery.ServiceConstants;
 import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.RegistryDelta;
+import opendropbox.servicediscovery.client.ServiceListChangeListener;
 import opendropbox.servicediscovery.client.ServiceListManager;
 
 /**
- * This class listens for incoming connections that alert
- * it of a computer joining or leaving the network.  It
+ * This class listens for the announcements, goodbyes and replies
+ * that alert it of a computer joining or leaving the network.  It
  * takes a ServiceMonitorCallback which it will utilize when
- * these events take place.  In addition, to ensure that
- * networks failures and crashes do not affect performance,
- * services will be polled on a specified interval, and
- * appropraite calls to ServiceMonitorCallback will be made
- * at this time.
+ * these events take place.  Every description is held for the lease
+ * its responder advertised, so a service that crashes is reported as
+ * departed as soon as its lease lapses, and one that shuts down cleanly
+ * as soon as its goodbye arrives.  In addition, to ensure that nothing
+ * is missed, changes are also collected on a specified polling interval.
  * 
  * @author Walter
  */
-public class ServiceMonitor implements Runnable {
+public class ServiceMonitor implements Runnable, ServiceListChangeListener {
 
-    // number of milliseconds to search for new services
+    // shortest allowed polling interval, in milliseconds
     private static final int REFRESH_LENGTH = 5000;
     private ServiceMonitorCallback _callback;
     private int _pollingInterval;
-    private Vector<ServiceDescription> _activeServices;
-    private Timer _timer;
+    private Map<String, ServiceDescription> _activeServices;
+    private ScheduledFuture<?> _poller;
     private ServiceListManager _serviceListManager;
-    private Boolean _currentlyPolling;
 
     /**
      * Creates a new ServiceMonitor with the default polling
@@ -46,15 +49,39 @@ public class ServiceMonitor implements Runnable {
 
     /**
      * Creates a new ServiceMonitor with a custom polling interval. This interval
-     * must be at least REFRESH_LENGTH in magnitude (defaults to 2000 milliseconds).
+     * must be at least REFRESH_LENGTH in magnitude (defaults to 5000 milliseconds).
      * If it is less, it will be set at REFRESH_LENGTH;
      * 
      * @param callback - specify which class will receive updates when services join and leave
      * @param pollingInterval - in milliseconds
      */
     public ServiceMonitor(ServiceMonitorCallback callback, int pollingInterval) {
+        this(callback, pollingInterval, DiscoveryEngine.getInstance());
+    }
 
-        _currentlyPolling = false;
+    /**
+     * Creates a new ServiceMonitor that browses through the given engine
+     * and polls on its scheduler.
+     *
+     * @param callback - specify which class will receive updates when services join and leave
+     * @param pollingInterval - in milliseconds
+     * @param engine - the engine to browse through
+     */
+    public ServiceMonitor(ServiceMonitorCallback callback, int pollingInterval, DiscoveryEngine engine) {
+        this(callback, pollingInterval, engine, ServiceConstants.SERVICE_NAME);
+    }
+
+    /**
+     * Creates a new ServiceMonitor for the given service, for example
+     * CHUNK_SERVICE_NAME to follow the chunk servers.
+     *
+     * @param callback - specify which class will receive updates when services join and leave
+     * @param pollingInterval - in milliseconds
+     * @param engine - the engine to browse through
+     * @param serviceName - the service to monitor
+     */
+    public ServiceMonitor(ServiceMonitorCallback callback, int pollingInterval, DiscoveryEngine engine,
+            String serviceName) {
 
         _callback = callback;
 
@@ -64,16 +91,27 @@ public class ServiceMonitor implements Runnable {
             _pollingInterval = pollingInterval;
         }
 
-        _activeServices = new Vector<ServiceDescription>();
+        _activeServices = new HashMap<String, ServiceDescription>();
 
-        _serviceListManager = new ServiceListManager(ServiceConstants.SERVICE_NAME);
+        _serviceListManager = new ServiceListManager(serviceName, engine);
+        _serviceListManager.getRegistry().trackChanges();
+        _serviceListManager.addServiceListChangeListener(this);
+        _serviceListManager.start();
 
-        // start the timer last
-        _timer = new Timer("PollingTimer");
-        _timer.scheduleAtFixedRate(new PollingTimer(), 0L, _pollingInterval);
+        // start polling last
+        _poller = engine.getScheduler().scheduleAtFixedRate(this, 0L, _pollingInterval, TimeUnit.MILLISECONDS);
 
     }
 
+    /**
+     * Stops polling and browsing.  No further callbacks are made.
+     */
+    public void stop() {
+        _poller.cancel(false);
+        _serviceListManager.removeServiceListChangeListener(this);
+        _serviceListManager.stop();
+    }
+
     protected void serviceJoined(ServiceDescription serviceDescription) {
 
         synchronized (_activeServices) {
@@ -81,7 +119,18 @@ public class ServiceMonitor implements Runnable {
             _callback.serviceJoined(serviceDescription);
 
             // add it to our list
-            _activeServices.add(serviceDescription);
+            _activeServices.put(serviceDescription.getInstanceName(), serviceDescription);
+        }
+    }
+
+    protected void serviceUpdated(ServiceDescription serviceDescription) {
+
+        synchronized (_activeServices) {
+            // notify the registered callback
+            _callback.serviceUpdated(serviceDescription);
+
+            // replace it in our list
+            _activeServices.put(serviceDescription.getInstanceName(), serviceDescription);
         }
     }
 
@@ -92,84 +141,41 @@ public class ServiceMonitor implements Runnable {
             _callback.serviceDeparted(serviceDescription);
 
             // remove it from our list
-            _activeServices.remove(serviceDescription);
+            _activeServices.remove(serviceDescription.getInstanceName());
         }
     }
 
-    public void run() {
+    /**
+     * Called by the ServiceListManager as soon as a service joins,
+     * changes or departs.
+     *
+     * @param manager - the manager whose list changed
+     */
+    public void serviceListChanged(ServiceListManager manager) {
+        run();
     }
 
-    private class PollingTimer extends TimerTask {
-
-        public void run() {
-
-            // check to see if we are already polling
-            synchronized (_currentlyPolling) {
-
-                // if we are currently polling, then set skip this task
-                if (_currentlyPolling == true) {
-                    System.out.println("Not polling.  Too many requests at once.");
-                    return;
-                } // otherwise, set it to true and continue with this task
-                else {
-                    _currentlyPolling = true;
-                }
-            }
-
-
-            // refresh the service list.  if nothing has changed, we can return
-            if (!_serviceListManager.refresh(2000)) {
-                synchronized (_currentlyPolling) {
-                    _currentlyPolling = false;
-                }
-                return;
-            }
-
-            // now, check to see if there are any new services that we don't yet know about
-            Vector<ServiceDescription> refreshedServices = _serviceListManager.getServiceList();
-
-
-            System.out.println(refreshedServices);
-
-            // iterate through all of the refreshed services
-            for (ServiceDescription s : refreshedServices) {
-
-                // check to see if we know about this service
-                boolean alreadyKnow = false;
-                synchronized (_activeServices) {
-                    alreadyKnow = _activeServices.contains(s);
-                }
-
-                if (!alreadyKnow) {
-                    serviceJoined(s);
-                }
-            }
-
-            // now that we have added every service we know about, we must check to see if any services have departed
-            Vector<ServiceDescription> departed = new Vector<ServiceDescription>();
-
-            synchronized (_activeServices) {
-                for (ServiceDescription s : _activeServices) {
+    /**
+     * Collects everything that changed since the last call and makes
+     * the appropriate calls to the ServiceMonitorCallback.
+     */
+    public synchronized void run() {
 
-                    // check to see if this service is in in the refreshed list.
-                    // if it is not, we should add it to the toDepart list
+        // everything that changed since the last run, in O(changes)
+        RegistryDelta delta = _serviceListManager.getRegistry().drainDelta();
 
-                    if (!refreshedServices.contains(s)) {
-                        departed.add(s);
-                    }
-                }
-            }
+        for (ServiceDescription s : delta.getJoined()) {
+            serviceJoined(s);
+        }
 
-            // now, remove all the departed services
-            for (ServiceDescription s : departed) {
-                serviceDeparted(s);
-            }
+        // an instance that moved to a new address or port, or changed
+        // its attributes
+        for (ServiceDescription s : delta.getUpdated()) {
+            serviceUpdated(s);
+        }
 
-            // we are no longer polling, so set it to false
-            synchronized (_currentlyPolling) {
-                _currentlyPolling = false;
-            }
+        for (ServiceDescription s : delta.getDeparted()) {
+            serviceDeparted(s);
         }
     }
 }
-
@@ -13,6 +13,15 @@ import opendropbox.servicediscovery.ServiceDescription;
 public interface ServiceMonitorCallback {
 
     public void serviceJoined(ServiceDescription serviceDescription);
+
+    /**
+     * Called when a service already joined moves to a new address or
+     * port, or changes its attributes.
+     *
+     * @param serviceDescription - the service's new description
+     */
+    public void serviceUpdated(ServiceDescription serviceDescription);
+
     public void serviceDeparted(ServiceDescription serviceDescription);
 
 }
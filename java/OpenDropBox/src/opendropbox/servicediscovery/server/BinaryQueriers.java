@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.server;
+
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The sources recently seen sending binary queries.  A browser that
+ * sends the legacy text query alongside the binary one sends both from
+ * its private port, so a responder that has seen the binary query from
+ * a source can leave that source's text queries unanswered; only
+ * browsers that predate the binary format need a text reply.
+ *
+ * At most MAX_SOURCES are held, the least recently seen being forgotten
+ * first.
+ *
+ * @author Walter
+ */
+class BinaryQueriers {
+
+    public static final int MAX_SOURCES = 256;
+
+    private final Map<SocketAddress, Boolean> _sources;
+
+    BinaryQueriers() {
+        _sources = new LinkedHashMap<SocketAddress, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<SocketAddress, Boolean> eldest) {
+                return size() > MAX_SOURCES;
+            }
+        };
+    }
+
+    /**
+     * @param source - the sender of a binary query
+     */
+    synchronized void add(SocketAddress source) {
+        if (source != null) {
+            _sources.put(source, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @param source - the sender of a legacy query
+     * @return - true if it has also sent binary queries
+     */
+    synchronized boolean contains(SocketAddress source) {
+        return source != null && _sources.containsKey(source);
+    }
+}
@@ -5,18 +5,30 @@
 
 package opendropbox.servicediscovery.server;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Date;
+import java.util.List;
+import opendropbox.placement.HashRing;
+import opendropbox.repair.AntiEntropy;
+import opendropbox.repair.ReplicationScheduler;
+import opendropbox.servicediscovery.DiscoveryEngine;
 import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.DemoClient;
 import opendropbox.servicediscovery.client.ServiceListManager;
+import opendropbox.servicediscovery.monitor.ServiceMonitor;
+import opendropbox.servicediscovery.monitor.ServiceMonitorCallback;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ContentDefinedChunker;
+import opendropbox.transfer.ChunkServer;
 
 /**
- * 
+ * Serves a block store on the local network, repairing it against the
+ * other chunk servers and re-replicating the chunks of any that leave.
+ *
+ * Usage: DemoServer [store directory] [files to add...]
  *
  * @author Walter
  */
@@ -24,45 +36,77 @@ public class DemoServer {
 
     public static void main(String[] args) {
 
-        ServerSocket serverSocket = null;
         String serviceInstanceName = "ODB-B";
+        File directory = new File(args.length > 0 ? args[0] : "odb-store");
 
         // before we start this service, we must make sure that no service with this name
-        // is already running
-        ServiceListManager manager = new ServiceListManager(ServiceConstants.SERVICE_NAME);
-        manager.refresh(2000);
-        if (manager.containsInstance(serviceInstanceName))
+        // is already running.  this returns as soon as such a service answers.
+        ServiceListManager manager = new ServiceListManager(ServiceConstants.CHUNK_SERVICE_NAME);
+        if (manager.awaitInstance(serviceInstanceName, 2000) != null)
         {
             System.err.println("An instance with the same name is already running on the local network.");
             System.exit(0);
         }
+        manager.stop();
 
         try {
 
-            // create a new server socket on an empty port
-            serverSocket = new ServerSocket();
-            serverSocket.bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+            BlockStore store = new BlockStore(directory);
+
+            // add any files given, printing the chunks each one was stored as
+            for (int i = 1; i < args.length; i++) {
+                List<ChunkHash> chunks = store.putFile(new File(args[i]), new ContentDefinedChunker());
+                System.out.println(args[i] + ": " + chunks);
+            }
+            store.sync();
+
+            // serve the chunks on an empty port and advertise it
+            ChunkServer server = new ChunkServer(store, serviceInstanceName, new InetSocketAddress(0));
+            server.start();
+            System.out.println("Serving " + store.size() + " chunks from " + directory + " on port " + server.getPort());
 
-            // create a new service responder to respond to queries about services running on this machine
-            new ServiceResponder(ServiceConstants.SERVICE_NAME, serviceInstanceName, serverSocket.getInetAddress(), serverSocket.getLocalPort()).startResponder();
+            // keep the store in step with the other servers, and restore
+            // the replicas of any server that leaves for good
+            final HashRing ring = new HashRing();
+            final AntiEntropy antiEntropy = new AntiEntropy(store, ring, serviceInstanceName, DemoClient.REPLICAS);
+            final ReplicationScheduler scheduler = new ReplicationScheduler(store, serviceInstanceName,
+                    DemoClient.REPLICAS);
+            antiEntropy.start();
+            scheduler.start();
+            new ServiceMonitor(new ServiceMonitorCallback() {
+                public void serviceJoined(ServiceDescription description) {
+                    System.out.println("Chunk server joined: " + description);
+                    ring.serviceJoined(description);
+                    antiEntropy.serviceJoined(description);
+                    scheduler.serviceJoined(description);
+                }
+
+                public void serviceUpdated(ServiceDescription description) {
+                    ring.serviceUpdated(description);
+                    antiEntropy.serviceUpdated(description);
+                    scheduler.serviceUpdated(description);
+                }
+
+                public void serviceDeparted(ServiceDescription description) {
+                    System.out.println("Chunk server departed: " + description);
+                    ring.serviceDeparted(description);
+                    antiEntropy.serviceDeparted(description);
+                    scheduler.serviceDeparted(description);
+                }
+            }, ServiceConstants.DEFAULT_POLLING_INTERVAL, DiscoveryEngine.getInstance(),
+                    ServiceConstants.CHUNK_SERVICE_NAME);
 
         } catch (IOException e) {
-            System.err.println("Could not bind a server socket to a free port: " + e);
+            System.err.println("Could not start the chunk server: " + e);
             System.exit(1);
         }
 
-
-        // create a simple server to respond with the current time
+        // the server runs on daemon threads
         while (true) {
             try {
-                Socket socket = serverSocket.accept();
-                System.out.println("Connection from: " + socket.getInetAddress());
-                OutputStreamWriter writer = new OutputStreamWriter(socket.getOutputStream());
-                writer.write(new Date().toString() + "\r\n");
-                writer.flush();
-                socket.close();
-            } catch (IOException ie) {
-                System.err.println("Exception: " + ie);
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException ie) {
+                return;
             }
         }
     }
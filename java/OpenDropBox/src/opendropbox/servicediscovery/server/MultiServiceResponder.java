@@ -0,0 +1,470 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.server;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.DiscoveryMessage;
+import opendropbox.servicediscovery.DiscoveryPacketHandler;
+import opendropbox.servicediscovery.EncodedServiceName;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+
+/**
+ * Answers queries for any number of services and instances from one
+ * packet handler.  A host exposing several services registers them all
+ * here instead of running a ServiceResponder for each, so every packet
+ * is parsed once and matched with a single hash lookup on the service
+ * name hash from its header, however many services are hosted.
+ *
+ * Replies, announcements and goodbyes carry every hosted instance of a
+ * service in as few datagrams as possible.
+ *
+ * @author Walter
+ */
+public class MultiServiceResponder implements DiscoveryPacketHandler {
+
+    protected final DiscoveryEngine _engine;
+    protected final DiscoveryMessage _message = new DiscoveryMessage();
+    protected final ConcurrentHashMap<Integer, HostedService> _services;
+    protected final Random _random = new Random();
+    protected final BinaryQueriers _binaryQueriers = new BinaryQueriers();
+    protected int _ttl = ServiceConstants.DEFAULT_SERVICE_TTL;
+    protected ScheduledFuture<?> _announcer;
+    protected boolean _responding;
+
+    public MultiServiceResponder() {
+        this(DiscoveryEngine.getInstance());
+    }
+
+    /**
+     * @param engine - the engine that receives and sends packets
+     */
+    public MultiServiceResponder(DiscoveryEngine engine) {
+        _engine = engine;
+        _services = new ConcurrentHashMap<Integer, HostedService>();
+    }
+
+    /**
+     * Adds an instance of a service, or replaces the description of an
+     * instance with the same name.  If the responder is running the
+     * instance is announced at once.
+     *
+     * @param serviceName - the service the instance belongs to
+     * @param description - the instance's description
+     */
+    public void addService(String serviceName, ServiceDescription description) {
+        HostedService service;
+        synchronized (this) {
+            service = lookup(serviceName, true);
+            service.put(description);
+        }
+        if (isResponding()) {
+            send(_engine.getGroupAddress(), DiscoveryCodec.TYPE_ANNOUNCE, service.serviceName,
+                    Arrays.asList(description), _ttl);
+        }
+    }
+
+    /**
+     * Changes the attributes advertised for a hosted instance.  If the
+     * responder is running, the change is announced; announcements of
+     * changes to one service are kept at least
+     * RESPONDER_MIN_REPLY_INTERVAL apart and carry every change made
+     * in between.
+     *
+     * @param serviceName - the service the instance belongs to
+     * @param instanceName - the instance to change
+     * @param attributes - its new attributes
+     * @return - false if the instance is not hosted
+     */
+    public boolean setAttributes(String serviceName, String instanceName, ServiceAttributes attributes) {
+        final HostedService service = lookup(serviceName, false);
+        if (service == null) {
+            return false;
+        }
+        synchronized (service) {
+            ServiceDescription current = service.get(instanceName);
+            if (current == null) {
+                return false;
+            }
+            if (attributes.equals(current.getAttributes())) {
+                return true;
+            }
+            service.put(new ServiceDescription(instanceName, current.getAddress(), current.getPort(), attributes));
+
+            if (isResponding() && !service.updatePending) {
+                service.updatePending = true;
+                long delay = Math.max(0, service.lastUpdate + ServiceConstants.RESPONDER_MIN_REPLY_INTERVAL
+                        - _engine.currentTimeMillis());
+                _engine.getScheduler().schedule(new Runnable() {
+                    public void run() {
+                        announceUpdate(service);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    private void announceUpdate(HostedService service) {
+        synchronized (service) {
+            service.updatePending = false;
+            service.lastUpdate = _engine.currentTimeMillis();
+        }
+        if (isResponding()) {
+            send(_engine.getGroupAddress(), DiscoveryCodec.TYPE_ANNOUNCE, service.serviceName,
+                    service.getDescriptions(), _ttl);
+        }
+    }
+
+    /**
+     * Removes an instance of a service.  If the responder is running a
+     * goodbye is sent for it.
+     *
+     * @param serviceName - the service the instance belongs to
+     * @param instanceName - the instance to remove
+     * @return - the removed description, or null if it was not hosted
+     */
+    public ServiceDescription removeService(String serviceName, String instanceName) {
+        HostedService service;
+        ServiceDescription removed;
+        synchronized (this) {
+            service = lookup(serviceName, false);
+            if (service == null) {
+                return null;
+            }
+            removed = service.remove(instanceName);
+            if (service.instances.length == 0) {
+                unlink(service);
+            }
+        }
+        if (removed != null && isResponding()) {
+            _engine.getReplyBatcher().withdraw(removed);
+            send(_engine.getGroupAddress(), DiscoveryCodec.TYPE_GOODBYE, service.serviceName,
+                    Arrays.asList(removed), 0);
+        }
+        return removed;
+    }
+
+    /**
+     * @param serviceName - the service to look up
+     * @return - the descriptions hosted for it
+     */
+    public List<ServiceDescription> getDescriptions(String serviceName) {
+        HostedService service = lookup(serviceName, false);
+        return service == null ? new ArrayList<ServiceDescription>() : service.getDescriptions();
+    }
+
+    /**
+     * @return - the lease, in seconds, advertised with each record
+     */
+    public int getTtl() {
+        return _ttl;
+    }
+
+    /**
+     * Sets the lease advertised with each record.  Takes effect the next
+     * time the responder is started.
+     *
+     * @param ttl - the lease in seconds, at least 1
+     */
+    public void setTtl(int ttl) {
+        _ttl = Math.max(1, Math.min(ttl, DiscoveryCodec.MAX_TTL));
+    }
+
+    /**
+     * Starts answering queries and announces every hosted instance now
+     * and again before its lease can run out.
+     */
+    public synchronized void startResponder() {
+        if (!_responding) {
+            _responding = true;
+            _engine.addPacketHandler(this);
+            _announcer = _engine.getScheduler().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    sendAll(DiscoveryCodec.TYPE_ANNOUNCE, _ttl);
+                }
+            }, 0L, _ttl * 1000L / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops answering queries and says goodbye for every hosted instance.
+     */
+    public synchronized void stopResponder() {
+        if (_responding) {
+            _responding = false;
+            _announcer.cancel(false);
+            _announcer = null;
+            _engine.removePacketHandler(this);
+            for (HostedService service : _services.values()) {
+                for (HostedService s = service; s != null; s = s.next) {
+                    for (Instance instance : s.instances) {
+                        _engine.getReplyBatcher().withdraw(instance.description);
+                    }
+                }
+            }
+            sendAll(DiscoveryCodec.TYPE_GOODBYE, 0);
+        }
+    }
+
+    public synchronized boolean isResponding() {
+        return _responding;
+    }
+
+    /**
+     * Makes sure stopResponder() is called, and its goodbyes sent, if the
+     * JVM is shut down.
+     */
+    public void addShutdownHandler() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                stopResponder();
+                _engine.flush(500);
+            }
+        });
+    }
+
+    /**
+     * Called by the DiscoveryEngine for every datagram seen on the group.
+     * Binary queries are matched with one lookup on their service hash.
+     *
+     * @param data - the received payload
+     * @param source - the sender of the payload
+     */
+    public void packetReceived(ByteBuffer data, SocketAddress source) {
+        if (!_message.read(data) || _message.getType() != DiscoveryCodec.TYPE_QUERY) {
+            return;
+        }
+
+        if (_message.isLegacy()) {
+            // the text copy of a binary query is answered by the binary reply
+            if (_binaryQueriers.contains(source)) {
+                return;
+            }
+            // the text format carries no hash; legacy queries are rare
+            for (HostedService service : _services.values()) {
+                for (HostedService s = service; s != null; s = s.next) {
+                    if (_message.isForService(s.serviceName)) {
+                        scheduleLegacyReplies(s);
+                    }
+                }
+            }
+            return;
+        }
+
+        _binaryQueriers.add(source);
+        for (HostedService s = _services.get(_message.getServiceHash()); s != null; s = s.next) {
+            if (_message.isForService(s.serviceName)) {
+                boolean unicast = (_message.getFlags() & DiscoveryCodec.FLAG_UNICAST_REPLY) != 0 && source != null;
+                scheduleReplies(s, unicast ? source : null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands every instance of the service that the query did not list
+     * as a known answer to the ReplyBatcher.
+     */
+    private void scheduleReplies(HostedService service, SocketAddress target) {
+        long now = _engine.currentTimeMillis();
+        long delay = getReplyDelay();
+        int ttl = _ttl;
+        ReplyBatcher batcher = _engine.getReplyBatcher();
+
+        synchronized (service) {
+            // as in ServiceResponder, a stale group gets the unicast reply too
+            if (target != null && now - service.lastReply > ttl * 1000L / 4) {
+                target = null;
+            }
+            if (target == null) {
+                delay = Math.max(delay, service.lastReply + ServiceConstants.RESPONDER_MIN_REPLY_INTERVAL - now);
+            }
+            boolean scheduled = false;
+            for (Instance instance : service.instances) {
+                if (!_message.hasKnownAnswer(instance.nameHash, ttl / 2)) {
+                    scheduled |= batcher.reply(target, service.serviceName, instance.description, ttl, delay);
+                }
+            }
+            if (scheduled && target == null) {
+                service.lastReply = now + delay;
+            }
+        }
+    }
+
+    private void scheduleLegacyReplies(final HostedService service) {
+        _engine.getScheduler().schedule(new Runnable() {
+            public void run() {
+                String prefix = "SERVICE REPLY " + new String(service.serviceName.getUrlEncoded()) + " ";
+                for (Instance instance : service.instances) {
+                    _engine.send(ByteBuffer.wrap((prefix + instance.description.toString()).getBytes()));
+                }
+            }
+        }, getReplyDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private long getReplyDelay() {
+        synchronized (_random) {
+            return ServiceConstants.RESPONDER_MIN_REPLY_DELAY + _random.nextInt(
+                    ServiceConstants.RESPONDER_MAX_REPLY_DELAY - ServiceConstants.RESPONDER_MIN_REPLY_DELAY + 1);
+        }
+    }
+
+    /**
+     * Sends every hosted instance of every service, one service at a time.
+     */
+    private void sendAll(byte type, int ttl) {
+        for (HostedService service : _services.values()) {
+            for (HostedService s = service; s != null; s = s.next) {
+                send(_engine.getGroupAddress(), type, s.serviceName, s.getDescriptions(), ttl);
+            }
+        }
+    }
+
+    private void send(SocketAddress target, byte type, EncodedServiceName serviceName,
+            List<ServiceDescription> descriptions, int ttl) {
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        List<Integer> ttls = new ArrayList<Integer>(descriptions.size());
+        for (int i = 0; i < descriptions.size(); i++) {
+            ttls.add(ttl);
+        }
+        _engine.getReplyBatcher().sendRecords(target, type, serviceName, descriptions, ttls);
+    }
+
+    /**
+     * Finds a hosted service by name, following the chain of services
+     * whose names share a hash.  Creating one must be done while holding
+     * this responder's lock.
+     */
+    private HostedService lookup(String serviceName, boolean create) {
+        EncodedServiceName encoded = new EncodedServiceName(serviceName);
+        HostedService head = _services.get(encoded.getHash());
+        for (HostedService s = head; s != null; s = s.next) {
+            if (s.serviceName.equals(encoded)) {
+                return s;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        HostedService service = new HostedService(encoded);
+        service.next = head;
+        _services.put(encoded.getHash(), service);
+        return service;
+    }
+
+    /**
+     * Must be called while holding this responder's lock.
+     */
+    private void unlink(HostedService service) {
+        Integer hash = service.serviceName.getHash();
+        HostedService head = _services.get(hash);
+        if (head == service) {
+            if (service.next == null) {
+                _services.remove(hash);
+            } else {
+                _services.put(hash, service.next);
+            }
+            return;
+        }
+        for (HostedService s = head; s != null; s = s.next) {
+            if (s.next == service) {
+                s.next = service.next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The instances hosted for one service name.  The instance array is
+     * replaced, never changed, so the packet handler can read it without
+     * locking.
+     */
+    protected static class HostedService {
+
+        final EncodedServiceName serviceName;
+        volatile Instance[] instances = new Instance[0];
+        volatile HostedService next;
+        long lastReply;
+        long lastUpdate;
+        boolean updatePending;
+
+        HostedService(EncodedServiceName serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        synchronized void put(ServiceDescription description) {
+            Instance[] current = instances;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].description.equals(description)) {
+                    Instance[] replaced = current.clone();
+                    replaced[i] = new Instance(description);
+                    instances = replaced;
+                    return;
+                }
+            }
+            Instance[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Instance(description);
+            instances = grown;
+        }
+
+        ServiceDescription get(String instanceName) {
+            for (Instance instance : instances) {
+                if (instance.description.getInstanceName().equals(instanceName)) {
+                    return instance.description;
+                }
+            }
+            return null;
+        }
+
+        synchronized ServiceDescription remove(String instanceName) {
+            Instance[] current = instances;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].description.getInstanceName().equals(instanceName)) {
+                    Instance[] shrunk = new Instance[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, i);
+                    System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                    instances = shrunk;
+                    return current[i].description;
+                }
+            }
+            return null;
+        }
+
+        List<ServiceDescription> getDescriptions() {
+            Instance[] current = instances;
+            List<ServiceDescription> list = new ArrayList<ServiceDescription>(current.length);
+            for (Instance instance : current) {
+                list.add(instance.description);
+            }
+            return list;
+        }
+    }
+
+    protected static class Instance {
+
+        final ServiceDescription description;
+        final long nameHash;
+
+        Instance(ServiceDescription description) {
+            this.description = description;
+            this.nameHash = DiscoveryCodec.hashInstanceName(description.getInstanceName());
+        }
+    }
+}
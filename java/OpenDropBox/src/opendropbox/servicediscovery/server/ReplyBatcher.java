@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.server;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.EncodedServiceName;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.metrics.DiscoveryMetrics;
+
+/**
+ * Collects the replies that the responders sharing one DiscoveryEngine
+ * owe to the same destination for the same service, and sends them as
+ * few datagrams as possible once the first reply's delay is up.  Each
+ * datagram holds as many records as fit in DATAGRAM_LENGTH.
+ *
+ * An instance that is asked again while its reply is still waiting is
+ * sent only once.
+ *
+ * Each engine holds its own batcher; see DiscoveryEngine.getReplyBatcher().
+ *
+ * @author Walter
+ */
+public class ReplyBatcher {
+
+    private final DiscoveryEngine _engine;
+    private final Map<BatchKey, Batch> _batches;
+    private final LongAdder _repliesSent;
+
+    /**
+     * @param engine - the engine the replies go out through
+     */
+    public ReplyBatcher(DiscoveryEngine engine) {
+        _engine = engine;
+        _batches = new HashMap<BatchKey, Batch>();
+        _repliesSent = DiscoveryMetrics.getInstance().getCounter(DiscoveryMetrics.REPLIES_SENT);
+    }
+
+    /**
+     * Adds a record to the reply waiting for the given destination and
+     * service, scheduling the reply if none is waiting yet.
+     *
+     * @param target - where to send the reply; null for the group
+     * @param serviceName - the service being answered for
+     * @param description - the instance to advertise
+     * @param ttl - its lease in seconds
+     * @param delay - how long a new reply waits, in milliseconds
+     * @return - true if a new reply was scheduled, false if the record
+     * joined one that was already waiting
+     */
+    public boolean reply(SocketAddress target, EncodedServiceName serviceName,
+            ServiceDescription description, int ttl, long delay) {
+        final BatchKey key = new BatchKey(target == null ? _engine.getGroupAddress() : target, serviceName);
+
+        synchronized (_batches) {
+            Batch batch = _batches.get(key);
+            if (batch != null) {
+                batch.add(description, ttl);
+                return false;
+            }
+            batch = new Batch();
+            batch.add(description, ttl);
+            _batches.put(key, batch);
+        }
+
+        _engine.getScheduler().schedule(new Runnable() {
+            public void run() {
+                send(key);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Takes an instance out of every waiting reply, for instance because
+     * it has just said goodbye.
+     *
+     * @param description - the instance to withdraw
+     */
+    public void withdraw(ServiceDescription description) {
+        synchronized (_batches) {
+            for (Batch batch : _batches.values()) {
+                batch.remove(description);
+            }
+        }
+    }
+
+    /**
+     * Sends the waiting reply for one destination and service.
+     */
+    private void send(BatchKey key) {
+        Batch batch;
+        synchronized (_batches) {
+            batch = _batches.remove(key);
+        }
+        if (batch == null || batch.descriptions.isEmpty()) {
+            return;
+        }
+
+        _repliesSent.add(batch.descriptions.size());
+        sendRecords(key.target, DiscoveryCodec.TYPE_REPLY, key.serviceName, batch.descriptions, batch.ttls);
+    }
+
+    /**
+     * Sends a reply, announcement or goodbye carrying the given records,
+     * split over as many datagrams as needed.
+     *
+     * @param target - where to send the records
+     * @param type - TYPE_REPLY, TYPE_ANNOUNCE or TYPE_GOODBYE
+     * @param serviceName - the service the records belong to
+     * @param descriptions - the instances to advertise
+     * @param ttls - the lease in seconds of each instance
+     */
+    public void sendRecords(SocketAddress target, byte type, EncodedServiceName serviceName,
+            List<ServiceDescription> descriptions, List<Integer> ttls) {
+        ByteBuffer packet = null;
+        int countPosition = 0;
+        int count = 0;
+        for (int i = 0; i < descriptions.size(); i++) {
+            ServiceDescription description = descriptions.get(i);
+
+            // start a new datagram when this record does not fit
+            if (packet != null && (count == DiscoveryCodec.MAX_RECORDS
+                    || packet.remaining() < DiscoveryCodec.getRecordLength(description))) {
+                finish(packet, countPosition, count, target);
+                packet = null;
+            }
+            if (packet == null) {
+                packet = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+                DiscoveryCodec.encodeHeader(packet, type, 0, serviceName);
+                countPosition = packet.position();
+                packet.put((byte) 0);
+                count = 0;
+            }
+            DiscoveryCodec.encodeRecord(packet, description, ttls.get(i));
+            count++;
+        }
+        if (packet != null) {
+            finish(packet, countPosition, count, target);
+        }
+    }
+
+    private void finish(ByteBuffer packet, int countPosition, int count, SocketAddress target) {
+        packet.put(countPosition, (byte) count);
+        packet.flip();
+        _engine.send(packet, target);
+    }
+
+    private static class Batch {
+
+        final List<ServiceDescription> descriptions = new ArrayList<ServiceDescription>();
+        final List<Integer> ttls = new ArrayList<Integer>();
+
+        void add(ServiceDescription description, int ttl) {
+            // descriptions compare by instance name
+            int index = descriptions.indexOf(description);
+            if (index < 0) {
+                descriptions.add(description);
+                ttls.add(ttl);
+            } else {
+                descriptions.set(index, description);
+                ttls.set(index, ttl);
+            }
+        }
+
+        void remove(ServiceDescription description) {
+            int index = descriptions.indexOf(description);
+            if (index >= 0) {
+                descriptions.remove(index);
+                ttls.remove(index);
+            }
+        }
+    }
+
+    private static class BatchKey {
+
+        final SocketAddress target;
+        final EncodedServiceName serviceName;
+
+        BatchKey(SocketAddress target, EncodedServiceName serviceName) {
+            this.target = target;
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) o;
+            return target.equals(other.target) && serviceName.equals(other.serviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return target.hashCode() * 31 + serviceName.hashCode();
+        }
+    }
+}
@@ -5,41 +5,37 @@
 package opendropbox.servicediscovery.server;
 
 import opendropbox.servicediscovery.*;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
+import java.net.SocketAddress;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  * @author Walter
  */
-public class ServiceResponder implements Runnable {
+public class ServiceResponder implements DiscoveryPacketHandler {
 
-    protected static InetAddress _multicastAddressGroup;
-    protected static int _multicastPort;
     protected String _serviceName;
+    protected EncodedServiceName _encodedServiceName;
     protected ServiceDescription _description;
-    protected boolean _shouldRun = true;
-    protected MulticastSocket _socket;
-    protected DatagramPacket _queuedPacket;
-    protected DatagramPacket _receivedPacket;
-    protected Thread _thread;
-
-    static {
-        try {
-            _multicastAddressGroup = InetAddress.getByName(ServiceConstants.MULTICAST_ADDRESS_GROUP);
-            _multicastPort = ServiceConstants.MULTICAST_PORT;
-        } catch (UnknownHostException e) {
-            System.err.println("Unexpected exception: " + e);
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
+    protected int _ttl = ServiceConstants.DEFAULT_SERVICE_TTL;
+    protected ScheduledFuture<?> _announcer;
+    protected DiscoveryEngine _engine;
+    protected ByteBuffer _receivedData;
+    protected final DiscoveryMessage _message = new DiscoveryMessage();
+    protected boolean _responding;
+    protected long _instanceHash;
+    protected long _lastReply;
+    protected boolean _legacyReplyPending;
+    protected final BinaryQueriers _binaryQueriers = new BinaryQueriers();
+    protected boolean _updatePending;
+    protected long _lastUpdate;
+    protected final Random _random = new Random();
 
     /**
      * Creates a new ServiceResponder with the given service
@@ -49,17 +45,20 @@ public class ServiceResponder implements Runnable {
      * responses will be sent.
      */
     public ServiceResponder(String serviceName) {
-        this._serviceName = serviceName;
-        try {
-            _socket = new MulticastSocket(_multicastPort);
-            _socket.joinGroup(_multicastAddressGroup);
-            _socket.setSoTimeout(ServiceConstants.RESPONDER_SOCKET_TIMEOUT);
-
-        } catch (IOException ioe) {
-            System.err.println("Unexpected exception: " + ioe);
-            ioe.printStackTrace();
-            System.exit(1);
-        }
+        this(serviceName, DiscoveryEngine.getInstance());
+    }
+
+    /**
+     * Creates a new ServiceResponder with the given service
+     * name that answers queries through the given engine.
+     *
+     * @param serviceName - the name of the service for which
+     * responses will be sent.
+     * @param engine - the engine that receives and sends packets
+     */
+    public ServiceResponder(String serviceName, DiscoveryEngine engine) {
+        this._engine = engine;
+        this.setServiceName(serviceName);
     }
 
     /**
@@ -94,34 +93,94 @@ public class ServiceResponder implements Runnable {
     }
 
     /**
-     * The run method of ServiceResponder which handles
-     * receiving and sending messages.
+     * Called by the DiscoveryEngine for every datagram seen on the
+     * group.  Schedules a reply if the packet is a query for our service
+     * that does not already list us as a known answer.  Queries that ask
+     * for a unicast reply are answered at their source.
+     *
+     * @param data - the received payload
+     * @param source - the sender of the payload
      */
-    public void run() {
+    public void packetReceived(ByteBuffer data, SocketAddress source) {
 
-        while (_shouldRun) {
+        _receivedData = data;
 
-            byte[] buf = new byte[ServiceConstants.DATAGRAM_LENGTH];
-            _receivedPacket = new DatagramPacket(buf, buf.length);
+        // check to see if this packet was meant for this service responder
+        // and whether the querier still holds a fresh copy of our reply
+        if (isQueryPacket() && !_message.hasKnownAnswer(_instanceHash, _ttl / 2)) {
+            if (_message.isLegacy()) {
+                // the text copy of a binary query is answered by the binary reply
+                if (!_binaryQueriers.contains(source)) {
+                    scheduleLegacyReply();
+                }
+            } else if ((_message.getFlags() & DiscoveryCodec.FLAG_UNICAST_REPLY) != 0 && source != null) {
+                _binaryQueriers.add(source);
+                scheduleReply(source);
+            } else {
+                _binaryQueriers.add(source);
+                scheduleReply(null);
+            }
+        }
 
-            try {
+        _receivedData = null;
+    }
 
-                // this will throw an exception once the timeout is reached
-                _socket.receive(_receivedPacket);
+    /**
+     * Queues a reply after a short random delay, so that a query does not
+     * draw every responder's answer in the same instant.  The reply goes
+     * through the engine's ReplyBatcher, which packs the records of every
+     * responder in this process answering the same query into as few
+     * datagrams as possible.  Multicast replies are kept at least
+     * RESPONDER_MIN_REPLY_INTERVAL apart.  A unicast reply goes to the
+     * group instead if we have not multicast one for a quarter of the
+     * ttl, so that browsers holding back their own queries still hear it.
+     *
+     * @param target - the querier for a unicast reply, or null for the group
+     */
+    protected synchronized void scheduleReply(SocketAddress target) {
+        long now = _engine.currentTimeMillis();
+        long delay = getReplyDelay();
+        if (target != null && now - _lastReply > _ttl * 1000L / 4) {
+            target = null;
+        }
+        if (target == null) {
+            delay = Math.max(delay, _lastReply + ServiceConstants.RESPONDER_MIN_REPLY_INTERVAL - now);
+        }
 
-                // check to see if this packet was meant for this service responder
-                if (isQueryPacket()) {
-                    DatagramPacket replyPacket = getReplyPacket();
-                    _queuedPacket = replyPacket;
-                    sendQueuedPacket();
-                }
-            } catch (SocketTimeoutException e) {
-                // if we reach a timeout, we just continue
-            } catch (IOException e) {
-                // if we run into an issue, we just continues
+        boolean scheduled = _engine.getReplyBatcher().reply(
+                target, _encodedServiceName, _description, _ttl, delay);
+        if (scheduled && target == null) {
+            _lastReply = now + delay;
+        }
+    }
+
+    /**
+     * Queues a legacy text reply after a short random delay.  Further
+     * legacy queries arriving before it goes out share the one reply.
+     */
+    protected synchronized void scheduleLegacyReply() {
+        if (_legacyReplyPending) {
+            return;
+        }
+        _legacyReplyPending = true;
+
+        _engine.getScheduler().schedule(new Runnable() {
+            public void run() {
+                sendLegacyReply();
             }
+        }, getReplyDelay(), TimeUnit.MILLISECONDS);
+    }
 
+    private synchronized void sendLegacyReply() {
+        if (_responding) {
+            _engine.send(getLegacyReplyPacket());
         }
+        _legacyReplyPending = false;
+    }
+
+    private long getReplyDelay() {
+        return ServiceConstants.RESPONDER_MIN_REPLY_DELAY + _random.nextInt(
+                ServiceConstants.RESPONDER_MAX_REPLY_DELAY - ServiceConstants.RESPONDER_MIN_REPLY_DELAY + 1);
     }
 
     /**
@@ -134,11 +193,56 @@ public class ServiceResponder implements Runnable {
     }
 
     /**
-     * Set the description for this service responder.
+     * Set the description for this service responder.  Replies carry
+     * this description, so call this again after changing any of its
+     * fields.
+     *
      * @param descriptor
      */
     public void setDescription(ServiceDescription description) {
         this._description = description;
+        this._instanceHash = description.getInstanceName() == null ? 0
+                : DiscoveryCodec.hashInstanceName(description.getInstanceName());
+    }
+
+    /**
+     * Changes the attributes advertised with the description and tells
+     * the group.  Browsers holding the old attributes see the change as
+     * an update of the instance.  Announcements of changes are kept at
+     * least RESPONDER_MIN_REPLY_INTERVAL apart; changes made in between
+     * go out together in the next one, and nothing is sent if the
+     * attributes did not change.
+     *
+     * @param attributes - the new attributes
+     */
+    public synchronized void setAttributes(ServiceAttributes attributes) {
+        if (attributes.equals(_description.getAttributes())) {
+            return;
+        }
+        // the old description may still be waiting in a reply, so
+        // replace it rather than changing it
+        setDescription(new ServiceDescription(_description.getInstanceName(),
+                _description.getAddress(), _description.getPort(), attributes));
+
+        if (!_responding || _updatePending) {
+            return;
+        }
+        _updatePending = true;
+        long delay = Math.max(0, _lastUpdate + ServiceConstants.RESPONDER_MIN_REPLY_INTERVAL
+                - _engine.currentTimeMillis());
+        _engine.getScheduler().schedule(new Runnable() {
+            public void run() {
+                announceUpdate();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void announceUpdate() {
+        _updatePending = false;
+        if (_responding) {
+            _lastUpdate = _engine.currentTimeMillis();
+            announce();
+        }
     }
 
     /**
@@ -171,44 +275,69 @@ public class ServiceResponder implements Runnable {
      */
     public void setServiceName(String serviceName) {
         this._serviceName = serviceName;
+        this._encodedServiceName = new EncodedServiceName(serviceName);
     }
 
     /**
-     * Starts the responder.
+     * Returns the lease, in seconds, advertised with each reply.
+     *
+     * @return - the ttl
      */
-    public void startResponder() {
-        if (_thread == null || !_thread.isAlive()) {
-            _shouldRun = true;
-            _thread = new Thread(this, "ServiceResponder");
-            _thread.setDaemon(true);
-            _thread.start();
-        }
+    public int getTtl() {
+        return _ttl;
     }
 
     /**
-     * Stops the responder.
+     * Sets the lease advertised with each reply.  Browsers drop the
+     * service if they hear nothing from it for this long, so the
+     * responder announces itself again after half of it.  Takes effect
+     * the next time the responder is started.
+     *
+     * @param ttl - the lease in seconds, at least 1
      */
-    public void stopResponder() {
-        if (_thread != null && _thread.isAlive()) {
-            _shouldRun = false;
-            _thread.interrupt();
-        }
+    public void setTtl(int ttl) {
+        this._ttl = Math.max(1, Math.min(ttl, DiscoveryCodec.MAX_TTL));
     }
 
     /**
-     * Send a queued packet.
+     * Starts the responder and announces the service to the group
+     * without waiting to be asked.
      */
-    protected void sendQueuedPacket() {
-        if (_queuedPacket == null) {
-            return;
+    public synchronized void startResponder() {
+        if (!_responding) {
+            _responding = true;
+            _engine.addPacketHandler(this);
+
+            // announce now and again before the lease can run out
+            long period = _ttl * 1000L / 2;
+            _announcer = _engine.getScheduler().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    announce();
+                }
+            }, 0L, period, TimeUnit.MILLISECONDS);
         }
-        try {
-            _socket.send(_queuedPacket);
-            _queuedPacket = null;
-        } catch (IOException e) {
-            System.err.println("Unexpected exception: " + e);
-            e.printStackTrace();
-            /* resume operation */
+    }
+
+    /**
+     * Sends an announcement.  Announcements do not count towards the
+     * reply interval, so a browser that starts just after one is still
+     * answered promptly.
+     */
+    protected synchronized void announce() {
+        _engine.send(getAnnouncePacket(DiscoveryCodec.TYPE_ANNOUNCE, _ttl));
+    }
+
+    /**
+     * Stops the responder and tells the group that the service is gone.
+     */
+    public synchronized void stopResponder() {
+        if (_responding) {
+            _responding = false;
+            _announcer.cancel(false);
+            _announcer = null;
+            _engine.removePacketHandler(this);
+            _engine.getReplyBatcher().withdraw(_description);
+            _engine.send(getAnnouncePacket(DiscoveryCodec.TYPE_GOODBYE, 0));
         }
     }
 
@@ -221,41 +350,42 @@ public class ServiceResponder implements Runnable {
     protected boolean isQueryPacket() {
 
         // if the packet is null, return false
-        if (_receivedPacket == null) {
+        if (_receivedData == null) {
             return false;
         }
 
-        // get the data from the incoming packet
-        String dataString = new String(_receivedPacket.getData());
-
-        // read until we get a null character
-        int position = dataString.indexOf((char) 0);
-
-        // if we have some data, cut it off at the null character
-        if (position > -1) {
-            dataString = dataString.substring(0, position);
-        } // if we don't return false
-        else {
-            return false;
-        }
+        // parse the header in place and compare the service name bytes
+        return _message.read(_receivedData)
+                && _message.getType() == DiscoveryCodec.TYPE_QUERY
+                && _message.isForService(_encodedServiceName);
+    }
 
-        // if this matches the format and service name we have specified, return true
-        if (dataString.startsWith("SERVICE QUERY " + getEncodedServiceName())) {
-            return true;
-        }
+    /**
+     * Generates an unsolicited announcement or goodbye.
+     *
+     * @param type - DiscoveryCodec.TYPE_ANNOUNCE or DiscoveryCodec.TYPE_GOODBYE
+     * @param ttl - the lease in seconds; 0 for a goodbye
+     * @return - a ByteBuffer containing the message
+     */
+    protected ByteBuffer getAnnouncePacket(byte type, int ttl) {
+        return ByteBuffer.wrap(encode(type, ttl));
+    }
 
-        // if all else fails, return false
-        return false;
+    private byte[] encode(byte type, int ttl) {
+        ByteBuffer packet = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeReply(packet, type, _encodedServiceName, _description, ttl);
+        packet.flip();
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return bytes;
     }
 
     /**
-     * Generates the reply packet based off of the values
-     * set for this ServiceResponder.
+     * Generates the reply in the legacy text format.
      *
-     * @return - a DatagramPacket containing the service name and a
-     * description of this server.
+     * @return - a ByteBuffer containing the text reply
      */
-    protected DatagramPacket getReplyPacket() {
+    protected ByteBuffer getLegacyReplyPacket() {
 
         // create an empty string buffer
         StringBuffer buf = new StringBuffer();
@@ -264,18 +394,8 @@ public class ServiceResponder implements Runnable {
         buf.append("SERVICE REPLY " + getEncodedServiceName() + " ");
         buf.append(_description.toString());
 
-        // convert this buffer to a byte array
-        byte[] bytes = buf.toString().getBytes();
-
-        // set the packet to contain these bytes
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
-
-        // finally, set the address and port that we are communicating on
-        packet.setAddress(_multicastAddressGroup);
-        packet.setPort(_multicastPort);
-
-        // return the packet
-        return packet;
+        // convert this buffer to a byte array and wrap it for sending
+        return ByteBuffer.wrap(buf.toString().getBytes());
     }
 
     /**
@@ -284,12 +404,13 @@ public class ServiceResponder implements Runnable {
      */
     public void addShutdownHandler() {
 
-        // add a shutdown hook to this thread
+        // add a shutdown hook to the runtime
         Runtime.getRuntime().addShutdownHook(new Thread() {
 
-            // call stopResponder
+            // call stopResponder and give the goodbye a moment to go out
             public void run() {
                 stopResponder();
+                _engine.flush(500);
             }
         });
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.ServiceListManager;
+import opendropbox.servicediscovery.server.ServiceResponder;
+
+/**
+ * Runs a discovery scenario on a SimulatedNetwork and prints how long it
+ * took and how many packets it cost.  Responders start at random times
+ * within the first second; the run measures when every browser has seen
+ * every responder, then crashes a tenth of the responders without a
+ * goodbye and measures when every browser has dropped them.
+ *
+ * Usage: DiscoverySimulation [responders] [browsers] [loss rate] [seed]
+ *
+ * @author Walter
+ */
+public class DiscoverySimulation {
+
+    // how often the run checks whether the scenario has settled
+    private static final long STEP = 10;
+    private static final long TIMEOUT = 120000;
+
+    public static void main(String[] args) {
+        int responderCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int browserCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        double lossRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        SimulatedNetwork network = new SimulatedNetwork(seed);
+        network.setLatency(1, 10);
+        network.setLossRate(lossRate);
+        network.setDuplicationRate(lossRate / 10);
+        VirtualScheduler clock = network.getScheduler();
+        Random random = new Random(seed);
+
+        final List<ServiceResponder> responders = new ArrayList<ServiceResponder>();
+        final List<DiscoveryEngine> responderEngines = new ArrayList<DiscoveryEngine>();
+        for (int i = 0; i < responderCount; i++) {
+            DiscoveryEngine engine = network.createEngine();
+            SimulatedTransport transport = (SimulatedTransport) engine.getTransport();
+            final ServiceResponder responder = new ServiceResponder(ServiceConstants.SERVICE_NAME, engine);
+            responder.setDescription(new ServiceDescription("node-" + i, transport.getHost(), 4000));
+            clock.schedule(new Runnable() {
+                public void run() {
+                    responder.startResponder();
+                }
+            }, random.nextInt(1000), TimeUnit.MILLISECONDS);
+            responders.add(responder);
+            responderEngines.add(engine);
+        }
+
+        List<ServiceListManager> browsers = new ArrayList<ServiceListManager>();
+        for (int i = 0; i < browserCount; i++) {
+            ServiceListManager manager = new ServiceListManager(ServiceConstants.SERVICE_NAME, network.createEngine());
+            manager.start();
+            browsers.add(manager);
+        }
+
+        System.out.println(responderCount + " responders, " + browserCount + " browsers, loss " + lossRate
+                + ", seed " + seed);
+
+        // phase 1: every browser sees every responder
+        long start = clock.currentTimeMillis();
+        long converged = runUntilSize(clock, browsers, responderCount);
+        report("converged", network, converged < 0 ? -1 : converged - start);
+
+        // phase 2: a tenth of the responders crash, and the browsers drop them once their leases run out
+        network.resetCounters();
+        int crashed = Math.max(1, responderCount / 10);
+        for (int i = 0; i < crashed; i++) {
+            responderEngines.get(i).shutdown();
+        }
+        start = clock.currentTimeMillis();
+        long expired = runUntilSize(clock, browsers, responderCount - crashed);
+        report("dropped " + crashed + " crashed", network, expired < 0 ? -1 : expired - start);
+
+        System.out.println("tasks run: " + clock.getTasksRun() + ", pending: " + clock.getPendingTasks());
+    }
+
+    /**
+     * Runs the clock until every browser lists exactly the given number
+     * of services.
+     *
+     * @return - the time at which they did, or -1 on timeout
+     */
+    private static long runUntilSize(VirtualScheduler clock, List<ServiceListManager> browsers, int size) {
+        long deadline = clock.currentTimeMillis() + TIMEOUT;
+        while (clock.currentTimeMillis() < deadline) {
+            boolean settled = true;
+            for (ServiceListManager browser : browsers) {
+                if (browser.getRegistry().size() != size) {
+                    settled = false;
+                    break;
+                }
+            }
+            if (settled) {
+                return clock.currentTimeMillis();
+            }
+            clock.runFor(STEP);
+        }
+        return -1;
+    }
+
+    private static void report(String phase, SimulatedNetwork network, long time) {
+        System.out.println(phase + (time < 0 ? ": timed out" : " after " + time + " ms") + "; "
+                + network.getPacketsSent() + " packets sent (" + network.getMulticastsSent() + " multicast, "
+                + network.getBytesSent() + " bytes), " + network.getPacketsDelivered() + " delivered, "
+                + network.getPacketsLost() + " lost, " + network.getPacketsDuplicated() + " duplicated");
+    }
+}
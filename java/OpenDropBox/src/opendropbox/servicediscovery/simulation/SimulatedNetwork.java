@@ -0,0 +1,319 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.simulation;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.ServiceConstants;
+
+/**
+ * An in-memory network for running many discovery engines in one JVM on
+ * a virtual clock.  Every packet is delayed by a random latency, and may
+ * be lost or delivered twice; hosts can be split into partitions that
+ * cannot reach each other.  The network's own choices come from one
+ * seeded source; responders and browsers still pick their own jitter.
+ *
+ * A multicast packet reaches every attached host, the sender included;
+ * a unicast packet reaches the host owning the target endpoint, if it is
+ * attached.  The network counts what it carries so that scenarios can
+ * report message overhead next to convergence time.
+ *
+ * @author Walter
+ */
+public class SimulatedNetwork {
+
+    private final VirtualScheduler _scheduler;
+    private final Random _random;
+    private final InetSocketAddress _groupAddress;
+    private final Map<SocketAddress, SimulatedTransport> _endpoints;
+    private final Set<SimulatedTransport> _attached;
+    private final Map<InetAddress, Integer> _partitions;
+    private int _minLatency = 1;
+    private int _maxLatency = 5;
+    private double _lossRate;
+    private double _duplicationRate;
+    private int _nextHost = 1;
+    private long _packetsSent;
+    private long _multicastsSent;
+    private long _bytesSent;
+    private long _packetsDelivered;
+    private long _packetsLost;
+    private long _packetsDuplicated;
+    private long _packetsPartitioned;
+
+    /**
+     * @param seed - seeds every random choice the network makes
+     */
+    public SimulatedNetwork(long seed) {
+        _scheduler = new VirtualScheduler(0);
+        _random = new Random(seed);
+        _endpoints = new HashMap<SocketAddress, SimulatedTransport>();
+        _attached = new LinkedHashSet<SimulatedTransport>();
+        _partitions = new HashMap<InetAddress, Integer>();
+        try {
+            _groupAddress = new InetSocketAddress(
+                    InetAddress.getByName(ServiceConstants.MULTICAST_ADDRESS_GROUP),
+                    ServiceConstants.MULTICAST_PORT);
+        } catch (UnknownHostException uhe) {
+            throw new IllegalStateException(uhe);
+        }
+    }
+
+    /**
+     * @return - the scheduler and clock shared by every simulated host
+     */
+    public VirtualScheduler getScheduler() {
+        return _scheduler;
+    }
+
+    /**
+     * Creates a transport for a new host with an address of its own.
+     *
+     * @return - the host's transport, not yet attached
+     */
+    public synchronized SimulatedTransport createTransport() {
+        int host = _nextHost++;
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(new byte[]{10, (byte) (host >> 16), (byte) (host >> 8), (byte) host});
+        } catch (UnknownHostException uhe) {
+            throw new IllegalStateException(uhe);
+        }
+        SimulatedTransport transport = new SimulatedTransport(this, address,
+                ServiceConstants.MULTICAST_PORT, 40000 + (host % 20000));
+        _endpoints.put(transport.getGroupEndpoint(), transport);
+        _endpoints.put(transport.getPrivateEndpoint(), transport);
+        return transport;
+    }
+
+    /**
+     * Creates a DiscoveryEngine for a new host, running on this network's
+     * virtual clock.
+     *
+     * @return - the engine
+     */
+    public DiscoveryEngine createEngine() {
+        return new DiscoveryEngine(createTransport(), _scheduler, _scheduler);
+    }
+
+    /**
+     * Sets the one-way latency of every packet, picked uniformly between
+     * the two bounds.
+     *
+     * @param minLatency - the shortest latency in milliseconds
+     * @param maxLatency - the longest latency in milliseconds
+     */
+    public synchronized void setLatency(int minLatency, int maxLatency) {
+        if (minLatency < 0 || maxLatency < minLatency) {
+            throw new IllegalArgumentException("invalid latency " + minLatency + ".." + maxLatency);
+        }
+        _minLatency = minLatency;
+        _maxLatency = maxLatency;
+    }
+
+    /**
+     * @param lossRate - the chance, from 0 to 1, that a delivery is lost
+     */
+    public synchronized void setLossRate(double lossRate) {
+        _lossRate = lossRate;
+    }
+
+    /**
+     * @param duplicationRate - the chance, from 0 to 1, that a delivery
+     * is made twice
+     */
+    public synchronized void setDuplicationRate(double duplicationRate) {
+        _duplicationRate = duplicationRate;
+    }
+
+    /**
+     * Moves a host into a partition.  Packets are only delivered between
+     * hosts in the same partition; every host starts in partition 0.
+     *
+     * @param host - the host to move
+     * @param partition - the partition to move it to
+     */
+    public synchronized void setPartition(InetAddress host, int partition) {
+        if (partition == 0) {
+            _partitions.remove(host);
+        } else {
+            _partitions.put(host, partition);
+        }
+    }
+
+    /**
+     * Puts every host back into partition 0.
+     */
+    public synchronized void heal() {
+        _partitions.clear();
+    }
+
+    public InetSocketAddress getGroupAddress() {
+        return _groupAddress;
+    }
+
+    /**
+     * @return - the packets sent, counting a multicast packet once
+     */
+    public synchronized long getPacketsSent() {
+        return _packetsSent;
+    }
+
+    /**
+     * @return - how many of the packets sent were multicast
+     */
+    public synchronized long getMulticastsSent() {
+        return _multicastsSent;
+    }
+
+    /**
+     * @return - the payload bytes sent, counting a multicast packet once
+     */
+    public synchronized long getBytesSent() {
+        return _bytesSent;
+    }
+
+    /**
+     * @return - the packets handed to a receiving host, duplicates included
+     */
+    public synchronized long getPacketsDelivered() {
+        return _packetsDelivered;
+    }
+
+    public synchronized long getPacketsLost() {
+        return _packetsLost;
+    }
+
+    public synchronized long getPacketsDuplicated() {
+        return _packetsDuplicated;
+    }
+
+    /**
+     * @return - the deliveries dropped because the hosts were in different
+     * partitions
+     */
+    public synchronized long getPacketsPartitioned() {
+        return _packetsPartitioned;
+    }
+
+    /**
+     * Sets every counter back to zero, to measure one phase of a scenario.
+     */
+    public synchronized void resetCounters() {
+        _packetsSent = 0;
+        _multicastsSent = 0;
+        _bytesSent = 0;
+        _packetsDelivered = 0;
+        _packetsLost = 0;
+        _packetsDuplicated = 0;
+        _packetsPartitioned = 0;
+    }
+
+    synchronized void attach(SimulatedTransport transport) {
+        _attached.add(transport);
+    }
+
+    synchronized void detach(SimulatedTransport transport) {
+        _attached.remove(transport);
+    }
+
+    /**
+     * Copies the payload and schedules its delivery.  Receivers with the
+     * same latency share one scheduled task, so a multicast to a thousand
+     * hosts costs at most one task per distinct latency.
+     */
+    synchronized void send(SimulatedTransport from, ByteBuffer data, SocketAddress target, SocketAddress source) {
+        if (!_attached.contains(from)) {
+            return;
+        }
+
+        ByteBuffer payload = data.duplicate();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        _packetsSent++;
+        _bytesSent += bytes.length;
+
+        List<SimulatedTransport> receivers;
+        if (_groupAddress.equals(target)) {
+            _multicastsSent++;
+            receivers = new ArrayList<SimulatedTransport>(_attached);
+        } else {
+            receivers = new ArrayList<SimulatedTransport>(1);
+            SimulatedTransport receiver = _endpoints.get(target);
+            if (receiver != null && _attached.contains(receiver)) {
+                receivers.add(receiver);
+            }
+        }
+
+        Integer fromPartition = _partitions.get(from.getHost());
+        Map<Integer, List<SimulatedTransport>> byLatency = new HashMap<Integer, List<SimulatedTransport>>();
+        for (SimulatedTransport receiver : receivers) {
+            Integer toPartition = _partitions.get(receiver.getHost());
+            if (fromPartition == null ? toPartition != null : !fromPartition.equals(toPartition)) {
+                _packetsPartitioned++;
+                continue;
+            }
+            if (_random.nextDouble() < _lossRate) {
+                _packetsLost++;
+                continue;
+            }
+            int copies = _random.nextDouble() < _duplicationRate ? 2 : 1;
+            _packetsDuplicated += copies - 1;
+            for (int i = 0; i < copies; i++) {
+                int latency = _minLatency + _random.nextInt(_maxLatency - _minLatency + 1);
+                List<SimulatedTransport> group = byLatency.get(latency);
+                if (group == null) {
+                    group = new ArrayList<SimulatedTransport>();
+                    byLatency.put(latency, group);
+                }
+                group.add(receiver);
+            }
+        }
+
+        for (Map.Entry<Integer, List<SimulatedTransport>> entry : byLatency.entrySet()) {
+            _scheduler.schedule(new Delivery(entry.getValue(), bytes, source),
+                    entry.getKey(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void delivered() {
+        _packetsDelivered++;
+    }
+
+    private class Delivery implements Runnable {
+
+        private final List<SimulatedTransport> _receivers;
+        private final byte[] _data;
+        private final SocketAddress _source;
+
+        Delivery(List<SimulatedTransport> receivers, byte[] data, SocketAddress source) {
+            _receivers = receivers;
+            _data = data;
+            _source = source;
+        }
+
+        public void run() {
+            for (SimulatedTransport receiver : _receivers) {
+                if (receiver.isOpen()) {
+                    delivered();
+                    receiver.deliver(_data, _source);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.simulation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import opendropbox.servicediscovery.DatagramTransport;
+import opendropbox.servicediscovery.DiscoveryPacketHandler;
+
+/**
+ * One host's attachment to a SimulatedNetwork.  The group endpoint is
+ * the host's address on the multicast port and the private endpoint a
+ * port of its own, just like MulticastTransport.
+ *
+ * @author Walter
+ */
+public class SimulatedTransport implements DatagramTransport {
+
+    private final SimulatedNetwork _network;
+    private final InetAddress _host;
+    private final InetSocketAddress _groupEndpoint;
+    private final InetSocketAddress _privateEndpoint;
+    private volatile DiscoveryPacketHandler _receiver;
+
+    SimulatedTransport(SimulatedNetwork network, InetAddress host, int groupPort, int privatePort) {
+        _network = network;
+        _host = host;
+        _groupEndpoint = new InetSocketAddress(host, groupPort);
+        _privateEndpoint = new InetSocketAddress(host, privatePort);
+    }
+
+    public void open(DiscoveryPacketHandler receiver) throws IOException {
+        _receiver = receiver;
+        _network.attach(this);
+    }
+
+    public void send(ByteBuffer data, SocketAddress target, boolean fromPrivatePort) {
+        _network.send(this, data, target, fromPrivatePort ? _privateEndpoint : _groupEndpoint);
+    }
+
+    public InetSocketAddress getGroupAddress() {
+        return _network.getGroupAddress();
+    }
+
+    public boolean isPrivateEndpoint(SocketAddress source) {
+        return _privateEndpoint.equals(source);
+    }
+
+    public int getPrivatePort() {
+        return _privateEndpoint.getPort();
+    }
+
+    /**
+     * Packets are handed to the network as soon as they are sent.
+     */
+    public void flush(long timeout) {
+    }
+
+    /**
+     * Detaches from the network.  Packets still in flight to this host
+     * are lost, and nothing it sends from now on goes anywhere.
+     */
+    public void close() {
+        _network.detach(this);
+        _receiver = null;
+    }
+
+    /**
+     * @return - true while attached to the network
+     */
+    public boolean isOpen() {
+        return _receiver != null;
+    }
+
+    public InetAddress getHost() {
+        return _host;
+    }
+
+    public InetSocketAddress getGroupEndpoint() {
+        return _groupEndpoint;
+    }
+
+    public InetSocketAddress getPrivateEndpoint() {
+        return _privateEndpoint;
+    }
+
+    void deliver(byte[] data, SocketAddress source) {
+        DiscoveryPacketHandler receiver = _receiver;
+        if (receiver != null) {
+            receiver.packetReceived(ByteBuffer.wrap(data), source);
+        }
+    }
+}
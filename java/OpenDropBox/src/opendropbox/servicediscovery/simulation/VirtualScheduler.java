@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import opendropbox.servicediscovery.DiscoveryClock;
+
+/**
+ * A ScheduledExecutorService on a virtual clock.  Nothing runs until
+ * one of the run methods is called; they then run the due tasks in time
+ * order on the calling thread, moving the clock forward to each task's
+ * time as they go.  Tasks due at the same time run in the order they
+ * were scheduled, so a simulation with a seeded random source is
+ * repeatable.
+ *
+ * @author Walter
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService, DiscoveryClock {
+
+    private final PriorityQueue<Task<?>> _queue;
+    private long _now;
+    private long _sequence;
+    private long _tasksRun;
+    private boolean _shutdown;
+
+    /**
+     * @param startTime - the virtual time to start at, in milliseconds
+     */
+    public VirtualScheduler(long startTime) {
+        _queue = new PriorityQueue<Task<?>>();
+        _now = startTime;
+    }
+
+    public synchronized long currentTimeMillis() {
+        return _now;
+    }
+
+    /**
+     * @return - the number of tasks run so far
+     */
+    public synchronized long getTasksRun() {
+        return _tasksRun;
+    }
+
+    /**
+     * @return - the number of tasks waiting
+     */
+    public synchronized int getPendingTasks() {
+        return _queue.size();
+    }
+
+    /**
+     * Runs every task due up to the given time and leaves the clock there.
+     *
+     * @param time - the virtual time to run until
+     */
+    public void runUntil(long time) {
+        Task<?> task;
+        while ((task = nextTaskDueBy(time)) != null) {
+            task.runTask();
+        }
+        synchronized (this) {
+            _now = Math.max(_now, time);
+        }
+    }
+
+    /**
+     * Runs every task due in the next given milliseconds.
+     *
+     * @param duration - how far to move the clock
+     */
+    public void runFor(long duration) {
+        runUntil(currentTimeMillis() + duration);
+    }
+
+    /**
+     * Runs the next task, whenever it is due.
+     *
+     * @return - false if no task was waiting
+     */
+    public boolean runNext() {
+        Task<?> task = nextTaskDueBy(Long.MAX_VALUE);
+        if (task == null) {
+            return false;
+        }
+        task.runTask();
+        return true;
+    }
+
+    private synchronized Task<?> nextTaskDueBy(long time) {
+        Task<?> task = _queue.peek();
+        if (task == null || task.time > time) {
+            return null;
+        }
+        _queue.poll();
+        _now = Math.max(_now, task.time);
+        _tasksRun++;
+        return task;
+    }
+
+    private synchronized <V> Task<V> enqueue(Task<V> task) {
+        if (!_shutdown) {
+            _queue.add(task);
+        }
+        return task;
+    }
+
+    private synchronized long nextSequence() {
+        return _sequence++;
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new Task<Object>(command, null, timeAfter(delay, unit), 0));
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new Task<V>(null, callable, timeAfter(delay, unit), 0));
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return enqueue(new Task<Object>(command, null, timeAfter(initialDelay, unit), unit.toMillis(period)));
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        // nothing takes time on a virtual clock, so the two are the same
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private long timeAfter(long delay, TimeUnit unit) {
+        return currentTimeMillis() + Math.max(0, unit.toMillis(delay));
+    }
+
+    public synchronized void shutdown() {
+        _shutdown = true;
+    }
+
+    public synchronized List<Runnable> shutdownNow() {
+        _shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>(_queue);
+        _queue.clear();
+        return pending;
+    }
+
+    public synchronized boolean isShutdown() {
+        return _shutdown;
+    }
+
+    public synchronized boolean isTerminated() {
+        return _shutdown && _queue.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private class Task<V> implements ScheduledFuture<V>, Runnable {
+
+        private final Runnable _runnable;
+        private final Callable<V> _callable;
+        private final long _period;
+        private long _order;
+        long time;
+        private boolean _cancelled;
+        private boolean _done;
+        private V _result;
+        private Throwable _failure;
+
+        Task(Runnable runnable, Callable<V> callable, long time, long period) {
+            _runnable = runnable;
+            _callable = callable;
+            _period = period;
+            _order = nextSequence();
+            this.time = time;
+        }
+
+        void runTask() {
+            synchronized (this) {
+                if (_cancelled) {
+                    return;
+                }
+            }
+            try {
+                if (_callable != null) {
+                    V result = _callable.call();
+                    synchronized (this) {
+                        _result = result;
+                    }
+                } else {
+                    _runnable.run();
+                }
+            } catch (Throwable t) {
+                System.err.println("Unexpected exception: " + t);
+                t.printStackTrace();
+                synchronized (this) {
+                    _failure = t;
+                    _done = true;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (_period > 0 && !_cancelled) {
+                    time += _period;
+                    _order = nextSequence();
+                } else {
+                    _done = true;
+                    return;
+                }
+            }
+            enqueue(this);
+        }
+
+        public void run() {
+            runTask();
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            Task<?> other = (Task<?>) o;
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return _order < other._order ? -1 : (_order == other._order ? 0 : 1);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (_done) {
+                    return false;
+                }
+                _cancelled = true;
+                _done = true;
+            }
+            synchronized (VirtualScheduler.this) {
+                _queue.remove(this);
+            }
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return _cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return _done;
+        }
+
+        public synchronized V get() throws ExecutionException {
+            // there is no other thread to wait for
+            if (_failure != null) {
+                throw new ExecutionException(_failure);
+            }
+            return _result;
+        }
+
+        public V get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
+            if (!isDone()) {
+                throw new TimeoutException();
+            }
+            return get();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import opendropbox.storage.MerkleTree.Digest;
+
+/**
+ * A node's local store of chunks, addressed by the SHA-256 of their
+ * contents.  Chunks are appended to large segment files, rolling over to
+ * a new segment when the current one is full, so writes stay sequential.
+ * A chunk that is already stored is not written again.
+ *
+ * Where each chunk lives is held in memory in a ChunkIndex, which is
+ * rebuilt from the segment files when the store is opened.  Reads go
+ * straight to the segment's FileChannel and may run concurrently with
+ * each other and with writes.
+ *
+ * A MerkleTree over the stored chunks is rebuilt along with the index
+ * and updated by every put, so that getDigests() and getChunks() can
+ * tell a peer where its copy of a range of the ring differs from this
+ * one without listing the whole range.
+ *
+ * Nothing is forced to disk until sync() or close() is called.
+ *
+ * @author Walter
+ */
+public class BlockStore implements ChunkSink {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+    public static final int MAX_CHUNK_LENGTH = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File _directory;
+    private final long _segmentSize;
+    private final ChunkIndex _index;
+    private final MerkleTree _tree;
+    private final List<Segment> _segments;
+    private Segment _current;
+    private long _bytesStored;
+    private boolean _closed;
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param directory - where the segment files are kept
+     */
+    public BlockStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param directory - where the segment files are kept
+     * @param segmentSize - the size at which a new segment is started
+     */
+    public BlockStore(File directory, long segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        _directory = directory;
+        _segmentSize = segmentSize;
+        _index = new ChunkIndex(1024);
+        _segments = new ArrayList<Segment>();
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            int number = getSegmentNumber(file.getName());
+            if (number < 0) {
+                continue;
+            }
+            Segment segment = new Segment(file, number);
+            segment.scan(_index);
+            _bytesStored += segment.size();
+            while (_segments.size() < number) {
+                _segments.add(null);
+            }
+            _segments.add(segment);
+            _current = segment;
+        }
+        if (_current == null) {
+            _current = createSegment(0);
+        }
+
+        _tree = new MerkleTree(MerkleTree.DEFAULT_DEPTH);
+        _index.visit(Long.MIN_VALUE, Long.MAX_VALUE, new ChunkIndex.Visitor() {
+            public void visit(ChunkHash hash, int length) {
+                _tree.add(hash);
+            }
+        });
+    }
+
+    /**
+     * Stores a chunk.
+     *
+     * @param data - the array holding the chunk
+     * @param offset - where the chunk starts
+     * @param length - the chunk's length, from 1 to MAX_CHUNK_LENGTH
+     * @return - the chunk's hash
+     */
+    public ChunkHash put(byte[] data, int offset, int length) throws IOException {
+        ChunkHash hash = ChunkHash.of(data, offset, length);
+        put(hash, ByteBuffer.wrap(data, offset, length));
+        return hash;
+    }
+
+    /**
+     * Stores a chunk received from elsewhere under the hash it was asked
+     * for, after checking that the contents match it.
+     *
+     * @param hash - the hash the chunk should have
+     * @param data - the chunk, between the buffer's position and limit
+     * @throws IOException if the contents do not match the hash
+     */
+    public void putVerified(ChunkHash hash, ByteBuffer data) throws IOException {
+        if (!ChunkHash.of(data).equals(hash)) {
+            throw new IOException("Chunk does not match its hash " + hash);
+        }
+        put(hash, data.duplicate());
+    }
+
+    private synchronized void put(ChunkHash hash, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (length <= 0 || length > MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("chunk length " + length);
+        }
+        checkOpen();
+        if (_index.contains(hash)) {
+            return;
+        }
+        if (_current.size() > 0 && _current.size() + Segment.HEADER_LENGTH + length > _segmentSize) {
+            _current = createSegment(_current.getNumber() + 1);
+        }
+        long offset = _current.append(hash, data);
+        _index.put(hash, ChunkIndex.getLocation(_current.getNumber(), offset), length);
+        _tree.add(hash);
+        _bytesStored += Segment.HEADER_LENGTH + length;
+    }
+
+    /**
+     * Reads a chunk.
+     *
+     * @param hash - the chunk's hash
+     * @return - the chunk, or null if it is not stored here
+     */
+    public byte[] get(ChunkHash hash) throws IOException {
+        Segment segment;
+        long offset;
+        int length;
+        synchronized (this) {
+            checkOpen();
+            length = _index.getLength(hash);
+            if (length == 0) {
+                return null;
+            }
+            long location = _index.getLocation(hash);
+            segment = _segments.get(ChunkIndex.getSegment(location));
+            offset = ChunkIndex.getOffset(location);
+        }
+        return segment.read(offset, length).array();
+    }
+
+    /**
+     * Finds a chunk for sending straight from its segment file.
+     *
+     * @param hash - the chunk's hash
+     * @return - where the chunk is, or null if it is not stored here
+     */
+    public synchronized ChunkRegion locate(ChunkHash hash) throws IOException {
+        checkOpen();
+        int length = _index.getLength(hash);
+        if (length == 0) {
+            return null;
+        }
+        long location = _index.getLocation(hash);
+        Segment segment = _segments.get(ChunkIndex.getSegment(location));
+        return new ChunkRegion(segment.getChannel(),
+                ChunkIndex.getOffset(location) + Segment.HEADER_LENGTH, length);
+    }
+
+    public synchronized boolean contains(ChunkHash hash) {
+        return _index.contains(hash);
+    }
+
+    /**
+     * @param hash - the chunk's hash
+     * @return - the chunk's length, or 0 if it is not stored here
+     */
+    public synchronized int getLength(ChunkHash hash) {
+        return _index.getLength(hash);
+    }
+
+    /**
+     * @return - the number of chunks stored
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     * @return - the number of levels of the MerkleTree below its root
+     */
+    public int getTreeDepth() {
+        return _tree.getDepth();
+    }
+
+    /**
+     * Digests the chunks under some nodes of the MerkleTree that fall
+     * in a set of ranges.  A node wholly inside the ranges costs one
+     * lookup; only the leaves that straddle an end of a range have their
+     * chunks listed.
+     *
+     * @param level - a level of the tree
+     * @param indexes - nodes of that level
+     * @param ranges - the positions to count
+     * @return - the digest of each node
+     */
+    public synchronized Digest[] getDigests(int level, int[] indexes, PositionRanges ranges) {
+        if (level < 0 || level > _tree.getDepth()) {
+            throw new IllegalArgumentException("level " + level);
+        }
+        Digest[] digests = new Digest[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            digests[i] = getDigest(level, indexes[i], ranges);
+        }
+        return digests;
+    }
+
+    private Digest getDigest(int level, int index, PositionRanges ranges) {
+        long first = MerkleTree.getFirst(level, index);
+        long last = MerkleTree.getLast(level, index);
+        int overlap = ranges.classify(first, last);
+        if (overlap == PositionRanges.COVERED) {
+            return _tree.getDigest(level, index);
+        }
+        if (overlap == PositionRanges.DISJOINT) {
+            return Digest.EMPTY;
+        }
+        if (level == _tree.getDepth()) {
+            Digest digest = Digest.EMPTY;
+            for (ChunkHash hash : getChunks(first, last, ranges)) {
+                digest = digest.add(Digest.of(hash));
+            }
+            return digest;
+        }
+        return getDigest(level + 1, index * 2, ranges).add(getDigest(level + 1, index * 2 + 1, ranges));
+    }
+
+    /**
+     * Lists the chunks in a range of positions that also fall in a set
+     * of ranges.
+     *
+     * @param first - the first position
+     * @param last - the last position, inclusive
+     * @param ranges - the positions wanted
+     * @return - the chunks' hashes
+     */
+    public synchronized List<ChunkHash> getChunks(long first, long last, final PositionRanges ranges) {
+        final List<ChunkHash> chunks = new ArrayList<ChunkHash>();
+        _index.visit(first, last, new ChunkIndex.Visitor() {
+            public void visit(ChunkHash hash, int length) {
+                if (ranges.contains(hash.getWord(0))) {
+                    chunks.add(hash);
+                }
+            }
+        });
+        return chunks;
+    }
+
+    /**
+     * @return - the total length of the segment files
+     */
+    public synchronized long getBytesStored() {
+        return _bytesStored;
+    }
+
+    /**
+     * Splits a stream into chunks and stores each one.
+     *
+     * @param in - the data; read to its end but not closed
+     * @param chunker - decides where the chunks are cut
+     * @return - the hashes of the chunks in order, from which getStream()
+     * puts the data back together
+     */
+    public List<ChunkHash> putStream(InputStream in, Chunker chunker) throws IOException {
+        return split(in, chunker, this);
+    }
+
+    /**
+     * Splits a stream into chunks and writes each one to a sink.
+     *
+     * @param in - the data; read to its end but not closed
+     * @param chunker - decides where the chunks are cut
+     * @param sink - where the chunks go
+     * @return - the hashes of the chunks in order
+     */
+    public static List<ChunkHash> split(InputStream in, Chunker chunker, ChunkSink sink) throws IOException {
+        if (chunker.getMaxChunkLength() > MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("chunks of up to " + chunker.getMaxChunkLength() + " bytes");
+        }
+        List<ChunkHash> chunks = new ArrayList<ChunkHash>();
+        byte[] buf = new byte[Math.max(64 * 1024, chunker.getMaxChunkLength() * 2)];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            int length = chunker.nextChunkLength(buf, start, end - start);
+            if (length < 0) {
+                if (eof) {
+                    if (end > start) {
+                        chunks.add(sink.put(buf, start, end - start));
+                    }
+                    return chunks;
+                }
+                // move what is left to the front and read more after it
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    end += n;
+                }
+                continue;
+            }
+            chunks.add(sink.put(buf, start, length));
+            start += length;
+        }
+    }
+
+    /**
+     * Splits a file into chunks and stores each one.
+     *
+     * @param file - the file to store
+     * @param chunker - decides where the chunks are cut
+     * @return - the hashes of the chunks in order
+     */
+    public List<ChunkHash> putFile(File file, Chunker chunker) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return putStream(in, chunker);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the given chunks one after the other.
+     *
+     * @param chunks - the hashes returned by putStream()
+     * @param out - where to write them; not closed
+     * @throws IOException if a chunk is not stored here
+     */
+    public void getStream(List<ChunkHash> chunks, OutputStream out) throws IOException {
+        for (ChunkHash hash : chunks) {
+            byte[] data = get(hash);
+            if (data == null) {
+                throw new IOException("Missing chunk " + hash);
+            }
+            out.write(data);
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        _current.force();
+    }
+
+    public synchronized void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _current.force();
+        for (Segment segment : _segments) {
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return _directory;
+    }
+
+    private void checkOpen() throws IOException {
+        if (_closed) {
+            throw new IOException("Block store " + _directory + " is closed");
+        }
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        if (number > 0xFFFF) {
+            throw new IOException("Block store " + _directory + " is full");
+        }
+        if (_current != null) {
+            // the segment being left will not be written again
+            _current.force();
+        }
+        Segment segment = new Segment(new File(_directory, String.format("%s%06d%s",
+                SEGMENT_PREFIX, number, SEGMENT_SUFFIX)), number);
+        while (_segments.size() < number) {
+            _segments.add(null);
+        }
+        _segments.add(segment);
+        return segment;
+    }
+
+    private static int getSegmentNumber(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            return number >= 0 && number <= 0xFFFF ? number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-256 of a chunk's contents, which is also its address.  The 32
+ * bytes are kept as four longs so that the ChunkIndex can store them in
+ * primitive arrays.
+ *
+ * @author Walter
+ */
+public final class ChunkHash implements Comparable<ChunkHash> {
+
+    public static final int LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> _digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every JVM is required to provide SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long _w0;
+    private final long _w1;
+    private final long _w2;
+    private final long _w3;
+
+    public ChunkHash(long w0, long w1, long w2, long w3) {
+        _w0 = w0;
+        _w1 = w1;
+        _w2 = w2;
+        _w3 = w3;
+    }
+
+    /**
+     * Hashes a chunk.
+     *
+     * @param data - the array holding the chunk
+     * @param offset - where the chunk starts
+     * @param length - the chunk's length
+     * @return - its hash
+     */
+    public static ChunkHash of(byte[] data, int offset, int length) {
+        MessageDigest digest = _digests.get();
+        digest.update(data, offset, length);
+        return fromBytes(digest.digest(), 0);
+    }
+
+    /**
+     * Hashes the bytes between a buffer's position and limit, leaving
+     * the position where it was.
+     *
+     * @param data - the chunk
+     * @return - its hash
+     */
+    public static ChunkHash of(ByteBuffer data) {
+        MessageDigest digest = _digests.get();
+        digest.update(data.duplicate());
+        return fromBytes(digest.digest(), 0);
+    }
+
+    /**
+     * @param bytes - an array holding a hash
+     * @param offset - where the 32 bytes start
+     * @return - the hash
+     */
+    public static ChunkHash fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes, offset, LENGTH);
+        return new ChunkHash(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+    }
+
+    /**
+     * Reads a hash at the buffer's position and moves past it.
+     *
+     * @param in - the buffer to read from
+     * @return - the hash
+     */
+    public static ChunkHash read(ByteBuffer in) {
+        return new ChunkHash(in.getLong(), in.getLong(), in.getLong(), in.getLong());
+    }
+
+    /**
+     * @param hex - 64 hexadecimal digits, as returned by toString()
+     * @return - the hash
+     * @throws IllegalArgumentException if the string is not a hash
+     */
+    public static ChunkHash fromHex(String hex) {
+        if (hex.length() != LENGTH * 2) {
+            throw new IllegalArgumentException("not a chunk hash: " + hex);
+        }
+        byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("not a chunk hash: " + hex);
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    /**
+     * Writes the 32 bytes at the buffer's position.
+     *
+     * @param out - the buffer to write into
+     */
+    public void write(ByteBuffer out) {
+        out.putLong(_w0).putLong(_w1).putLong(_w2).putLong(_w3);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH);
+        write(buf);
+        return buf.array();
+    }
+
+    /**
+     * @param index - 0 to 3
+     * @return - the index'th eight bytes of the hash, big endian
+     */
+    public long getWord(int index) {
+        switch (index) {
+            case 0: return _w0;
+            case 1: return _w1;
+            case 2: return _w2;
+            case 3: return _w3;
+            default: throw new IndexOutOfBoundsException("word " + index);
+        }
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkHash)) {
+            return false;
+        }
+        ChunkHash h = (ChunkHash) o;
+        return _w0 == h._w0 && _w1 == h._w1 && _w2 == h._w2 && _w3 == h._w3;
+    }
+
+    public int hashCode() {
+        // the hash is already uniformly distributed
+        return (int) _w0;
+    }
+
+    public int compareTo(ChunkHash h) {
+        int c = Long.compareUnsigned(_w0, h._w0);
+        if (c == 0) {
+            c = Long.compareUnsigned(_w1, h._w1);
+        }
+        if (c == 0) {
+            c = Long.compareUnsigned(_w2, h._w2);
+        }
+        if (c == 0) {
+            c = Long.compareUnsigned(_w3, h._w3);
+        }
+        return c;
+    }
+
+    public String toString() {
+        byte[] bytes = toBytes();
+        char[] hex = new char[LENGTH * 2];
+        for (int i = 0; i < LENGTH; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
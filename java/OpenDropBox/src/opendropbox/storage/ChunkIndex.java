@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+/**
+ * Maps chunk hashes to where the chunks are stored, in flat primitive
+ * arrays with open addressing and linear probing.  A slot takes four
+ * longs of key, one long of location and one int of length, and no
+ * object is allocated per entry, so millions of chunks cost tens of
+ * bytes each and lookups touch one or two cache lines.
+ *
+ * A chunk's home slot is taken from the top bits of the first word of
+ * its hash, read as a position on the ring, so slots are in ring order
+ * and the chunks in any range of positions lie in one run of slots.
+ * visit() lists them by scanning that run alone.
+ *
+ * A location packs the segment number into its top 16 bits and the
+ * offset within the segment into the low 48.  Chunks are never
+ * removed; the store is append only.
+ *
+ * Not thread safe; the BlockStore serialises access.
+ *
+ * @author Walter
+ */
+public class ChunkIndex {
+
+    private static final int OFFSET_BITS = 48;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final double MAX_LOAD = 0.7;
+
+    private long[] _keys;
+    private long[] _locations;
+    private int[] _lengths;
+    private int _mask;
+    // 64 less the number of bits in a slot number
+    private int _shift;
+    private int _size;
+
+    /**
+     * @param expectedChunks - how many chunks to size the table for
+     */
+    public ChunkIndex(int expectedChunks) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedChunks / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public static long getLocation(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    public static int getSegment(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    public static long getOffset(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    /**
+     * @return - the number of chunks indexed
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Adds a chunk, or moves it if it is already indexed.
+     *
+     * @param hash - the chunk's hash
+     * @param location - from getLocation()
+     * @param length - the chunk's length, at least 1
+     */
+    public void put(ChunkHash hash, long location, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("length " + length);
+        }
+        if (_size + 1 > _mask * MAX_LOAD) {
+            allocate((_mask + 1) * 2);
+        }
+        int slot = find(hash.getWord(0), hash.getWord(1), hash.getWord(2), hash.getWord(3));
+        if (_lengths[slot] == 0) {
+            _size++;
+            int k = slot * 4;
+            _keys[k] = hash.getWord(0);
+            _keys[k + 1] = hash.getWord(1);
+            _keys[k + 2] = hash.getWord(2);
+            _keys[k + 3] = hash.getWord(3);
+        }
+        _locations[slot] = location;
+        _lengths[slot] = length;
+    }
+
+    /**
+     * @param hash - the chunk's hash
+     * @return - the chunk's location, or -1 if it is not indexed
+     */
+    public long getLocation(ChunkHash hash) {
+        int slot = find(hash.getWord(0), hash.getWord(1), hash.getWord(2), hash.getWord(3));
+        return _lengths[slot] == 0 ? -1 : _locations[slot];
+    }
+
+    /**
+     * @param hash - the chunk's hash
+     * @return - the chunk's length, or 0 if it is not indexed
+     */
+    public int getLength(ChunkHash hash) {
+        return _lengths[find(hash.getWord(0), hash.getWord(1), hash.getWord(2), hash.getWord(3))];
+    }
+
+    public boolean contains(ChunkHash hash) {
+        return getLength(hash) != 0;
+    }
+
+    /**
+     * Calls the visitor for each chunk whose position, the first word of
+     * its hash, is in a range.  Only the slots of the range and the run
+     * of full slots after it are looked at.
+     *
+     * @param first - the first position, as a signed long
+     * @param last - the last position, inclusive
+     * @param visitor - called for each chunk in the range
+     */
+    public void visit(long first, long last, Visitor visitor) {
+        if (first > last) {
+            return;
+        }
+        int start = getHome(first);
+        int span = getHome(last) - start;
+        // a chunk sits at or after its home slot, before the next empty
+        // one, so after the home slots of the range only that run is left,
+        // and no slot is looked at twice
+        for (int i = 0; i <= span || i <= _mask && _lengths[(start + i) & _mask] != 0; i++) {
+            int slot = (start + i) & _mask;
+            if (_lengths[slot] == 0) {
+                continue;
+            }
+            int k = slot * 4;
+            if (_keys[k] >= first && _keys[k] <= last) {
+                visitor.visit(new ChunkHash(_keys[k], _keys[k + 1], _keys[k + 2], _keys[k + 3]), _lengths[slot]);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot where it would
+     * go.  There is always an empty slot since the load stays below 1.
+     */
+    private int find(long w0, long w1, long w2, long w3) {
+        int slot = getHome(w0);
+        while (true) {
+            if (_lengths[slot] == 0) {
+                return slot;
+            }
+            int k = slot * 4;
+            if (_keys[k] == w0 && _keys[k + 1] == w1 && _keys[k + 2] == w2 && _keys[k + 3] == w3) {
+                return slot;
+            }
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    /**
+     * @return - the slot a position belongs in; SHA-256 is uniform, so
+     * the first word needs no further mixing
+     */
+    private int getHome(long position) {
+        // flipping the sign bit puts signed positions in unsigned order
+        return (int) ((position ^ Long.MIN_VALUE) >>> _shift);
+    }
+
+    private void allocate(int capacity) {
+        long[] keys = _keys;
+        long[] locations = _locations;
+        int[] lengths = _lengths;
+
+        _keys = new long[capacity * 4];
+        _locations = new long[capacity];
+        _lengths = new int[capacity];
+        _mask = capacity - 1;
+        _shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        if (lengths != null) {
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] != 0) {
+                    int k = i * 4;
+                    int slot = find(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]);
+                    System.arraycopy(keys, k, _keys, slot * 4, 4);
+                    _locations[slot] = locations[i];
+                    _lengths[slot] = lengths[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the chunks found by visit().
+     */
+    public interface Visitor {
+
+        /**
+         * @param hash - a chunk's hash
+         * @param length - its length
+         */
+        void visit(ChunkHash hash, int length);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where a stored chunk's bytes sit in its segment file, so that they can
+ * be sent with FileChannel.transferTo() without passing through the heap.
+ *
+ * @author Walter
+ */
+public final class ChunkRegion {
+
+    private final FileChannel _channel;
+    private final long _position;
+    private final int _length;
+
+    ChunkRegion(FileChannel channel, long position, int length) {
+        _channel = channel;
+        _position = position;
+        _length = length;
+    }
+
+    /**
+     * @return - the chunk's length
+     */
+    public int getLength() {
+        return _length;
+    }
+
+    /**
+     * Sends part of the chunk.  On a non-blocking target fewer bytes than
+     * asked for may be sent.
+     *
+     * @param offset - how far into the chunk to start
+     * @param target - where to send it
+     * @return - the number of bytes sent
+     */
+    public long transferTo(long offset, WritableByteChannel target) throws IOException {
+        return _channel.transferTo(_position + offset, _length - offset, target);
+    }
+}
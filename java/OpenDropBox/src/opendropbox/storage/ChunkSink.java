@@ -0,0 +1,28 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.IOException;
+
+/**
+ * Somewhere chunks can be written, such as a local BlockStore or a
+ * replication chain.  BlockStore.split() cuts a stream into chunks for
+ * any sink.
+ *
+ * @author Walter
+ */
+public interface ChunkSink {
+
+    /**
+     * Stores a chunk.  The data may be reused as soon as this returns.
+     *
+     * @param data - the array holding the chunk
+     * @param offset - where the chunk starts
+     * @param length - the chunk's length, from 1 to MAX_CHUNK_LENGTH
+     * @return - the chunk's hash
+     */
+    public abstract ChunkHash put(byte[] data, int offset, int length) throws IOException;
+}
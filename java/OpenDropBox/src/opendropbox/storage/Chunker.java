@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+/**
+ * Decides where a stream of data is cut into chunks.
+ *
+ * @author Walter
+ */
+public interface Chunker {
+
+    /**
+     * Finds the end of the chunk that starts at the given offset.
+     *
+     * @param data - the data
+     * @param offset - where the chunk starts
+     * @param length - how many bytes are available from the offset
+     * @return - the length of the chunk, or -1 if its end cannot be
+     * decided without more data.  At the end of the stream the caller
+     * takes whatever remains as the last chunk.
+     */
+    public abstract int nextChunkLength(byte[] data, int offset, int length);
+
+    /**
+     * @return - the longest chunk this chunker will produce
+     */
+    public abstract int getMaxChunkLength();
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+/**
+ * Cuts data where its contents say so, using a gear rolling hash: each
+ * byte shifts the hash left and adds a random value for that byte, and
+ * a boundary falls wherever the top bits of the hash are all zero.  The
+ * hash only depends on the last 64 bytes, so an edit moves the
+ * boundaries around it and leaves the rest where they were, and the
+ * unchanged chunks of a new version deduplicate against the old.
+ *
+ * Chunks are kept between a minimum and a maximum length; the minimum
+ * also lets the scan skip the first bytes of every chunk.
+ *
+ * @author Walter
+ */
+public class ContentDefinedChunker implements Chunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // splitmix64, so the table is the same in every JVM and version
+        long seed = 0x4F44422D43444300L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int _minLength;
+    private final int _maxLength;
+    private final long _mask;
+
+    /**
+     * Creates a chunker averaging 64 KB chunks, between 16 KB and 256 KB.
+     */
+    public ContentDefinedChunker() {
+        this(16 * 1024, 64 * 1024, 256 * 1024);
+    }
+
+    /**
+     * @param minLength - the shortest chunk, except the last
+     * @param averageLength - the average chunk length, a power of two
+     * @param maxLength - the longest chunk
+     */
+    public ContentDefinedChunker(int minLength, int averageLength, int maxLength) {
+        if (minLength <= 0 || averageLength < minLength || maxLength < averageLength
+                || Integer.bitCount(averageLength) != 1) {
+            throw new IllegalArgumentException("invalid chunk lengths " + minLength + "/"
+                    + averageLength + "/" + maxLength);
+        }
+        _minLength = minLength;
+        _maxLength = maxLength;
+        // a boundary is expected once every (average - minimum) bytes
+        // scanned; rounding up to the top bits keeps the test cheap
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, averageLength - minLength) - 1);
+        _mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= _minLength) {
+            return -1;
+        }
+        int end = offset + Math.min(length, _maxLength);
+        long hash = 0;
+        for (int i = offset + _minLength; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & _mask) == 0) {
+                return i + 1 - offset;
+            }
+        }
+        return length >= _maxLength ? _maxLength : -1;
+    }
+
+    public int getMaxChunkLength() {
+        return _maxLength;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The chunks a file was split into, in order, with the length of each
+ * so that any chunk's place in the file is known without the others.
+ *
+ * @author Walter
+ */
+public class FileManifest {
+
+    private final List<ChunkHash> _hashes;
+    private final int[] _lengths;
+    private final long[] _offsets;
+    private final long _length;
+
+    /**
+     * @param hashes - the chunks in file order
+     * @param lengths - the length of each chunk
+     */
+    public FileManifest(List<ChunkHash> hashes, int[] lengths) {
+        if (hashes.size() != lengths.length) {
+            throw new IllegalArgumentException(hashes.size() + " hashes but " + lengths.length + " lengths");
+        }
+        _hashes = Collections.unmodifiableList(new ArrayList<ChunkHash>(hashes));
+        _lengths = lengths.clone();
+        _offsets = new long[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            _offsets[i] = offset;
+            offset += lengths[i];
+        }
+        _length = offset;
+    }
+
+    /**
+     * Builds the manifest of chunks held in a store, as returned by
+     * BlockStore.putStream().
+     *
+     * @param store - the store holding the chunks
+     * @param hashes - the chunks in file order
+     * @return - the manifest
+     * @throws IOException if a chunk is not in the store
+     */
+    public static FileManifest of(BlockStore store, List<ChunkHash> hashes) throws IOException {
+        int[] lengths = new int[hashes.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = store.getLength(hashes.get(i));
+            if (lengths[i] == 0) {
+                throw new IOException("Missing chunk " + hashes.get(i));
+            }
+        }
+        return new FileManifest(hashes, lengths);
+    }
+
+    public int getChunkCount() {
+        return _lengths.length;
+    }
+
+    public ChunkHash getHash(int chunk) {
+        return _hashes.get(chunk);
+    }
+
+    public int getLength(int chunk) {
+        return _lengths[chunk];
+    }
+
+    /**
+     * @param chunk - the chunk's index
+     * @return - where in the file the chunk starts
+     */
+    public long getOffset(int chunk) {
+        return _offsets[chunk];
+    }
+
+    /**
+     * @return - the length of the whole file
+     */
+    public long getFileLength() {
+        return _length;
+    }
+
+    public List<ChunkHash> getHashes() {
+        return _hashes;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+/**
+ * Cuts data into chunks of one size.  Cheapest to compute, but an
+ * insertion near the start of a file moves every later boundary, so
+ * nothing after it deduplicates against the old version.
+ *
+ * @author Walter
+ */
+public class FixedSizeChunker implements Chunker {
+
+    private final int _chunkLength;
+
+    /**
+     * @param chunkLength - the length of every chunk but the last
+     */
+    public FixedSizeChunker(int chunkLength) {
+        if (chunkLength <= 0) {
+            throw new IllegalArgumentException("chunk length " + chunkLength);
+        }
+        _chunkLength = chunkLength;
+    }
+
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        return length >= _chunkLength ? _chunkLength : -1;
+    }
+
+    public int getMaxChunkLength() {
+        return _chunkLength;
+    }
+}
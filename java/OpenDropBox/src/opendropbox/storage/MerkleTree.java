@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash tree over the chunks of a store, kept up to date as chunks are
+ * added, so that two stores can find out where they differ by comparing
+ * a few digests instead of every hash.
+ *
+ * The ring of chunk positions, the first word of each hash, is cut into
+ * 2^depth equal leaves, and each node of the tree covers the leaves
+ * below it.  A node's digest is the number of chunks under it and the
+ * sums of the second and third words of their hashes.  Sums rather than
+ * a hash of the children's digests let a chunk be added in any order by
+ * updating the depth + 1 nodes above it, and make a parent's digest the
+ * sum of its children's.  The words of SHA-256 are uniform, so two
+ * different sets of chunks have the same digest by chance with a
+ * probability of about 2^-128.
+ *
+ * Node i of a level covers positions getFirst(level, i) to
+ * getLast(level, i); the root is node 0 of level 0.
+ *
+ * Not thread safe; the BlockStore serialises access.
+ *
+ * @author Walter
+ */
+public class MerkleTree {
+
+    public static final int DEFAULT_DEPTH = 16;
+    public static final int MAX_DEPTH = 24;
+
+    private final int _depth;
+    // node i of a level is at (1 << level) + i
+    private final long[] _counts;
+    private final long[] _sums1;
+    private final long[] _sums2;
+
+    /**
+     * @param depth - the number of levels below the root, from 1 to
+     * MAX_DEPTH
+     */
+    public MerkleTree(int depth) {
+        if (depth < 1 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("depth " + depth);
+        }
+        _depth = depth;
+        _counts = new long[2 << depth];
+        _sums1 = new long[2 << depth];
+        _sums2 = new long[2 << depth];
+    }
+
+    public int getDepth() {
+        return _depth;
+    }
+
+    /**
+     * Adds a chunk.  The caller must add each chunk only once.
+     *
+     * @param hash - the chunk's hash
+     */
+    public void add(ChunkHash hash) {
+        long w1 = hash.getWord(1);
+        long w2 = hash.getWord(2);
+        for (int node = (1 << _depth) + getLeaf(hash.getWord(0)); node > 0; node >>>= 1) {
+            _counts[node]++;
+            _sums1[node] += w1;
+            _sums2[node] += w2;
+        }
+    }
+
+    /**
+     * @param level - from 0 to the depth
+     * @param index - a node of that level
+     * @return - the digest of the chunks under it
+     */
+    public Digest getDigest(int level, int index) {
+        int node = getNode(level, index);
+        return new Digest(_counts[node], _sums1[node], _sums2[node]);
+    }
+
+    /**
+     * @param position - a position on the ring
+     * @return - the leaf it falls in
+     */
+    public int getLeaf(long position) {
+        return (int) ((position ^ Long.MIN_VALUE) >>> (64 - _depth));
+    }
+
+    /**
+     * @param level - a level of any tree
+     * @param index - a node of that level
+     * @return - the first position the node covers
+     */
+    public static long getFirst(int level, int index) {
+        if (level == 0) {
+            return Long.MIN_VALUE;
+        }
+        return ((long) index << (64 - level)) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @param level - a level of any tree
+     * @param index - a node of that level
+     * @return - the last position the node covers, inclusive
+     */
+    public static long getLast(int level, int index) {
+        if (level == 0) {
+            return Long.MAX_VALUE;
+        }
+        return getFirst(level, index) + ((1L << (64 - level)) - 1);
+    }
+
+    private int getNode(int level, int index) {
+        if (level < 0 || level > _depth || index < 0 || index >= 1 << level) {
+            throw new IllegalArgumentException("node " + index + " of level " + level);
+        }
+        return (1 << level) + index;
+    }
+
+    /**
+     * The digest of a set of chunks.  Encoded as
+     *
+     *   count (8 bytes) | sum of second words (8 bytes) | sum of third words (8 bytes)
+     */
+    public static final class Digest {
+
+        public static final int LENGTH = 24;
+        public static final Digest EMPTY = new Digest(0, 0, 0);
+
+        private final long _count;
+        private final long _sum1;
+        private final long _sum2;
+
+        public Digest(long count, long sum1, long sum2) {
+            _count = count;
+            _sum1 = sum1;
+            _sum2 = sum2;
+        }
+
+        /**
+         * @param hash - a chunk's hash
+         * @return - the digest of it alone
+         */
+        public static Digest of(ChunkHash hash) {
+            return new Digest(1, hash.getWord(1), hash.getWord(2));
+        }
+
+        public static Digest read(ByteBuffer in) {
+            return new Digest(in.getLong(), in.getLong(), in.getLong());
+        }
+
+        public void write(ByteBuffer out) {
+            out.putLong(_count);
+            out.putLong(_sum1);
+            out.putLong(_sum2);
+        }
+
+        /**
+         * @param other - the digest of a set of chunks apart from these
+         * @return - the digest of both sets
+         */
+        public Digest add(Digest other) {
+            return new Digest(_count + other._count, _sum1 + other._sum1, _sum2 + other._sum2);
+        }
+
+        /**
+         * @return - the number of chunks
+         */
+        public long getCount() {
+            return _count;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Digest)) {
+                return false;
+            }
+            Digest other = (Digest) o;
+            return _count == other._count && _sum1 == other._sum1 && _sum2 == other._sum2;
+        }
+
+        public int hashCode() {
+            return (int) (_sum1 ^ (_sum1 >>> 32));
+        }
+
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+            buf.append(_count).append(" chunks, ");
+            buf.append(Long.toHexString(_sum1)).append(Long.toHexString(_sum2));
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.util.Arrays;
+
+/**
+ * A set of positions on the ring, held as sorted, disjoint ranges
+ * first..last with both ends inclusive.  Positions are signed longs and
+ * a range never wraps; one that would is added as two.
+ *
+ * Not thread safe.
+ *
+ * @author Walter
+ */
+public class PositionRanges {
+
+    // how a range of positions meets the set
+    public static final int DISJOINT = 0;
+    public static final int PARTIAL = 1;
+    public static final int COVERED = 2;
+
+    private long[] _firsts;
+    private long[] _lasts;
+    private int _count;
+
+    public PositionRanges() {
+        _firsts = new long[8];
+        _lasts = new long[8];
+    }
+
+    /**
+     * @return - every position on the ring
+     */
+    public static PositionRanges all() {
+        PositionRanges ranges = new PositionRanges();
+        ranges.add(Long.MIN_VALUE, Long.MAX_VALUE);
+        return ranges;
+    }
+
+    /**
+     * Adds a range, merging it with any it overlaps or touches.
+     *
+     * @param first - the first position
+     * @param last - the last position, not before the first
+     */
+    public void add(long first, long last) {
+        if (first > last) {
+            throw new IllegalArgumentException("range " + first + ".." + last);
+        }
+        // the ranges from lo to hi - 1 overlap or touch the new one
+        int lo = 0;
+        while (lo < _count && _lasts[lo] < first && _lasts[lo] + 1 < first) {
+            lo++;
+        }
+        int hi = lo;
+        while (hi < _count && (_firsts[hi] <= last || _firsts[hi] - 1 <= last)) {
+            hi++;
+        }
+        if (lo < hi) {
+            first = Math.min(first, _firsts[lo]);
+            last = Math.max(last, _lasts[hi - 1]);
+        }
+        if (_count - (hi - lo) + 1 > _firsts.length) {
+            _firsts = Arrays.copyOf(_firsts, _firsts.length * 2);
+            _lasts = Arrays.copyOf(_lasts, _lasts.length * 2);
+        }
+        int moved = _count - hi;
+        System.arraycopy(_firsts, hi, _firsts, lo + 1, moved);
+        System.arraycopy(_lasts, hi, _lasts, lo + 1, moved);
+        _firsts[lo] = first;
+        _lasts[lo] = last;
+        _count = lo + 1 + moved;
+    }
+
+    public boolean isEmpty() {
+        return _count == 0;
+    }
+
+    /**
+     * @return - the number of ranges
+     */
+    public int size() {
+        return _count;
+    }
+
+    public long getFirst(int range) {
+        return _firsts[range];
+    }
+
+    public long getLast(int range) {
+        return _lasts[range];
+    }
+
+    public boolean contains(long position) {
+        int range = findRange(position);
+        return range < _count && _firsts[range] <= position;
+    }
+
+    /**
+     * @param first - the first position
+     * @param last - the last position, inclusive
+     * @return - COVERED if the set holds every position of the range,
+     * DISJOINT if it holds none and PARTIAL otherwise
+     */
+    public int classify(long first, long last) {
+        int range = findRange(first);
+        if (range == _count || _firsts[range] > last) {
+            return DISJOINT;
+        }
+        return _firsts[range] <= first && _lasts[range] >= last ? COVERED : PARTIAL;
+    }
+
+    /**
+     * @return - the first range that ends at or after the position, or
+     * the number of ranges if there is none
+     */
+    private int findRange(long position) {
+        int lo = 0;
+        int hi = _count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_lasts[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("[");
+        for (int i = 0; i < _count; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(Long.toHexString(_firsts[i])).append("..").append(Long.toHexString(_lasts[i]));
+        }
+        buf.append("]");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One append-only file of chunk records.  Each record is a header of
+ * magic, length and hash followed by the chunk itself, so the index can
+ * be rebuilt by scanning the file.  Records are only ever written at
+ * the end, keeping writes sequential.
+ *
+ * @author Walter
+ */
+class Segment {
+
+    static final int MAGIC = 0x4F444243;
+    static final int HEADER_LENGTH = 8 + ChunkHash.LENGTH;
+
+    private final int _number;
+    private final File _file;
+    private final FileChannel _channel;
+    private long _size;
+
+    /**
+     * Opens or creates a segment file.  Call scan() before appending to
+     * an existing one.
+     *
+     * @param file - the segment's file
+     * @param number - the segment's number in the store
+     */
+    Segment(File file, int number) throws IOException {
+        _file = file;
+        _number = number;
+        _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _size = _channel.size();
+    }
+
+    int getNumber() {
+        return _number;
+    }
+
+    FileChannel getChannel() {
+        return _channel;
+    }
+
+    /**
+     * @return - the length of the segment, which is where the next
+     * record will be written
+     */
+    synchronized long size() {
+        return _size;
+    }
+
+    /**
+     * Indexes every complete record in the file.  A record cut short by
+     * a crash, and anything after it, is truncated away.
+     *
+     * @param index - the index to add the records to
+     * @return - the number of records found
+     */
+    synchronized int scan(ChunkIndex index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long end = _channel.size();
+        long position = 0;
+        int records = 0;
+        while (position + HEADER_LENGTH <= end) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt(4);
+            if (header.getInt(0) != MAGIC || length <= 0 || position + HEADER_LENGTH + length > end) {
+                break;
+            }
+            header.position(8);
+            index.put(ChunkHash.read(header), ChunkIndex.getLocation(_number, position), length);
+            position += HEADER_LENGTH + length;
+            records++;
+        }
+        if (position < end) {
+            System.err.println("Truncating " + (end - position) + " bytes of incomplete records from " + _file);
+            _channel.truncate(position);
+        }
+        _size = position;
+        return records;
+    }
+
+    /**
+     * Writes a record at the end of the segment.
+     *
+     * @param hash - the chunk's hash
+     * @param data - the chunk
+     * @return - the offset of the record
+     */
+    synchronized long append(ChunkHash hash, ByteBuffer data) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(data.remaining());
+        hash.write(header);
+        header.flip();
+
+        long offset = _size;
+        long position = offset;
+        ByteBuffer[] record = {header, data};
+        while (header.hasRemaining() || data.hasRemaining()) {
+            _channel.position(position);
+            position += _channel.write(record);
+        }
+        _size = position;
+        return offset;
+    }
+
+    /**
+     * Reads the chunk of the record at the given offset.
+     *
+     * @param offset - the record's offset
+     * @param length - the chunk's length
+     * @return - a buffer holding the chunk
+     */
+    ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data, offset + HEADER_LENGTH);
+        data.flip();
+        return data;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = _channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + _file + " at " + position);
+            }
+            position += n;
+        }
+    }
+
+    void force() throws IOException {
+        _channel.force(false);
+    }
+
+    void close() throws IOException {
+        _channel.close();
+    }
+}
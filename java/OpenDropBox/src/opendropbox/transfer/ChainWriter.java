@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ChunkSink;
+import opendropbox.storage.Chunker;
+
+/**
+ * Writes chunks to a chain of ChunkServers.  The writer only talks to
+ * the first server; each server passes every chunk on to the next one
+ * while storing it, and acks come back up the chain once the whole
+ * chain has the chunk.  The writer's upload is sent once whatever the
+ * number of replicas, and each link of the chain carries it once.
+ *
+ * Up to MAX_PIPELINED_REQUESTS chunks may be unacknowledged at a time,
+ * so the chain is kept busy across chunks.  A server that fails drops
+ * out of the chain and the servers before it carry on, so a put only
+ * fails outright if the first server goes; getUnderReplicated() lists
+ * the chunks that ended up on fewer servers than asked for.
+ *
+ * Not thread safe.
+ *
+ * @author Walter
+ */
+public class ChainWriter implements ChunkSink {
+
+    private final List<InetSocketAddress> _chain;
+    private final SocketChannel _channel;
+    private final ByteBuffer _header;
+    private final ByteBuffer _ack;
+    private final ArrayDeque<ChunkHash> _unacknowledged;
+    private final List<ChunkHash> _underReplicated;
+    private long _chunksWritten;
+    private long _replicasWritten;
+
+    /**
+     * Connects to the first server of a chain.
+     *
+     * @param chain - the servers to write to, in order
+     */
+    public ChainWriter(List<InetSocketAddress> chain) throws IOException {
+        if (chain.isEmpty() || chain.size() > ChunkProtocol.MAX_CHAIN_LENGTH + 1) {
+            throw new IllegalArgumentException("chain of " + chain.size());
+        }
+        _chain = new ArrayList<InetSocketAddress>(chain);
+        _header = ByteBuffer.allocate(ChunkProtocol.PUT_HEADER_LENGTH);
+        _ack = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH);
+        _unacknowledged = new ArrayDeque<ChunkHash>();
+        _underReplicated = new ArrayList<ChunkHash>();
+
+        // encoded first, so that a bad address fails before connecting
+        ByteBuffer forward = _chain.size() > 1 ? encodeChain(_chain.subList(1, _chain.size())) : null;
+        _channel = SocketChannel.open(_chain.get(0));
+        _channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (forward != null) {
+            writeFully(forward);
+        }
+    }
+
+    /**
+     * Picks the servers for a chain: the nearest first, since it
+     * carries the writer's upload, then servers in zones not yet used,
+     * nearest first, then the rest.
+     *
+     * @param ranked - the servers to choose from, nearest first, as from
+     * ServiceListManager.getRankedServiceList()
+     * @param replicas - how many servers the chain should have
+     * @return - their addresses in chain order; fewer if there are not
+     * enough servers
+     */
+    public static List<InetSocketAddress> getChain(List<ServiceDescription> ranked, int replicas) {
+        replicas = Math.min(replicas, ChunkProtocol.MAX_CHAIN_LENGTH + 1);
+        List<ServiceDescription> chosen = new ArrayList<ServiceDescription>(replicas);
+        List<String> zones = new ArrayList<String>(replicas);
+        for (int pass = 0; pass < 2; pass++) {
+            for (ServiceDescription description : ranked) {
+                if (chosen.size() == replicas) {
+                    break;
+                }
+                if (chosen.contains(description)) {
+                    continue;
+                }
+                String zone = description.getAttributes().getString(ServiceAttributes.ZONE);
+                // the first pass only takes servers in new zones
+                if (pass == 0 && !chosen.isEmpty() && zone != null && zones.contains(zone)) {
+                    continue;
+                }
+                chosen.add(description);
+                if (zone != null) {
+                    zones.add(zone);
+                }
+            }
+        }
+
+        List<InetSocketAddress> chain = new ArrayList<InetSocketAddress>(chosen.size());
+        for (ServiceDescription description : chosen) {
+            chain.add(PeerSelector.getServiceAddress(description));
+        }
+        return chain;
+    }
+
+    /**
+     * @return - the servers written to, in order
+     */
+    public List<InetSocketAddress> getChain() {
+        return _chain;
+    }
+
+    /**
+     * Sends a chunk down the chain.  Returns once it is sent, unless
+     * MAX_PIPELINED_REQUESTS chunks are already waiting for an ack, in
+     * which case it waits for the oldest first.
+     *
+     * @param data - the array holding the chunk
+     * @param offset - where the chunk starts
+     * @param length - the chunk's length, from 1 to MAX_CHUNK_LENGTH
+     * @return - the chunk's hash
+     */
+    public ChunkHash put(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0 || length > BlockStore.MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("chunk length " + length);
+        }
+        while (_unacknowledged.size() >= ChunkProtocol.MAX_PIPELINED_REQUESTS) {
+            readAck();
+        }
+        ChunkHash hash = ChunkHash.of(data, offset, length);
+        _header.clear();
+        _header.put(ChunkProtocol.OP_PUT);
+        hash.write(_header);
+        _header.putInt(length);
+        _header.flip();
+        writeFully(_header);
+        writeFully(ByteBuffer.wrap(data, offset, length));
+        _unacknowledged.add(hash);
+        return hash;
+    }
+
+    /**
+     * Splits a stream into chunks and sends them down the chain, then
+     * waits for every ack.
+     *
+     * @param in - the data; read to its end but not closed
+     * @param chunker - decides where the chunks are cut
+     * @return - the hashes of the chunks in order
+     */
+    public List<ChunkHash> putStream(InputStream in, Chunker chunker) throws IOException {
+        List<ChunkHash> chunks = BlockStore.split(in, chunker, this);
+        flush();
+        return chunks;
+    }
+
+    /**
+     * Waits until every chunk sent has been acknowledged.
+     */
+    public void flush() throws IOException {
+        while (!_unacknowledged.isEmpty()) {
+            readAck();
+        }
+    }
+
+    /**
+     * @return - the acknowledged chunks that were stored on fewer than
+     * every server of the chain
+     */
+    public List<ChunkHash> getUnderReplicated() {
+        return _underReplicated;
+    }
+
+    /**
+     * @return - the average number of servers each acknowledged chunk
+     * was stored on, or 0 if none has been acknowledged
+     */
+    public double getReplicas() {
+        return _chunksWritten == 0 ? 0 : (double) _replicasWritten / _chunksWritten;
+    }
+
+    private void readAck() throws IOException {
+        _ack.clear();
+        while (_ack.hasRemaining()) {
+            if (_channel.read(_ack) < 0) {
+                throw new EOFException("Connection to " + _chain.get(0) + " closed");
+            }
+        }
+        _ack.flip();
+        byte status = _ack.get();
+        int replicas = _ack.getInt();
+        ChunkHash hash = _unacknowledged.poll();
+        if (hash == null || (status != ChunkProtocol.STATUS_OK && status != ChunkProtocol.STATUS_FAILED)
+                || replicas < 0 || replicas > _chain.size()) {
+            throw new IOException("Bad ack from " + _chain.get(0) + ": status " + status + ", replicas " + replicas);
+        }
+        _chunksWritten++;
+        _replicasWritten += replicas;
+        if (replicas < _chain.size()) {
+            _underReplicated.add(hash);
+        }
+    }
+
+    private static ByteBuffer encodeChain(List<InetSocketAddress> servers) throws IOException {
+        ByteBuffer chain = ByteBuffer.allocate(2 + servers.size() * (1 + 16 + 2));
+        chain.put(ChunkProtocol.OP_CHAIN);
+        chain.put((byte) servers.size());
+        for (InetSocketAddress server : servers) {
+            // the next server is told the raw address, it resolves nothing
+            if (server.isUnresolved()) {
+                throw new UnknownHostException("unresolved chain server " + server);
+            }
+            byte[] address = server.getAddress().getAddress();
+            chain.put((byte) address.length);
+            chain.put(address);
+            chain.putShort((short) server.getPort());
+        }
+        chain.flip();
+        return chain;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            _channel.write(buf);
+        }
+    }
+
+    /**
+     * Closes the connection without waiting for outstanding acks; call
+     * flush() first to be sure every chunk arrived.
+     */
+    public void close() throws IOException {
+        _channel.close();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.MerkleTree.Digest;
+import opendropbox.storage.PositionRanges;
+
+/**
+ * A blocking connection to a ChunkServer.  get(List) pipelines its
+ * requests, so fetching many small chunks costs one round trip per
+ * MAX_PIPELINED_REQUESTS rather than one per chunk.  Callers that keep
+ * their own window of requests in flight use send() and receive()
+ * directly, from one sending and one receiving thread.
+ *
+ * getDigests() and list() ask about the server's MerkleTree, restricted
+ * to the ranges last given to setRanges(), for AntiEntropy.
+ *
+ * Otherwise not thread safe; use one client per thread.
+ *
+ * @author Walter
+ */
+public class ChunkClient {
+
+    private final InetSocketAddress _address;
+    private final SocketChannel _channel;
+    private final ByteBuffer _header;
+    private final ByteBuffer _request;
+
+    /**
+     * Connects to a chunk server.
+     *
+     * @param address - the server's address and port
+     */
+    public ChunkClient(InetSocketAddress address) throws IOException {
+        _address = address;
+        _channel = SocketChannel.open(address);
+        _channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        _header = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH);
+        _request = ByteBuffer.allocate(ChunkProtocol.REQUEST_LENGTH);
+    }
+
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * Fetches one chunk.
+     *
+     * @param hash - the chunk's hash
+     * @return - the chunk, or null if the server does not have it
+     */
+    public byte[] get(ChunkHash hash) throws IOException {
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>(1);
+        hashes.add(hash);
+        return get(hashes).get(0);
+    }
+
+    /**
+     * Fetches several chunks, keeping up to MAX_PIPELINED_REQUESTS
+     * requests in flight.
+     *
+     * @param hashes - the chunks' hashes
+     * @return - the chunks in the same order, with null for each one
+     * the server does not have
+     */
+    public List<byte[]> get(List<ChunkHash> hashes) throws IOException {
+        List<byte[]> chunks = new ArrayList<byte[]>(hashes.size());
+        int window = ChunkProtocol.MAX_PIPELINED_REQUESTS;
+        for (int start = 0; start < hashes.size(); start += window) {
+            int end = Math.min(hashes.size(), start + window);
+            ByteBuffer requests = ByteBuffer.allocate((end - start) * ChunkProtocol.REQUEST_LENGTH);
+            for (int i = start; i < end; i++) {
+                requests.put(ChunkProtocol.OP_GET);
+                hashes.get(i).write(requests);
+            }
+            requests.flip();
+            while (requests.hasRemaining()) {
+                _channel.write(requests);
+            }
+            for (int i = start; i < end; i++) {
+                chunks.add(readResponse());
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Restricts the digests and lists asked for on this connection to
+     * some ranges of the ring.
+     *
+     * @param ranges - the positions to compare
+     */
+    public void setRanges(PositionRanges ranges) throws IOException {
+        for (int start = 0; start < ranges.size(); start += ChunkProtocol.MAX_RANGES) {
+            int end = Math.min(ranges.size(), start + ChunkProtocol.MAX_RANGES);
+            ByteBuffer message = ByteBuffer.allocate(ChunkProtocol.RANGES_HEADER_LENGTH
+                    + (end - start) * ChunkProtocol.RANGE_LENGTH);
+            message.put(ChunkProtocol.OP_RANGES);
+            message.putShort((short) (end - start));
+            for (int i = start; i < end; i++) {
+                message.putLong(ranges.getFirst(i));
+                message.putLong(ranges.getLast(i));
+            }
+            message.flip();
+            writeFully(message);
+        }
+    }
+
+    /**
+     * Fetches the server's digests of some nodes of its MerkleTree,
+     * keeping up to MAX_PIPELINED_REQUESTS requests in flight.
+     *
+     * @param level - a level of the tree
+     * @param nodes - nodes of that level
+     * @return - their digests, in the same order
+     */
+    public List<Digest> getDigests(int level, int[] nodes) throws IOException {
+        List<Digest> digests = new ArrayList<Digest>(nodes.length);
+        int window = ChunkProtocol.MAX_PIPELINED_REQUESTS * ChunkProtocol.MAX_DIGESTS;
+        for (int start = 0; start < nodes.length; start += window) {
+            int end = Math.min(nodes.length, start + window);
+            int requests = 0;
+            for (int from = start; from < end; from += ChunkProtocol.MAX_DIGESTS) {
+                int to = Math.min(end, from + ChunkProtocol.MAX_DIGESTS);
+                ByteBuffer request = ByteBuffer.allocate(ChunkProtocol.DIGESTS_HEADER_LENGTH + (to - from) * 4);
+                request.put(ChunkProtocol.OP_DIGESTS);
+                request.put((byte) level);
+                request.putShort((short) (to - from));
+                for (int i = from; i < to; i++) {
+                    request.putInt(nodes[i]);
+                }
+                request.flip();
+                writeFully(request);
+                requests++;
+            }
+            for (int i = 0; i < requests; i++) {
+                ByteBuffer response = ByteBuffer.wrap(readData());
+                while (response.hasRemaining()) {
+                    digests.add(Digest.read(response));
+                }
+            }
+        }
+        if (digests.size() != nodes.length) {
+            throw new IOException("Bad response from " + _address + ": " + digests.size() + " digests");
+        }
+        return digests;
+    }
+
+    /**
+     * Lists the chunks the server has in some leaves of its MerkleTree,
+     * keeping up to MAX_PIPELINED_REQUESTS requests in flight.
+     *
+     * @param leaves - nodes of the tree's last level
+     * @return - the hashes in each leaf, in the same order
+     */
+    public List<List<ChunkHash>> list(int[] leaves) throws IOException {
+        List<List<ChunkHash>> lists = new ArrayList<List<ChunkHash>>(leaves.length);
+        int window = ChunkProtocol.MAX_PIPELINED_REQUESTS;
+        for (int start = 0; start < leaves.length; start += window) {
+            int end = Math.min(leaves.length, start + window);
+            ByteBuffer requests = ByteBuffer.allocate((end - start) * ChunkProtocol.LIST_LENGTH);
+            for (int i = start; i < end; i++) {
+                requests.put(ChunkProtocol.OP_LIST);
+                requests.putInt(leaves[i]);
+            }
+            requests.flip();
+            writeFully(requests);
+            for (int i = start; i < end; i++) {
+                ByteBuffer response = ByteBuffer.wrap(readData());
+                List<ChunkHash> hashes = new ArrayList<ChunkHash>(response.remaining() / ChunkHash.LENGTH);
+                while (response.remaining() >= ChunkHash.LENGTH) {
+                    hashes.add(ChunkHash.read(response));
+                }
+                lists.add(hashes);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * Sends one request without waiting for its response.  Responses
+     * come back in the order the requests were sent.
+     *
+     * @param hash - the chunk to ask for
+     */
+    public void send(ChunkHash hash) throws IOException {
+        _request.clear();
+        _request.put(ChunkProtocol.OP_GET);
+        hash.write(_request);
+        _request.flip();
+        while (_request.hasRemaining()) {
+            _channel.write(_request);
+        }
+    }
+
+    /**
+     * Reads the response to the oldest request still unanswered.
+     *
+     * @return - the chunk, or null if the server does not have it
+     */
+    public byte[] receive() throws IOException {
+        return readResponse();
+    }
+
+    private byte[] readResponse() throws IOException {
+        _header.clear();
+        readFully(_header);
+        _header.flip();
+        byte status = _header.get();
+        int length = _header.getInt();
+        if (status == ChunkProtocol.STATUS_NOT_FOUND) {
+            return null;
+        }
+        if (status != ChunkProtocol.STATUS_OK || length < 0) {
+            throw new IOException("Bad response from " + _address + ": status " + status + ", length " + length);
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data);
+        return data.array();
+    }
+
+    /**
+     * Reads a response that must be there.
+     */
+    private byte[] readData() throws IOException {
+        byte[] data = readResponse();
+        if (data == null) {
+            throw new IOException("Bad response from " + _address + ": not found");
+        }
+        return data;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            _channel.write(buf);
+        }
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (_channel.read(buf) < 0) {
+                throw new EOFException("Connection to " + _address + " closed");
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        _channel.close();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.MerkleTree;
+
+/**
+ * The wire format spoken between ChunkClient and ChunkServer over TCP.
+ *
+ *   request:  op (1 byte) | chunk hash (32 bytes)
+ *   response: status (1 byte) | length (4 bytes) | data (length bytes)
+ *
+ * A client may send any number of requests without waiting; the server
+ * answers them in the order they were sent, on the same connection.
+ *
+ * Writes go down a chain of servers.  A connection that will write
+ * first names the servers after the one it is connected to:
+ *
+ *   chain:    op (1 byte) | count (1 byte) |
+ *             count x (address length (1 byte, 4 or 16) | address | port (2 bytes))
+ *
+ * The server connects to the first of them and passes the chain on
+ * without itself, and so on to the end.  A chain gets no answer.  Each
+ * chunk is then sent as
+ *
+ *   put:      op (1 byte) | chunk hash (32 bytes) | length (4 bytes) | data
+ *   ack:      status (1 byte) | replicas (4 bytes)
+ *
+ * A server passes each put on down the chain as soon as it has all of
+ * it, stores it, and acknowledges it once the rest of the chain has.
+ * The ack says how many servers from there to the end of the chain
+ * stored the chunk; its status is STATUS_FAILED if this one did not.
+ * Puts and gets may be mixed on one connection and are answered in
+ * order.
+ *
+ * Servers compare their stores through the MerkleTree each keeps over
+ * its chunks, with TREE_DEPTH levels below the root.  A connection first
+ * says which ranges of the ring it is asking about, in as many messages
+ * as it needs, each of up to MAX_RANGES ranges:
+ *
+ *   ranges:   op (1 byte) | count (2 bytes) | count x (first (8 bytes) | last (8 bytes))
+ *
+ * Ranges get no answer; with none given, the whole ring is meant.  The
+ * digests of up to MAX_DIGESTS nodes of one level, counting only the
+ * chunks in those ranges, are asked for with
+ *
+ *   digests:  op (1 byte) | level (1 byte) | count (2 bytes) | count x node (4 bytes)
+ *
+ * and come back as an ordinary response holding count Digests.  The
+ * chunks of one leaf in those ranges are listed with
+ *
+ *   list:     op (1 byte) | leaf (4 bytes)
+ *
+ * whose response holds their hashes.
+ *
+ * @author Walter
+ */
+public final class ChunkProtocol {
+
+    // advertised as the ServiceAttributes.PROTOCOL_VERSION of a server
+    public static final int VERSION = 1;
+
+    public static final byte OP_GET = 1;
+    public static final byte OP_PUT = 2;
+    public static final byte OP_CHAIN = 3;
+    public static final byte OP_RANGES = 4;
+    public static final byte OP_DIGESTS = 5;
+    public static final byte OP_LIST = 6;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_FAILED = 2;
+
+    public static final int REQUEST_LENGTH = 1 + ChunkHash.LENGTH;
+    public static final int PUT_HEADER_LENGTH = 1 + ChunkHash.LENGTH + 4;
+    public static final int RESPONSE_HEADER_LENGTH = 1 + 4;
+    public static final int RANGES_HEADER_LENGTH = 1 + 2;
+    public static final int RANGE_LENGTH = 8 + 8;
+    public static final int DIGESTS_HEADER_LENGTH = 1 + 1 + 2;
+    public static final int LIST_LENGTH = 1 + 4;
+
+    public static final int TREE_DEPTH = MerkleTree.DEFAULT_DEPTH;
+    // the most ranges in one message and nodes in one digests request,
+    // so that either fits in a server's request buffer
+    public static final int MAX_RANGES = 64;
+    public static final int MAX_DIGESTS = 256;
+
+    // the most servers a chain may name after the first
+    public static final int MAX_CHAIN_LENGTH = 15;
+
+    // how many requests a connection may have waiting at the server
+    public static final int MAX_PIPELINED_REQUESTS = 64;
+
+    private ChunkProtocol() {
+    }
+}
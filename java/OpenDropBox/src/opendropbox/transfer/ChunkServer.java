@@ -0,0 +1,852 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.server.ServiceResponder;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ChunkRegion;
+import opendropbox.storage.MerkleTree;
+import opendropbox.storage.MerkleTree.Digest;
+import opendropbox.storage.PositionRanges;
+
+/**
+ * Serves chunks from a BlockStore over TCP and advertises itself under
+ * CHUNK_SERVICE_NAME.  Chunk data goes from the segment file to the
+ * socket with FileChannel.transferTo(), which the kernel turns into
+ * sendfile(), so it is never copied through the heap.
+ *
+ * One selector thread runs every connection.  Connections are kept open
+ * and may pipeline up to MAX_PIPELINED_REQUESTS requests; a connection
+ * with that many waiting is not read from until some are answered, and
+ * once maxConnections are open no more are accepted until one closes.
+ *
+ * A connection that opens with a chain gets its own connection to the
+ * next server on the same selector.  Each put is passed down as soon as
+ * it has all arrived, then verified and stored by one of STORE_THREADS
+ * threads, so that hashing and writing a large chunk never holds up the
+ * selector; the result is handed back to the selector thread, and the
+ * ack waits for both.  Reading
+ * from the connection stops while the next server has
+ * MAX_PIPELINED_REQUESTS puts unacknowledged, so a slow tail holds the
+ * writer back rather than filling the heap.  If the next server fails,
+ * the remaining puts are stored here only and their acks say so.
+ *
+ * Digests and lists of the store's MerkleTree are worked out on the
+ * selector thread as their requests arrive; a node wholly inside the
+ * connection's ranges costs a lookup, and only the leaves cut by an end
+ * of a range have their chunks scanned.
+ *
+ * The advertised description carries the store's free space, the number
+ * of open connections as its load, the protocol version and the zone
+ * from ZONE_PROPERTY.  They are checked every ATTRIBUTE_INTERVAL, and
+ * free space is rounded down to FREE_BYTES_GRANULARITY so that ordinary
+ * writes do not make every browser see a change.
+ *
+ * @author Walter
+ */
+public class ChunkServer implements Runnable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 256;
+    public static final long ATTRIBUTE_INTERVAL = 5000;
+    public static final long FREE_BYTES_GRANULARITY = 64L << 20;
+    public static final int STORE_THREADS = 2;
+
+    private final BlockStore _store;
+    private final String _instanceName;
+    private final InetSocketAddress _bindAddress;
+    private final int _maxConnections;
+    private ServerSocketChannel _serverChannel;
+    private SelectionKey _acceptKey;
+    private Selector _selector;
+    private ExecutorService _storeExecutor;
+    // puts stored off the selector thread, waiting for it to ack them
+    private final Queue<StoredPut> _storedPuts = new ConcurrentLinkedQueue<StoredPut>();
+    private ServiceResponder _responder;
+    private ScheduledFuture<?> _attributeUpdater;
+    private Thread _thread;
+    private volatile boolean _shouldRun;
+    private volatile int _connections;
+
+    /**
+     * @param store - the chunks to serve
+     * @param instanceName - the name to advertise this server under
+     * @param bindAddress - where to listen; port 0 picks a free port
+     */
+    public ChunkServer(BlockStore store, String instanceName, InetSocketAddress bindAddress) {
+        this(store, instanceName, bindAddress, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param store - the chunks to serve
+     * @param instanceName - the name to advertise this server under
+     * @param bindAddress - where to listen; port 0 picks a free port
+     * @param maxConnections - the most connections served at once
+     */
+    public ChunkServer(BlockStore store, String instanceName, InetSocketAddress bindAddress, int maxConnections) {
+        _store = store;
+        _instanceName = instanceName;
+        _bindAddress = bindAddress;
+        _maxConnections = maxConnections;
+    }
+
+    /**
+     * Starts listening and advertises the server.
+     *
+     * @param advertise - false to serve without a ServiceResponder
+     */
+    public synchronized void start(boolean advertise) throws IOException {
+        if (_thread != null) {
+            return;
+        }
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        _serverChannel.bind(_bindAddress);
+        _serverChannel.configureBlocking(false);
+        _selector = Selector.open();
+        _acceptKey = _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        _storeExecutor = Executors.newFixedThreadPool(STORE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ChunkServer store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (advertise) {
+            _responder = new ServiceResponder(ServiceConstants.CHUNK_SERVICE_NAME);
+            _responder.setDescription(new ServiceDescription(_instanceName, getAdvertisedAddress(), getPort(),
+                    getAttributes()));
+            _responder.startResponder();
+            _responder.addShutdownHandler();
+            _attributeUpdater = DiscoveryEngine.getInstance().getScheduler().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    updateAttributes();
+                }
+            }, ATTRIBUTE_INTERVAL, ATTRIBUTE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        _shouldRun = true;
+        _thread = new Thread(this, "ChunkServer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void start() throws IOException {
+        start(true);
+    }
+
+    /**
+     * Says goodbye, closes every connection and stops the server thread.
+     */
+    public synchronized void stop() {
+        if (_thread == null) {
+            return;
+        }
+        if (_responder != null) {
+            _attributeUpdater.cancel(false);
+            _attributeUpdater = null;
+            _responder.stopResponder();
+            _responder = null;
+        }
+        _shouldRun = false;
+        _selector.wakeup();
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _thread = null;
+        // puts still being stored finish, but are never acknowledged
+        _storeExecutor.shutdown();
+        _storeExecutor = null;
+        _storedPuts.clear();
+    }
+
+    /**
+     * @return - the port the server listens on
+     */
+    public int getPort() {
+        return _serverChannel.socket().getLocalPort();
+    }
+
+    public String getInstanceName() {
+        return _instanceName;
+    }
+
+    /**
+     * @return - the attributes this server advertises right now
+     */
+    public ServiceAttributes getAttributes() {
+        long free = _store.getDirectory().getUsableSpace();
+        ServiceAttributes attributes = ServiceAttributes.EMPTY
+                .with(ServiceAttributes.FREE_BYTES, free - free % FREE_BYTES_GRANULARITY)
+                .with(ServiceAttributes.LOAD, _connections)
+                .with(ServiceAttributes.PROTOCOL_VERSION, ChunkProtocol.VERSION);
+        String zone = System.getProperty(ServiceConstants.ZONE_PROPERTY);
+        return zone == null ? attributes : attributes.with(ServiceAttributes.ZONE, zone);
+    }
+
+    private synchronized void updateAttributes() {
+        if (_responder != null) {
+            _responder.setAttributes(getAttributes());
+        }
+    }
+
+    private InetAddress getAdvertisedAddress() throws IOException {
+        InetAddress address = _serverChannel.socket().getInetAddress();
+        return address.isAnyLocalAddress() ? InetAddress.getLocalHost() : address;
+    }
+
+    public void run() {
+        while (_shouldRun) {
+            try {
+                _selector.select();
+                ackStoredPuts();
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        // closed along with its connection
+                        continue;
+                    }
+                    if (key == _acceptKey) {
+                        accept();
+                    } else if (key.attachment() instanceof Downstream) {
+                        Downstream downstream = (Downstream) key.attachment();
+                        try {
+                            downstream.service();
+                        } catch (IOException e) {
+                            // the rest of the chain is lost; carry on without it
+                            downstream.fail();
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.service();
+                        } catch (IOException e) {
+                            // the peer went away or sent garbage
+                            close(connection);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println("Unexpected exception: " + ioe);
+                ioe.printStackTrace();
+                /* resume operation */
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Completes the acks of the puts stored since the last look, on the
+     * selector thread, which owns the connections.
+     */
+    private void ackStoredPuts() {
+        StoredPut stored;
+        while ((stored = _storedPuts.poll()) != null) {
+            if (!stored.connection.key.isValid()) {
+                // the connection closed while the put was being stored
+                continue;
+            }
+            stored.response.storedHere = stored.storedHere;
+            stored.response.stored = true;
+            stored.response.completePut();
+            stored.connection.updateInterest();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (_connections < _maxConnections && (channel = _serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(_selector, SelectionKey.OP_READ, connection);
+            _connections++;
+        }
+        // stop accepting while full; close() starts again
+        _acceptKey.interestOps(_connections < _maxConnections ? SelectionKey.OP_ACCEPT : 0);
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        if (connection.downstream != null) {
+            connection.downstream.close();
+        }
+        _connections--;
+        if (_acceptKey.isValid()) {
+            _acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : _selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            _selector.close();
+        } catch (IOException ioe) {
+            System.err.println("Unexpected exception: " + ioe);
+            ioe.printStackTrace();
+        }
+        _connections = 0;
+    }
+
+    /**
+     * A response waiting to be written: its header and, if the chunk was
+     * found, where to send the data from.  The ack of a put is only
+     * written once the chunk has been stored here and the rest of the
+     * chain has acknowledged it.
+     */
+    private static class Response {
+
+        final ByteBuffer header;
+        final ChunkRegion region;
+        long sent;
+        boolean stored = true;
+        boolean chainDone = true;
+        boolean storedHere;
+        int storedDownstream;
+
+        Response(ByteBuffer header, ChunkRegion region) {
+            this.header = header;
+            this.region = region;
+        }
+
+        boolean isReady() {
+            return stored && chainDone;
+        }
+
+        /**
+         * Writes the ack of a put once both halves are in.
+         */
+        void completePut() {
+            if (isReady()) {
+                header.clear();
+                header.put(storedHere ? ChunkProtocol.STATUS_OK : ChunkProtocol.STATUS_FAILED);
+                header.putInt((storedHere ? 1 : 0) + storedDownstream);
+                header.flip();
+            }
+        }
+    }
+
+    /**
+     * A put that a store thread has finished with.
+     */
+    private static class StoredPut {
+
+        final Connection connection;
+        final Response response;
+        final boolean storedHere;
+
+        StoredPut(Connection connection, Response response, boolean storedHere) {
+            this.connection = connection;
+            this.response = response;
+            this.storedHere = storedHere;
+        }
+    }
+
+    private class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer requests;
+        final ArrayDeque<Response> responses;
+        SelectionKey key;
+        Downstream downstream;
+        // the put being read: its header and data, and its ack
+        ByteBuffer put;
+        Response putResponse;
+        // what digests and lists are restricted to; null until given
+        PositionRanges ranges;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.requests = ByteBuffer.allocate(ChunkProtocol.REQUEST_LENGTH * ChunkProtocol.MAX_PIPELINED_REQUESTS);
+            this.responses = new ArrayDeque<Response>();
+        }
+
+        void service() throws IOException {
+            if (key.isReadable()) {
+                // the data of a put is read straight into its own buffer
+                ByteBuffer target = put != null && requests.position() == 0 ? put : requests;
+                if (channel.read(target) < 0) {
+                    throw new IOException("closed by peer");
+                }
+            }
+            // requests left waiting by a full pipeline are taken up as
+            // soon as the responses before them are out
+            parseRequests();
+            while (writeResponses() && requests.position() > 0 && canRead()) {
+                int before = requests.position();
+                parseRequests();
+                if (requests.position() == before) {
+                    break;
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Reads and writes as far as the pipeline and the chain allow.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (canRead()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            Response head = responses.peek();
+            if (head != null && head.isReady()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private boolean canRead() {
+            // a put that has begun is always read to its end
+            return put != null || responses.size() < ChunkProtocol.MAX_PIPELINED_REQUESTS
+                    && (downstream == null || !downstream.isBacklogged());
+        }
+
+        private void parseRequests() throws IOException {
+            if (put != null && !put.hasRemaining()) {
+                // the rest of it was read straight into its buffer
+                receivedPut();
+            }
+            requests.flip();
+            while (requests.hasRemaining() && canRead()) {
+                if (put != null) {
+                    // finish the put being read before anything else
+                    int n = Math.min(requests.remaining(), put.remaining());
+                    ByteBuffer slice = requests.duplicate();
+                    slice.limit(slice.position() + n);
+                    put.put(slice);
+                    requests.position(requests.position() + n);
+                    if (!put.hasRemaining()) {
+                        receivedPut();
+                    }
+                    continue;
+                }
+
+                byte op = requests.get(requests.position());
+                if (op == ChunkProtocol.OP_GET) {
+                    if (requests.remaining() < ChunkProtocol.REQUEST_LENGTH) {
+                        break;
+                    }
+                    requests.get();
+                    ChunkRegion region = _store.locate(ChunkHash.read(requests));
+                    ByteBuffer header = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH);
+                    header.put(region == null ? ChunkProtocol.STATUS_NOT_FOUND : ChunkProtocol.STATUS_OK);
+                    header.putInt(region == null ? 0 : region.getLength());
+                    header.flip();
+                    responses.add(new Response(header, region));
+                } else if (op == ChunkProtocol.OP_PUT) {
+                    if (requests.remaining() < ChunkProtocol.PUT_HEADER_LENGTH) {
+                        break;
+                    }
+                    int length = requests.getInt(requests.position() + 1 + ChunkHash.LENGTH);
+                    if (length <= 0 || length > BlockStore.MAX_CHUNK_LENGTH) {
+                        throw new IOException("bad chunk length " + length);
+                    }
+                    put = ByteBuffer.allocate(ChunkProtocol.PUT_HEADER_LENGTH + length);
+                    ByteBuffer header = requests.duplicate();
+                    header.limit(header.position() + ChunkProtocol.PUT_HEADER_LENGTH);
+                    put.put(header);
+                    requests.position(requests.position() + ChunkProtocol.PUT_HEADER_LENGTH);
+                    putResponse = new Response(ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH), null);
+                    putResponse.stored = false;
+                    putResponse.chainDone = false;
+                    responses.add(putResponse);
+                } else if (op == ChunkProtocol.OP_CHAIN) {
+                    int length = getChainLength();
+                    if (length < 0) {
+                        break;
+                    }
+                    ByteBuffer chain = requests.duplicate();
+                    chain.limit(chain.position() + length);
+                    requests.position(requests.position() + length);
+                    startChain(chain);
+                } else if (op == ChunkProtocol.OP_RANGES) {
+                    if (requests.remaining() < ChunkProtocol.RANGES_HEADER_LENGTH) {
+                        break;
+                    }
+                    int count = requests.getShort(requests.position() + 1) & 0xFFFF;
+                    if (count > ChunkProtocol.MAX_RANGES) {
+                        throw new IOException(count + " ranges");
+                    }
+                    if (requests.remaining() < ChunkProtocol.RANGES_HEADER_LENGTH + count * ChunkProtocol.RANGE_LENGTH) {
+                        break;
+                    }
+                    requests.position(requests.position() + ChunkProtocol.RANGES_HEADER_LENGTH);
+                    if (ranges == null) {
+                        ranges = new PositionRanges();
+                    }
+                    for (int i = 0; i < count; i++) {
+                        long first = requests.getLong();
+                        long last = requests.getLong();
+                        if (first > last) {
+                            throw new IOException("bad range");
+                        }
+                        ranges.add(first, last);
+                    }
+                } else if (op == ChunkProtocol.OP_DIGESTS) {
+                    if (requests.remaining() < ChunkProtocol.DIGESTS_HEADER_LENGTH) {
+                        break;
+                    }
+                    int level = requests.get(requests.position() + 1) & 0xFF;
+                    int count = requests.getShort(requests.position() + 2) & 0xFFFF;
+                    if (level > ChunkProtocol.TREE_DEPTH || count > ChunkProtocol.MAX_DIGESTS) {
+                        throw new IOException(count + " digests of level " + level);
+                    }
+                    if (requests.remaining() < ChunkProtocol.DIGESTS_HEADER_LENGTH + count * 4) {
+                        break;
+                    }
+                    requests.position(requests.position() + ChunkProtocol.DIGESTS_HEADER_LENGTH);
+                    int[] nodes = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        nodes[i] = requests.getInt();
+                        if (nodes[i] < 0 || nodes[i] >= 1 << level) {
+                            throw new IOException("bad node " + nodes[i]);
+                        }
+                    }
+                    Digest[] digests = _store.getDigests(level, nodes, getRanges());
+                    ByteBuffer response = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH
+                            + count * Digest.LENGTH);
+                    response.put(ChunkProtocol.STATUS_OK);
+                    response.putInt(count * Digest.LENGTH);
+                    for (Digest digest : digests) {
+                        digest.write(response);
+                    }
+                    response.flip();
+                    responses.add(new Response(response, null));
+                } else if (op == ChunkProtocol.OP_LIST) {
+                    if (requests.remaining() < ChunkProtocol.LIST_LENGTH) {
+                        break;
+                    }
+                    requests.get();
+                    int leaf = requests.getInt();
+                    if (leaf < 0 || leaf >= 1 << ChunkProtocol.TREE_DEPTH) {
+                        throw new IOException("bad leaf " + leaf);
+                    }
+                    List<ChunkHash> chunks = _store.getChunks(MerkleTree.getFirst(ChunkProtocol.TREE_DEPTH, leaf),
+                            MerkleTree.getLast(ChunkProtocol.TREE_DEPTH, leaf), getRanges());
+                    ByteBuffer response = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH
+                            + chunks.size() * ChunkHash.LENGTH);
+                    response.put(ChunkProtocol.STATUS_OK);
+                    response.putInt(chunks.size() * ChunkHash.LENGTH);
+                    for (ChunkHash hash : chunks) {
+                        hash.write(response);
+                    }
+                    response.flip();
+                    responses.add(new Response(response, null));
+                } else {
+                    throw new IOException("unknown op " + op);
+                }
+            }
+            requests.compact();
+        }
+
+        /**
+         * @return - the ranges the connection has asked about
+         */
+        private PositionRanges getRanges() {
+            if (ranges == null) {
+                ranges = PositionRanges.all();
+            }
+            return ranges;
+        }
+
+        /**
+         * @return - the length of the chain message at the front of the
+         * requests, or -1 if it has not all arrived
+         */
+        private int getChainLength() throws IOException {
+            int start = requests.position();
+            if (requests.remaining() < 2) {
+                return -1;
+            }
+            int count = requests.get(start + 1) & 0xFF;
+            if (count > ChunkProtocol.MAX_CHAIN_LENGTH) {
+                throw new IOException("chain of " + count);
+            }
+            int length = 2;
+            for (int i = 0; i < count; i++) {
+                if (requests.remaining() < length + 1) {
+                    return -1;
+                }
+                int addressLength = requests.get(start + length) & 0xFF;
+                if (addressLength != 4 && addressLength != 16) {
+                    throw new IOException("bad address length " + addressLength);
+                }
+                length += 1 + addressLength + 2;
+            }
+            return requests.remaining() < length ? -1 : length;
+        }
+
+        /**
+         * Connects to the next server in the chain and passes the rest
+         * of the chain on to it.
+         */
+        private void startChain(ByteBuffer chain) throws IOException {
+            if (downstream != null || !responses.isEmpty()) {
+                throw new IOException("chain must come first");
+            }
+            chain.get();
+            int count = chain.get() & 0xFF;
+            if (count == 0) {
+                return;
+            }
+            byte[] address = new byte[chain.get() & 0xFF];
+            chain.get(address);
+            int port = chain.getShort() & 0xFFFF;
+
+            ByteBuffer rest = ByteBuffer.allocate(2 + chain.remaining());
+            rest.put(ChunkProtocol.OP_CHAIN);
+            rest.put((byte) (count - 1));
+            rest.put(chain);
+            rest.flip();
+
+            downstream = new Downstream(this);
+            try {
+                downstream.connect(new InetSocketAddress(InetAddress.getByAddress(address), port), rest);
+            } catch (IOException e) {
+                // store here alone
+                downstream.fail();
+            }
+        }
+
+        /**
+         * Passes a complete put down the chain, and hands it to a store
+         * thread to be verified and stored.
+         */
+        private void receivedPut() {
+            final ByteBuffer packet = put;
+            final Response response = putResponse;
+            put = null;
+            putResponse = null;
+            packet.flip();
+
+            if (downstream != null && !downstream.failed) {
+                downstream.forward(packet.duplicate(), response);
+            } else {
+                response.chainDone = true;
+            }
+
+            _storeExecutor.execute(new Runnable() {
+                public void run() {
+                    store(packet, response);
+                }
+            });
+        }
+
+        /**
+         * Verifies and stores a put on a store thread, then wakes the
+         * selector to ack it.
+         */
+        private void store(ByteBuffer packet, Response response) {
+            packet.get();
+            ChunkHash hash = ChunkHash.read(packet);
+            packet.getInt();
+            boolean storedHere = false;
+            try {
+                _store.putVerified(hash, packet);
+                storedHere = true;
+            } catch (IOException e) {
+                // corrupted on the way here, or the disk failed
+            } finally {
+                _storedPuts.add(new StoredPut(this, response, storedHere));
+                _selector.wakeup();
+            }
+        }
+
+        /**
+         * @return - true if every response has been written
+         */
+        private boolean writeResponses() throws IOException {
+            Response response;
+            while ((response = responses.peek()) != null) {
+                if (!response.isReady()) {
+                    return false;
+                }
+                if (response.header.hasRemaining()) {
+                    channel.write(response.header);
+                    if (response.header.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (response.region != null) {
+                    while (response.sent < response.region.getLength()) {
+                        long n = response.region.transferTo(response.sent, channel);
+                        if (n <= 0) {
+                            return false;
+                        }
+                        response.sent += n;
+                    }
+                }
+                responses.poll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The connection to the next server in a chain.  Puts are written to
+     * it in order and its acks are matched to them in the same order.
+     */
+    private class Downstream {
+
+        final Connection upstream;
+        final ArrayDeque<ByteBuffer> packets;
+        final ArrayDeque<Response> waiting;
+        final ByteBuffer ack;
+        SocketChannel channel;
+        SelectionKey key;
+        boolean failed;
+
+        Downstream(Connection upstream) {
+            this.upstream = upstream;
+            this.packets = new ArrayDeque<ByteBuffer>();
+            this.waiting = new ArrayDeque<Response>();
+            this.ack = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_LENGTH);
+        }
+
+        void connect(InetSocketAddress address, ByteBuffer chain) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            packets.add(chain);
+            int ops = channel.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+            key = channel.register(_selector, ops, this);
+        }
+
+        void forward(ByteBuffer packet, Response response) {
+            packets.add(packet);
+            waiting.add(response);
+            updateInterest();
+        }
+
+        /**
+         * @return - true if upstream should stop reading until more of
+         * the chain has caught up
+         */
+        boolean isBacklogged() {
+            return !failed && waiting.size() >= ChunkProtocol.MAX_PIPELINED_REQUESTS;
+        }
+
+        void service() throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+            }
+            if (key.isReadable()) {
+                int n;
+                while ((n = channel.read(ack)) > 0 || !ack.hasRemaining()) {
+                    if (!ack.hasRemaining()) {
+                        ack.flip();
+                        ack.get();
+                        Response response = waiting.poll();
+                        if (response == null) {
+                            throw new IOException("ack for nothing");
+                        }
+                        response.storedDownstream = ack.getInt();
+                        response.chainDone = true;
+                        response.completePut();
+                        ack.clear();
+                    }
+                }
+                if (n < 0) {
+                    throw new IOException("closed by peer");
+                }
+            }
+            ByteBuffer packet;
+            while ((packet = packets.peek()) != null) {
+                channel.write(packet);
+                if (packet.hasRemaining()) {
+                    break;
+                }
+                packets.poll();
+            }
+            updateInterest();
+            upstream.updateInterest();
+        }
+
+        void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            if (!channel.isConnected()) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ | (packets.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        /**
+         * Gives up on the rest of the chain.  Puts still waiting on it
+         * are acknowledged as stored here only.
+         */
+        void fail() {
+            failed = true;
+            close();
+            Response response;
+            while ((response = waiting.poll()) != null) {
+                response.chainDone = true;
+                response.completePut();
+            }
+            packets.clear();
+            upstream.updateInterest();
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+}
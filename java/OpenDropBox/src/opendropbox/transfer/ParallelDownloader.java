@@ -0,0 +1,510 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.PeerSelector;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.FileManifest;
+
+/**
+ * Downloads one file from several chunk servers at once.  Each peer gets
+ * one pipelined connection with a sending and a receiving thread, and
+ * chunks are handed out in file order to whichever peer has room in
+ * its window.  Chunks are written straight to their place in a file
+ * preallocated to the full length, in whatever order they arrive.
+ *
+ * A peer's window is the number of requests it may have in flight.  It
+ * grows by one for each window's worth of chunks received, and halves
+ * when responses start taking more than twice as long as the fastest
+ * seen, which means requests are queueing at the peer rather than
+ * keeping its link busy.
+ *
+ * Once every chunk has been handed out, an idle peer takes over the
+ * chunk that a slower peer would get to last, and the first copy to
+ * arrive wins.  A peer that fails, times out or sends a chunk that does
+ * not match its hash is dropped, and its outstanding chunks go back to
+ * the others.
+ *
+ * If a PeerSelector is set, the round trip and throughput seen from
+ * each peer are recorded in it when the download ends.
+ *
+ * @author Walter
+ */
+public class ParallelDownloader {
+
+    public static final int INITIAL_WINDOW = 2;
+    public static final long DEFAULT_TIMEOUT = 10000;
+    // responses this much slower than the fastest are not taken as queueing
+    private static final long RTT_SLACK = 2;
+    private static final int MAX_COPIES = 2;
+    private static final long POLL_INTERVAL = 50;
+
+    private final FileManifest _manifest;
+    private final List<InetSocketAddress> _addresses;
+    private long _timeout = DEFAULT_TIMEOUT;
+    private PeerSelector _peerSelector;
+
+    // the state of a download, guarded by this
+    private final List<Peer> _peers;
+    private ArrayDeque<Integer> _pending;
+    private BitSet _done;
+    private int[] _copies;
+    private int _remaining;
+    private boolean _finished;
+    private IOException _failure;
+    private FileChannel _file;
+    private long _started;
+
+    /**
+     * @param manifest - the file to download
+     * @param peers - the chunk servers holding it
+     */
+    public ParallelDownloader(FileManifest manifest, List<InetSocketAddress> peers) {
+        _manifest = manifest;
+        _addresses = new ArrayList<InetSocketAddress>(peers);
+        _peers = new ArrayList<Peer>();
+    }
+
+    /**
+     * Turns the service list of CHUNK_SERVICE_NAME into peer addresses.
+     *
+     * @param services - from ServiceListManager.getServiceList()
+     * @return - the address of each chunk server
+     */
+    public static List<InetSocketAddress> getPeerAddresses(List<ServiceDescription> services) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(services.size());
+        for (ServiceDescription description : services) {
+            addresses.add(PeerSelector.getServiceAddress(description));
+        }
+        return addresses;
+    }
+
+    /**
+     * @param timeout - how long a peer may take to answer its oldest
+     * request before it is dropped, in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        _timeout = timeout;
+    }
+
+    /**
+     * @param selector - where to record what each peer delivered, or null
+     */
+    public void setPeerSelector(PeerSelector selector) {
+        _peerSelector = selector;
+    }
+
+    /**
+     * Downloads the file.  Blocks until every chunk has been written or
+     * no peer is left that can supply the rest.
+     *
+     * @param target - the file to write; created or overwritten
+     * @throws IOException if the file could not be completed
+     */
+    public void download(File target) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(_manifest.getFileLength());
+            start(file.getChannel());
+            awaitCompletion();
+        } finally {
+            finish();
+            file.close();
+        }
+        synchronized (this) {
+            if (_failure != null) {
+                throw _failure;
+            }
+        }
+    }
+
+    /**
+     * @return - the bytes received from each peer in the last download,
+     * duplicates included
+     */
+    public synchronized Map<InetSocketAddress, Long> getBytesByPeer() {
+        Map<InetSocketAddress, Long> bytes = new LinkedHashMap<InetSocketAddress, Long>();
+        for (Peer peer : _peers) {
+            bytes.put(peer.address, peer.bytes);
+        }
+        return bytes;
+    }
+
+    private synchronized void start(FileChannel file) throws IOException {
+        int count = _manifest.getChunkCount();
+        _file = file;
+        _started = System.currentTimeMillis();
+        _pending = new ArrayDeque<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            _pending.add(i);
+        }
+        _done = new BitSet(count);
+        _copies = new int[count];
+        _remaining = count;
+        _finished = false;
+        _failure = null;
+        _peers.clear();
+
+        for (InetSocketAddress address : _addresses) {
+            try {
+                _peers.add(new Peer(address, new ChunkClient(address)));
+            } catch (IOException e) {
+                // try the others
+            }
+        }
+        if (_peers.isEmpty() && count > 0) {
+            throw new IOException("None of " + _addresses + " could be reached");
+        }
+        for (Peer peer : _peers) {
+            peer.start();
+        }
+    }
+
+    /**
+     * Waits for the download to end, dropping peers whose oldest request
+     * has been outstanding for longer than the timeout.
+     */
+    private synchronized void awaitCompletion() {
+        while (_remaining > 0 && _failure == null) {
+            long now = System.currentTimeMillis();
+            boolean alive = false;
+            for (Peer peer : _peers) {
+                Request oldest = peer.inFlight.peek();
+                if (peer.alive && oldest != null && now - oldest.sent > _timeout) {
+                    fail(peer);
+                }
+                alive |= peer.alive;
+            }
+            if (!alive) {
+                _failure = new IOException(_remaining + " chunks could not be fetched from any of " + _addresses);
+                return;
+            }
+            try {
+                wait(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                _failure = new IOException("Download interrupted");
+                return;
+            }
+        }
+    }
+
+    private void finish() {
+        List<Peer> peers;
+        synchronized (this) {
+            _finished = true;
+            notifyAll();
+            peers = new ArrayList<Peer>(_peers);
+            if (_peerSelector != null) {
+                for (Peer peer : peers) {
+                    if (peer.bytes > 0) {
+                        _peerSelector.recordRtt(peer.address, peer.minRtt);
+                        _peerSelector.recordTransfer(peer.address, peer.bytes, peer.lastReceived - _started);
+                    }
+                }
+            }
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Picks the next chunk for a peer: the first chunk not yet handed
+     * out that the peer may have, or else a chunk waiting at a slower
+     * peer that this one would deliver sooner.  Must be called while
+     * holding this downloader's lock.
+     *
+     * @return - the chunk's index, or -1 if there is nothing to do
+     */
+    private int nextChunk(Peer peer) {
+        for (Iterator<Integer> it = _pending.iterator(); it.hasNext();) {
+            int chunk = it.next();
+            if (!peer.missing.get(chunk)) {
+                it.remove();
+                return chunk;
+            }
+        }
+
+        if (peer.serviceTime <= 0) {
+            // no idea yet how fast this peer is
+            return -1;
+        }
+        double eta = (peer.inFlight.size() + 1) * peer.serviceTime;
+        int best = -1;
+        double bestEta = eta;
+        for (Peer other : _peers) {
+            if (other == peer || !other.alive) {
+                continue;
+            }
+            // the last request in a peer's queue is the last it will answer
+            int position = other.inFlight.size();
+            for (Iterator<Request> it = other.inFlight.descendingIterator(); it.hasNext(); position--) {
+                int chunk = it.next().chunk;
+                if (_done.get(chunk) || _copies[chunk] >= MAX_COPIES || peer.missing.get(chunk)
+                        || peer.isRequested(chunk)) {
+                    continue;
+                }
+                double otherEta = other.serviceTime <= 0 ? Double.MAX_VALUE : position * other.serviceTime;
+                if (otherEta > bestEta) {
+                    best = chunk;
+                    bestEta = otherEta;
+                }
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drops a peer and hands its outstanding chunks back.  The download
+     * fails if the peer was the last one left that could supply a chunk
+     * still to be handed out.
+     */
+    private void fail(Peer peer) {
+        synchronized (this) {
+            if (!peer.alive) {
+                return;
+            }
+            peer.alive = false;
+            for (Request request : peer.inFlight) {
+                release(request.chunk);
+            }
+            peer.inFlight.clear();
+            for (int chunk : _pending) {
+                if (_failure != null) {
+                    break;
+                }
+                checkAvailable(chunk);
+            }
+            notifyAll();
+        }
+        peer.close();
+    }
+
+    /**
+     * Called when a request for a chunk ends without it.  Must be called
+     * while holding this downloader's lock.
+     */
+    private void release(int chunk) {
+        _copies[chunk]--;
+        if (!_done.get(chunk) && _copies[chunk] == 0) {
+            _pending.addFirst(chunk);
+        }
+    }
+
+    /**
+     * Must be called while holding this downloader's lock.
+     */
+    private void checkAvailable(int chunk) {
+        for (Peer peer : _peers) {
+            if (peer.alive && !peer.missing.get(chunk)) {
+                return;
+            }
+        }
+        _failure = new IOException("No peer has chunk " + _manifest.getHash(chunk));
+        notifyAll();
+    }
+
+    private void received(Peer peer, Request request, byte[] data) {
+        int chunk = request.chunk;
+        boolean write;
+        synchronized (this) {
+            _copies[chunk]--;
+            write = !_done.get(chunk);
+            if (write) {
+                _done.set(chunk);
+            }
+        }
+
+        if (write) {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                long position = _manifest.getOffset(chunk);
+                while (buf.hasRemaining()) {
+                    position += _file.write(buf, position);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    _failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long rtt = now - request.sent;
+            peer.bytes += data.length;
+            peer.minRtt = Math.min(peer.minRtt, rtt);
+            if (rtt > 2 * peer.minRtt + RTT_SLACK && now - peer.lastDecrease > rtt) {
+                peer.window = Math.max(1, peer.window / 2);
+                peer.lastDecrease = now;
+            } else {
+                peer.window = Math.min(ChunkProtocol.MAX_PIPELINED_REQUESTS, peer.window + 1 / peer.window);
+            }
+            if (peer.lastReceived > 0) {
+                long interval = now - peer.lastReceived;
+                peer.serviceTime = peer.serviceTime <= 0 ? interval : 0.875 * peer.serviceTime + 0.125 * interval;
+            }
+            peer.lastReceived = now;
+            if (write) {
+                _remaining--;
+            }
+            notifyAll();
+        }
+    }
+
+    private static class Request {
+
+        final int chunk;
+        final long sent;
+
+        Request(int chunk, long sent) {
+            this.chunk = chunk;
+            this.sent = sent;
+        }
+    }
+
+    private class Peer {
+
+        final InetSocketAddress address;
+        final ChunkClient client;
+        // in the order sent, which is the order answered
+        final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+        final BitSet missing = new BitSet();
+        double window = INITIAL_WINDOW;
+        long minRtt = Long.MAX_VALUE;
+        long lastDecrease;
+        long lastReceived;
+        // smoothed milliseconds between responses, 0 until known
+        double serviceTime;
+        long bytes;
+        boolean alive = true;
+
+        Peer(InetSocketAddress address, ChunkClient client) {
+            this.address = address;
+            this.client = client;
+        }
+
+        void start() {
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    sendRequests();
+                }
+            }, "ChunkSender " + address);
+            Thread receiver = new Thread(new Runnable() {
+                public void run() {
+                    receiveResponses();
+                }
+            }, "ChunkReceiver " + address);
+            sender.setDaemon(true);
+            receiver.setDaemon(true);
+            sender.start();
+            receiver.start();
+        }
+
+        boolean isRequested(int chunk) {
+            for (Request request : inFlight) {
+                if (request.chunk == chunk) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void sendRequests() {
+            while (true) {
+                int chunk = -1;
+                synchronized (ParallelDownloader.this) {
+                    while (alive && !_finished) {
+                        if (inFlight.size() < (int) window && (chunk = nextChunk(this)) >= 0) {
+                            break;
+                        }
+                        try {
+                            // stealing depends on time, so look again now and then
+                            ParallelDownloader.this.wait(POLL_INTERVAL);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (chunk < 0) {
+                        return;
+                    }
+                    inFlight.add(new Request(chunk, System.currentTimeMillis()));
+                    _copies[chunk]++;
+                }
+                try {
+                    client.send(_manifest.getHash(chunk));
+                } catch (IOException e) {
+                    fail(this);
+                    return;
+                }
+            }
+        }
+
+        void receiveResponses() {
+            while (true) {
+                byte[] data;
+                try {
+                    data = client.receive();
+                } catch (IOException e) {
+                    fail(this);
+                    return;
+                }
+
+                Request request;
+                synchronized (ParallelDownloader.this) {
+                    request = inFlight.poll();
+                    if (request == null || !alive) {
+                        return;
+                    }
+                    if (data == null) {
+                        missing.set(request.chunk);
+                        release(request.chunk);
+                        checkAvailable(request.chunk);
+                        ParallelDownloader.this.notifyAll();
+                        continue;
+                    }
+                }
+
+                if (data.length != _manifest.getLength(request.chunk)
+                        || !ChunkHash.of(data, 0, data.length).equals(_manifest.getHash(request.chunk))) {
+                    // never trust this peer again; the request is released with the rest
+                    synchronized (ParallelDownloader.this) {
+                        inFlight.addFirst(request);
+                    }
+                    fail(this);
+                    return;
+                }
+                received(this, request, data);
+            }
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.ChunkSink;
+import opendropbox.storage.ContentDefinedChunker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Seals chunks into an in-memory sink and opens them again, checks that
+ * convergent keys deduplicate only between holders of the same secret,
+ * and that a sealed chunk changed anywhere, or opened with the wrong
+ * key, is refused.
+ *
+ * @author Walter
+ */
+public class ChunkEncryptorTest {
+
+    private Map<ChunkHash, byte[]> _stored;
+    private ChunkSink _sink;
+    private ChunkEncryptor _random;
+    private Random _data;
+
+    @Before
+    public void setUp() {
+        _stored = new HashMap<ChunkHash, byte[]>();
+        _sink = new ChunkSink() {
+            public ChunkHash put(byte[] data, int offset, int length) {
+                ChunkHash hash = ChunkHash.of(data, offset, length);
+                _stored.put(hash, Arrays.copyOfRange(data, offset, offset + length));
+                return hash;
+            }
+        };
+        _random = ChunkEncryptor.withRandomKeys();
+        _data = new Random(8);
+    }
+
+    @After
+    public void tearDown() {
+        _random.close();
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        for (int length : new int[]{1, 15, 16, 17, 4096, 100000}) {
+            byte[] chunk = newData(length);
+            ChunkKey key = _random.put(chunk, 0, chunk.length, _sink);
+            byte[] sealed = _stored.get(key.getStoredHash());
+            assertEquals(length + ChunkEncryptor.OVERHEAD, sealed.length);
+            assertEquals(length, key.getLength());
+            assertArrayEquals(chunk, ChunkEncryptor.decrypt(key, sealed));
+        }
+    }
+
+    @Test
+    public void randomKeysDiffer() throws IOException {
+        byte[] chunk = newData(1000);
+        ChunkKey first = _random.put(chunk, 0, chunk.length, _sink);
+        ChunkKey second = _random.put(chunk, 0, chunk.length, _sink);
+        assertFalse(first.equals(second));
+        assertFalse(first.getStoredHash().equals(second.getStoredHash()));
+        assertFalse(_random.isConvergent());
+    }
+
+    @Test
+    public void convergentKeysDeduplicate() throws IOException {
+        byte[] chunk = newData(1000);
+        ChunkEncryptor first = ChunkEncryptor.withConvergentKeys("secret".getBytes("UTF-8"));
+        ChunkEncryptor second = ChunkEncryptor.withConvergentKeys("secret".getBytes("UTF-8"));
+        ChunkEncryptor other = ChunkEncryptor.withConvergentKeys("other".getBytes("UTF-8"));
+        try {
+            ChunkKey key = first.put(chunk, 0, chunk.length, _sink);
+            assertEquals(key, second.put(chunk, 0, chunk.length, _sink));
+            assertEquals(1, _stored.size());
+            assertFalse(key.getStoredHash().equals(other.put(chunk, 0, chunk.length, _sink).getStoredHash()));
+            assertArrayEquals(chunk, ChunkEncryptor.decrypt(key, _stored.get(key.getStoredHash())));
+        } finally {
+            first.close();
+            second.close();
+            other.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptySecret() {
+        ChunkEncryptor.withConvergentKeys(new byte[0]);
+    }
+
+    @Test
+    public void refusesTamperedChunks() throws IOException {
+        byte[] chunk = newData(500);
+        ChunkKey key = _random.put(chunk, 0, chunk.length, _sink);
+        byte[] sealed = _stored.get(key.getStoredHash());
+
+        // a bit of the nonce, the ciphertext and the tag in turn
+        int[] positions = {0, ChunkEncryptor.NONCE_LENGTH + 100, sealed.length - 1};
+        for (int position : positions) {
+            byte[] tampered = sealed.clone();
+            tampered[position] ^= 0x10;
+            assertRefused(key, tampered);
+        }
+        assertRefused(key, Arrays.copyOf(sealed, sealed.length - 1));
+        assertRefused(key, Arrays.copyOf(sealed, sealed.length + 1));
+
+        // the right length, sealed under another key
+        byte[] other = newData(500);
+        ChunkKey otherKey = _random.put(other, 0, other.length, _sink);
+        assertRefused(key, _stored.get(otherKey.getStoredHash()));
+    }
+
+    @Test
+    public void putsStreamsInOrder() throws IOException {
+        // many more chunks than the window of chunks being sealed
+        byte[] data = newData(2 * 1024 * 1024);
+        ContentDefinedChunker chunker = new ContentDefinedChunker(256, 1024, 4096);
+        List<ChunkKey> keys = _random.putStream(new ByteArrayInputStream(data), chunker, _sink);
+        assertTrue(keys.size() > 200);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ChunkKey key : keys) {
+            out.write(ChunkEncryptor.decrypt(key, _stored.get(key.getStoredHash())));
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    private byte[] newData(int length) {
+        byte[] data = new byte[length];
+        _data.nextBytes(data);
+        return data;
+    }
+
+    private static void assertRefused(ChunkKey key, byte[] sealed) {
+        try {
+            ChunkEncryptor.decrypt(key, sealed);
+            fail("opened a changed chunk");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
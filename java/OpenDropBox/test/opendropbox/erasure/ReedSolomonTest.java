@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.erasure;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Encodes random stripes and rebuilds them from every choice of k
+ * shards out of k + m, and checks the word-at-a-time field arithmetic
+ * against the byte tables it is built on.
+ *
+ * @author Walter
+ */
+public class ReedSolomonTest {
+
+    private final Random _random = new Random(7);
+
+    @Test
+    public void decodesFromAnyKShards() {
+        for (int[] code : new int[][]{{1, 1}, {2, 2}, {4, 3}, {6, 3}, {10, 4}}) {
+            int k = code[0];
+            int m = code[1];
+            ReedSolomon rs = new ReedSolomon(k, m);
+            long[][] stripe = newStripe(rs, 33);
+            rs.encode(stripe);
+
+            // every subset of k + m shards with exactly k present
+            int total = k + m;
+            for (int mask = 0; mask < 1 << total; mask++) {
+                if (Integer.bitCount(mask) != k) {
+                    continue;
+                }
+                long[][] shards = new long[total][];
+                boolean[] present = new boolean[total];
+                for (int i = 0; i < total; i++) {
+                    present[i] = (mask & 1 << i) != 0;
+                    shards[i] = present[i] ? stripe[i].clone() : null;
+                }
+                rs.reconstruct(shards, present);
+                for (int i = 0; i < total; i++) {
+                    assertArrayEquals(k + "+" + m + " shard " + i + " of mask " + mask, stripe[i], shards[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void overwritesGarbageInMissingShards() {
+        ReedSolomon rs = new ReedSolomon(5, 2);
+        long[][] stripe = newStripe(rs, 16);
+        rs.encode(stripe);
+
+        long[][] shards = new long[7][];
+        boolean[] present = new boolean[7];
+        for (int i = 0; i < 7; i++) {
+            shards[i] = stripe[i].clone();
+            present[i] = i != 1 && i != 6;
+        }
+        shards[1][3] ^= 1;
+        shards[6][0] ^= -1L;
+        rs.reconstruct(shards, present);
+        assertArrayEquals(stripe[1], shards[1]);
+        assertArrayEquals(stripe[6], shards[6]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsKShards() {
+        ReedSolomon rs = new ReedSolomon(3, 2);
+        long[][] stripe = newStripe(rs, 4);
+        rs.encode(stripe);
+        rs.reconstruct(stripe, new boolean[]{true, false, true, false, false});
+    }
+
+    @Test
+    public void encodesRanges() {
+        ReedSolomon rs = new ReedSolomon(4, 2);
+        long[][] whole = newStripe(rs, 100);
+        long[][] parts = new long[whole.length][];
+        for (int i = 0; i < whole.length; i++) {
+            parts[i] = whole[i].clone();
+        }
+        rs.encode(whole);
+        rs.encode(parts, 0, 37);
+        rs.encode(parts, 37, 100);
+        for (int i = 0; i < whole.length; i++) {
+            assertArrayEquals(whole[i], parts[i]);
+        }
+    }
+
+    @Test
+    public void multipliesWordsByteWise() {
+        for (int c = 0; c < GaloisField.SIZE; c++) {
+            long x = _random.nextLong();
+            long product = GaloisField.multiply(c, x);
+            for (int b = 0; b < 8; b++) {
+                int expected = GaloisField.multiply(c, (int) (x >>> (8 * b)) & 0xFF);
+                assertEquals(expected, (int) (product >>> (8 * b)) & 0xFF);
+            }
+            if (c != 0) {
+                assertEquals(1, GaloisField.multiply(c, GaloisField.inverse(c)));
+            }
+        }
+    }
+
+    private long[][] newStripe(ReedSolomon rs, int words) {
+        long[][] stripe = new long[rs.getTotalShards()][words];
+        for (int i = 0; i < rs.getDataShards(); i++) {
+            for (int w = 0; w < words; w++) {
+                stripe[i][w] = _random.nextLong();
+            }
+        }
+        return stripe;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.placement;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.storage.PositionRanges;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a HashRing places chunks the same way whatever order its
+ * nodes join in, and that joins, departures, reweights and zone changes
+ * move only the chunks they have to, to or from the node that changed.
+ *
+ * @author Walter
+ */
+public class HashRingTest {
+
+    private static final int NODES = 10;
+    private static final int POSITIONS = 20000;
+
+    private long[] _positions;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(6);
+        _positions = new long[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            _positions[i] = random.nextLong();
+        }
+    }
+
+    @Test
+    public void ignoresJoinOrder() throws UnknownHostException {
+        HashRing forward = new HashRing();
+        HashRing backward = new HashRing();
+        for (int i = 0; i < NODES; i++) {
+            forward.serviceJoined(node(i, null, -1));
+            backward.serviceJoined(node(NODES - 1 - i, null, -1));
+        }
+        assertArrayEquals(forward.getTokens(), backward.getTokens());
+        assertEquals(NODES * HashRing.DEFAULT_VIRTUAL_NODES, forward.getVirtualNodeCount());
+        for (long position : _positions) {
+            assertEquals(names(forward.getOwners(position, 3)), names(backward.getOwners(position, 3)));
+        }
+    }
+
+    @Test
+    public void joinMovesOnlyToTheNewNode() throws UnknownHostException {
+        HashRing ring = newRing(NODES);
+        String[] before = primaries(ring);
+        ring.serviceJoined(node(NODES, null, -1));
+        String[] after = primaries(ring);
+
+        int moved = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            if (!before[i].equals(after[i])) {
+                assertEquals("node" + NODES, after[i]);
+                moved++;
+            }
+        }
+        assertFair(moved, POSITIONS / (NODES + 1));
+    }
+
+    @Test
+    public void departureMovesOnlyTheNodesChunks() throws UnknownHostException {
+        HashRing ring = newRing(NODES);
+        String[] before = primaries(ring);
+        ring.serviceDeparted(node(3, null, -1));
+        String[] after = primaries(ring);
+
+        assertEquals(NODES - 1, ring.size());
+        int moved = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            if (before[i].equals("node3")) {
+                assertFalse(after[i].equals("node3"));
+                moved++;
+            } else {
+                assertEquals(before[i], after[i]);
+            }
+        }
+        assertFair(moved, POSITIONS / NODES);
+    }
+
+    @Test
+    public void reweightsPastTheThreshold() throws UnknownHostException {
+        long gigabyte = HashRing.BYTES_PER_VIRTUAL_NODE;
+        HashRing ring = new HashRing();
+        for (int i = 0; i < NODES; i++) {
+            ring.serviceJoined(node(i, null, 100 * gigabyte));
+        }
+        long[] tokens = ring.getTokens();
+
+        // a small change of free space leaves the ring alone
+        ring.serviceUpdated(node(0, null, 120 * gigabyte));
+        assertEquals(100, ring.getVirtualNodeCount("node0"));
+        assertArrayEquals(tokens, ring.getTokens());
+
+        // a large one only adds points, so chunks only move to the node
+        String[] before = primaries(ring);
+        ring.serviceUpdated(node(0, null, 200 * gigabyte));
+        assertEquals(200, ring.getVirtualNodeCount("node0"));
+        Set<Long> grown = toSet(ring.getTokens());
+        assertTrue(grown.containsAll(toSet(tokens)));
+        String[] after = primaries(ring);
+        for (int i = 0; i < POSITIONS; i++) {
+            if (!before[i].equals(after[i])) {
+                assertEquals("node0", after[i]);
+            }
+        }
+
+        // shrinking back takes away exactly the points that were added
+        ring.serviceUpdated(node(0, null, 100 * gigabyte));
+        assertArrayEquals(tokens, ring.getTokens());
+        assertArrayEquals(before, primaries(ring));
+    }
+
+    @Test
+    public void spreadsReplicasAcrossZones() throws UnknownHostException {
+        HashRing ring = new HashRing();
+        for (int i = 0; i < NODES; i++) {
+            ring.serviceJoined(node(i, i < 8 ? "a" : "b", -1));
+        }
+        String[] before = primaries(ring);
+        for (long position : _positions) {
+            assertEquals(2, zones(ring.getOwners(position, 2)).size());
+        }
+
+        // moving a node to a new zone changes replicas, not primaries
+        ring.serviceUpdated(node(0, "c", -1));
+        assertArrayEquals(before, primaries(ring));
+        for (long position : _positions) {
+            List<ServiceDescription> owners = ring.getOwners(position, 3);
+            assertEquals(3, owners.size());
+            assertEquals(3, zones(owners).size());
+        }
+    }
+
+    @Test
+    public void sharedRangesMatchOwners() throws UnknownHostException {
+        HashRing ring = newRing(5);
+        PositionRanges ranges = ring.getSharedRanges("node1", "node2", 3);
+        long[] tokens = ring.getTokens();
+        List<Long> probes = new ArrayList<Long>();
+        for (long position : _positions) {
+            probes.add(position);
+        }
+        for (long token : tokens) {
+            probes.add(token);
+            probes.add(token + 1);
+        }
+        probes.add(Long.MIN_VALUE);
+        probes.add(Long.MAX_VALUE);
+        for (long position : probes) {
+            Set<String> owners = names(ring.getOwners(position, 3));
+            assertEquals("position " + position, owners.contains("node1") && owners.contains("node2"),
+                    ranges.contains(position));
+        }
+    }
+
+    private HashRing newRing(int nodes) throws UnknownHostException {
+        HashRing ring = new HashRing();
+        for (int i = 0; i < nodes; i++) {
+            ring.serviceJoined(node(i, null, -1));
+        }
+        return ring;
+    }
+
+    private String[] primaries(HashRing ring) {
+        String[] primaries = new String[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            primaries[i] = ring.getOwners(_positions[i], 1).get(0).getInstanceName();
+        }
+        return primaries;
+    }
+
+    /**
+     * Virtual nodes keep a node's share within a third of its fair one.
+     */
+    private static void assertFair(int moved, int fair) {
+        assertTrue("moved " + moved + ", fair " + fair, moved > fair * 2 / 3 && moved < fair * 4 / 3);
+    }
+
+    private static ServiceDescription node(int i, String zone, long freeBytes) throws UnknownHostException {
+        ServiceAttributes attributes = ServiceAttributes.EMPTY;
+        if (zone != null) {
+            attributes = attributes.with(ServiceAttributes.ZONE, zone);
+        }
+        if (freeBytes >= 0) {
+            attributes = attributes.with(ServiceAttributes.FREE_BYTES, freeBytes);
+        }
+        return new ServiceDescription("node" + i, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) (i + 1)}),
+                9000, attributes);
+    }
+
+    private static Set<String> names(List<ServiceDescription> descriptions) {
+        Set<String> names = new HashSet<String>();
+        for (ServiceDescription description : descriptions) {
+            names.add(description.getInstanceName());
+        }
+        return names;
+    }
+
+    private static Set<String> zones(List<ServiceDescription> descriptions) {
+        Set<String> zones = new HashSet<String>();
+        for (ServiceDescription description : descriptions) {
+            zones.add(description.getAttributes().getString(ServiceAttributes.ZONE));
+        }
+        return zones;
+    }
+
+    private static Set<Long> toSet(long[] tokens) {
+        Set<Long> set = new HashSet<Long>();
+        for (long token : tokens) {
+            set.add(token);
+        }
+        return set;
+    }
+}
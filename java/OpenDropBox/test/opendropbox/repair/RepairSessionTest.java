@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.PositionRanges;
+import opendropbox.transfer.ChunkServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Repairs a local store against a peer's ChunkServer on the loopback
+ * address, over half of the ring, and checks that exactly the chunks
+ * each side was missing in that half are copied, that the other half
+ * is left alone, and that a second repair finds nothing to do.
+ *
+ * @author Walter
+ */
+public class RepairSessionTest {
+
+    private File _localDirectory;
+    private File _peerDirectory;
+    private BlockStore _local;
+    private BlockStore _peer;
+    private ChunkServer _server;
+    private InetSocketAddress _address;
+    private Random _random;
+
+    @Before
+    public void setUp() throws IOException {
+        _localDirectory = Files.createTempDirectory("repairlocal").toFile();
+        _peerDirectory = Files.createTempDirectory("repairpeer").toFile();
+        _local = new BlockStore(_localDirectory);
+        _peer = new BlockStore(_peerDirectory);
+        _server = new ChunkServer(_peer, "peer", new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        _server.start(false);
+        _address = new InetSocketAddress(InetAddress.getLoopbackAddress(), _server.getPort());
+        _random = new Random(11);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _server.stop();
+        _local.close();
+        _peer.close();
+        for (File directory : new File[]{_localDirectory, _peerDirectory}) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void copiesOnlyWhatIsMissing() throws IOException {
+        List<ChunkHash> shared = putChunks(500, _local, _peer);
+        List<ChunkHash> localOnly = putChunks(40, _local);
+        List<ChunkHash> peerOnly = putChunks(60, _peer);
+
+        PositionRanges ranges = new PositionRanges();
+        ranges.add(Long.MIN_VALUE, -1);
+        RepairSession session = new RepairSession(_local, _address, ranges);
+        session.run();
+
+        assertEquals(countIn(ranges, peerOnly), session.getChunksFetched());
+        assertEquals(countIn(ranges, localOnly), session.getChunksPushed());
+        assertTrue(session.getLeavesListed() <= localOnly.size() + peerOnly.size());
+        for (ChunkHash hash : shared) {
+            assertTrue(_local.contains(hash) && _peer.contains(hash));
+        }
+        for (ChunkHash hash : localOnly) {
+            assertEquals(ranges.contains(hash.getWord(0)), _peer.contains(hash));
+        }
+        for (ChunkHash hash : peerOnly) {
+            assertEquals(ranges.contains(hash.getWord(0)), _local.contains(hash));
+            if (_local.contains(hash)) {
+                assertArrayEquals(_peer.get(hash), _local.get(hash));
+            }
+        }
+
+        // the stores now agree over the ranges, which one digest shows
+        RepairSession again = new RepairSession(_local, _address, ranges);
+        again.run();
+        assertEquals(1, again.getNodesCompared());
+        assertEquals(0, again.getChunksFetched() + again.getChunksPushed());
+    }
+
+    @Test
+    public void agreeingStoresCostOneDigest() throws IOException {
+        putChunks(200, _local, _peer);
+        RepairSession session = new RepairSession(_local, _address, PositionRanges.all());
+        session.run();
+        assertEquals(1, session.getNodesCompared());
+        assertEquals(0, session.getLeavesListed());
+        assertEquals(0, session.getBytesCopied());
+    }
+
+    private List<ChunkHash> putChunks(int count, BlockStore... stores) throws IOException {
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = new byte[100 + _random.nextInt(1000)];
+            _random.nextBytes(chunk);
+            for (BlockStore store : stores) {
+                store.put(chunk, 0, chunk.length);
+            }
+            hashes.add(ChunkHash.of(chunk, 0, chunk.length));
+        }
+        return hashes;
+    }
+
+    private static int countIn(PositionRanges ranges, List<ChunkHash> hashes) {
+        int count = 0;
+        for (ChunkHash hash : hashes) {
+            if (ranges.contains(hash.getWord(0))) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
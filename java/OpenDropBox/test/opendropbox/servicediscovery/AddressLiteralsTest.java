@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks AddressLiterals against the JDK's own literal parsing, and that
+ * anything that is not a literal, hostnames above all, is refused
+ * instead of being resolved.
+ *
+ * @author Walter
+ */
+public class AddressLiteralsTest {
+
+    private static final String[] VALID = {
+        "0.0.0.0", "10.1.2.3", "255.255.255.255", "192.168.0.100",
+        "::", "::1", "1::", "fe80::1", "2001:db8::8a2e:370:7334",
+        "2001:0db8:0000:0000:0000:ff00:0042:8329", "1:2:3:4:5:6:7:8",
+        "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "FE80::ABCD",
+        "::ffff:10.1.2.3", "64:ff9b::192.0.2.33", "1:2:3:4:5:6:1.2.3.4"
+    };
+
+    private static final String[] INVALID = {
+        "", "localhost", "example.com", "node-1", "10.1.2", "10.1.2.3.4",
+        "256.1.2.3", "10.1.2.", ".10.1.2", "010.1.2.3", "1.2.3.4x", "1..2.3",
+        ":", ":1", "1:", "1:::2", "1::2::3", "12345::", "g::1",
+        "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::", "::1:2:3:4:5:6:7:8",
+        "1.2.3.4::", "::1.2.3", "1:2:3:4:5:6:7:1.2.3.4", "[::1]"
+    };
+
+    @Test
+    public void parsesLiterals() throws Exception {
+        for (String literal : VALID) {
+            assertEquals(literal, InetAddress.getByName(literal), AddressLiterals.parse(literal));
+        }
+    }
+
+    @Test
+    public void ignoresZone() throws Exception {
+        assertEquals(InetAddress.getByName("fe80::1"), AddressLiterals.parse("fe80::1%eth0"));
+        assertEquals(InetAddress.getByName("fe80::1"), AddressLiterals.parse("fe80::1%2"));
+    }
+
+    @Test
+    public void rawBytes() {
+        assertArrayEquals(new byte[]{10, 1, 2, 3}, AddressLiterals.toBytes("10.1.2.3"));
+        byte[] mapped = AddressLiterals.toBytes("::ffff:10.1.2.3");
+        assertEquals(16, mapped.length);
+        assertEquals((byte) 0xff, mapped[10]);
+        assertEquals(3, mapped[15]);
+    }
+
+    @Test
+    public void rejectsNonLiterals() {
+        for (String text : INVALID) {
+            assertNull(text, AddressLiterals.toBytes(text));
+            assertNull(text, AddressLiterals.parse(text));
+        }
+        assertNull(AddressLiterals.parse(null));
+    }
+
+    @Test
+    public void descriptionsNeverResolve() {
+        assertNull(ServiceDescription.parse("node-1", "localhost", "8000"));
+        assertNull(ServiceDescription.parse("node-1", "no-such-host.invalid", "8000"));
+        ServiceDescription description = ServiceDescription.parse("node-1", "10.1.2.3", "8000");
+        assertEquals("10.1.2.3", description.getAddress().getHostAddress());
+        assertEquals(8000, description.getPort());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through DiscoveryCodec and DiscoveryMessage, in both the
+ * binary and the legacy text format, and checks that malformed packets
+ * are refused rather than misread.
+ *
+ * @author Walter
+ */
+public class DiscoveryCodecTest {
+
+    private static final EncodedServiceName SERVICE = new EncodedServiceName("ODB v0.1");
+
+    @Test
+    public void queryRoundTrip() {
+        ByteBuffer out = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeQuery(out, SERVICE, DiscoveryCodec.FLAG_UNICAST_REPLY);
+        int countPosition = out.position();
+        out.put((byte) 2);
+        DiscoveryCodec.encodeKnownAnswer(out, DiscoveryCodec.hashInstanceName("a"), 10);
+        DiscoveryCodec.encodeKnownAnswer(out, DiscoveryCodec.hashInstanceName("b"), 2);
+        out.flip();
+
+        DiscoveryMessage message = new DiscoveryMessage();
+        assertTrue(message.read(out));
+        assertFalse(message.isLegacy());
+        assertEquals(DiscoveryCodec.TYPE_QUERY, message.getType());
+        assertEquals(DiscoveryCodec.FLAG_UNICAST_REPLY, message.getFlags());
+        assertTrue(message.isForService(SERVICE));
+        assertFalse(message.isForService(new EncodedServiceName("other")));
+        assertEquals(2, message.getKnownAnswerCount());
+        assertTrue(message.hasKnownAnswer(DiscoveryCodec.hashInstanceName("a"), 5));
+        assertFalse(message.hasKnownAnswer(DiscoveryCodec.hashInstanceName("b"), 5));
+        assertFalse(message.hasKnownAnswer(DiscoveryCodec.hashInstanceName("c"), 0));
+        assertEquals(0, out.position());
+        assertEquals(2, out.get(countPosition));
+    }
+
+    @Test
+    public void replyRoundTrip() throws Exception {
+        ServiceDescription v4 = new ServiceDescription("node-1", InetAddress.getByName("10.1.2.3"), 8000,
+                ServiceAttributes.EMPTY.with(ServiceAttributes.ZONE, "rack-1").with("free", 1L << 40));
+        ServiceDescription v6 = new ServiceDescription("node-2", InetAddress.getByName("fe80::1"), 65535);
+
+        ByteBuffer out = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeHeader(out, DiscoveryCodec.TYPE_REPLY, 0, SERVICE);
+        out.put((byte) 2);
+        DiscoveryCodec.encodeRecord(out, v4, 15);
+        DiscoveryCodec.encodeRecord(out, v6, 0);
+        assertEquals(DiscoveryCodec.HEADER_LENGTH + SERVICE.getUtf8().length + 1
+                + DiscoveryCodec.getRecordLength(v4) + DiscoveryCodec.getRecordLength(v6), out.position());
+        out.flip();
+
+        DiscoveryMessage message = new DiscoveryMessage();
+        assertTrue(message.read(out));
+        assertEquals(DiscoveryCodec.TYPE_REPLY, message.getType());
+        assertEquals(2, message.getRecordCount());
+
+        assertTrue(message.nextRecord());
+        assertEquals(15, message.getTtl());
+        ServiceDescription first = message.toServiceDescription();
+        assertEquals("node-1", first.getInstanceName());
+        assertEquals(v4.getAddress(), first.getAddress());
+        assertEquals(8000, first.getPort());
+        assertEquals(v4.getAttributes(), first.getAttributes());
+
+        assertTrue(message.nextRecord());
+        assertEquals(0, message.getTtl());
+        ServiceDescription second = message.toServiceDescription();
+        assertEquals("node-2", second.getInstanceName());
+        assertEquals(v6.getAddress(), second.getAddress());
+        assertEquals(65535, second.getPort());
+
+        assertFalse(message.nextRecord());
+    }
+
+    @Test
+    public void legacyRoundTrip() {
+        DiscoveryMessage message = new DiscoveryMessage();
+        assertTrue(message.read(ascii("SERVICE QUERY ODB+v0.1")));
+        assertTrue(message.isLegacy());
+        assertEquals(DiscoveryCodec.TYPE_QUERY, message.getType());
+        assertTrue(message.isForService(SERVICE));
+
+        assertTrue(message.read(ascii("SERVICE REPLY ODB+v0.1 node-1 10.1.2.3 8000\0garbage")));
+        assertEquals(DiscoveryCodec.TYPE_REPLY, message.getType());
+        assertTrue(message.nextRecord());
+        assertEquals(ServiceConstants.DEFAULT_SERVICE_TTL, message.getTtl());
+        ServiceDescription description = message.toServiceDescription();
+        assertEquals("node-1", description.getInstanceName());
+        assertEquals("10.1.2.3", description.getAddress().getHostAddress());
+        assertEquals(8000, description.getPort());
+        assertFalse(message.nextRecord());
+    }
+
+    @Test
+    public void malformedHeaders() {
+        DiscoveryMessage message = new DiscoveryMessage();
+        assertFalse(message.read(ByteBuffer.allocate(0)));
+        assertFalse(message.read(ascii("SERVICE NOTHING x")));
+        assertFalse(message.read(ascii("SERVICE QUERY ")));
+
+        // a service name running past the end of the packet
+        ByteBuffer out = ByteBuffer.allocate(64);
+        DiscoveryCodec.encodeQuery(out, SERVICE);
+        out.flip();
+        out.limit(out.limit() - 1);
+        assertFalse(message.read(out));
+
+        // a version from the future
+        out = ByteBuffer.allocate(64);
+        DiscoveryCodec.encodeQuery(out, SERVICE);
+        out.put(2, (byte) (DiscoveryCodec.VERSION + 1));
+        out.flip();
+        assertFalse(message.read(out));
+
+        // a reply without its record count
+        out = ByteBuffer.allocate(64);
+        DiscoveryCodec.encodeHeader(out, DiscoveryCodec.TYPE_REPLY, 0, SERVICE);
+        out.flip();
+        assertFalse(message.read(out));
+    }
+
+    @Test
+    public void malformedRecords() throws Exception {
+        ServiceDescription description = new ServiceDescription("node-1", InetAddress.getByName("10.1.2.3"), 8000);
+        ByteBuffer out = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeReply(out, DiscoveryCodec.TYPE_REPLY, SERVICE, description, 15);
+        out.flip();
+        int length = out.limit();
+        DiscoveryMessage message = new DiscoveryMessage();
+
+        // every truncation of the record is refused
+        int recordStart = length - DiscoveryCodec.getRecordLength(description);
+        for (int limit = recordStart; limit < length; limit++) {
+            out.limit(limit);
+            assertTrue(message.read(out));
+            assertFalse("truncated at " + limit, message.nextRecord());
+        }
+
+        // an address that is neither IPv4 nor IPv6
+        out.limit(length);
+        int addressLength = recordStart + 1 + "node-1".length();
+        out.put(addressLength, (byte) 5);
+        assertTrue(message.read(out));
+        assertFalse(message.nextRecord());
+
+        // a count promising more records than the packet holds
+        out.put(addressLength, (byte) 4);
+        out.put(recordStart - 1, (byte) 3);
+        assertTrue(message.read(out));
+        assertTrue(message.nextRecord());
+        assertFalse(message.nextRecord());
+
+        assertTrue(message.read(ascii("SERVICE REPLY ODB+v0.1 node-1 10.1.2.3 80x0")));
+        assertFalse(message.nextRecord());
+        assertTrue(message.read(ascii("SERVICE REPLY ODB+v0.1 node-1 10.1.2.3 99999")));
+        assertFalse(message.nextRecord());
+        assertTrue(message.read(ascii("SERVICE REPLY ODB+v0.1 node-1 10.1.2.3")));
+        assertFalse(message.nextRecord());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameTooLong() throws Exception {
+        StringBuffer name = new StringBuffer();
+        for (int i = 0; i <= DiscoveryCodec.MAX_NAME_LENGTH; i++) {
+            name.append('x');
+        }
+        DiscoveryCodec.encodeRecord(ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH),
+                new ServiceDescription(name.toString(), InetAddress.getByName("10.1.2.3"), 1), 1);
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
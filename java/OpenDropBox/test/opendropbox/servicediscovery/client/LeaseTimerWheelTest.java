@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import opendropbox.servicediscovery.simulation.VirtualScheduler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a small LeaseTimerWheel on a virtual clock, with deadlines many
+ * times the wheel's span away, and checks that every key is looked at
+ * within one tick after its deadline, never before.
+ *
+ * @author Walter
+ */
+public class LeaseTimerWheelTest {
+
+    private static final long TICK = 10;
+    private static final int SLOTS = 8;
+
+    private VirtualScheduler _clock;
+    private Map<String, Long> _expired;
+    private Map<String, Long> _renewals;
+    private LeaseTimerWheel _wheel;
+
+    @Before
+    public void setUp() {
+        _clock = new VirtualScheduler(1000);
+        _expired = new HashMap<String, Long>();
+        _renewals = new HashMap<String, Long>();
+        _wheel = new LeaseTimerWheel(_clock, _clock, new LeaseTimerWheel.ExpiryHandler() {
+            public long leaseDeadlinePassed(String key, long now) {
+                Long renewed = _renewals.remove(key);
+                if (renewed != null) {
+                    return renewed;
+                }
+                _expired.put(key, now);
+                return 0;
+            }
+        }, TICK, SLOTS);
+    }
+
+    @Test
+    public void expiresAcrossWraps() {
+        long start = _clock.currentTimeMillis();
+        long[] delays = {5, TICK, TICK * SLOTS - 1, TICK * SLOTS, TICK * SLOTS + 1, 1234, 10000, 10003};
+        for (int i = 0; i < delays.length; i++) {
+            _wheel.schedule("k" + i, start + delays[i]);
+        }
+        assertEquals(delays.length, _wheel.size());
+
+        _clock.runFor(20000);
+        for (int i = 0; i < delays.length; i++) {
+            long deadline = start + delays[i];
+            Long at = _expired.get("k" + i);
+            assertNotNull("k" + i, at);
+            assertTrue("k" + i + " early at " + at, at >= deadline);
+            assertTrue("k" + i + " late at " + at, at < deadline + TICK);
+        }
+        assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void renewalMovesTheKey() {
+        long start = _clock.currentTimeMillis();
+        _wheel.schedule("k", start + 100);
+        _renewals.put("k", start + 1000);
+
+        _clock.runFor(500);
+        assertTrue(_expired.isEmpty());
+        assertEquals(1, _wheel.size());
+
+        _clock.runFor(1000);
+        long at = _expired.get("k");
+        assertTrue(at >= start + 1000 && at < start + 1000 + TICK);
+    }
+
+    @Test
+    public void earlierDeadlineWins() {
+        long start = _clock.currentTimeMillis();
+        _wheel.schedule("k", start + 1000);
+        _wheel.schedule("k", start + 200);
+        _wheel.schedule("k", start + 5000);
+        _clock.runFor(300);
+        long at = _expired.get("k");
+        assertTrue(at >= start + 200 && at < start + 200 + TICK);
+    }
+
+    @Test
+    public void cancelAndIdle() {
+        long start = _clock.currentTimeMillis();
+        _wheel.schedule("a", start + 100);
+        _wheel.schedule("b", start + 100);
+        _wheel.cancel("a");
+        _clock.runFor(200);
+        assertFalse(_expired.containsKey("a"));
+        assertTrue(_expired.containsKey("b"));
+
+        // nothing is held, so the wheel stops ticking
+        assertEquals(0, _clock.getPendingTasks());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.client.ServiceListManager;
+import opendropbox.servicediscovery.server.ServiceResponder;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs responders and browsers on a SimulatedNetwork and checks that
+ * the browsers converge quickly, with and without loss, that goodbyes
+ * and crashes are noticed in time but not before the lease runs out,
+ * and that a browser cut off by a partition drops everything and finds
+ * it all again once the partition heals.
+ *
+ * @author Walter
+ */
+public class SimulatedDiscoveryTest {
+
+    private static final int RESPONDERS = 40;
+    private static final int BROWSERS = 3;
+    private static final long STEP = 10;
+    private static final long TTL = ServiceConstants.DEFAULT_SERVICE_TTL * 1000L;
+
+    private SimulatedNetwork _network;
+    private VirtualScheduler _clock;
+    private List<ServiceResponder> _responders;
+    private List<DiscoveryEngine> _responderEngines;
+    private List<ServiceListManager> _browsers;
+    private List<DiscoveryEngine> _browserEngines;
+
+    @Before
+    public void setUp() {
+        _network = new SimulatedNetwork(12);
+        _network.setLatency(1, 10);
+        _clock = _network.getScheduler();
+        _responders = new ArrayList<ServiceResponder>();
+        _responderEngines = new ArrayList<DiscoveryEngine>();
+        _browsers = new ArrayList<ServiceListManager>();
+        _browserEngines = new ArrayList<DiscoveryEngine>();
+    }
+
+    @Test
+    public void converges() {
+        start();
+        long took = runUntilSize(_browsers, RESPONDERS, 5000);
+        assertTrue("converged after " + took + " ms", took >= 0 && took < 3000);
+
+        // once the browsers have backed off, traffic is two announcements
+        // per responder per ttl and the answers to the odd refresh query
+        _clock.runFor(2 * TTL);
+        _network.resetCounters();
+        _clock.runFor(4 * TTL);
+        for (ServiceListManager browser : _browsers) {
+            assertEquals(RESPONDERS, browser.getRegistry().size());
+        }
+        long packets = _network.getPacketsSent();
+        assertTrue(packets + " packets in four ttls", packets <= 4 * RESPONDERS * 3);
+    }
+
+    @Test
+    public void convergesDespiteLoss() {
+        _network.setLossRate(0.2);
+        _network.setDuplicationRate(0.05);
+        start();
+        long took = runUntilSize(_browsers, RESPONDERS, 30000);
+        assertTrue("converged after " + took + " ms", took >= 0);
+    }
+
+    @Test
+    public void dropsDepartedServices() {
+        start();
+        assertTrue(runUntilSize(_browsers, RESPONDERS, 5000) >= 0);
+
+        // a goodbye is seen at once
+        _responders.get(0).stopResponder();
+        long took = runUntilSize(_browsers, RESPONDERS - 1, 5000);
+        assertTrue("goodbye took " + took + " ms", took >= 0 && took < 100);
+
+        // a crash only once the lease has run out
+        _responderEngines.get(1).shutdown();
+        _responderEngines.get(2).shutdown();
+        long crashed = _clock.currentTimeMillis();
+        _clock.runFor(TTL / 2);
+        for (ServiceListManager browser : _browsers) {
+            assertEquals(RESPONDERS - 1, browser.getRegistry().size());
+        }
+        took = runUntilSize(_browsers, RESPONDERS - 3, 2 * TTL);
+        assertTrue("crash took " + took + " ms", took >= 0);
+        assertTrue(_clock.currentTimeMillis() - crashed <= TTL + 1000);
+        for (ServiceListManager browser : _browsers) {
+            assertFalse(browser.containsInstance("node-1"));
+            assertFalse(browser.containsInstance("node-2"));
+        }
+    }
+
+    @Test
+    public void recoversFromPartition() {
+        start();
+        assertTrue(runUntilSize(_browsers, RESPONDERS, 5000) >= 0);
+
+        // the first browser is cut off and its leases run out
+        SimulatedTransport cutOff = (SimulatedTransport) _browserEngines.get(0).getTransport();
+        _network.setPartition(cutOff.getHost(), 1);
+        List<ServiceListManager> isolated = _browsers.subList(0, 1);
+        long took = runUntilSize(isolated, 0, 2 * TTL);
+        assertTrue("partition noticed after " + took + " ms", took >= 0);
+        for (ServiceListManager browser : _browsers.subList(1, BROWSERS)) {
+            assertEquals(RESPONDERS, browser.getRegistry().size());
+        }
+
+        // announcements bring everything back within half a ttl
+        _network.heal();
+        took = runUntilSize(isolated, RESPONDERS, TTL);
+        assertTrue("healed after " + took + " ms", took >= 0 && took <= TTL / 2 + 100);
+    }
+
+    /**
+     * Starts the responders at times spread over the first second, and
+     * the browsers at once.
+     */
+    private void start() {
+        for (int i = 0; i < RESPONDERS; i++) {
+            DiscoveryEngine engine = _network.createEngine();
+            SimulatedTransport transport = (SimulatedTransport) engine.getTransport();
+            final ServiceResponder responder = new ServiceResponder(ServiceConstants.SERVICE_NAME, engine);
+            responder.setDescription(new ServiceDescription("node-" + i, transport.getHost(), 4000));
+            _clock.schedule(new Runnable() {
+                public void run() {
+                    responder.startResponder();
+                }
+            }, i * 1000L / RESPONDERS, TimeUnit.MILLISECONDS);
+            _responders.add(responder);
+            _responderEngines.add(engine);
+        }
+        for (int i = 0; i < BROWSERS; i++) {
+            DiscoveryEngine engine = _network.createEngine();
+            ServiceListManager browser = new ServiceListManager(ServiceConstants.SERVICE_NAME, engine);
+            browser.start();
+            _browsers.add(browser);
+            _browserEngines.add(engine);
+        }
+    }
+
+    /**
+     * Runs the clock until every browser lists exactly the given number
+     * of services.
+     *
+     * @return - how long that took, or -1 on timeout
+     */
+    private long runUntilSize(List<ServiceListManager> browsers, int size, long timeout) {
+        long start = _clock.currentTimeMillis();
+        while (_clock.currentTimeMillis() - start <= timeout) {
+            boolean settled = true;
+            for (ServiceListManager browser : browsers) {
+                if (browser.getRegistry().size() != size) {
+                    settled = false;
+                    break;
+                }
+            }
+            if (settled) {
+                return _clock.currentTimeMillis() - start;
+            }
+            _clock.runFor(STEP);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writes chunks across several small segments, damages the last segment
+ * file the way a crash would, and checks that reopening the store keeps
+ * every complete chunk, drops the damaged tail, and appends after it.
+ *
+ * @author Walter
+ */
+public class BlockStoreTest {
+
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    private File _directory;
+    private Random _random;
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("blockstore").toFile();
+        _random = new Random(3);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : _directory.listFiles()) {
+            file.delete();
+        }
+        _directory.delete();
+    }
+
+    @Test
+    public void reopensAllSegments() throws IOException {
+        BlockStore store = new BlockStore(_directory, SEGMENT_SIZE);
+        List<byte[]> chunks = putChunks(store, 40);
+        long bytesStored = store.getBytesStored();
+        store.close();
+        assertTrue(getSegmentFiles().length > 3);
+
+        store = new BlockStore(_directory, SEGMENT_SIZE);
+        assertEquals(chunks.size(), store.size());
+        assertEquals(bytesStored, store.getBytesStored());
+        assertStored(store, chunks);
+        store.close();
+    }
+
+    @Test
+    public void truncatesIncompleteRecord() throws IOException {
+        BlockStore store = new BlockStore(_directory, SEGMENT_SIZE);
+        List<byte[]> chunks = putChunks(store, 40);
+        store.close();
+
+        // cut the last record of the last segment in half
+        File[] files = getSegmentFiles();
+        File last = files[files.length - 1];
+        byte[] lost = chunks.remove(chunks.size() - 1);
+        long complete = last.length() - Segment.HEADER_LENGTH - lost.length;
+        truncate(last, complete + Segment.HEADER_LENGTH + lost.length / 2);
+
+        store = new BlockStore(_directory, SEGMENT_SIZE);
+        assertEquals(chunks.size(), store.size());
+        assertFalse(store.contains(ChunkHash.of(lost, 0, lost.length)));
+        assertEquals(complete, last.length());
+        assertStored(store, chunks);
+
+        // the next chunk goes where the damaged one was
+        byte[] chunk = newChunk(100);
+        store.put(chunk, 0, chunk.length);
+        chunks.add(chunk);
+        store.close();
+
+        store = new BlockStore(_directory, SEGMENT_SIZE);
+        assertEquals(chunks.size(), store.size());
+        assertStored(store, chunks);
+        store.close();
+    }
+
+    @Test
+    public void truncatesGarbage() throws IOException {
+        BlockStore store = new BlockStore(_directory, SEGMENT_SIZE);
+        List<byte[]> chunks = putChunks(store, 10);
+        store.close();
+
+        // a partial header, then a full header whose magic is wrong
+        File[] files = getSegmentFiles();
+        File last = files[files.length - 1];
+        long complete = last.length();
+        append(last, new byte[5]);
+        store = new BlockStore(_directory, SEGMENT_SIZE);
+        assertEquals(complete, last.length());
+        store.close();
+
+        append(last, new byte[Segment.HEADER_LENGTH + 10]);
+        store = new BlockStore(_directory, SEGMENT_SIZE);
+        assertEquals(complete, last.length());
+        assertEquals(chunks.size(), store.size());
+        assertStored(store, chunks);
+        store.close();
+    }
+
+    private List<byte[]> putChunks(BlockStore store, int count) throws IOException {
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = newChunk(1000 + _random.nextInt(8000));
+            assertEquals(ChunkHash.of(chunk, 0, chunk.length), store.put(chunk, 0, chunk.length));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private byte[] newChunk(int length) {
+        byte[] chunk = new byte[length];
+        _random.nextBytes(chunk);
+        return chunk;
+    }
+
+    private static void assertStored(BlockStore store, List<byte[]> chunks) throws IOException {
+        for (byte[] chunk : chunks) {
+            ChunkHash hash = ChunkHash.of(chunk, 0, chunk.length);
+            assertEquals(chunk.length, store.getLength(hash));
+            assertArrayEquals(chunk, store.get(hash));
+        }
+    }
+
+    private File[] getSegmentFiles() {
+        File[] files = _directory.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void append(File file, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+}
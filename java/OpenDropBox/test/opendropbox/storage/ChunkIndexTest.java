@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Fills a ChunkIndex through many resizes, with runs of hashes that
+ * share a home slot, and checks lookups and range visits against a
+ * plain map.  Chunks are never removed from the index; putting a hash
+ * again moves it, which is what is checked in place of removal.
+ *
+ * @author Walter
+ */
+public class ChunkIndexTest {
+
+    @Test
+    public void packsLocations() {
+        long location = ChunkIndex.getLocation(0xFFFF, (1L << 48) - 1);
+        assertEquals(0xFFFF, ChunkIndex.getSegment(location));
+        assertEquals((1L << 48) - 1, ChunkIndex.getOffset(location));
+
+        location = ChunkIndex.getLocation(3, 12345);
+        assertEquals(3, ChunkIndex.getSegment(location));
+        assertEquals(12345, ChunkIndex.getOffset(location));
+    }
+
+    @Test
+    public void growsAndProbes() {
+        Random random = new Random(1);
+        ChunkIndex index = new ChunkIndex(1);
+        Map<ChunkHash, long[]> expected = new HashMap<ChunkHash, long[]>();
+        long previous = 0;
+        for (int i = 0; i < 5000; i++) {
+            // every tenth hash shares its first word with the one before,
+            // so it has the same home slot at every table size
+            long w0 = i % 10 == 9 ? previous : random.nextLong();
+            ChunkHash hash = new ChunkHash(w0, random.nextLong(), random.nextLong(), random.nextLong());
+            long location = ChunkIndex.getLocation(i % 7, i * 100L);
+            int length = 1 + random.nextInt(100000);
+            index.put(hash, location, length);
+            expected.put(hash, new long[]{location, length});
+            previous = w0;
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<ChunkHash, long[]> entry : expected.entrySet()) {
+            assertTrue(index.contains(entry.getKey()));
+            assertEquals(entry.getValue()[0], index.getLocation(entry.getKey()));
+            assertEquals(entry.getValue()[1], index.getLength(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void putMovesExistingChunk() {
+        ChunkIndex index = new ChunkIndex(4);
+        ChunkHash hash = new ChunkHash(1, 2, 3, 4);
+        index.put(hash, ChunkIndex.getLocation(0, 10), 5);
+        index.put(hash, ChunkIndex.getLocation(2, 20), 6);
+        assertEquals(1, index.size());
+        assertEquals(ChunkIndex.getLocation(2, 20), index.getLocation(hash));
+        assertEquals(6, index.getLength(hash));
+    }
+
+    @Test
+    public void missingChunk() {
+        ChunkIndex index = new ChunkIndex(4);
+        index.put(new ChunkHash(1, 2, 3, 4), 0, 5);
+        ChunkHash other = new ChunkHash(1, 2, 3, 5);
+        assertFalse(index.contains(other));
+        assertEquals(-1, index.getLocation(other));
+        assertEquals(0, index.getLength(other));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyChunk() {
+        new ChunkIndex(4).put(new ChunkHash(1, 2, 3, 4), 0, 0);
+    }
+
+    @Test
+    public void visitsRanges() {
+        Random random = new Random(2);
+        ChunkIndex index = new ChunkIndex(16);
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+        for (int i = 0; i < 3000; i++) {
+            long w0 = random.nextLong();
+            if (i % 100 == 0) {
+                // crowd the ends of the table, where probing wraps around
+                w0 = i % 200 == 0 ? Long.MAX_VALUE - i : Long.MIN_VALUE + i;
+            }
+            ChunkHash hash = new ChunkHash(w0, i, 0, 0);
+            index.put(hash, i, 1 + i % 50);
+            hashes.add(hash);
+        }
+
+        assertRange(index, hashes, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertRange(index, hashes, -1000000000000L, 1000000000000L);
+        assertRange(index, hashes, 0, Long.MAX_VALUE);
+        assertRange(index, hashes, Long.MIN_VALUE, -1);
+        assertRange(index, hashes, Long.MAX_VALUE - 10000, Long.MAX_VALUE);
+        assertRange(index, hashes, Long.MIN_VALUE, Long.MIN_VALUE + 10000);
+        for (int i = 0; i < 50; i++) {
+            long a = random.nextLong();
+            long b = random.nextLong();
+            assertRange(index, hashes, Math.min(a, b), Math.max(a, b));
+        }
+        assertRange(index, hashes, 5, 4);
+    }
+
+    private static void assertRange(ChunkIndex index, List<ChunkHash> hashes, final long first, final long last) {
+        final Map<ChunkHash, Integer> visited = new HashMap<ChunkHash, Integer>();
+        index.visit(first, last, new ChunkIndex.Visitor() {
+            public void visit(ChunkHash hash, int length) {
+                assertTrue(hash.getWord(0) >= first && hash.getWord(0) <= last);
+                assertNull("visited twice: " + hash, visited.put(hash, length));
+            }
+        });
+        int expected = 0;
+        for (ChunkHash hash : hashes) {
+            if (hash.getWord(0) >= first && hash.getWord(0) <= last) {
+                expected++;
+                assertEquals(Integer.valueOf(index.getLength(hash)), visited.get(hash));
+            }
+        }
+        assertEquals(expected, visited.size());
+    }
+}
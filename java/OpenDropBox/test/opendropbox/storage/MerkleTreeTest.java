@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import opendropbox.storage.MerkleTree.Digest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a MerkleTree's digests do not depend on the order chunks
+ * are added in, that each node sums its children, that trees of stores
+ * differing by one chunk differ only on that chunk's path, and that a
+ * BlockStore's digests restricted to ranges count exactly the chunks
+ * inside them.
+ *
+ * @author Walter
+ */
+public class MerkleTreeTest {
+
+    private static final int DEPTH = 8;
+
+    private final Random _random = new Random(10);
+
+    @Test
+    public void ignoresOrder() {
+        List<ChunkHash> hashes = newHashes(2000);
+        MerkleTree forward = newTree(hashes);
+        Collections.shuffle(hashes, _random);
+        MerkleTree shuffled = newTree(hashes);
+        for (int level = 0; level <= DEPTH; level++) {
+            for (int i = 0; i < 1 << level; i++) {
+                assertEquals(forward.getDigest(level, i), shuffled.getDigest(level, i));
+            }
+        }
+        assertEquals(2000, forward.getDigest(0, 0).getCount());
+    }
+
+    @Test
+    public void sumsChildren() {
+        MerkleTree tree = newTree(newHashes(500));
+        for (int level = 0; level < DEPTH; level++) {
+            for (int i = 0; i < 1 << level; i++) {
+                assertEquals(tree.getDigest(level, i),
+                        tree.getDigest(level + 1, 2 * i).add(tree.getDigest(level + 1, 2 * i + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void differsOnlyAlongOnePath() {
+        List<ChunkHash> hashes = newHashes(1000);
+        MerkleTree tree = newTree(hashes);
+        ChunkHash extra = new ChunkHash(_random.nextLong(), _random.nextLong(), _random.nextLong(), 0);
+        hashes.add(extra);
+        MerkleTree other = newTree(hashes);
+
+        int leaf = tree.getLeaf(extra.getWord(0));
+        for (int level = DEPTH; level >= 0; level--) {
+            int node = leaf >>> (DEPTH - level);
+            for (int i = 0; i < 1 << level; i++) {
+                assertEquals(i == node, !tree.getDigest(level, i).equals(other.getDigest(level, i)));
+            }
+            long position = extra.getWord(0);
+            assertTrue(position >= MerkleTree.getFirst(level, node) && position <= MerkleTree.getLast(level, node));
+        }
+    }
+
+    @Test
+    public void nodesTileTheRing() {
+        for (int level = 0; level <= DEPTH; level++) {
+            assertEquals(Long.MIN_VALUE, MerkleTree.getFirst(level, 0));
+            assertEquals(Long.MAX_VALUE, MerkleTree.getLast(level, (1 << level) - 1));
+            for (int i = 1; i < 1 << level; i++) {
+                assertEquals(MerkleTree.getLast(level, i - 1) + 1, MerkleTree.getFirst(level, i));
+            }
+        }
+    }
+
+    @Test
+    public void storeDigestsHonourRanges() throws IOException {
+        File directory = Files.createTempDirectory("merkletree").toFile();
+        BlockStore store = new BlockStore(directory);
+        try {
+            List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+            for (int i = 0; i < 3000; i++) {
+                byte[] chunk = new byte[16];
+                _random.nextBytes(chunk);
+                hashes.add(store.put(chunk, 0, chunk.length));
+            }
+
+            PositionRanges ranges = new PositionRanges();
+            ranges.add(Long.MIN_VALUE, Long.MIN_VALUE / 3);
+            ranges.add(-12345678901234L, 98765432109876L);
+            ranges.add(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2 + (1L << 50));
+
+            int depth = store.getTreeDepth();
+            for (int level : new int[]{0, 1, 3, depth - 1, depth}) {
+                int[] nodes = new int[Math.min(1 << level, 64)];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = level < 7 ? i : _random.nextInt(1 << level);
+                }
+                Digest[] digests = store.getDigests(level, nodes, ranges);
+                for (int i = 0; i < nodes.length; i++) {
+                    long first = MerkleTree.getFirst(level, nodes[i]);
+                    long last = MerkleTree.getLast(level, nodes[i]);
+                    Digest expected = Digest.EMPTY;
+                    for (ChunkHash hash : hashes) {
+                        long position = hash.getWord(0);
+                        if (position >= first && position <= last && ranges.contains(position)) {
+                            expected = expected.add(Digest.of(hash));
+                        }
+                    }
+                    assertEquals("node " + nodes[i] + " of level " + level, expected, digests[i]);
+                }
+            }
+        } finally {
+            store.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private List<ChunkHash> newHashes(int count) {
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+        for (int i = 0; i < count; i++) {
+            hashes.add(new ChunkHash(_random.nextLong(), _random.nextLong(), _random.nextLong(), i));
+        }
+        return hashes;
+    }
+
+    private static MerkleTree newTree(List<ChunkHash> hashes) {
+        MerkleTree tree = new MerkleTree(DEPTH);
+        for (ChunkHash hash : hashes) {
+            tree.add(hash);
+        }
+        return tree;
+    }
+}
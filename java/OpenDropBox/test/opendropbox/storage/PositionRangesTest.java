@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.storage;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Adds random ranges over a small stretch of positions and checks the
+ * merged set against an array of flags, then checks the ends of the
+ * ring, where adding or subtracting one would overflow.
+ *
+ * @author Walter
+ */
+public class PositionRangesTest {
+
+    private static final int SPAN = 200;
+
+    @Test
+    public void mergesLikeAFlagArray() {
+        Random random = new Random(9);
+        for (int round = 0; round < 200; round++) {
+            PositionRanges ranges = new PositionRanges();
+            boolean[] flags = new boolean[SPAN];
+            int adds = 1 + random.nextInt(20);
+            for (int i = 0; i < adds; i++) {
+                int first = random.nextInt(SPAN);
+                int last = Math.min(SPAN - 1, first + random.nextInt(15));
+                ranges.add(first, last);
+                for (int p = first; p <= last; p++) {
+                    flags[p] = true;
+                }
+            }
+            assertMatches(ranges, flags);
+
+            for (int i = 0; i < 20; i++) {
+                int first = random.nextInt(SPAN);
+                int last = Math.min(SPAN - 1, first + random.nextInt(30));
+                int expected = classify(flags, first, last);
+                assertEquals(ranges + " " + first + ".." + last, expected, ranges.classify(first, last));
+            }
+        }
+    }
+
+    @Test
+    public void mergesTouchingRanges() {
+        PositionRanges ranges = new PositionRanges();
+        ranges.add(10, 19);
+        ranges.add(30, 39);
+        ranges.add(20, 29);
+        assertEquals(1, ranges.size());
+        assertEquals(10, ranges.getFirst(0));
+        assertEquals(39, ranges.getLast(0));
+
+        ranges.add(41, 50);
+        assertEquals(2, ranges.size());
+        ranges.add(0, 100);
+        assertEquals(1, ranges.size());
+        assertEquals(0, ranges.getFirst(0));
+        assertEquals(100, ranges.getLast(0));
+    }
+
+    @Test
+    public void handlesTheEndsOfTheRing() {
+        PositionRanges ranges = new PositionRanges();
+        ranges.add(Long.MAX_VALUE - 5, Long.MAX_VALUE);
+        ranges.add(Long.MIN_VALUE, Long.MIN_VALUE + 5);
+        // a range never wraps, so the two ends stay apart
+        assertEquals(2, ranges.size());
+        assertTrue(ranges.contains(Long.MIN_VALUE));
+        assertTrue(ranges.contains(Long.MAX_VALUE));
+        assertFalse(ranges.contains(0));
+        assertEquals(PositionRanges.PARTIAL, ranges.classify(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        ranges.add(Long.MIN_VALUE + 6, Long.MAX_VALUE - 6);
+        assertEquals(1, ranges.size());
+        assertEquals(PositionRanges.COVERED, ranges.classify(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        PositionRanges all = PositionRanges.all();
+        all.add(0, 10);
+        assertEquals(1, all.size());
+        assertEquals(PositionRanges.COVERED, all.classify(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(PositionRanges.DISJOINT, new PositionRanges().classify(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBackwardRange() {
+        new PositionRanges().add(5, 4);
+    }
+
+    private static void assertMatches(PositionRanges ranges, boolean[] flags) {
+        for (int p = -1; p <= SPAN; p++) {
+            boolean expected = p >= 0 && p < SPAN && flags[p];
+            assertEquals(ranges + " at " + p, expected, ranges.contains(p));
+        }
+        // sorted, disjoint and not touching
+        for (int i = 0; i < ranges.size(); i++) {
+            assertTrue(ranges.getFirst(i) <= ranges.getLast(i));
+            if (i > 0) {
+                assertTrue(ranges.toString(), ranges.getLast(i - 1) + 1 < ranges.getFirst(i));
+            }
+        }
+    }
+
+    private static int classify(boolean[] flags, int first, int last) {
+        int held = 0;
+        for (int p = first; p <= last; p++) {
+            if (flags[p]) {
+                held++;
+            }
+        }
+        if (held == 0) {
+            return PositionRanges.DISJOINT;
+        }
+        return held == last - first + 1 ? PositionRanges.COVERED : PositionRanges.PARTIAL;
+    }
+}
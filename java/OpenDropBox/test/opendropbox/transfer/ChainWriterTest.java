@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import opendropbox.servicediscovery.ServiceAttributes;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import opendropbox.storage.FixedSizeChunker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a chain of ChunkServers on the loopback address and checks that
+ * a ChainWriter's puts reach every server, that a missing tail leaves
+ * the chunks on the rest of the chain and reported under-replicated,
+ * and that chains are picked across zones.
+ *
+ * @author Walter
+ */
+public class ChainWriterTest {
+
+    private static final int SERVERS = 3;
+
+    private List<File> _directories;
+    private List<BlockStore> _stores;
+    private List<ChunkServer> _servers;
+    private List<InetSocketAddress> _chain;
+    private Random _random;
+
+    @Before
+    public void setUp() throws IOException {
+        _directories = new ArrayList<File>();
+        _stores = new ArrayList<BlockStore>();
+        _servers = new ArrayList<ChunkServer>();
+        _chain = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < SERVERS; i++) {
+            File directory = Files.createTempDirectory("chainwriter").toFile();
+            BlockStore store = new BlockStore(directory);
+            ChunkServer server = new ChunkServer(store, "server" + i,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.start(false);
+            _directories.add(directory);
+            _stores.add(store);
+            _servers.add(server);
+            _chain.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        }
+        _random = new Random(5);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (int i = 0; i < SERVERS; i++) {
+            _servers.get(i).stop();
+            _stores.get(i).close();
+            for (File file : _directories.get(i).listFiles()) {
+                file.delete();
+            }
+            _directories.get(i).delete();
+        }
+    }
+
+    @Test
+    public void replicatesDownTheChain() throws IOException {
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        ChainWriter writer = new ChainWriter(_chain);
+        try {
+            // more than the window, so the writer waits for acks on the way
+            for (int i = 0; i < ChunkProtocol.MAX_PIPELINED_REQUESTS * 2 + 3; i++) {
+                byte[] chunk = newChunk(1 + _random.nextInt(20000));
+                assertEquals(ChunkHash.of(chunk, 0, chunk.length), writer.put(chunk, 0, chunk.length));
+                chunks.add(chunk);
+            }
+            writer.flush();
+            assertTrue(writer.getUnderReplicated().isEmpty());
+            assertEquals(SERVERS, writer.getReplicas(), 0);
+        } finally {
+            writer.close();
+        }
+
+        for (BlockStore store : _stores) {
+            assertEquals(chunks.size(), store.size());
+            for (byte[] chunk : chunks) {
+                assertArrayEquals(chunk, store.get(ChunkHash.of(chunk, 0, chunk.length)));
+            }
+        }
+    }
+
+    @Test
+    public void putsStream() throws IOException {
+        byte[] data = newChunk(100000);
+        ChainWriter writer = new ChainWriter(_chain);
+        List<ChunkHash> hashes;
+        try {
+            hashes = writer.putStream(new ByteArrayInputStream(data), new FixedSizeChunker(4096));
+        } finally {
+            writer.close();
+        }
+        assertEquals((data.length + 4095) / 4096, hashes.size());
+        for (BlockStore store : _stores) {
+            for (ChunkHash hash : hashes) {
+                assertTrue(store.contains(hash));
+            }
+        }
+    }
+
+    @Test
+    public void carriesOnWithoutTheTail() throws IOException {
+        _servers.get(SERVERS - 1).stop();
+
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+        ChainWriter writer = new ChainWriter(_chain);
+        try {
+            for (int i = 0; i < 10; i++) {
+                byte[] chunk = newChunk(1000);
+                hashes.add(writer.put(chunk, 0, chunk.length));
+            }
+            writer.flush();
+            assertEquals(hashes, writer.getUnderReplicated());
+            assertEquals(SERVERS - 1, writer.getReplicas(), 0);
+        } finally {
+            writer.close();
+        }
+
+        for (ChunkHash hash : hashes) {
+            assertTrue(_stores.get(0).contains(hash));
+            assertTrue(_stores.get(1).contains(hash));
+            assertFalse(_stores.get(2).contains(hash));
+        }
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void rejectsUnresolvedServer() throws IOException {
+        List<InetSocketAddress> chain = new ArrayList<InetSocketAddress>(_chain);
+        chain.set(1, InetSocketAddress.createUnresolved("chain.invalid", 1234));
+        new ChainWriter(chain).close();
+    }
+
+    @Test
+    public void picksChainAcrossZones() throws IOException {
+        List<ServiceDescription> ranked = new ArrayList<ServiceDescription>();
+        String[] zones = {"a", "a", "b", "a", "c"};
+        for (int i = 0; i < zones.length; i++) {
+            ranked.add(new ServiceDescription("s" + i, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) (i + 1)}),
+                    1000 + i, ServiceAttributes.EMPTY.with(ServiceAttributes.ZONE, zones[i])));
+        }
+
+        assertEquals(ports(1000, 1002, 1004), ports(ChainWriter.getChain(ranked, 3)));
+        // once every zone is used, the nearest of the rest
+        assertEquals(ports(1000, 1002, 1004, 1001), ports(ChainWriter.getChain(ranked, 4)));
+        assertEquals(zones.length, ChainWriter.getChain(ranked, 10).size());
+    }
+
+    private byte[] newChunk(int length) {
+        byte[] chunk = new byte[length];
+        _random.nextBytes(chunk);
+        return chunk;
+    }
+
+    private static List<Integer> ports(int... ports) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int port : ports) {
+            list.add(port);
+        }
+        return list;
+    }
+
+    private static List<Integer> ports(List<InetSocketAddress> chain) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (InetSocketAddress address : chain) {
+            list.add(address.getPort());
+        }
+        return list;
+    }
+}
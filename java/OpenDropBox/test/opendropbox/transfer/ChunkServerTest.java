@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.transfer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import opendropbox.storage.BlockStore;
+import opendropbox.storage.ChunkHash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a ChunkServer on the loopback address without advertising it,
+ * and checks that pipelined requests are answered in order, that
+ * requests split across reads or packed into one are framed correctly,
+ * and that a connection speaking nonsense is closed.
+ *
+ * @author Walter
+ */
+public class ChunkServerTest {
+
+    private File _directory;
+    private BlockStore _store;
+    private ChunkServer _server;
+    private InetSocketAddress _address;
+    private Random _random;
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("chunkserver").toFile();
+        _store = new BlockStore(_directory);
+        _server = new ChunkServer(_store, "test", new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        _server.start(false);
+        _address = new InetSocketAddress(InetAddress.getLoopbackAddress(), _server.getPort());
+        _random = new Random(4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _server.stop();
+        _store.close();
+        for (File file : _directory.listFiles()) {
+            file.delete();
+        }
+        _directory.delete();
+    }
+
+    @Test
+    public void getsOneChunk() throws IOException {
+        byte[] chunk = putChunk(1000);
+        ChunkClient client = new ChunkClient(_address);
+        try {
+            assertArrayEquals(chunk, client.get(ChunkHash.of(chunk, 0, chunk.length)));
+            assertNull(client.get(new ChunkHash(1, 2, 3, 4)));
+            // the connection is still usable after a miss
+            assertArrayEquals(chunk, client.get(ChunkHash.of(chunk, 0, chunk.length)));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void pipelinesPastTheWindow() throws IOException {
+        int count = ChunkProtocol.MAX_PIPELINED_REQUESTS * 3 + 5;
+        List<ChunkHash> hashes = new ArrayList<ChunkHash>();
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            if (i % 7 == 3) {
+                hashes.add(new ChunkHash(i, i, i, i));
+                expected.add(null);
+            } else {
+                byte[] chunk = putChunk(1 + _random.nextInt(3000));
+                hashes.add(ChunkHash.of(chunk, 0, chunk.length));
+                expected.add(chunk);
+            }
+        }
+
+        ChunkClient client = new ChunkClient(_address);
+        try {
+            List<byte[]> chunks = client.get(hashes);
+            assertEquals(count, chunks.size());
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals("chunk " + i, expected.get(i), chunks.get(i));
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void sendsAndReceivesInOrder() throws IOException {
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        for (int i = 0; i < ChunkProtocol.MAX_PIPELINED_REQUESTS; i++) {
+            chunks.add(putChunk(1 + _random.nextInt(5000)));
+        }
+        // one large chunk, more than a socket buffer takes at once
+        chunks.add(putChunk(3 * 1024 * 1024));
+
+        ChunkClient client = new ChunkClient(_address);
+        try {
+            for (byte[] chunk : chunks) {
+                client.send(ChunkHash.of(chunk, 0, chunk.length));
+            }
+            for (byte[] chunk : chunks) {
+                assertArrayEquals(chunk, client.receive());
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void framesSplitAndPackedRequests() throws IOException {
+        byte[] first = putChunk(100);
+        byte[] second = putChunk(200);
+        ByteBuffer requests = ByteBuffer.allocate(3 * ChunkProtocol.REQUEST_LENGTH);
+        requests.put(ChunkProtocol.OP_GET);
+        ChunkHash.of(first, 0, first.length).write(requests);
+        requests.put(ChunkProtocol.OP_GET);
+        new ChunkHash(5, 6, 7, 8).write(requests);
+        requests.put(ChunkProtocol.OP_GET);
+        ChunkHash.of(second, 0, second.length).write(requests);
+
+        Socket socket = new Socket(_address.getAddress(), _address.getPort());
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // a byte at a time, so each request arrives in pieces
+            for (byte b : requests.array()) {
+                out.write(b);
+                out.flush();
+            }
+            assertResponse(in, first);
+            assertResponse(in, null);
+            assertResponse(in, second);
+
+            // all three in one write
+            out.write(requests.array());
+            out.flush();
+            assertResponse(in, first);
+            assertResponse(in, null);
+            assertResponse(in, second);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void closesOnUnknownOp() throws IOException {
+        Socket socket = new Socket(_address.getAddress(), _address.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(new byte[]{99, 0, 0, 0});
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private byte[] putChunk(int length) throws IOException {
+        byte[] chunk = new byte[length];
+        _random.nextBytes(chunk);
+        _store.put(chunk, 0, length);
+        return chunk;
+    }
+
+    private static void assertResponse(DataInputStream in, byte[] chunk) throws IOException {
+        byte status = in.readByte();
+        int length = in.readInt();
+        if (chunk == null) {
+            assertEquals(ChunkProtocol.STATUS_NOT_FOUND, status);
+            assertEquals(0, length);
+            return;
+        }
+        assertEquals(ChunkProtocol.STATUS_OK, status);
+        assertEquals(chunk.length, length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        assertArrayEquals(chunk, data);
+    }
+}
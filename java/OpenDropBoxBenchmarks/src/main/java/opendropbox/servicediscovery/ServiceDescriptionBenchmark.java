@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The text form of a description, as carried by legacy replies.
+ *
+ * @author Walter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceDescriptionBenchmark {
+
+    private ServiceDescription _description;
+    private String _encodedName;
+    private String _address;
+    private String _port;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        _description = new ServiceDescription("ODB instance 7", InetAddress.getByName("192.168.1.20"), 5000);
+        String[] fields = _description.toString().split(" ");
+        _encodedName = fields[0];
+        _address = fields[1];
+        _port = fields[2];
+    }
+
+    @Benchmark
+    public ServiceDescription parse() {
+        return ServiceDescription.parse(_encodedName, _address, _port);
+    }
+
+    @Benchmark
+    public String format() {
+        return _description.toString();
+    }
+}
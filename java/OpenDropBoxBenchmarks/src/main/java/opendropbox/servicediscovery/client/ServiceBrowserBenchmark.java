@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.EncodedServiceName;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.simulation.SimulatedNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding the descriptions out of a reply, for a single record and for
+ * a batch as packed by the ReplyBatcher.
+ *
+ * @author Walter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBrowserBenchmark {
+
+    @Param({"1", "40"})
+    public int records;
+
+    private ServiceBrowser _browser;
+    private ByteBuffer _reply;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        _browser = new ServiceBrowser(new SimulatedNetwork(1).createEngine());
+        _browser.setServiceName(ServiceConstants.SERVICE_NAME);
+
+        _reply = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeHeader(_reply, DiscoveryCodec.TYPE_REPLY, 0,
+                new EncodedServiceName(ServiceConstants.SERVICE_NAME));
+        _reply.put((byte) records);
+        for (int i = 0; i < records; i++) {
+            DiscoveryCodec.encodeRecord(_reply, new ServiceDescription("ODB instance " + i,
+                    InetAddress.getByAddress(new byte[]{(byte) 192, (byte) 168, 1, (byte) i}), 5000 + i),
+                    ServiceConstants.DEFAULT_SERVICE_TTL);
+        }
+        _reply.flip();
+    }
+
+    @Benchmark
+    public void getReplyDescriptor(Blackhole blackhole) {
+        _reply.rewind();
+        _browser._receivedData = _reply;
+        if (_browser.isReplyPacket()) {
+            ServiceDescription descriptor;
+            while ((descriptor = _browser.getReplyDescriptor()) != null) {
+                blackhole.consume(descriptor);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.simulation.SimulatedNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing a decoded reply to the list manager, against registries of
+ * different sizes.  Every call renews an instance already in the list,
+ * which is what a steady network mostly sends.
+ *
+ * @author Walter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceListManagerBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int size;
+
+    private ServiceListManager _manager;
+    private ServiceDescription[] _descriptions;
+    private int _next;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        _manager = new ServiceListManager(ServiceConstants.SERVICE_NAME, new SimulatedNetwork(1).createEngine());
+        _descriptions = new ServiceDescription[size];
+        for (int i = 0; i < size; i++) {
+            _descriptions[i] = new ServiceDescription("ODB instance " + i,
+                    InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}), 5000);
+            _manager.serviceEncountered(_descriptions[i]);
+        }
+    }
+
+    @Benchmark
+    public void serviceEncountered() {
+        _manager.serviceEncountered(_descriptions[_next]);
+        if (++_next == _descriptions.length) {
+            _next = 0;
+        }
+    }
+}
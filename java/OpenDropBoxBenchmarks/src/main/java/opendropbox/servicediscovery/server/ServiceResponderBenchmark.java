@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 OpenDropBox
+ * http://www.opendropbox.com/
+ */
+
+package opendropbox.servicediscovery.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import opendropbox.servicediscovery.DatagramTransport;
+import opendropbox.servicediscovery.DiscoveryClock;
+import opendropbox.servicediscovery.DiscoveryCodec;
+import opendropbox.servicediscovery.DiscoveryEngine;
+import opendropbox.servicediscovery.DiscoveryPacketHandler;
+import opendropbox.servicediscovery.EncodedServiceName;
+import opendropbox.servicediscovery.ServiceConstants;
+import opendropbox.servicediscovery.ServiceDescription;
+import opendropbox.servicediscovery.simulation.SimulatedNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a responder does with every datagram on the group: decide whether
+ * it is a query for its service, and produce the reply if it is.  The
+ * responder runs on a simulated engine so no sockets are opened.
+ *
+ * Replies are built by the ReplyBatcher, so that is what is measured:
+ * encoding one record into a reused buffer, and sendRecords() as a whole,
+ * through an engine whose transport drops every packet.
+ *
+ * @author Walter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceResponderBenchmark {
+
+    private ServiceResponder _responder;
+    private ByteBuffer _query;
+    private ByteBuffer _otherQuery;
+    private ReplyBatcher _batcher;
+    private SocketAddress _target;
+    private EncodedServiceName _serviceName;
+    private ServiceDescription _description;
+    private List<ServiceDescription> _descriptions;
+    private List<Integer> _ttls;
+    private ByteBuffer _reply;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        _responder = new ServiceResponder(ServiceConstants.SERVICE_NAME, new SimulatedNetwork(1).createEngine());
+        _description = new ServiceDescription("ODB instance 7", InetAddress.getByName("192.168.1.20"), 5000);
+        _responder.setDescription(_description);
+        _query = encodeQuery(ServiceConstants.SERVICE_NAME);
+        _otherQuery = encodeQuery("some other service");
+
+        DiscoveryEngine engine = new DiscoveryEngine(new DiscardingTransport(), null, DiscoveryClock.SYSTEM);
+        _batcher = engine.getReplyBatcher();
+        _target = engine.getGroupAddress();
+        _serviceName = new EncodedServiceName(ServiceConstants.SERVICE_NAME);
+        _descriptions = Collections.singletonList(_description);
+        _ttls = Collections.singletonList(ServiceConstants.DEFAULT_SERVICE_TTL);
+        _reply = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+    }
+
+    private static ByteBuffer encodeQuery(String serviceName) {
+        ByteBuffer query = ByteBuffer.allocate(ServiceConstants.DATAGRAM_LENGTH);
+        DiscoveryCodec.encodeQuery(query, new EncodedServiceName(serviceName));
+        query.flip();
+        return query;
+    }
+
+    @Benchmark
+    public boolean isQueryPacket() {
+        _query.rewind();
+        _responder._receivedData = _query;
+        return _responder.isQueryPacket();
+    }
+
+    @Benchmark
+    public boolean isQueryPacketOtherService() {
+        _otherQuery.rewind();
+        _responder._receivedData = _otherQuery;
+        return _responder.isQueryPacket();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRecord() {
+        _reply.clear();
+        DiscoveryCodec.encodeHeader(_reply, DiscoveryCodec.TYPE_REPLY, 0, _serviceName);
+        _reply.put((byte) 1);
+        DiscoveryCodec.encodeRecord(_reply, _description, ServiceConstants.DEFAULT_SERVICE_TTL);
+        return _reply;
+    }
+
+    @Benchmark
+    public void sendRecords() {
+        _batcher.sendRecords(_target, DiscoveryCodec.TYPE_REPLY, _serviceName, _descriptions, _ttls);
+    }
+
+    /**
+     * Drops everything sent, so only the work of building the packets
+     * is measured.
+     */
+    private static class DiscardingTransport implements DatagramTransport {
+
+        private final InetSocketAddress _group = new InetSocketAddress(ServiceConstants.MULTICAST_PORT);
+
+        public void open(DiscoveryPacketHandler receiver) {
+        }
+
+        public void send(ByteBuffer data, SocketAddress target, boolean fromPrivatePort) {
+        }
+
+        public InetSocketAddress getGroupAddress() {
+            return _group;
+        }
+
+        public boolean isPrivateEndpoint(SocketAddress source) {
+            return false;
+        }
+
+        public int getPrivatePort() {
+            return 0;
+        }
+
+        public void flush(long timeout) {
+        }
+
+        public void close() {
+        }
+    }
+}